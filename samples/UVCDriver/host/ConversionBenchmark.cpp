@@ -0,0 +1,226 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+// Measures the PixelConverter conversions on a development machine, every source format
+// to every target format with the scalar and the SIMD kernels.
+//
+//   ConversionBenchmark [--size <width>x<height>] [--min-time <seconds>] [--filter <text>]
+//
+// Each conversion runs until --min-time has passed, like a Google Benchmark run, and is
+// reported per frame and per megapixel. The SIMD output is compared with the scalar one.
+// The summary lists the cheapest format Vuforia takes (YUYV, NV12, NV21) for each source.
+
+#include "PixelConverter.h"
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <string>
+#include <vector>
+
+#define MODULE_TAG "ConversionBenchmark"
+
+#include "DriverLog.h"
+
+namespace
+{
+const PixelConverter::Format ALL_FORMATS[] = {
+    PixelConverter::Format::YUYV, PixelConverter::Format::UYVY, PixelConverter::Format::NV12,
+    PixelConverter::Format::NV21, PixelConverter::Format::GRAY, PixelConverter::Format::RGB888
+};
+
+// The formats a Vuforia::Driver::CameraFrame can carry
+const PixelConverter::Format VUFORIA_FORMATS[] = {
+    PixelConverter::Format::YUYV, PixelConverter::Format::NV12, PixelConverter::Format::NV21
+};
+
+struct Result
+{
+    double nsPerFrame{ 0.0 };
+    uint64_t iterations{ 0 };
+};
+
+/// Run the conversion until minTime has passed, at least once.
+Result
+run(const PixelConverter& converter, const std::vector<uint8_t>& source, uint32_t sourceStride,
+    std::vector<uint8_t>& target, double minTime)
+{
+    // One untimed run, so that the buffers are paged in
+    converter.convert(source.data(), sourceStride, target.data());
+
+    Result result;
+    uint64_t batch = 1;
+    std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+    double elapsed = 0.0;
+    while (elapsed < minTime)
+    {
+        for (uint64_t idx = 0; idx < batch; idx++)
+        {
+            converter.convert(source.data(), sourceStride, target.data());
+        }
+        result.iterations += batch;
+        elapsed = std::chrono::duration<double>(std::chrono::steady_clock::now() - start).count();
+
+        // Grow the batch so that the clock is read rarely
+        batch *= 2;
+    }
+
+    result.nsPerFrame = elapsed * 1e9 / result.iterations;
+    return result;
+}
+
+void
+fillSource(std::vector<uint8_t>& source)
+{
+    // Deterministic noise, so that no conversion gets away with constant data
+    uint32_t state = 12345;
+    for (uint8_t& value : source)
+    {
+        state = state * 1103515245 + 12345;
+        value = static_cast<uint8_t>(state >> 16);
+    }
+}
+
+int
+printUsage()
+{
+    fprintf(stderr, "usage: ConversionBenchmark [--size <width>x<height>] [--min-time <seconds>] [--filter <text>]\n");
+    return 2;
+}
+}
+
+int
+main(int argc, char** argv)
+{
+    uint32_t width = 1280;
+    uint32_t height = 720;
+    double minTime = 0.5;
+    std::string filter;
+
+    for (int idx = 1; idx < argc; idx++)
+    {
+        std::string option = argv[idx];
+        if (idx + 1 < argc && option == "--size")
+        {
+            // Every conversion is run, the NV12 and NV21 ones need an even width and height
+            if (sscanf(argv[++idx], "%ux%u", &width, &height) != 2 || width == 0 || height == 0 ||
+                width % 2 != 0 || height % 2 != 0)
+            {
+                fprintf(stderr, "--size needs an even, non-zero width and height\n");
+                return printUsage();
+            }
+        }
+        else if (idx + 1 < argc && option == "--min-time")
+        {
+            minTime = atof(argv[++idx]);
+        }
+        else if (idx + 1 < argc && option == "--filter")
+        {
+            filter = argv[++idx];
+        }
+        else
+        {
+            return printUsage();
+        }
+    }
+
+    double megapixels = static_cast<double>(width) * height / 1e6;
+    printf("%ux%u frames, SIMD kernels: %s\n", width, height, PixelConverter::hasSimd() ?
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+           "NEON"
+#else
+           "SSE2"
+#endif
+           : "none");
+    printf("%-36s %14s %12s %12s %10s\n", "Benchmark", "Time/frame", "Time/MP", "Throughput", "Iterations");
+    printf("------------------------------------------------------------------------------------------\n");
+
+    // Cheapest SIMD conversion to a Vuforia format, per source format
+    const size_t numFormats = sizeof(ALL_FORMATS) / sizeof(ALL_FORMATS[0]);
+    std::vector<double> bestTime(numFormats, 0.0);
+    std::vector<PixelConverter::Format> bestFormat(numFormats, PixelConverter::Format::YUYV);
+    int mismatches = 0;
+
+    for (size_t sourceIdx = 0; sourceIdx < numFormats; sourceIdx++)
+    {
+        PixelConverter::Format sourceFormat = ALL_FORMATS[sourceIdx];
+
+        // Rows are padded like the frames of some cameras, so that strided reads are covered
+        PixelConverter identity;
+        if (!identity.configure(sourceFormat, sourceFormat, width, height, PixelConverter::Implementation::SCALAR))
+        {
+            return 1;
+        }
+        uint32_t sourceStride = identity.getTargetStride() + 64;
+        std::vector<uint8_t> source(static_cast<size_t>(sourceStride) * height * 2);
+        fillSource(source);
+
+        for (PixelConverter::Format targetFormat : ALL_FORMATS)
+        {
+            std::vector<uint8_t> scalarTarget(PixelConverter::getFrameSize(targetFormat, width, height));
+            std::vector<uint8_t> simdTarget(scalarTarget.size());
+
+            const PixelConverter::Implementation implementations[] = {
+                PixelConverter::Implementation::SCALAR, PixelConverter::Implementation::SIMD
+            };
+            for (PixelConverter::Implementation implementation : implementations)
+            {
+                bool simd = implementation == PixelConverter::Implementation::SIMD;
+                std::string name = std::string(PixelConverter::getFormatName(sourceFormat)) + "->" +
+                                   PixelConverter::getFormatName(targetFormat) + (simd ? "/simd" : "/scalar");
+                if (!filter.empty() && name.find(filter) == std::string::npos)
+                {
+                    continue;
+                }
+
+                PixelConverter converter;
+                if (!converter.configure(sourceFormat, targetFormat, width, height, implementation))
+                {
+                    return 1;
+                }
+
+                std::vector<uint8_t>& target = simd ? simdTarget : scalarTarget;
+                Result result = run(converter, source, sourceStride, target, minTime);
+
+                printf("%-36s %11.3f ms %9.3f ms %8.1f MP/s %10llu\n", name.c_str(), result.nsPerFrame / 1e6,
+                       result.nsPerFrame / 1e6 / megapixels, megapixels * 1e9 / result.nsPerFrame,
+                       static_cast<unsigned long long>(result.iterations));
+
+                if (simd)
+                {
+                    if (filter.empty() && memcmp(scalarTarget.data(), simdTarget.data(), simdTarget.size()) != 0)
+                    {
+                        LOG_E("%s differs from the scalar output", name.c_str());
+                        mismatches++;
+                    }
+
+                    for (PixelConverter::Format vuforiaFormat : VUFORIA_FORMATS)
+                    {
+                        if (vuforiaFormat == targetFormat && (bestTime[sourceIdx] == 0.0 || result.nsPerFrame < bestTime[sourceIdx]))
+                        {
+                            bestTime[sourceIdx] = result.nsPerFrame;
+                            bestFormat[sourceIdx] = targetFormat;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    printf("\nCheapest format for Vuforia\n");
+    for (size_t sourceIdx = 0; sourceIdx < numFormats; sourceIdx++)
+    {
+        if (bestTime[sourceIdx] > 0.0)
+        {
+            printf("%-8s -> %-6s %8.3f ms/MP\n", PixelConverter::getFormatName(ALL_FORMATS[sourceIdx]),
+                   PixelConverter::getFormatName(bestFormat[sourceIdx]), bestTime[sourceIdx] / 1e6 / megapixels);
+        }
+    }
+
+    return mismatches > 0 ? 1 : 0;
+}
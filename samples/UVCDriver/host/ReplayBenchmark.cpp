@@ -0,0 +1,316 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+// Replays a recording through the frame path of the driver on a development machine
+// and reports how fast the frames get through it.
+//
+//   ReplayBenchmark <recording> [--real-time] [--queue <capacity>] [--policy <0|1|2>]
+//                   [--work-us <us>] [--frames <count>]
+//   ReplayBenchmark --generate <recording> <width> <height> <fps> <count>
+//
+// Without --queue the frames are delivered on the playback thread like a UVC camera
+// with frameQueue.capacity 0. --work-us simulates the time Vuforia spends on a frame.
+
+#include "FrameQueue.h"
+#include "FrameRecording.h"
+#include "FrameTelemetry.h"
+#include "ReplayExternalCamera.h"
+
+#include <chrono>
+#include <condition_variable>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include <mutex>
+#include <string>
+#include <vector>
+
+#define MODULE_TAG "ReplayBenchmark"
+
+#include "DriverLog.h"
+
+namespace
+{
+uint64_t
+getCurrentTimestamp()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000000000ULL + t.tv_nsec;
+}
+
+/// Stands in for Vuforia: reads every byte of the frame and optionally keeps busy for a while.
+class BenchmarkCallback : public Vuforia::Driver::CameraCallback
+{
+public:
+    BenchmarkCallback(uint32_t workUs, uint64_t maxFrames)
+        : mWorkUs(workUs)
+        , mMaxFrames(maxFrames)
+    {
+    }
+
+    void VUFORIA_DRIVER_CALLING_CONVENTION onNewCameraFrame(Vuforia::Driver::CameraFrame* frame) override
+    {
+        uint64_t callbackStart = getCurrentTimestamp();
+        mTelemetry.recordFrame(frame->index, callbackStart);
+
+        uint32_t checksum = 0;
+        for (uint32_t idx = 0; idx < frame->bufferSize; idx += 64)
+        {
+            checksum += frame->buffer[idx];
+        }
+        mChecksum += checksum;
+
+        while (getCurrentTimestamp() - callbackStart < mWorkUs * 1000ULL)
+        {
+        }
+
+        mTelemetry.recordCallbackDuration(getCurrentTimestamp() - callbackStart);
+
+        std::lock_guard<std::mutex> lock(mMutex);
+        mBytes += frame->bufferSize;
+        if (++mFrames >= mMaxFrames)
+        {
+            mDoneCondition.notify_all();
+        }
+    }
+
+    /// Wait until all frames arrived or the recording stopped playing.
+    void wait(ReplayExternalCamera& camera)
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        while (mFrames < mMaxFrames && camera.isPlaying())
+        {
+            mDoneCondition.wait_for(lock, std::chrono::milliseconds(100));
+        }
+    }
+
+    uint64_t getFrames()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mFrames;
+    }
+
+    uint64_t getBytes()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mBytes;
+    }
+
+    FrameTelemetry& getTelemetry()
+    {
+        return mTelemetry;
+    }
+
+private:
+    uint32_t                mWorkUs;
+    uint64_t                mMaxFrames;
+    FrameTelemetry          mTelemetry;
+    uint32_t                mChecksum{ 0 };
+
+    std::mutex              mMutex;
+    std::condition_variable mDoneCondition;
+    uint64_t                mFrames{ 0 };
+    uint64_t                mBytes{ 0 };
+};
+
+/// Pushes the frames of the camera into the frame queue, like UVCCamera does with a queue configured.
+class QueueingCallback : public Vuforia::Driver::CameraCallback
+{
+public:
+    QueueingCallback(FrameQueue& queue)
+        : mQueue(queue)
+    {
+    }
+
+    void VUFORIA_DRIVER_CALLING_CONVENTION onNewCameraFrame(Vuforia::Driver::CameraFrame* frame) override
+    {
+        mQueue.push(*frame);
+    }
+
+private:
+    FrameQueue& mQueue;
+};
+
+void
+printHistogram(const char* name, const FrameTelemetry::HistogramSnapshot& histogram)
+{
+    printf("%-18s count %8llu  mean %10.1f us  stddev %10.1f us  max %8llu us\n", name,
+           static_cast<unsigned long long>(histogram.count), histogram.getMean(), histogram.getStandardDeviation(),
+           static_cast<unsigned long long>(histogram.max));
+}
+
+int
+generate(const std::string& path, uint32_t width, uint32_t height, uint32_t fps, uint32_t count)
+{
+    Vuforia::Driver::CameraMode cameraMode;
+    cameraMode.width = width;
+    cameraMode.height = height;
+    cameraMode.fps = fps;
+    cameraMode.format = Vuforia::Driver::PixelFormat::YUYV;
+
+    FrameRecorder recorder;
+    if (width == 0 || height == 0 || fps == 0 || !recorder.open(path, cameraMode))
+    {
+        return 1;
+    }
+
+    std::vector<uint8_t> buffer(width * height * 2);
+    Vuforia::Driver::CameraFrame frame;
+    frame.bufferSize = buffer.size();
+    frame.width = width;
+    frame.height = height;
+    frame.stride = width * 2;
+    frame.format = cameraMode.format;
+    frame.buffer = buffer.data();
+
+    for (uint32_t idx = 0; idx < count; idx++)
+    {
+        // A gradient that moves every frame, so that the frames differ
+        for (uint32_t y = 0; y < height; y++)
+        {
+            memset(&buffer[y * frame.stride], static_cast<uint8_t>(y + idx), frame.stride);
+        }
+
+        frame.index = idx;
+        frame.timestamp = static_cast<uint64_t>(idx) * 1000000000ULL / fps;
+        frame.exposureTime = 1000000000ULL / fps;
+        if (!recorder.write(frame))
+        {
+            return 1;
+        }
+    }
+
+    recorder.close();
+    return 0;
+}
+
+int
+printUsage()
+{
+    fprintf(stderr, "usage: ReplayBenchmark <recording> [--real-time] [--queue <capacity>] [--policy <0|1|2>] [--work-us <us>] [--frames <count>]\n");
+    fprintf(stderr, "       ReplayBenchmark --generate <recording> <width> <height> <fps> <count>\n");
+    return 2;
+}
+}
+
+int
+main(int argc, char** argv)
+{
+    if (argc < 2)
+    {
+        return printUsage();
+    }
+
+    if (strcmp(argv[1], "--generate") == 0)
+    {
+        if (argc != 7)
+        {
+            return printUsage();
+        }
+        return generate(argv[2], atoi(argv[3]), atoi(argv[4]), atoi(argv[5]), atoi(argv[6]));
+    }
+
+    std::string path = argv[1];
+    bool realTime = false;
+    uint32_t queueCapacity = 0;
+    FrameQueue::OverflowPolicy policy = FrameQueue::OverflowPolicy::DROP_OLDEST;
+    uint32_t workUs = 0;
+    uint64_t maxFrames = 0;
+
+    for (int idx = 2; idx < argc; idx++)
+    {
+        std::string option = argv[idx];
+        if (option == "--real-time")
+        {
+            realTime = true;
+        }
+        else if (idx + 1 < argc && option == "--queue")
+        {
+            queueCapacity = atoi(argv[++idx]);
+        }
+        else if (idx + 1 < argc && option == "--policy")
+        {
+            policy = static_cast<FrameQueue::OverflowPolicy>(atoi(argv[++idx]));
+        }
+        else if (idx + 1 < argc && option == "--work-us")
+        {
+            workUs = atoi(argv[++idx]);
+        }
+        else if (idx + 1 < argc && option == "--frames")
+        {
+            maxFrames = strtoull(argv[++idx], nullptr, 10);
+        }
+        else
+        {
+            return printUsage();
+        }
+    }
+
+    // Looping only when more frames than recorded are asked for
+    ReplayExternalCamera camera(path, realTime, maxFrames > 0);
+    if (!camera.open())
+    {
+        return 1;
+    }
+
+    Vuforia::Driver::CameraMode cameraMode;
+    camera.getSupportedCameraMode(0, &cameraMode);
+
+    if (maxFrames == 0)
+    {
+        FrameRecordingReader reader;
+        reader.open(path);
+        maxFrames = reader.getNumFrames();
+    }
+
+    BenchmarkCallback benchmarkCallback(workUs, maxFrames);
+    FrameQueue queue;
+    QueueingCallback queueingCallback(queue);
+
+    Vuforia::Driver::CameraCallback* callback = &benchmarkCallback;
+    if (queueCapacity > 0)
+    {
+        // Same buffer size as UVCCamera, YUYV is the largest uncompressed format
+        if (!queue.start(queueCapacity, cameraMode.width * cameraMode.height * 2, policy, &benchmarkCallback))
+        {
+            return 1;
+        }
+        callback = &queueingCallback;
+    }
+
+    std::chrono::steady_clock::time_point startTime = std::chrono::steady_clock::now();
+    if (!camera.start(cameraMode, callback))
+    {
+        return 1;
+    }
+
+    benchmarkCallback.wait(camera);
+    camera.stop();
+    queue.stop();
+
+    double seconds = std::chrono::duration<double>(std::chrono::steady_clock::now() - startTime).count();
+    uint64_t frames = benchmarkCallback.getFrames();
+    FrameTelemetry::Snapshot snapshot = benchmarkCallback.getTelemetry().getSnapshot();
+
+    printf("%ux%u @ %u fps, %s, queue %u\n", cameraMode.width, cameraMode.height, cameraMode.fps,
+           realTime ? "real time" : "as fast as possible", queueCapacity);
+    printf("%llu frames in %.3f s: %.1f fps, %.1f MB/s\n", static_cast<unsigned long long>(frames), seconds,
+           frames / seconds, benchmarkCallback.getBytes() / seconds / (1024.0 * 1024.0));
+    printf("frames dropped     %llu\n", static_cast<unsigned long long>(snapshot.framesDropped));
+    printHistogram("frame interval", snapshot.frameInterval);
+    printHistogram("callback duration", snapshot.callbackDuration);
+
+    if (queueCapacity > 0)
+    {
+        FrameQueue::Statistics statistics = queue.getStatistics();
+        printf("queue pushed %llu, delivered %llu, overruns %llu\n", static_cast<unsigned long long>(statistics.pushed),
+               static_cast<unsigned long long>(statistics.delivered), static_cast<unsigned long long>(statistics.overruns));
+    }
+
+    return 0;
+}
@@ -0,0 +1,182 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "BandwidthPlanner.h"
+
+#include "TestHarness.h"
+
+namespace
+{
+const std::vector<uint32_t> HIGH_SPEED_ALT_SETTINGS = { 128, 512, 1024, 2048, 3072 };
+const std::vector<uint32_t> FULL_SPEED_ALT_SETTINGS = { 128, 256, 512, 1023 };
+}
+
+TEST(BandwidthPlanner, RequiredPayloadSize)
+{
+    // 640x480 YUYV at 30 fps, with one frame per second of headroom and the 12 byte header
+    EXPECT_EQ(BandwidthPlanner::getRequiredPayloadSize(640 * 480 * 2, 30, true), 2381u + 12u);
+
+    // Rounded up to the next byte per microframe
+    EXPECT_EQ(BandwidthPlanner::getRequiredPayloadSize(8001, 7, true), 1024u);
+    EXPECT_EQ(BandwidthPlanner::getRequiredPayloadSize(2000000, 7, true), 2000u + 12u);
+    EXPECT_EQ(BandwidthPlanner::getRequiredPayloadSize(2000001, 7, true), 2001u + 12u);
+
+    // High-speed cameras get at least a full transaction
+    EXPECT_EQ(BandwidthPlanner::getRequiredPayloadSize(1000, 1, true), 1024u);
+
+    // Full-speed cameras are scheduled per 1 ms frame, without a minimum
+    EXPECT_EQ(BandwidthPlanner::getRequiredPayloadSize(1000, 1, false), 2u + 12u);
+    EXPECT_EQ(BandwidthPlanner::getRequiredPayloadSize(160 * 120 * 2, 15, false), 615u + 12u);
+}
+
+TEST(BandwidthPlanner, ReservesTheSmallestAltSettingThatFits)
+{
+    BandwidthPlanner planner;
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::BUS;
+
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 2393, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 3072u);
+    EXPECT_TRUE(constraint == BandwidthPlanner::Constraint::NONE);
+
+    // Exactly the size of an alternate setting
+    EXPECT_TRUE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 1024, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 1024u);
+
+    // The order of the alternate settings doesn't matter
+    std::vector<uint32_t> unordered = { 3072, 128, 2048, 512 };
+    EXPECT_TRUE(planner.reserve(2, 2, true, unordered, 600, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 2048u);
+}
+
+TEST(BandwidthPlanner, EndpointTooSmall)
+{
+    BandwidthPlanner planner;
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+
+    EXPECT_FALSE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 3073, reservedSize, constraint));
+    EXPECT_TRUE(constraint == BandwidthPlanner::Constraint::ENDPOINT);
+
+    EXPECT_FALSE(planner.reserve(0, 1, true, std::vector<uint32_t>(), 128, reservedSize, constraint));
+    EXPECT_TRUE(constraint == BandwidthPlanner::Constraint::ENDPOINT);
+}
+
+TEST(BandwidthPlanner, CamerasShareTheBus)
+{
+    BandwidthPlanner planner;
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 2000, reservedSize, constraint));
+    EXPECT_TRUE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 2000, reservedSize, constraint));
+
+    // 2 x 2048 leave 1904 of the 6000 bytes, not enough for a third camera of the same mode
+    EXPECT_FALSE(planner.reserve(2, 1, true, HIGH_SPEED_ALT_SETTINGS, 2000, reservedSize, constraint));
+    EXPECT_TRUE(constraint == BandwidthPlanner::Constraint::BUS);
+
+    // A camera on another bus isn't affected
+    EXPECT_TRUE(planner.reserve(2, 2, true, HIGH_SPEED_ALT_SETTINGS, 2500, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 3072u);
+}
+
+TEST(BandwidthPlanner, BusFullForASecondCamera)
+{
+    BandwidthPlanner planner;
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 2500, reservedSize, constraint));
+    EXPECT_FALSE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 3000, reservedSize, constraint));
+    EXPECT_TRUE(constraint == BandwidthPlanner::Constraint::BUS);
+
+    // A smaller mode of the second camera still fits next to the first one
+    EXPECT_TRUE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 2000, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 2048u);
+}
+
+TEST(BandwidthPlanner, ReplacesTheOwnReservation)
+{
+    BandwidthPlanner planner;
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 2500, reservedSize, constraint));
+
+    // Renegotiating doesn't count the earlier reservation against the camera
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 2500, reservedSize, constraint));
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 1000, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 1024u);
+
+    // Only the replaced 1024 bytes are in use now
+    EXPECT_TRUE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 2500, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 3072u);
+}
+
+TEST(BandwidthPlanner, FailedReservationKeepsTheOldOne)
+{
+    BandwidthPlanner planner;
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 2500, reservedSize, constraint));
+    EXPECT_FALSE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 4000, reservedSize, constraint));
+
+    // Still holds its 3072 bytes
+    EXPECT_FALSE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 3000, reservedSize, constraint));
+    EXPECT_TRUE(constraint == BandwidthPlanner::Constraint::BUS);
+}
+
+TEST(BandwidthPlanner, ReleaseFreesTheBus)
+{
+    BandwidthPlanner planner;
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 2500, reservedSize, constraint));
+    EXPECT_FALSE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 3000, reservedSize, constraint));
+
+    planner.release(0);
+    EXPECT_TRUE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 3000, reservedSize, constraint));
+
+    // Releasing a camera without a reservation does nothing
+    planner.release(5);
+    EXPECT_FALSE(planner.reserve(2, 1, true, HIGH_SPEED_ALT_SETTINGS, 3000, reservedSize, constraint));
+}
+
+TEST(BandwidthPlanner, FullSpeedBudget)
+{
+    BandwidthPlanner planner;
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+
+    EXPECT_TRUE(planner.reserve(0, 1, false, FULL_SPEED_ALT_SETTINGS, 1000, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 1023u);
+
+    // 1023 + 512 is more than the 1350 bytes of a full-speed frame
+    EXPECT_FALSE(planner.reserve(1, 1, false, FULL_SPEED_ALT_SETTINGS, 500, reservedSize, constraint));
+    EXPECT_TRUE(constraint == BandwidthPlanner::Constraint::BUS);
+    EXPECT_TRUE(planner.reserve(1, 1, false, FULL_SPEED_ALT_SETTINGS, 250, reservedSize, constraint));
+    EXPECT_EQ(reservedSize, 256u);
+}
+
+TEST(BandwidthPlanner, ConfiguredBusBudget)
+{
+    BandwidthPlanner planner;
+    planner.setBusBudget(4096);
+
+    uint32_t reservedSize = 0;
+    BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+
+    EXPECT_TRUE(planner.reserve(0, 1, true, HIGH_SPEED_ALT_SETTINGS, 2500, reservedSize, constraint));
+    EXPECT_TRUE(planner.reserve(1, 1, true, HIGH_SPEED_ALT_SETTINGS, 1000, reservedSize, constraint));
+    EXPECT_FALSE(planner.reserve(2, 1, true, HIGH_SPEED_ALT_SETTINGS, 100, reservedSize, constraint));
+
+    // 0 goes back to the default budget
+    planner.setBusBudget(0);
+    EXPECT_TRUE(planner.reserve(2, 1, true, HIGH_SPEED_ALT_SETTINGS, 1000, reservedSize, constraint));
+}
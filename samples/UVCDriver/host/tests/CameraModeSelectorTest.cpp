@@ -0,0 +1,126 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "CameraModeSelector.h"
+
+#include "TestHarness.h"
+
+#include <cfloat>
+
+namespace
+{
+Vuforia::Driver::CameraMode
+makeMode(uint32_t width, uint32_t height, uint32_t fps)
+{
+    Vuforia::Driver::CameraMode mode;
+    mode.width = width;
+    mode.height = height;
+    mode.fps = fps;
+    mode.format = Vuforia::Driver::PixelFormat::YUYV;
+    return mode;
+}
+
+float
+score(const CameraModeSelector& selector, uint32_t width, uint32_t height, uint32_t fps, bool compressed = false)
+{
+    return selector.score(makeMode(width, height, fps), width * height * 2, compressed);
+}
+}
+
+TEST(CameraModeSelector, WithoutPreferencesLargerAndFasterWin)
+{
+    CameraModeSelector selector{ CameraModeSelector::Preferences() };
+
+    EXPECT_TRUE(score(selector, 1280, 720, 30) > score(selector, 640, 480, 30));
+    EXPECT_TRUE(score(selector, 640, 480, 60) > score(selector, 640, 480, 30));
+    EXPECT_TRUE(score(selector, 640, 480, 30) > score(selector, 320, 240, 30));
+}
+
+TEST(CameraModeSelector, PrefersTheTargetFrameRate)
+{
+    CameraModeSelector::Preferences preferences;
+    preferences.targetFps = 30;
+    CameraModeSelector selector{ preferences };
+
+    // Falling short of the target is worse than exceeding it
+    EXPECT_TRUE(score(selector, 640, 480, 30) > score(selector, 640, 480, 60));
+    EXPECT_TRUE(score(selector, 640, 480, 60) > score(selector, 640, 480, 15));
+
+    // Without a target size the larger mode still wins at the same frame rate
+    EXPECT_TRUE(score(selector, 1280, 720, 30) > score(selector, 640, 480, 30));
+}
+
+TEST(CameraModeSelector, PrefersTheTargetSize)
+{
+    CameraModeSelector::Preferences preferences;
+    preferences.targetWidth = 640;
+    preferences.targetHeight = 480;
+    CameraModeSelector selector{ preferences };
+
+    EXPECT_TRUE(score(selector, 640, 480, 30) > score(selector, 1280, 960, 30));
+    EXPECT_TRUE(score(selector, 640, 480, 30) > score(selector, 320, 240, 30));
+
+    // Same area, but the wrong aspect ratio
+    EXPECT_TRUE(score(selector, 640, 480, 30) > score(selector, 800, 384, 30));
+}
+
+TEST(CameraModeSelector, FrameRateAndSizeTogether)
+{
+    CameraModeSelector::Preferences preferences;
+    preferences.targetFps = 30;
+    preferences.targetWidth = 1280;
+    preferences.targetHeight = 720;
+    CameraModeSelector selector{ preferences };
+
+    // Missing the size a little is better than halving the frame rate
+    EXPECT_TRUE(score(selector, 960, 540, 30) > score(selector, 1280, 720, 15));
+}
+
+TEST(CameraModeSelector, CompressedModesArePenalized)
+{
+    CameraModeSelector selector{ CameraModeSelector::Preferences() };
+
+    EXPECT_TRUE(score(selector, 640, 480, 30, false) > score(selector, 640, 480, 30, true));
+
+    // But not so much that a far better compressed mode loses
+    EXPECT_TRUE(score(selector, 1920, 1080, 30, true) > score(selector, 640, 480, 30, false));
+}
+
+TEST(CameraModeSelector, NoBudgetFitsEverything)
+{
+    CameraModeSelector selector{ CameraModeSelector::Preferences() };
+
+    EXPECT_TRUE(selector.fitsBandwidth(makeMode(3840, 2160, 60), 3840 * 2160 * 2));
+    EXPECT_TRUE(score(selector, 3840, 2160, 60) > -FLT_MAX);
+}
+
+TEST(CameraModeSelector, BudgetRejectsModes)
+{
+    CameraModeSelector::Preferences preferences;
+    preferences.bandwidthBudget = 640 * 480 * 2 * 30;
+    CameraModeSelector selector{ preferences };
+
+    // Right at the budget still fits
+    EXPECT_TRUE(selector.fitsBandwidth(makeMode(640, 480, 30), 640 * 480 * 2));
+    EXPECT_FALSE(selector.fitsBandwidth(makeMode(640, 480, 31), 640 * 480 * 2));
+
+    // Rejected modes always lose against the ones that fit
+    EXPECT_EQ(score(selector, 1280, 720, 30), -FLT_MAX);
+    EXPECT_TRUE(score(selector, 320, 240, 15) > score(selector, 1280, 720, 30));
+
+    // The maximum frame size of the camera counts, not the size of the mode
+    EXPECT_FALSE(selector.fitsBandwidth(makeMode(320, 240, 30), 640 * 480 * 2 + 1));
+}
+
+TEST(CameraModeSelector, RejectsEmptyModes)
+{
+    CameraModeSelector selector{ CameraModeSelector::Preferences() };
+
+    EXPECT_EQ(score(selector, 0, 480, 30), -FLT_MAX);
+    EXPECT_EQ(score(selector, 640, 0, 30), -FLT_MAX);
+    EXPECT_EQ(score(selector, 640, 480, 0), -FLT_MAX);
+}
@@ -0,0 +1,168 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "ClockRecovery.h"
+
+#include "TestHarness.h"
+
+namespace
+{
+const uint32_t CLOCK_FREQUENCY = 48000000;  // 48 MHz, common for UVC cameras
+const uint64_t START = 5000000000ULL;       // 5 s of host time
+const double FRAME_NS = 1e9 / 30.0;
+
+// The latency of the samples skews the fitted rate a little, a few us is well below a frame
+const double TOLERANCE_NS = 10000.0;
+
+/// A camera clock that runs at rate times the nominal frequency, started at firstScr.
+struct SimulatedCamera
+{
+    double   rate;
+    uint32_t firstScr;
+
+    uint32_t getTicks(double elapsedNs) const
+    {
+        double ticks = elapsedNs * 1e-9 * CLOCK_FREQUENCY * rate;
+        return firstScr + static_cast<uint32_t>(static_cast<uint64_t>(ticks));
+    }
+};
+
+/// Feed one SCR sample per frame, each arriving up to 300 us late on the host.
+void
+addSamples(ClockRecovery& clock, const SimulatedCamera& camera, uint32_t count)
+{
+    for (uint32_t frame = 0; frame < count; frame++)
+    {
+        double elapsedNs = frame * FRAME_NS;
+        uint64_t latency = (frame % 4) * 100000ULL;
+        clock.addSample(camera.getTicks(elapsedNs), START + static_cast<uint64_t>(elapsedNs) + latency);
+    }
+}
+}
+
+TEST(ClockRecovery, NeedsEnoughSamples)
+{
+    ClockRecovery clock;
+    clock.reset(CLOCK_FREQUENCY);
+
+    SimulatedCamera camera{ 1.0, 1000 };
+    uint64_t hostTime = 0;
+    EXPECT_FALSE(clock.toHostTime(camera.getTicks(0), hostTime));
+
+    addSamples(clock, camera, 7);
+    EXPECT_FALSE(clock.toHostTime(camera.getTicks(6 * FRAME_NS), hostTime));
+
+    addSamples(clock, camera, 1);
+    EXPECT_TRUE(clock.toHostTime(camera.getTicks(0), hostTime));
+}
+
+TEST(ClockRecovery, FitsTheRateWithoutAClockFrequency)
+{
+    ClockRecovery clock;
+    clock.reset(0);
+
+    SimulatedCamera camera{ 1.0, 1000 };
+    addSamples(clock, camera, 16);
+
+    double elapsedNs = 12 * FRAME_NS;
+    uint64_t hostTime = 0;
+    EXPECT_TRUE(clock.toHostTime(camera.getTicks(elapsedNs), hostTime));
+    EXPECT_NEAR(static_cast<double>(hostTime), START + elapsedNs, TOLERANCE_NS);
+}
+
+TEST(ClockRecovery, MapsPtsToHostTime)
+{
+    ClockRecovery clock;
+    clock.reset(CLOCK_FREQUENCY);
+
+    SimulatedCamera camera{ 1.0, 123456 };
+    addSamples(clock, camera, 40);
+
+    // The PTS is sampled when the exposure starts, a few ms before the SCR of its frame.
+    // The latency of the samples is not part of the mapping.
+    double elapsedNs = 38 * FRAME_NS + 5e6;
+    uint64_t hostTime = 0;
+    EXPECT_TRUE(clock.toHostTime(camera.getTicks(elapsedNs), hostTime));
+    EXPECT_NEAR(static_cast<double>(hostTime), START + elapsedNs, TOLERANCE_NS);
+}
+
+TEST(ClockRecovery, FollowsADriftingClock)
+{
+    ClockRecovery clock;
+    clock.reset(CLOCK_FREQUENCY);
+
+    // 200 ppm fast, 0.2 ms off per second if the nominal rate was used
+    SimulatedCamera camera{ 1.0002, 0 };
+    addSamples(clock, camera, 300);
+
+    double elapsedNs = 299 * FRAME_NS;
+    uint64_t hostTime = 0;
+    EXPECT_TRUE(clock.toHostTime(camera.getTicks(elapsedNs), hostTime));
+    EXPECT_NEAR(static_cast<double>(hostTime), START + elapsedNs, TOLERANCE_NS);
+}
+
+TEST(ClockRecovery, HandlesTheWrapAround)
+{
+    ClockRecovery clock;
+    clock.reset(CLOCK_FREQUENCY);
+
+    // Wraps after 0.5 s, in the middle of the samples
+    SimulatedCamera camera{ 1.0, 0xFFFFFFFFu - CLOCK_FREQUENCY / 2 };
+    addSamples(clock, camera, 30);
+
+    uint64_t hostTime = 0;
+
+    // Before the wrap
+    double elapsedNs = 10 * FRAME_NS;
+    EXPECT_TRUE(clock.toHostTime(camera.getTicks(elapsedNs), hostTime));
+    EXPECT_NEAR(static_cast<double>(hostTime), START + elapsedNs, TOLERANCE_NS);
+
+    // After the wrap
+    elapsedNs = 28 * FRAME_NS;
+    EXPECT_TRUE(clock.toHostTime(camera.getTicks(elapsedNs), hostTime));
+    EXPECT_NEAR(static_cast<double>(hostTime), START + elapsedNs, TOLERANCE_NS);
+}
+
+TEST(ClockRecovery, IgnoresAnImplausibleRate)
+{
+    ClockRecovery clock;
+
+    // The camera reports half of the frequency it runs at. The samples alone can't tell
+    // a wrong frequency from a bad fit, so the reported one is trusted.
+    clock.reset(CLOCK_FREQUENCY / 2);
+
+    SimulatedCamera camera{ 1.0, 1000 };
+    addSamples(clock, camera, 20);
+
+    uint64_t hostTime = 0;
+    double elapsedNs = 19 * FRAME_NS;
+    EXPECT_TRUE(clock.toHostTime(camera.getTicks(elapsedNs), hostTime));
+
+    // Mapped at the nominal rate, so 1 ms of camera time becomes 2 ms of host time
+    uint64_t laterHostTime = 0;
+    EXPECT_TRUE(clock.toHostTime(camera.getTicks(elapsedNs + 1e6), laterHostTime));
+    EXPECT_NEAR(static_cast<double>(laterHostTime - hostTime), 2e6, TOLERANCE_NS);
+}
+
+TEST(ClockRecovery, RejectsTimesBeforeTheHostClock)
+{
+    ClockRecovery clock;
+    clock.reset(CLOCK_FREQUENCY);
+
+    // Samples right after the host clock started
+    for (uint32_t frame = 0; frame < 10; frame++)
+    {
+        double elapsedNs = frame * FRAME_NS;
+        clock.addSample(CLOCK_FREQUENCY + static_cast<uint32_t>(elapsedNs * 1e-9 * CLOCK_FREQUENCY),
+                        1000ULL + static_cast<uint64_t>(elapsedNs));
+    }
+
+    // A PTS one second before the first sample would be before the host clock started
+    uint64_t hostTime = 12345;
+    EXPECT_FALSE(clock.toHostTime(0, hostTime));
+    EXPECT_EQ(hostTime, 12345ULL);
+}
@@ -0,0 +1,262 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "ControlCommandQueue.h"
+
+#include "TestHarness.h"
+
+#include <chrono>
+#include <condition_variable>
+#include <mutex>
+#include <string>
+#include <vector>
+
+namespace
+{
+typedef ControlCommandQueue::Control Control;
+typedef ControlCommandQueue::Result Result;
+
+/// What the worker did, in order, e.g. "apply exposure 3" or "exposure 3: superseded".
+class Log
+{
+public:
+    void add(const std::string& entry)
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mEntries.push_back(entry);
+        mCondition.notify_all();
+    }
+
+    bool waitForEntries(size_t count)
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        return mCondition.wait_for(lock, std::chrono::seconds(5), [this, count] { return mEntries.size() >= count; });
+    }
+
+    std::vector<std::string> getEntries()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mEntries;
+    }
+
+private:
+    std::mutex                  mMutex;
+    std::condition_variable     mCondition;
+    std::vector<std::string>    mEntries;
+};
+
+/// Holds the worker in an apply function until opened.
+class Gate
+{
+public:
+    void wait()
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        mEntered = true;
+        mCondition.notify_all();
+        mCondition.wait(lock, [this] { return mOpen; });
+    }
+
+    bool waitUntilEntered()
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        return mCondition.wait_for(lock, std::chrono::seconds(5), [this] { return mEntered; });
+    }
+
+    void open()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mOpen = true;
+        mCondition.notify_all();
+    }
+
+private:
+    std::mutex              mMutex;
+    std::condition_variable mCondition;
+    bool                    mEntered{ false };
+    bool                    mOpen{ false };
+};
+
+const char*
+getResultName(Result result)
+{
+    switch (result)
+    {
+        case Result::SUCCESS:
+            return "success";
+        case Result::FAILED:
+            return "failed";
+        case Result::NOT_CONFIRMED:
+            return "not confirmed";
+        case Result::SUPERSEDED:
+            return "superseded";
+        case Result::CANCELLED:
+            return "cancelled";
+    }
+    return "unknown";
+}
+
+/// Submit a write named name, logging the apply, the confirm and the result.
+bool
+submit(ControlCommandQueue& queue, Log& log, Control control, const std::string& name,
+       bool applies = true, bool confirms = true, bool withConfirm = false)
+{
+    return queue.submit(control,
+                        [&log, name, applies] { log.add("apply " + name); return applies; },
+                        withConfirm ? ControlCommandQueue::ConfirmFunction([&log, name, confirms] { log.add("confirm " + name); return confirms; }) : nullptr,
+                        [&log, name](Result result) { log.add(name + ": " + getResultName(result)); });
+}
+
+/// Keep the worker busy with a write of the focus mode until the gate is opened.
+void
+blockWorker(ControlCommandQueue& queue, Log& log, Gate& gate)
+{
+    EXPECT_TRUE(queue.submit(Control::FOCUS_MODE,
+                             [&gate] { gate.wait(); return true; },
+                             nullptr,
+                             [&log](Result result) { log.add(std::string("blocker: ") + getResultName(result)); }));
+    EXPECT_TRUE(gate.waitUntilEntered());
+}
+}
+
+TEST(ControlCommandQueue, AppliesCommands)
+{
+    ControlCommandQueue queue;
+    Log log;
+
+    // Not started yet
+    EXPECT_FALSE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 1"));
+
+    queue.start();
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 1"));
+    EXPECT_TRUE(log.waitForEntries(2));
+    queue.stop();
+
+    std::vector<std::string> expected = { "apply exposure 1", "exposure 1: success" };
+    EXPECT_TRUE(log.getEntries() == expected);
+
+    ControlCommandQueue::Statistics statistics = queue.getStatistics();
+    EXPECT_EQ(statistics.submitted, 1ULL);
+    EXPECT_EQ(statistics.applied, 1ULL);
+    EXPECT_EQ(statistics.failed, 0ULL);
+
+    // Stopped again
+    EXPECT_FALSE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 2"));
+}
+
+TEST(ControlCommandQueue, LaterWritesSupersedeQueuedOnes)
+{
+    ControlCommandQueue queue;
+    Log log;
+    Gate gate;
+    queue.start();
+    blockWorker(queue, log, gate);
+
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 1"));
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 2"));
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 3"));
+    EXPECT_TRUE(queue.isPending(Control::EXPOSURE_VALUE));
+    EXPECT_FALSE(queue.isPending(Control::FOCUS_VALUE));
+
+    gate.open();
+    EXPECT_TRUE(log.waitForEntries(5));
+    queue.stop();
+    EXPECT_FALSE(queue.isPending(Control::EXPOSURE_VALUE));
+
+    // Only the last value is written, the replaced writes are reported before it
+    std::vector<std::string> expected = { "blocker: success", "exposure 1: superseded", "exposure 2: superseded",
+                                          "apply exposure 3", "exposure 3: success" };
+    EXPECT_TRUE(log.getEntries() == expected);
+
+    ControlCommandQueue::Statistics statistics = queue.getStatistics();
+    EXPECT_EQ(statistics.submitted, 4ULL);
+    EXPECT_EQ(statistics.coalesced, 2ULL);
+    EXPECT_EQ(statistics.applied, 2ULL);
+}
+
+TEST(ControlCommandQueue, RunsInTheOrderOfTheLastSubmit)
+{
+    ControlCommandQueue queue;
+    Log log;
+    Gate gate;
+    queue.start();
+    blockWorker(queue, log, gate);
+
+    EXPECT_TRUE(submit(queue, log, Control::FOCUS_VALUE, "focus 1"));
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_MODE, "exposure mode"));
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 1"));
+    EXPECT_TRUE(submit(queue, log, Control::FOCUS_VALUE, "focus 2"));
+
+    gate.open();
+    EXPECT_TRUE(log.waitForEntries(8));
+    queue.stop();
+
+    // The mode still goes before the value submitted after it, the focus moved to the back
+    std::vector<std::string> expected = { "blocker: success", "focus 1: superseded",
+                                          "apply exposure mode", "exposure mode: success",
+                                          "apply exposure 1", "exposure 1: success",
+                                          "apply focus 2", "focus 2: success" };
+    EXPECT_TRUE(log.getEntries() == expected);
+}
+
+TEST(ControlCommandQueue, ConfirmsTheWrite)
+{
+    ControlCommandQueue queue;
+    Log log;
+    queue.start();
+
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 1", true, true, true));
+    EXPECT_TRUE(log.waitForEntries(3));
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 2", true, false, true));
+    EXPECT_TRUE(log.waitForEntries(6));
+
+    // A failed write isn't read back
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 3", false, true, true));
+    EXPECT_TRUE(log.waitForEntries(8));
+    queue.stop();
+
+    std::vector<std::string> expected = { "apply exposure 1", "confirm exposure 1", "exposure 1: success",
+                                          "apply exposure 2", "confirm exposure 2", "exposure 2: not confirmed",
+                                          "apply exposure 3", "exposure 3: failed" };
+    EXPECT_TRUE(log.getEntries() == expected);
+
+    ControlCommandQueue::Statistics statistics = queue.getStatistics();
+    EXPECT_EQ(statistics.applied, 1ULL);
+    EXPECT_EQ(statistics.failed, 2ULL);
+}
+
+TEST(ControlCommandQueue, StopCancelsQueuedCommands)
+{
+    ControlCommandQueue queue;
+    Log log;
+    Gate gate;
+    queue.start();
+    blockWorker(queue, log, gate);
+
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 1"));
+    EXPECT_TRUE(submit(queue, log, Control::EXPOSURE_VALUE, "exposure 2"));
+    EXPECT_TRUE(submit(queue, log, Control::FOCUS_VALUE, "focus 1"));
+
+    // stop() waits for the running command, then completes all the others
+    std::thread stopper([&queue] { queue.stop(); });
+    std::this_thread::sleep_for(std::chrono::milliseconds(20));
+    gate.open();
+    stopper.join();
+
+    std::vector<std::string> entries = log.getEntries();
+    std::vector<std::string> expected = { "blocker: success", "exposure 1: superseded",
+                                          "exposure 2: cancelled", "focus 1: cancelled" };
+    EXPECT_TRUE(entries == expected);
+    EXPECT_FALSE(queue.isPending(Control::EXPOSURE_VALUE));
+
+    // Restarting doesn't run the cancelled commands
+    queue.start();
+    EXPECT_TRUE(submit(queue, log, Control::FOCUS_MODE, "focus mode"));
+    EXPECT_TRUE(log.waitForEntries(entries.size() + 2));
+    queue.stop();
+    EXPECT_EQ(log.getEntries().size(), entries.size() + 2);
+}
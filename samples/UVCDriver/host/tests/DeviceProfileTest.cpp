@@ -0,0 +1,300 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "DeviceProfile.h"
+
+#include "TestHarness.h"
+
+#include <dirent.h>
+#include <unistd.h>
+
+#include <cstdio>
+#include <cstdlib>
+#include <string>
+#include <vector>
+
+namespace
+{
+/// A directory in the temp directory that is deleted again, with its files, with the object.
+struct TemporaryDirectory
+{
+    TemporaryDirectory()
+    {
+        char pathTemplate[] = "/tmp/UVCDriverTestsXXXXXX";
+        if (mkdtemp(pathTemplate) != nullptr)
+        {
+            path = pathTemplate;
+        }
+    }
+
+    ~TemporaryDirectory()
+    {
+        for (const std::string& name : getFileNames())
+        {
+            unlink((path + "/" + name).c_str());
+        }
+        rmdir(path.c_str());
+    }
+
+    std::vector<std::string> getFileNames() const
+    {
+        std::vector<std::string> names;
+        DIR* directory = opendir(path.c_str());
+        if (directory == nullptr)
+        {
+            return names;
+        }
+
+        while (dirent* entry = readdir(directory))
+        {
+            std::string name = entry->d_name;
+            if (name != "." && name != "..")
+            {
+                names.push_back(name);
+            }
+        }
+        closedir(directory);
+        return names;
+    }
+
+    std::string path;
+};
+
+DeviceProfile::Key
+makeKey(const std::string& serialNumber)
+{
+    DeviceProfile::Key key;
+    key.vendorId = 0x046d;
+    key.productId = 0x0825;
+    key.bcdDevice = 0x0012;
+    key.serialNumber = serialNumber;
+    return key;
+}
+
+DeviceProfile
+makeProfile(const DeviceProfile::Key& key)
+{
+    DeviceProfile profile;
+    profile.key = key;
+
+    DeviceProfile::Mode mode;
+    mode.mode.width = 640;
+    mode.mode.height = 480;
+    mode.mode.fps = 30;
+    mode.mode.format = Vuforia::Driver::PixelFormat::YUYV;
+    mode.sourceFormat = 3;
+    mode.maxFrameSize = 640 * 480 * 2;
+    profile.modes.push_back(mode);
+
+    mode.mode.width = 1280;
+    mode.mode.height = 720;
+    mode.mode.fps = 10;
+    mode.maxFrameSize = 1280 * 720 * 2;
+    profile.modes.push_back(mode);
+
+    profile.inputTerminalControls = 0x0a;
+    profile.processingUnitControls = 0x1234;
+    profile.exposureModes = 0x09;
+    profile.exposureTime.valid = true;
+    profile.exposureTime.min = 3;
+    profile.exposureTime.max = 2047;
+    profile.focus.valid = false;
+
+    profile.streamMode = profile.modes[0].mode;
+    profile.streamSourceFormat = 3;
+    profile.streamControl = { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+    return profile;
+}
+
+/// Change one byte of the file at the offset from its start.
+void
+corruptFile(const std::string& path, long offset)
+{
+    FILE* file = fopen(path.c_str(), "r+b");
+    fseek(file, offset, SEEK_SET);
+    int value = fgetc(file);
+    fseek(file, offset, SEEK_SET);
+    fputc(value ^ 0xFF, file);
+    fclose(file);
+}
+
+void
+truncateFile(const std::string& path, off_t size)
+{
+    EXPECT_EQ(truncate(path.c_str(), size), 0);
+}
+}
+
+TEST(DeviceProfile, FileNames)
+{
+    EXPECT_TRUE(DeviceProfile::getFileName(makeKey("")) == "uvc-046d-0825-0012.profile");
+    EXPECT_TRUE(DeviceProfile::getFileName(makeKey("A1b2-C_3")) == "uvc-046d-0825-0012-A1b2-C_3.profile");
+
+    // Nothing of the serial number can leave the directory
+    EXPECT_TRUE(DeviceProfile::getFileName(makeKey("../x y")) == "uvc-046d-0825-0012-___x_y.profile");
+}
+
+TEST(DeviceProfile, RoundTrip)
+{
+    TemporaryDirectory directory;
+    DeviceProfile::Key key = makeKey("SN1234");
+    EXPECT_TRUE(makeProfile(key).save(directory.path));
+
+    // Replaced atomically, nothing but the profile is left behind
+    std::vector<std::string> names = directory.getFileNames();
+    EXPECT_EQ(names.size(), 1u);
+    EXPECT_TRUE(!names.empty() && names[0] == DeviceProfile::getFileName(key));
+
+    DeviceProfile profile;
+    EXPECT_TRUE(profile.load(directory.path, key));
+    EXPECT_EQ(profile.modes.size(), 2u);
+    if (profile.modes.size() == 2)
+    {
+        EXPECT_EQ(profile.modes[1].mode.width, 1280u);
+        EXPECT_EQ(profile.modes[1].mode.height, 720u);
+        EXPECT_EQ(profile.modes[1].mode.fps, 10u);
+        EXPECT_TRUE(profile.modes[1].mode.format == Vuforia::Driver::PixelFormat::YUYV);
+        EXPECT_EQ(profile.modes[1].sourceFormat, 3u);
+        EXPECT_EQ(profile.modes[1].maxFrameSize, 1280u * 720u * 2u);
+    }
+    EXPECT_EQ(profile.inputTerminalControls, 0x0au);
+    EXPECT_EQ(profile.processingUnitControls, 0x1234u);
+    EXPECT_EQ(profile.exposureModes, 0x09u);
+    EXPECT_TRUE(profile.exposureTime.valid);
+    EXPECT_EQ(profile.exposureTime.min, 3);
+    EXPECT_EQ(profile.exposureTime.max, 2047);
+    EXPECT_FALSE(profile.focus.valid);
+    EXPECT_EQ(profile.streamMode.width, 640u);
+    EXPECT_EQ(profile.streamMode.fps, 30u);
+    EXPECT_EQ(profile.streamSourceFormat, 3u);
+    EXPECT_TRUE(profile.streamControl == std::vector<uint8_t>({ 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+}
+
+TEST(DeviceProfile, SaveReplacesTheProfile)
+{
+    TemporaryDirectory directory;
+    DeviceProfile::Key key = makeKey("SN1234");
+    DeviceProfile saved = makeProfile(key);
+    EXPECT_TRUE(saved.save(directory.path));
+
+    // Renegotiated without a stream control
+    saved.streamControl.clear();
+    saved.modes.pop_back();
+    EXPECT_TRUE(saved.save(directory.path));
+
+    DeviceProfile profile;
+    EXPECT_TRUE(profile.load(directory.path, key));
+    EXPECT_EQ(profile.modes.size(), 1u);
+    EXPECT_TRUE(profile.streamControl.empty());
+    EXPECT_EQ(directory.getFileNames().size(), 1u);
+}
+
+TEST(DeviceProfile, OnlyTheSameCameraMatches)
+{
+    TemporaryDirectory directory;
+    EXPECT_TRUE(makeProfile(makeKey("SN1234")).save(directory.path));
+
+    DeviceProfile profile;
+
+    // Another serial number, product or firmware has a profile of its own
+    EXPECT_FALSE(profile.load(directory.path, makeKey("SN9999")));
+    EXPECT_FALSE(profile.load(directory.path, makeKey("")));
+
+    DeviceProfile::Key otherFirmware = makeKey("SN1234");
+    otherFirmware.bcdDevice = 0x0013;
+    EXPECT_FALSE(profile.load(directory.path, otherFirmware));
+
+    DeviceProfile::Key otherProduct = makeKey("SN1234");
+    otherProduct.productId = 0x0826;
+    EXPECT_FALSE(profile.load(directory.path, otherProduct));
+
+    EXPECT_TRUE(profile.load(directory.path, makeKey("SN1234")));
+}
+
+TEST(DeviceProfile, SerialNumbersWithTheSameFileNameDontMatch)
+{
+    TemporaryDirectory directory;
+    DeviceProfile::Key key = makeKey("AB/12");
+    DeviceProfile::Key other = makeKey("AB 12");
+    EXPECT_TRUE(DeviceProfile::getFileName(key) == DeviceProfile::getFileName(other));
+
+    EXPECT_TRUE(makeProfile(key).save(directory.path));
+
+    DeviceProfile profile;
+    EXPECT_FALSE(profile.load(directory.path, other));
+    EXPECT_TRUE(profile.modes.empty());
+    EXPECT_TRUE(profile.load(directory.path, key));
+}
+
+TEST(DeviceProfile, CamerasWithoutSerialNumberShareTheProfile)
+{
+    TemporaryDirectory directory;
+    EXPECT_TRUE(makeProfile(makeKey("")).save(directory.path));
+
+    DeviceProfile profile;
+    EXPECT_TRUE(profile.load(directory.path, makeKey("")));
+    EXPECT_EQ(profile.modes.size(), 2u);
+}
+
+TEST(DeviceProfile, IgnoresDamagedFiles)
+{
+    TemporaryDirectory directory;
+    DeviceProfile::Key key = makeKey("SN1234");
+    std::string path = directory.path + "/" + DeviceProfile::getFileName(key);
+
+    DeviceProfile profile;
+
+    // A changed byte in a mode
+    EXPECT_TRUE(makeProfile(key).save(directory.path));
+    corruptFile(path, 80 + 6 + 4);
+    EXPECT_FALSE(profile.load(directory.path, key));
+
+    // Cut short
+    EXPECT_TRUE(makeProfile(key).save(directory.path));
+    truncateFile(path, 100);
+    EXPECT_FALSE(profile.load(directory.path, key));
+    truncateFile(path, 10);
+    EXPECT_FALSE(profile.load(directory.path, key));
+
+    // Another version
+    EXPECT_TRUE(makeProfile(key).save(directory.path));
+    corruptFile(path, 4);
+    EXPECT_FALSE(profile.load(directory.path, key));
+
+    // Empty
+    truncateFile(path, 0);
+    EXPECT_FALSE(profile.load(directory.path, key));
+
+    // The next save replaces the damaged file
+    EXPECT_TRUE(makeProfile(key).save(directory.path));
+    EXPECT_TRUE(profile.load(directory.path, key));
+}
+
+TEST(DeviceProfile, FailedLoadClearsTheProfile)
+{
+    TemporaryDirectory directory;
+    DeviceProfile profile = makeProfile(makeKey("SN1234"));
+
+    DeviceProfile::Key key = makeKey("SN5678");
+    EXPECT_FALSE(profile.load(directory.path, key));
+
+    // Nothing of the other camera is used, the key is kept for the save() after probing
+    EXPECT_TRUE(profile.modes.empty());
+    EXPECT_TRUE(profile.streamControl.empty());
+    EXPECT_FALSE(profile.exposureTime.valid);
+    EXPECT_EQ(profile.processingUnitControls, 0u);
+    EXPECT_TRUE(profile.key.serialNumber == "SN5678");
+
+    EXPECT_TRUE(profile.save(directory.path));
+    EXPECT_TRUE(profile.load(directory.path, key));
+}
+
+TEST(DeviceProfile, SaveFailsWithoutTheDirectory)
+{
+    DeviceProfile profile = makeProfile(makeKey("SN1234"));
+    EXPECT_FALSE(profile.save("/nonexistent/profiles"));
+}
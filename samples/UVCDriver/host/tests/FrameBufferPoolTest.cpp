@@ -0,0 +1,301 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameBufferPool.h"
+#include "FrameQueue.h"
+
+#include "TestHarness.h"
+
+#include <chrono>
+#include <condition_variable>
+#include <mutex>
+#include <set>
+#include <thread>
+
+namespace
+{
+Vuforia::Driver::CameraMode
+makeMode(uint32_t width, uint32_t height, Vuforia::Driver::PixelFormat format = Vuforia::Driver::PixelFormat::YUYV)
+{
+    Vuforia::Driver::CameraMode mode;
+    mode.width = width;
+    mode.height = height;
+    mode.fps = 30;
+    mode.format = format;
+    return mode;
+}
+
+/// Holds the delivery thread in the callback until released, and remembers the buffers it got.
+class GatedCallback : public Vuforia::Driver::CameraCallback
+{
+public:
+    void VUFORIA_DRIVER_CALLING_CONVENTION onNewCameraFrame(Vuforia::Driver::CameraFrame* frame) override
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        mBuffers.push_back(frame->buffer);
+        mCondition.notify_all();
+        mCondition.wait(lock, [this] { return mOpen; });
+    }
+
+    bool waitForFrames(size_t count)
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        return mCondition.wait_for(lock, std::chrono::seconds(5), [this, count] { return mBuffers.size() >= count; });
+    }
+
+    void open()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mOpen = true;
+        mCondition.notify_all();
+    }
+
+    std::vector<uint8_t*> getBuffers()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mBuffers;
+    }
+
+private:
+    std::mutex              mMutex;
+    std::condition_variable mCondition;
+    bool                    mOpen{ false };
+    std::vector<uint8_t*>   mBuffers;
+};
+
+/// Acquire buffers until the pool is empty and give them all back.
+uint32_t
+countFreeBuffers(FrameBufferPool& pool)
+{
+    std::vector<FrameBufferPool::Buffer*> buffers;
+    while (FrameBufferPool::Buffer* buffer = pool.acquire())
+    {
+        buffers.push_back(buffer);
+    }
+    for (FrameBufferPool::Buffer* buffer : buffers)
+    {
+        pool.release(buffer);
+    }
+    return static_cast<uint32_t>(buffers.size());
+}
+
+Vuforia::Driver::CameraFrame
+makeFrame(FrameBufferPool::Buffer* buffer, uint32_t index)
+{
+    Vuforia::Driver::CameraFrame frame;
+    frame.buffer = buffer->getData();
+    frame.bufferSize = buffer->getSize();
+    frame.index = index;
+    return frame;
+}
+}
+
+TEST(FrameBufferPool, FrameSizes)
+{
+    EXPECT_EQ(FrameBufferPool::getFrameSize(makeMode(640, 480)), 640u * 480u * 2u);
+    EXPECT_EQ(FrameBufferPool::getFrameSize(makeMode(640, 480, Vuforia::Driver::PixelFormat::NV21)), 640u * 480u * 3u / 2u);
+    EXPECT_EQ(FrameBufferPool::getFrameSize(makeMode(640, 480, Vuforia::Driver::PixelFormat::NV12)), 640u * 480u * 3u / 2u);
+}
+
+TEST(FrameBufferPool, BuffersAreAlignedAndDistinct)
+{
+    FrameBufferPool pool;
+
+    // 33 * 3 * 2 bytes, not a multiple of the alignment
+    EXPECT_TRUE(pool.allocate(makeMode(33, 3), 4));
+
+    std::set<uint8_t*> data;
+    std::vector<FrameBufferPool::Buffer*> buffers;
+    for (uint32_t idx = 0; idx < 4; idx++)
+    {
+        FrameBufferPool::Buffer* buffer = pool.acquire();
+        EXPECT_TRUE(buffer != nullptr);
+        if (buffer == nullptr)
+        {
+            return;
+        }
+
+        EXPECT_EQ(buffer->getSize(), 33u * 3u * 2u);
+        EXPECT_EQ(reinterpret_cast<uintptr_t>(buffer->getData()) % FrameBufferPool::ALIGNMENT, 0u);
+
+        // Every byte of every buffer is writable without touching the others
+        std::fill(buffer->getData(), buffer->getData() + buffer->getSize(), static_cast<uint8_t>(idx));
+        data.insert(buffer->getData());
+        buffers.push_back(buffer);
+    }
+    EXPECT_EQ(data.size(), 4u);
+
+    for (uint32_t idx = 0; idx < 4; idx++)
+    {
+        EXPECT_EQ(buffers[idx]->getData()[0], idx);
+        EXPECT_EQ(buffers[idx]->getData()[buffers[idx]->getSize() - 1], idx);
+        pool.release(buffers[idx]);
+    }
+}
+
+TEST(FrameBufferPool, ExhaustionIsCounted)
+{
+    FrameBufferPool pool;
+    EXPECT_TRUE(pool.allocate(makeMode(16, 16), 2));
+
+    FrameBufferPool::Buffer* first = pool.acquire();
+    FrameBufferPool::Buffer* second = pool.acquire();
+    EXPECT_TRUE(first != nullptr && second != nullptr);
+    EXPECT_TRUE(pool.acquire() == nullptr);
+    EXPECT_TRUE(pool.acquire() == nullptr);
+
+    FrameBufferPool::Statistics statistics = pool.getStatistics();
+    EXPECT_EQ(statistics.acquired, 2ULL);
+    EXPECT_EQ(statistics.exhausted, 2ULL);
+    EXPECT_EQ(statistics.capacity, 2u);
+    EXPECT_EQ(statistics.peakInUse, 2u);
+
+    // A released buffer can be acquired again
+    pool.release(first);
+    EXPECT_TRUE(pool.acquire() == first);
+
+    pool.release(first);
+    pool.release(second);
+}
+
+TEST(FrameBufferPool, BufferReturnsWithTheLastReference)
+{
+    FrameBufferPool pool;
+    EXPECT_TRUE(pool.allocate(makeMode(16, 16), 1));
+
+    FrameBufferPool::Buffer* buffer = pool.acquire();
+    pool.retain(buffer);
+    pool.retain(buffer);
+
+    pool.release(buffer);
+    pool.release(buffer);
+    EXPECT_TRUE(pool.acquire() == nullptr);
+
+    pool.release(buffer);
+    EXPECT_TRUE(pool.acquire() == buffer);
+    pool.release(buffer);
+}
+
+TEST(FrameBufferPool, ReallocationWaitsForTheBuffers)
+{
+    FrameBufferPool pool;
+    EXPECT_TRUE(pool.allocate(makeMode(16, 16), 2));
+
+    FrameBufferPool::Buffer* buffer = pool.acquire();
+    uint8_t* data = buffer->getData();
+
+    // Someone still reads the buffer
+    EXPECT_FALSE(pool.allocate(makeMode(32, 32), 2));
+    EXPECT_FALSE(pool.deallocate());
+
+    pool.release(buffer);
+
+    // The same size and capacity keeps the memory, and resets the statistics
+    EXPECT_TRUE(pool.allocate(makeMode(16, 16), 2));
+    EXPECT_EQ(pool.getStatistics().acquired, 0ULL);
+    EXPECT_EQ(countFreeBuffers(pool), 2u);
+    FrameBufferPool::Buffer* first = pool.acquire();
+    FrameBufferPool::Buffer* second = pool.acquire();
+    EXPECT_TRUE(first->getData() == data || second->getData() == data);
+    pool.release(first);
+    pool.release(second);
+
+    // Another size gets new buffers
+    EXPECT_TRUE(pool.allocate(makeMode(32, 32), 3));
+    EXPECT_EQ(countFreeBuffers(pool), 3u);
+    buffer = pool.acquire();
+    EXPECT_EQ(buffer->getSize(), 32u * 32u * 2u);
+    pool.release(buffer);
+
+    EXPECT_TRUE(pool.deallocate());
+    EXPECT_TRUE(pool.acquire() == nullptr);
+}
+
+TEST(FrameBufferPool, RejectsEmptyPools)
+{
+    FrameBufferPool pool;
+    EXPECT_FALSE(pool.allocate(makeMode(0, 480), 2));
+    EXPECT_FALSE(pool.allocate(makeMode(640, 480), 0));
+    EXPECT_TRUE(pool.acquire() == nullptr);
+}
+
+TEST(FrameBufferPool, QueueHoldsPoolBuffersWithoutCopying)
+{
+    FrameBufferPool pool;
+    EXPECT_TRUE(pool.allocate(makeMode(16, 16), 3));
+
+    GatedCallback callback;
+    FrameQueue queue;
+
+    // The queue's own buffers are too small for the frames, pool frames don't need them
+    EXPECT_TRUE(queue.start(2, 1, FrameQueue::OverflowPolicy::DROP_OLDEST, &callback));
+
+    FrameBufferPool::Buffer* first = pool.acquire();
+    EXPECT_TRUE(queue.push(makeFrame(first, 0), pool, first));
+    pool.release(first);
+    EXPECT_TRUE(callback.waitForFrames(1));
+
+    FrameBufferPool::Buffer* second = pool.acquire();
+    EXPECT_TRUE(queue.push(makeFrame(second, 1), pool, second));
+    pool.release(second);
+
+    // Both are held by the queue, the first in delivery and the second queued
+    EXPECT_EQ(countFreeBuffers(pool), 1u);
+
+    // Replacing the queued frame gives its buffer back to the pool
+    FrameBufferPool::Buffer* third = pool.acquire();
+    EXPECT_TRUE(queue.push(makeFrame(third, 2), pool, third));
+    pool.release(third);
+    EXPECT_EQ(countFreeBuffers(pool), 1u);
+
+    callback.open();
+    std::chrono::steady_clock::time_point deadline = std::chrono::steady_clock::now() + std::chrono::seconds(5);
+    while (queue.getStatistics().delivered < 2 && std::chrono::steady_clock::now() < deadline)
+    {
+        std::this_thread::sleep_for(std::chrono::milliseconds(1));
+    }
+    queue.stop();
+
+    // Vuforia got the pool memory itself, and every buffer is back once delivered
+    std::vector<uint8_t*> buffers = callback.getBuffers();
+    EXPECT_EQ(buffers.size(), 2u);
+    EXPECT_TRUE(buffers[0] == first->getData());
+    EXPECT_TRUE(buffers.back() == third->getData());
+    EXPECT_EQ(countFreeBuffers(pool), 3u);
+    EXPECT_TRUE(pool.deallocate());
+}
+
+TEST(FrameBufferPool, StoppedQueueReleasesPoolBuffers)
+{
+    FrameBufferPool pool;
+    EXPECT_TRUE(pool.allocate(makeMode(16, 16), 3));
+
+    GatedCallback callback;
+    FrameQueue queue;
+    EXPECT_TRUE(queue.start(3, 1, FrameQueue::OverflowPolicy::DROP_NEWEST, &callback));
+
+    for (uint32_t index = 0; index < 3; index++)
+    {
+        FrameBufferPool::Buffer* buffer = pool.acquire();
+        EXPECT_TRUE(queue.push(makeFrame(buffer, index), pool, buffer));
+        pool.release(buffer);
+        if (index == 0)
+        {
+            EXPECT_TRUE(callback.waitForFrames(1));
+        }
+    }
+    EXPECT_EQ(countFreeBuffers(pool), 0u);
+
+    std::thread stopper([&queue] { queue.stop(); });
+    std::this_thread::sleep_for(std::chrono::milliseconds(20));
+    callback.open();
+    stopper.join();
+
+    // The discarded frames don't leak their buffers
+    EXPECT_EQ(countFreeBuffers(pool), 3u);
+    EXPECT_TRUE(pool.deallocate());
+}
@@ -0,0 +1,293 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameQueue.h"
+
+#include "TestHarness.h"
+
+#include <chrono>
+#include <condition_variable>
+#include <mutex>
+#include <vector>
+
+namespace
+{
+const uint32_t FRAME_SIZE = 64;
+
+/// Records the frames it gets. Holds the delivery thread in the first callback until released.
+class GatedCallback : public Vuforia::Driver::CameraCallback
+{
+public:
+    void VUFORIA_DRIVER_CALLING_CONVENTION onNewCameraFrame(Vuforia::Driver::CameraFrame* frame) override
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        mIndices.push_back(frame->index);
+        mFirstBytes.push_back(frame->buffer[0]);
+        mCondition.notify_all();
+        mCondition.wait(lock, [this] { return mOpen; });
+    }
+
+    /// Wait until the delivery thread is in the callback with count frames delivered.
+    bool waitForFrames(size_t count)
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        return mCondition.wait_for(lock, std::chrono::seconds(5), [this, count] { return mIndices.size() >= count; });
+    }
+
+    void open()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mOpen = true;
+        mCondition.notify_all();
+    }
+
+    std::vector<uint32_t> getIndices()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mIndices;
+    }
+
+    std::vector<uint8_t> getFirstBytes()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mFirstBytes;
+    }
+
+private:
+    std::mutex              mMutex;
+    std::condition_variable mCondition;
+    bool                    mOpen{ false };
+    std::vector<uint32_t>   mIndices;
+    std::vector<uint8_t>    mFirstBytes;
+};
+
+/// Push a frame whose data is its index, from a buffer that is overwritten right after.
+bool
+pushFrame(FrameQueue& queue, uint32_t index, uint32_t size = FRAME_SIZE)
+{
+    std::vector<uint8_t> data(size, static_cast<uint8_t>(index));
+
+    Vuforia::Driver::CameraFrame frame;
+    frame.buffer = data.data();
+    frame.bufferSize = size;
+    frame.index = index;
+    bool queued = queue.push(frame);
+
+    // The queue has to have its own copy
+    std::fill(data.begin(), data.end(), 0xFF);
+    return queued;
+}
+
+/// Wait until the queue delivered count frames.
+bool
+waitForDelivered(FrameQueue& queue, uint64_t count)
+{
+    std::chrono::steady_clock::time_point deadline = std::chrono::steady_clock::now() + std::chrono::seconds(5);
+    while (queue.getStatistics().delivered < count)
+    {
+        if (std::chrono::steady_clock::now() > deadline)
+        {
+            return false;
+        }
+        std::this_thread::sleep_for(std::chrono::milliseconds(1));
+    }
+    return true;
+}
+
+/// Start a queue of capacity 3 and keep the delivery thread busy with frame 0.
+/**
+ * The two remaining buffers are then filled with frames 1 and 2.
+ */
+void
+startFullQueue(FrameQueue& queue, GatedCallback& callback, FrameQueue::OverflowPolicy policy)
+{
+    EXPECT_TRUE(queue.start(3, FRAME_SIZE, policy, &callback));
+    EXPECT_TRUE(pushFrame(queue, 0));
+    EXPECT_TRUE(callback.waitForFrames(1));
+    EXPECT_TRUE(pushFrame(queue, 1));
+    EXPECT_TRUE(pushFrame(queue, 2));
+}
+}
+
+TEST(FrameQueue, DeliversCopiesInOrder)
+{
+    GatedCallback callback;
+    callback.open();
+
+    FrameQueue queue;
+    EXPECT_TRUE(queue.start(4, FRAME_SIZE, FrameQueue::OverflowPolicy::BLOCK, &callback));
+    for (uint32_t index = 0; index < 20; index++)
+    {
+        EXPECT_TRUE(pushFrame(queue, index));
+    }
+    EXPECT_TRUE(waitForDelivered(queue, 20));
+    queue.stop();
+
+    std::vector<uint32_t> indices = callback.getIndices();
+    std::vector<uint8_t> firstBytes = callback.getFirstBytes();
+    EXPECT_EQ(indices.size(), 20u);
+    for (uint32_t index = 0; index < indices.size(); index++)
+    {
+        EXPECT_EQ(indices[index], index);
+        EXPECT_EQ(firstBytes[index], static_cast<uint8_t>(index));
+    }
+
+    FrameQueue::Statistics statistics = queue.getStatistics();
+    EXPECT_EQ(statistics.pushed, 20ULL);
+    EXPECT_EQ(statistics.delivered, 20ULL);
+    EXPECT_EQ(statistics.overruns, 0ULL);
+}
+
+TEST(FrameQueue, DropNewestKeepsTheQueuedFrames)
+{
+    GatedCallback callback;
+    FrameQueue queue;
+    startFullQueue(queue, callback, FrameQueue::OverflowPolicy::DROP_NEWEST);
+
+    EXPECT_FALSE(pushFrame(queue, 3));
+    EXPECT_FALSE(pushFrame(queue, 4));
+
+    callback.open();
+    EXPECT_TRUE(waitForDelivered(queue, 3));
+    queue.stop();
+
+    std::vector<uint32_t> expected = { 0, 1, 2 };
+    EXPECT_TRUE(callback.getIndices() == expected);
+
+    FrameQueue::Statistics statistics = queue.getStatistics();
+    EXPECT_EQ(statistics.pushed, 5ULL);
+    EXPECT_EQ(statistics.delivered, 3ULL);
+    EXPECT_EQ(statistics.overruns, 2ULL);
+}
+
+TEST(FrameQueue, DropOldestKeepsTheNewestFrames)
+{
+    GatedCallback callback;
+    FrameQueue queue;
+    startFullQueue(queue, callback, FrameQueue::OverflowPolicy::DROP_OLDEST);
+
+    // Frame 0 is being delivered and can't be replaced, 1 and 2 are
+    EXPECT_TRUE(pushFrame(queue, 3));
+    EXPECT_TRUE(pushFrame(queue, 4));
+    EXPECT_TRUE(pushFrame(queue, 5));
+
+    callback.open();
+    EXPECT_TRUE(waitForDelivered(queue, 3));
+    queue.stop();
+
+    std::vector<uint32_t> expected = { 0, 4, 5 };
+    EXPECT_TRUE(callback.getIndices() == expected);
+
+    // The replaced frames have the data of the new ones
+    std::vector<uint8_t> expectedBytes = { 0, 4, 5 };
+    EXPECT_TRUE(callback.getFirstBytes() == expectedBytes);
+
+    FrameQueue::Statistics statistics = queue.getStatistics();
+    EXPECT_EQ(statistics.pushed, 6ULL);
+    EXPECT_EQ(statistics.delivered, 3ULL);
+    EXPECT_EQ(statistics.overruns, 3ULL);
+}
+
+TEST(FrameQueue, BlockGivesUpAfterTheTimeout)
+{
+    GatedCallback callback;
+    FrameQueue queue;
+    startFullQueue(queue, callback, FrameQueue::OverflowPolicy::BLOCK);
+
+    std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+    EXPECT_FALSE(pushFrame(queue, 3));
+    std::chrono::steady_clock::duration waited = std::chrono::steady_clock::now() - start;
+
+    // A stuck consumer stalls the producer for a bounded time only
+    EXPECT_TRUE(waited >= std::chrono::milliseconds(90));
+    EXPECT_TRUE(waited < std::chrono::seconds(2));
+    EXPECT_EQ(queue.getStatistics().overruns, 1ULL);
+
+    callback.open();
+    queue.stop();
+}
+
+TEST(FrameQueue, BlockWaitsForAFreeBuffer)
+{
+    GatedCallback callback;
+    FrameQueue queue;
+    startFullQueue(queue, callback, FrameQueue::OverflowPolicy::BLOCK);
+
+    std::thread consumer([&callback]
+    {
+        std::this_thread::sleep_for(std::chrono::milliseconds(20));
+        callback.open();
+    });
+
+    EXPECT_TRUE(pushFrame(queue, 3));
+    consumer.join();
+
+    EXPECT_TRUE(waitForDelivered(queue, 4));
+    queue.stop();
+
+    std::vector<uint32_t> expected = { 0, 1, 2, 3 };
+    EXPECT_TRUE(callback.getIndices() == expected);
+    EXPECT_EQ(queue.getStatistics().overruns, 0ULL);
+}
+
+TEST(FrameQueue, DropsFramesLargerThanTheBuffers)
+{
+    GatedCallback callback;
+    callback.open();
+
+    FrameQueue queue;
+    EXPECT_TRUE(queue.start(2, FRAME_SIZE, FrameQueue::OverflowPolicy::DROP_OLDEST, &callback));
+    EXPECT_FALSE(pushFrame(queue, 0, FRAME_SIZE + 1));
+    EXPECT_TRUE(pushFrame(queue, 1, FRAME_SIZE));
+    EXPECT_TRUE(waitForDelivered(queue, 1));
+    queue.stop();
+
+    std::vector<uint32_t> expected = { 1 };
+    EXPECT_TRUE(callback.getIndices() == expected);
+    EXPECT_EQ(queue.getStatistics().overruns, 1ULL);
+}
+
+TEST(FrameQueue, RejectsFramesWhenStopped)
+{
+    GatedCallback callback;
+    callback.open();
+
+    FrameQueue queue;
+    EXPECT_FALSE(pushFrame(queue, 0));
+
+    EXPECT_FALSE(queue.start(0, FRAME_SIZE, FrameQueue::OverflowPolicy::DROP_OLDEST, &callback));
+    EXPECT_FALSE(queue.start(2, 0, FrameQueue::OverflowPolicy::DROP_OLDEST, &callback));
+    EXPECT_FALSE(queue.start(2, FRAME_SIZE, FrameQueue::OverflowPolicy::DROP_OLDEST, nullptr));
+
+    EXPECT_TRUE(queue.start(2, FRAME_SIZE, FrameQueue::OverflowPolicy::DROP_OLDEST, &callback));
+    queue.stop();
+    EXPECT_FALSE(pushFrame(queue, 1));
+    EXPECT_TRUE(callback.getIndices().empty());
+}
+
+TEST(FrameQueue, StopDiscardsQueuedFrames)
+{
+    GatedCallback callback;
+    FrameQueue queue;
+    startFullQueue(queue, callback, FrameQueue::OverflowPolicy::DROP_OLDEST);
+
+    // Stop returns once the callback in progress returned, the queued frames are not delivered
+    std::thread stopper([&queue] { queue.stop(); });
+    std::this_thread::sleep_for(std::chrono::milliseconds(20));
+    callback.open();
+    stopper.join();
+
+    std::vector<uint32_t> expected = { 0 };
+    EXPECT_TRUE(callback.getIndices() == expected);
+
+    // And the queue can be started again
+    EXPECT_TRUE(queue.start(2, FRAME_SIZE, FrameQueue::OverflowPolicy::DROP_OLDEST, &callback));
+    EXPECT_TRUE(pushFrame(queue, 7));
+    EXPECT_TRUE(waitForDelivered(queue, 1));
+    queue.stop();
+    EXPECT_EQ(callback.getIndices().back(), 7u);
+}
@@ -0,0 +1,343 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameRecording.h"
+#include "ReplayExternalCamera.h"
+
+#include "TestHarness.h"
+
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <chrono>
+#include <cstdlib>
+#include <cstring>
+#include <mutex>
+#include <thread>
+
+namespace
+{
+/// A file in the temp directory that is deleted again with the object.
+struct TemporaryFile
+{
+    TemporaryFile()
+    {
+        char pathTemplate[] = "/tmp/UVCDriverTestsXXXXXX";
+        int file = mkstemp(pathTemplate);
+        if (file >= 0)
+        {
+            close(file);
+        }
+        path = pathTemplate;
+    }
+
+    ~TemporaryFile()
+    {
+        unlink(path.c_str());
+    }
+
+    off_t getSize() const
+    {
+        struct stat fileStat;
+        return stat(path.c_str(), &fileStat) == 0 ? fileStat.st_size : -1;
+    }
+
+    std::string path;
+};
+
+Vuforia::Driver::CameraMode
+makeMode(uint32_t width, uint32_t height, uint32_t fps)
+{
+    Vuforia::Driver::CameraMode mode;
+    mode.width = width;
+    mode.height = height;
+    mode.fps = fps;
+    mode.format = Vuforia::Driver::PixelFormat::YUYV;
+    return mode;
+}
+
+/// Write count frames of size bytes, frame i filled with the byte i and stamped i * 10 ms.
+void
+writeFrames(FrameRecorder& recorder, uint32_t count, uint32_t size)
+{
+    std::vector<uint8_t> data(size);
+    for (uint32_t index = 0; index < count; index++)
+    {
+        std::fill(data.begin(), data.end(), static_cast<uint8_t>(index));
+
+        Vuforia::Driver::CameraFrame frame;
+        frame.timestamp = 1000000000ULL + index * 10000000ULL;
+        frame.exposureTime = 5000000ULL + index;
+        frame.buffer = data.data();
+        frame.bufferSize = size;
+        frame.index = index;
+        frame.width = 4;
+        frame.height = 2;
+        frame.stride = 8;
+        frame.intrinsics.focalLengthX = 500.f + index;
+        frame.intrinsics.principalPointY = 240.f;
+        frame.intrinsics.distortionCoefficients[7] = -0.25f;
+        EXPECT_TRUE(recorder.write(frame));
+    }
+}
+
+class CountingCallback : public Vuforia::Driver::CameraCallback
+{
+public:
+    void VUFORIA_DRIVER_CALLING_CONVENTION onNewCameraFrame(Vuforia::Driver::CameraFrame* frame) override
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mFirstBytes.push_back(frame->buffer[0]);
+        mIndices.push_back(frame->index);
+    }
+
+    std::vector<uint8_t> getFirstBytes()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mFirstBytes;
+    }
+
+    std::vector<uint32_t> getIndices()
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mIndices;
+    }
+
+private:
+    std::mutex              mMutex;
+    std::vector<uint8_t>    mFirstBytes;
+    std::vector<uint32_t>   mIndices;
+};
+
+bool
+waitUntilStopped(ReplayExternalCamera& camera)
+{
+    std::chrono::steady_clock::time_point deadline = std::chrono::steady_clock::now() + std::chrono::seconds(5);
+    while (camera.isPlaying())
+    {
+        if (std::chrono::steady_clock::now() > deadline)
+        {
+            return false;
+        }
+        std::this_thread::sleep_for(std::chrono::milliseconds(1));
+    }
+    return true;
+}
+}
+
+TEST(FrameRecording, RoundTrip)
+{
+    TemporaryFile file;
+
+    FrameRecorder recorder;
+    EXPECT_TRUE(recorder.open(file.path, makeMode(4, 2, 30)));
+    EXPECT_TRUE(recorder.isRecording());
+    writeFrames(recorder, 3, 16);
+    EXPECT_EQ(recorder.getFrameCount(), 3u);
+    recorder.close();
+    EXPECT_FALSE(recorder.isRecording());
+
+    // Truncated to the frames on close
+    EXPECT_EQ(file.getSize(), static_cast<off_t>(sizeof(FrameRecording::FileHeader) + 3 * (sizeof(FrameRecording::FrameHeader) + 16)));
+
+    FrameRecordingReader reader;
+    EXPECT_TRUE(reader.open(file.path));
+    EXPECT_EQ(reader.getNumFrames(), 3u);
+    EXPECT_EQ(reader.getCameraMode().width, 4u);
+    EXPECT_EQ(reader.getCameraMode().height, 2u);
+    EXPECT_EQ(reader.getCameraMode().fps, 30u);
+    EXPECT_TRUE(reader.getCameraMode().format == Vuforia::Driver::PixelFormat::YUYV);
+
+    for (uint32_t index = 0; index < 3; index++)
+    {
+        Vuforia::Driver::CameraFrame frame;
+        EXPECT_TRUE(reader.getFrame(index, frame));
+        EXPECT_EQ(frame.timestamp, 1000000000ULL + index * 10000000ULL);
+        EXPECT_EQ(frame.exposureTime, 5000000ULL + index);
+        EXPECT_EQ(frame.index, index);
+        EXPECT_EQ(frame.bufferSize, 16u);
+        EXPECT_EQ(frame.width, 4u);
+        EXPECT_EQ(frame.height, 2u);
+        EXPECT_EQ(frame.stride, 8u);
+        EXPECT_EQ(frame.buffer[0], index);
+        EXPECT_EQ(frame.buffer[15], index);
+        EXPECT_NEAR(frame.intrinsics.focalLengthX, 500.0 + index, 0.0);
+        EXPECT_NEAR(frame.intrinsics.principalPointY, 240.0, 0.0);
+        EXPECT_NEAR(frame.intrinsics.distortionCoefficients[7], -0.25, 0.0);
+    }
+
+    Vuforia::Driver::CameraFrame frame;
+    EXPECT_FALSE(reader.getFrame(3, frame));
+}
+
+TEST(FrameRecording, PadsFramesToEightBytes)
+{
+    TemporaryFile file;
+
+    FrameRecorder recorder;
+    EXPECT_TRUE(recorder.open(file.path, makeMode(4, 2, 30)));
+    writeFrames(recorder, 2, 13);
+    recorder.close();
+
+    EXPECT_EQ(file.getSize(), static_cast<off_t>(sizeof(FrameRecording::FileHeader) + 2 * (sizeof(FrameRecording::FrameHeader) + 16)));
+
+    FrameRecordingReader reader;
+    EXPECT_TRUE(reader.open(file.path));
+    EXPECT_EQ(reader.getNumFrames(), 2u);
+
+    Vuforia::Driver::CameraFrame frame;
+    EXPECT_TRUE(reader.getFrame(1, frame));
+    EXPECT_EQ(frame.bufferSize, 13u);
+    EXPECT_EQ(frame.buffer[12], 1u);
+    EXPECT_EQ(reinterpret_cast<uintptr_t>(frame.buffer) % 8, 0u);
+}
+
+TEST(FrameRecording, GrowsForLargeFrames)
+{
+    TemporaryFile file;
+
+    FrameRecorder recorder;
+    EXPECT_TRUE(recorder.open(file.path, makeMode(1920, 1080, 30)));
+    writeFrames(recorder, 20, 1920 * 1080 * 2);
+    recorder.close();
+
+    FrameRecordingReader reader;
+    EXPECT_TRUE(reader.open(file.path));
+    EXPECT_EQ(reader.getNumFrames(), 20u);
+
+    Vuforia::Driver::CameraFrame frame;
+    EXPECT_TRUE(reader.getFrame(19, frame));
+    EXPECT_EQ(frame.buffer[frame.bufferSize - 1], 19u);
+}
+
+TEST(FrameRecording, ReadsARecordingThatWasNeverClosed)
+{
+    TemporaryFile file;
+
+    // The recording is still open, as if the app had crashed
+    FrameRecorder recorder;
+    EXPECT_TRUE(recorder.open(file.path, makeMode(4, 2, 30)));
+    writeFrames(recorder, 5, 16);
+
+    FrameRecordingReader reader;
+    EXPECT_TRUE(reader.open(file.path));
+    EXPECT_EQ(reader.getNumFrames(), 5u);
+
+    Vuforia::Driver::CameraFrame frame;
+    EXPECT_TRUE(reader.getFrame(4, frame));
+    EXPECT_EQ(frame.buffer[0], 4u);
+}
+
+TEST(FrameRecording, RejectsOtherFiles)
+{
+    TemporaryFile file;
+    FrameRecordingReader reader;
+
+    // Too short
+    EXPECT_FALSE(reader.open(file.path));
+
+    // Not a recording
+    FILE* other = fopen(file.path.c_str(), "wb");
+    std::vector<uint8_t> garbage(256, 0x42);
+    fwrite(garbage.data(), 1, garbage.size(), other);
+    fclose(other);
+    EXPECT_FALSE(reader.open(file.path));
+
+    EXPECT_FALSE(reader.open("/nonexistent/recording"));
+}
+
+TEST(FrameRecording, WritesOnlyWhileOpen)
+{
+    TemporaryFile file;
+
+    FrameRecorder recorder;
+    EXPECT_FALSE(recorder.isRecording());
+
+    std::vector<uint8_t> data(16);
+    Vuforia::Driver::CameraFrame frame;
+    frame.buffer = data.data();
+    frame.bufferSize = 16;
+    EXPECT_FALSE(recorder.write(frame));
+
+    EXPECT_TRUE(recorder.open(file.path, makeMode(4, 2, 30)));
+    EXPECT_TRUE(recorder.write(frame));
+    recorder.close();
+    EXPECT_FALSE(recorder.write(frame));
+
+    // A second close does nothing
+    recorder.close();
+    EXPECT_EQ(recorder.getFrameCount(), 1u);
+}
+
+TEST(FrameRecording, ReplayDeliversTheRecordedFrames)
+{
+    TemporaryFile file;
+
+    FrameRecorder recorder;
+    EXPECT_TRUE(recorder.open(file.path, makeMode(4, 2, 30)));
+    writeFrames(recorder, 10, 16);
+    recorder.close();
+
+    ReplayExternalCamera camera(file.path, false, false);
+    EXPECT_TRUE(camera.open());
+    EXPECT_EQ(camera.getNumSupportedCameraModes(), 1u);
+
+    Vuforia::Driver::CameraMode mode;
+    EXPECT_TRUE(camera.getSupportedCameraMode(0, &mode));
+    EXPECT_EQ(mode.width, 4u);
+    EXPECT_EQ(mode.fps, 30u);
+
+    // Only the recorded size can be streamed
+    CountingCallback callback;
+    EXPECT_FALSE(camera.start(makeMode(8, 2, 30), &callback));
+
+    EXPECT_TRUE(camera.start(mode, &callback));
+    EXPECT_TRUE(waitUntilStopped(camera));
+    camera.stop();
+    camera.close();
+
+    std::vector<uint8_t> firstBytes = callback.getFirstBytes();
+    std::vector<uint32_t> indices = callback.getIndices();
+    EXPECT_EQ(firstBytes.size(), 10u);
+    for (uint32_t index = 0; index < firstBytes.size(); index++)
+    {
+        EXPECT_EQ(firstBytes[index], index);
+        EXPECT_EQ(indices[index], index);
+    }
+}
+
+TEST(FrameRecording, ReplayLoopsUntilStopped)
+{
+    TemporaryFile file;
+
+    FrameRecorder recorder;
+    EXPECT_TRUE(recorder.open(file.path, makeMode(4, 2, 30)));
+    writeFrames(recorder, 3, 16);
+    recorder.close();
+
+    ReplayExternalCamera camera(file.path, true, true);
+    EXPECT_TRUE(camera.open());
+
+    // 10 ms per frame in real time, the recording loops a few times
+    CountingCallback callback;
+    EXPECT_TRUE(camera.start(makeMode(4, 2, 30), &callback));
+    std::this_thread::sleep_for(std::chrono::milliseconds(200));
+    EXPECT_TRUE(camera.isPlaying());
+    camera.stop();
+    EXPECT_FALSE(camera.isPlaying());
+
+    std::vector<uint8_t> firstBytes = callback.getFirstBytes();
+    std::vector<uint32_t> indices = callback.getIndices();
+    EXPECT_TRUE(firstBytes.size() > 6);
+    for (uint32_t index = 0; index < firstBytes.size(); index++)
+    {
+        EXPECT_EQ(firstBytes[index], index % 3);
+
+        // The indices keep counting across the passes
+        EXPECT_EQ(indices[index], index);
+    }
+}
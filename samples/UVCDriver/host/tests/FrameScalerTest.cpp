@@ -0,0 +1,217 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameScaler.h"
+
+#include "TestHarness.h"
+
+#include <vector>
+
+namespace
+{
+/// A YUYV frame whose luma is the column plus 10 times the row, U is 100 + row and V is 200 + column pair.
+struct SourceFrame
+{
+    SourceFrame(uint32_t width, uint32_t height, uint32_t padding = 0)
+        : stride(width * 2 + padding),
+          data(static_cast<size_t>(stride) * height, 0xEE)
+    {
+        for (uint32_t y = 0; y < height; y++)
+        {
+            uint8_t* line = data.data() + static_cast<size_t>(y) * stride;
+            for (uint32_t x = 0; x < width; x++)
+            {
+                line[x * 2] = static_cast<uint8_t>(x + 10 * y);
+                line[x * 2 + 1] = (x % 2 == 0) ? static_cast<uint8_t>(100 + y) : static_cast<uint8_t>(200 + x / 2);
+            }
+        }
+
+        frame.buffer = data.data();
+        frame.bufferSize = static_cast<uint32_t>(data.size());
+        frame.width = width;
+        frame.height = height;
+        frame.stride = stride;
+        frame.format = Vuforia::Driver::PixelFormat::YUYV;
+        frame.timestamp = 123456789ULL;
+        frame.index = 42;
+        frame.intrinsics.focalLengthX = 400.f;
+        frame.intrinsics.focalLengthY = 410.f;
+        frame.intrinsics.principalPointX = width / 2.f - 0.5f;
+        frame.intrinsics.principalPointY = height / 2.f - 0.5f;
+        frame.intrinsics.distortionCoefficients[0] = 0.1f;
+    }
+
+    uint32_t                        stride;
+    std::vector<uint8_t>            data;
+    Vuforia::Driver::CameraFrame    frame;
+};
+
+uint8_t
+getLuma(const std::vector<uint8_t>& buffer, uint32_t width, uint32_t x, uint32_t y)
+{
+    return buffer[(static_cast<size_t>(y) * width + x) * 2];
+}
+}
+
+TEST(FrameScaler, RejectsUnsupportedSizes)
+{
+    FrameScaler scaler;
+    EXPECT_FALSE(scaler.configure(640, 480, 0, 240, FrameScaler::Mode::SCALE));
+    EXPECT_FALSE(scaler.configure(640, 480, 320, 0, FrameScaler::Mode::SCALE));
+    EXPECT_FALSE(scaler.configure(640, 480, 321, 240, FrameScaler::Mode::SCALE));
+    EXPECT_FALSE(scaler.configure(640, 480, 320, 241, FrameScaler::Mode::SCALE));
+    EXPECT_FALSE(scaler.configure(640, 480, 642, 480, FrameScaler::Mode::CROP));
+    EXPECT_FALSE(scaler.configure(640, 480, 640, 482, FrameScaler::Mode::CROP));
+
+    EXPECT_TRUE(scaler.configure(640, 480, 640, 480, FrameScaler::Mode::CROP));
+    EXPECT_EQ(scaler.getWidth(), 640u);
+    EXPECT_EQ(scaler.getHeight(), 480u);
+}
+
+TEST(FrameScaler, CropCutsOutTheCentre)
+{
+    SourceFrame source(16, 8, 6);
+
+    FrameScaler scaler;
+    EXPECT_TRUE(scaler.configure(16, 8, 8, 4, FrameScaler::Mode::CROP));
+
+    std::vector<uint8_t> buffer(8 * 4 * 2);
+    Vuforia::Driver::CameraFrame out;
+    EXPECT_TRUE(scaler.process(source.frame, buffer.data(), out));
+
+    // The centre 8x4 starts at column 4, row 2 and is copied pixel by pixel
+    for (uint32_t y = 0; y < 4; y++)
+    {
+        for (uint32_t x = 0; x < 8; x++)
+        {
+            EXPECT_EQ(getLuma(buffer, 8, x, y), 4 + x + 10 * (2 + y));
+        }
+    }
+
+    // The chroma stays with its pixel pair
+    EXPECT_EQ(buffer[1], 100u + 2u);
+    EXPECT_EQ(buffer[3], 200u + 2u);
+
+    EXPECT_EQ(out.width, 8u);
+    EXPECT_EQ(out.height, 4u);
+    EXPECT_EQ(out.stride, 16u);
+    EXPECT_EQ(out.bufferSize, 8u * 4u * 2u);
+    EXPECT_TRUE(out.buffer == buffer.data());
+    EXPECT_EQ(out.timestamp, 123456789ULL);
+    EXPECT_EQ(out.index, 42u);
+
+    // Cropping moves the principal point, the focal length stays
+    EXPECT_NEAR(out.intrinsics.focalLengthX, 400.0, 1e-4);
+    EXPECT_NEAR(out.intrinsics.focalLengthY, 410.0, 1e-4);
+    EXPECT_NEAR(out.intrinsics.principalPointX, 7.5 - 4.0, 1e-4);
+    EXPECT_NEAR(out.intrinsics.principalPointY, 3.5 - 2.0, 1e-4);
+    EXPECT_NEAR(out.intrinsics.distortionCoefficients[0], 0.1, 1e-6);
+}
+
+TEST(FrameScaler, ScaleAveragesBoxes)
+{
+    SourceFrame source(16, 8);
+
+    FrameScaler scaler;
+    EXPECT_TRUE(scaler.configure(16, 8, 8, 4, FrameScaler::Mode::SCALE));
+
+    std::vector<uint8_t> buffer(8 * 4 * 2);
+    Vuforia::Driver::CameraFrame out;
+    EXPECT_TRUE(scaler.process(source.frame, buffer.data(), out));
+
+    // Every output pixel is the mean of a 2x2 box: columns 2x and 2x + 1, rows 2y and 2y + 1
+    for (uint32_t y = 0; y < 4; y++)
+    {
+        for (uint32_t x = 0; x < 8; x++)
+        {
+            uint32_t expected = (4 * (2 * x) + 2 + 10 * (4 * (2 * y) + 2)) / 4;
+            EXPECT_EQ(getLuma(buffer, 8, x, y), expected);
+        }
+    }
+
+    // The chroma of the pixel pairs the output pair covers, over the rows of the box
+    EXPECT_EQ(buffer[1], (100u + 101u) / 2u);
+    EXPECT_EQ(buffer[3], (200u + 201u) / 2u);
+
+    // Half the resolution halves the focal length, the centre stays the centre
+    EXPECT_NEAR(out.intrinsics.focalLengthX, 200.0, 1e-4);
+    EXPECT_NEAR(out.intrinsics.focalLengthY, 205.0, 1e-4);
+    EXPECT_NEAR(out.intrinsics.principalPointX, 3.5, 1e-4);
+    EXPECT_NEAR(out.intrinsics.principalPointY, 1.5, 1e-4);
+}
+
+TEST(FrameScaler, ScaleCropsToTheAspectRatio)
+{
+    SourceFrame source(32, 8);
+
+    // 4:1 to 2:1, half of the width is cut off before scaling by 2
+    FrameScaler scaler;
+    EXPECT_TRUE(scaler.configure(32, 8, 8, 4, FrameScaler::Mode::SCALE));
+
+    std::vector<uint8_t> buffer(8 * 4 * 2);
+    Vuforia::Driver::CameraFrame out;
+    EXPECT_TRUE(scaler.process(source.frame, buffer.data(), out));
+
+    // The first output pixel covers columns 8 and 9 of rows 0 and 1
+    EXPECT_EQ(getLuma(buffer, 8, 0, 0), (8u + 9u + 18u + 19u) / 4u);
+    EXPECT_EQ(getLuma(buffer, 8, 7, 3), (82u + 83u + 92u + 93u) / 4u);
+
+    EXPECT_NEAR(out.intrinsics.focalLengthX, 200.0, 1e-4);
+    EXPECT_NEAR(out.intrinsics.principalPointX, 3.5, 1e-4);
+    EXPECT_NEAR(out.intrinsics.principalPointY, 1.5, 1e-4);
+}
+
+TEST(FrameScaler, ScaleByAFraction)
+{
+    SourceFrame source(24, 6);
+
+    // 3 source pixels per 2 output pixels, every source pixel still counts
+    FrameScaler scaler;
+    EXPECT_TRUE(scaler.configure(24, 6, 16, 4, FrameScaler::Mode::SCALE));
+
+    std::vector<uint8_t> buffer(16 * 4 * 2);
+    Vuforia::Driver::CameraFrame out;
+    EXPECT_TRUE(scaler.process(source.frame, buffer.data(), out));
+
+    // Output column 0 is source column 0, column 1 is source columns 1 and 2, rows alike
+    EXPECT_EQ(getLuma(buffer, 16, 0, 0), 0u);
+    EXPECT_EQ(getLuma(buffer, 16, 1, 0), (1u + 2u) / 2u);
+    EXPECT_EQ(getLuma(buffer, 16, 0, 1), (10u + 20u) / 2u);
+    EXPECT_EQ(getLuma(buffer, 16, 15, 3), (62u + 63u + 72u + 73u) / 4u);
+
+    EXPECT_NEAR(out.intrinsics.focalLengthX, 400.0 * 2.0 / 3.0, 1e-3);
+    EXPECT_NEAR(out.intrinsics.principalPointX, 7.5, 1e-4);
+    EXPECT_NEAR(out.intrinsics.principalPointY, 1.5, 1e-4);
+}
+
+TEST(FrameScaler, KeepsMissingCalibrations)
+{
+    FrameScaler scaler;
+    EXPECT_TRUE(scaler.configure(640, 480, 320, 240, FrameScaler::Mode::SCALE));
+
+    Vuforia::Driver::CameraIntrinsics none;
+    Vuforia::Driver::CameraIntrinsics adjusted = scaler.adjustIntrinsics(none);
+    EXPECT_NEAR(adjusted.focalLengthX, 0.0, 0.0);
+    EXPECT_NEAR(adjusted.principalPointX, 0.0, 0.0);
+    EXPECT_NEAR(adjusted.principalPointY, 0.0, 0.0);
+}
+
+TEST(FrameScaler, RejectsOtherFrames)
+{
+    FrameScaler scaler;
+    EXPECT_TRUE(scaler.configure(16, 8, 8, 4, FrameScaler::Mode::SCALE));
+
+    std::vector<uint8_t> buffer(8 * 4 * 2);
+    Vuforia::Driver::CameraFrame out;
+
+    SourceFrame otherSize(16, 10);
+    EXPECT_FALSE(scaler.process(otherSize.frame, buffer.data(), out));
+
+    SourceFrame otherFormat(16, 8);
+    otherFormat.frame.format = Vuforia::Driver::PixelFormat::NV21;
+    EXPECT_FALSE(scaler.process(otherFormat.frame, buffer.data(), out));
+}
@@ -0,0 +1,138 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameTelemetry.h"
+
+#include "TestHarness.h"
+
+namespace
+{
+const uint64_t US = 1000ULL;
+const uint64_t MS = 1000ULL * US;
+const uint64_t START = 1000ULL * MS;
+}
+
+TEST(FrameTelemetry, BucketUpperBounds)
+{
+    EXPECT_EQ(FrameTelemetry::getBucketUpperBound(0), 2ULL);
+    EXPECT_EQ(FrameTelemetry::getBucketUpperBound(1), 4ULL);
+    EXPECT_EQ(FrameTelemetry::getBucketUpperBound(10), 2048ULL);
+    EXPECT_EQ(FrameTelemetry::getBucketUpperBound(FrameTelemetry::NUM_BUCKETS - 2), 1ULL << (FrameTelemetry::NUM_BUCKETS - 1));
+
+    // The last bucket is open ended
+    EXPECT_EQ(FrameTelemetry::getBucketUpperBound(FrameTelemetry::NUM_BUCKETS - 1), 0ULL);
+}
+
+TEST(FrameTelemetry, DurationsLandInTheirBuckets)
+{
+    FrameTelemetry telemetry;
+    telemetry.recordCallbackDuration(0);
+    telemetry.recordCallbackDuration(1999);         // 1 us
+    telemetry.recordCallbackDuration(2 * US);
+    telemetry.recordCallbackDuration(3999);         // 3 us
+    telemetry.recordCallbackDuration(4 * US);
+    telemetry.recordCallbackDuration(1500 * US);
+    telemetry.recordCallbackDuration(60000 * MS);
+
+    FrameTelemetry::HistogramSnapshot histogram = telemetry.getSnapshot().callbackDuration;
+    EXPECT_EQ(histogram.count, 7ULL);
+    EXPECT_EQ(histogram.buckets[0], 2ULL);
+    EXPECT_EQ(histogram.buckets[1], 2ULL);
+    EXPECT_EQ(histogram.buckets[2], 1ULL);
+    EXPECT_EQ(histogram.buckets[10], 1ULL);
+    EXPECT_EQ(histogram.buckets[FrameTelemetry::NUM_BUCKETS - 1], 1ULL);
+    EXPECT_EQ(histogram.max, 60000ULL * 1000ULL);
+
+    uint64_t total = 0;
+    for (size_t bucket = 0; bucket < FrameTelemetry::NUM_BUCKETS; bucket++)
+    {
+        total += histogram.buckets[bucket];
+    }
+    EXPECT_EQ(total, histogram.count);
+}
+
+TEST(FrameTelemetry, MeanAndStandardDeviation)
+{
+    FrameTelemetry telemetry;
+    telemetry.recordControlTransfer(2 * MS);
+    telemetry.recordControlTransfer(4 * MS);
+    telemetry.recordControlTransfer(6 * MS);
+
+    FrameTelemetry::HistogramSnapshot histogram = telemetry.getSnapshot().controlTransfer;
+    EXPECT_NEAR(histogram.getMean(), 4000.0, 1e-6);
+    EXPECT_NEAR(histogram.getStandardDeviation(), 1632.993, 1e-3);
+
+    FrameTelemetry::HistogramSnapshot empty;
+    EXPECT_NEAR(empty.getMean(), 0.0, 0.0);
+    EXPECT_NEAR(empty.getStandardDeviation(), 0.0, 0.0);
+}
+
+TEST(FrameTelemetry, FrameIntervalsGiveTheFrameRate)
+{
+    FrameTelemetry telemetry;
+    for (uint32_t frame = 0; frame < 31; frame++)
+    {
+        telemetry.recordFrame(frame, START + frame * 33333 * US);
+    }
+
+    FrameTelemetry::Snapshot snapshot = telemetry.getSnapshot();
+    EXPECT_EQ(snapshot.framesReceived, 31ULL);
+    EXPECT_EQ(snapshot.framesDropped, 0ULL);
+
+    // The first frame has no interval
+    EXPECT_EQ(snapshot.frameInterval.count, 30ULL);
+    EXPECT_NEAR(snapshot.getFps(), 30.0, 0.01);
+    EXPECT_NEAR(snapshot.frameInterval.getStandardDeviation(), 0.0, 1e-6);
+}
+
+TEST(FrameTelemetry, SequenceGapsCountAsDropped)
+{
+    FrameTelemetry telemetry;
+    telemetry.recordFrame(10, START);
+    telemetry.recordFrame(11, START + 33 * MS);
+    telemetry.recordFrame(14, START + 133 * MS);
+    telemetry.recordFrame(20, START + 333 * MS);
+
+    FrameTelemetry::Snapshot snapshot = telemetry.getSnapshot();
+    EXPECT_EQ(snapshot.framesReceived, 4ULL);
+    EXPECT_EQ(snapshot.framesDropped, 7ULL);
+}
+
+TEST(FrameTelemetry, RestartedSequenceIsNotDropped)
+{
+    FrameTelemetry telemetry;
+    telemetry.recordFrame(100, START);
+    telemetry.recordFrame(101, START + 33 * MS);
+
+    // The camera was restarted and counts from the start again
+    telemetry.recordFrame(0, START + 66 * MS);
+    telemetry.recordFrame(1, START + 99 * MS);
+
+    FrameTelemetry::Snapshot snapshot = telemetry.getSnapshot();
+    EXPECT_EQ(snapshot.framesReceived, 4ULL);
+    EXPECT_EQ(snapshot.framesDropped, 0ULL);
+}
+
+TEST(FrameTelemetry, ResetClearsEverything)
+{
+    FrameTelemetry telemetry;
+    telemetry.recordFrame(0, START);
+    telemetry.recordFrame(5, START + 33 * MS);
+    telemetry.recordCallbackDuration(5 * MS);
+    telemetry.reset();
+
+    FrameTelemetry::Snapshot snapshot = telemetry.getSnapshot();
+    EXPECT_EQ(snapshot.framesReceived, 0ULL);
+    EXPECT_EQ(snapshot.framesDropped, 0ULL);
+    EXPECT_EQ(snapshot.frameInterval.count, 0ULL);
+    EXPECT_EQ(snapshot.callbackDuration.count, 0ULL);
+
+    // The next frame is the first one again and has no interval
+    telemetry.recordFrame(7, START + 66 * MS);
+    EXPECT_EQ(telemetry.getSnapshot().frameInterval.count, 0ULL);
+    EXPECT_EQ(telemetry.getSnapshot().framesDropped, 0ULL);
+}
@@ -0,0 +1,184 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "Standby.h"
+
+#include "TestHarness.h"
+
+#include <atomic>
+#include <chrono>
+#include <memory>
+#include <thread>
+
+namespace
+{
+/// Stands in for the open cameras, counts how often devices were opened and closed.
+struct Devices
+{
+    std::atomic<int>    opened{ 0 };
+    std::atomic<int>    closed{ 0 };
+};
+
+struct OpenCameras
+{
+    OpenCameras(Devices& devices, std::chrono::milliseconds closeDuration = std::chrono::milliseconds(0))
+        : mDevices(devices)
+        , mCloseDuration(closeDuration)
+    {
+        mDevices.opened++;
+    }
+
+    ~OpenCameras()
+    {
+        std::this_thread::sleep_for(mCloseDuration);
+        mDevices.closed++;
+    }
+
+    Devices&                    mDevices;
+    std::chrono::milliseconds   mCloseDuration;
+};
+
+typedef Standby<OpenCameras> CameraStandby;
+
+/// The external camera Vuforia creates and destroys, opening its cameras like UVCExternalCamera does.
+class ExternalCamera
+{
+public:
+    ExternalCamera(Devices& devices, CameraStandby& standby, std::chrono::milliseconds standbyTimeout)
+        : mDevices(devices)
+        , mStandby(standby)
+        , mStandbyTimeout(standbyTimeout)
+    {
+    }
+
+    void open()
+    {
+        mCameras = mStandby.take();
+        if (mCameras == nullptr)
+        {
+            mCameras.reset(new OpenCameras(mDevices));
+        }
+    }
+
+    void close()
+    {
+        mStandby.keep(std::move(mCameras), mStandbyTimeout);
+    }
+
+    OpenCameras* getCameras() { return mCameras.get(); }
+
+private:
+    Devices&                        mDevices;
+    CameraStandby&                  mStandby;
+    std::chrono::milliseconds       mStandbyTimeout;
+    std::unique_ptr<OpenCameras>    mCameras;
+};
+
+bool
+waitUntilReleased(CameraStandby& standby)
+{
+    std::chrono::steady_clock::time_point deadline = std::chrono::steady_clock::now() + std::chrono::seconds(5);
+    while (standby.isKeeping() && std::chrono::steady_clock::now() < deadline)
+    {
+        std::this_thread::sleep_for(std::chrono::milliseconds(1));
+    }
+    return !standby.isKeeping();
+}
+}
+
+TEST(Standby, CamerasSurviveCloseDestroyCreateOpen)
+{
+    Devices devices;
+    CameraStandby standby;
+
+    ExternalCamera* camera = new ExternalCamera(devices, standby, std::chrono::seconds(60));
+    camera->open();
+    OpenCameras* cameras = camera->getCameras();
+    camera->close();
+    delete camera;
+
+    EXPECT_TRUE(standby.isKeeping());
+    EXPECT_EQ(devices.closed.load(), 0);
+
+    // The new instance gets the cameras of the old one without opening the devices again
+    camera = new ExternalCamera(devices, standby, std::chrono::seconds(60));
+    camera->open();
+    EXPECT_TRUE(camera->getCameras() == cameras);
+    EXPECT_FALSE(standby.isKeeping());
+    EXPECT_EQ(devices.opened.load(), 1);
+    EXPECT_EQ(devices.closed.load(), 0);
+
+    delete camera;
+    EXPECT_EQ(devices.closed.load(), 1);
+}
+
+TEST(Standby, TimeoutClosesCameras)
+{
+    Devices devices;
+    CameraStandby standby;
+
+    ExternalCamera* camera = new ExternalCamera(devices, standby, std::chrono::milliseconds(20));
+    camera->open();
+    camera->close();
+    delete camera;
+
+    EXPECT_TRUE(waitUntilReleased(standby));
+    EXPECT_EQ(devices.closed.load(), 1);
+
+    // The next instance opens the devices again
+    camera = new ExternalCamera(devices, standby, std::chrono::milliseconds(20));
+    camera->open();
+    EXPECT_EQ(devices.opened.load(), 2);
+    delete camera;
+}
+
+TEST(Standby, TakeWaitsForTimedOutCamerasToClose)
+{
+    Devices devices;
+    CameraStandby standby;
+
+    standby.keep(std::unique_ptr<OpenCameras>(new OpenCameras(devices, std::chrono::milliseconds(200))), std::chrono::milliseconds(1));
+
+    // Closing is under way, the devices must be released before they are opened again
+    std::this_thread::sleep_for(std::chrono::milliseconds(50));
+    EXPECT_TRUE(standby.take() == nullptr);
+    EXPECT_EQ(devices.closed.load(), 1);
+}
+
+TEST(Standby, KeepReplacesEarlierCameras)
+{
+    Devices devices;
+    CameraStandby standby;
+
+    standby.keep(std::unique_ptr<OpenCameras>(new OpenCameras(devices)), std::chrono::seconds(60));
+    standby.keep(std::unique_ptr<OpenCameras>(new OpenCameras(devices)), std::chrono::seconds(60));
+    EXPECT_EQ(devices.closed.load(), 1);
+    EXPECT_TRUE(standby.isKeeping());
+
+    standby.release();
+    EXPECT_EQ(devices.closed.load(), 2);
+    EXPECT_FALSE(standby.isKeeping());
+}
+
+TEST(Standby, KeepingNothing)
+{
+    CameraStandby standby;
+
+    standby.keep(nullptr, std::chrono::seconds(60));
+    EXPECT_FALSE(standby.isKeeping());
+    EXPECT_TRUE(standby.take() == nullptr);
+}
+
+TEST(Standby, DestroyingStandbyClosesCameras)
+{
+    Devices devices;
+    {
+        CameraStandby standby;
+        standby.keep(std::unique_ptr<OpenCameras>(new OpenCameras(devices)), std::chrono::seconds(60));
+    }
+    EXPECT_EQ(devices.closed.load(), 1);
+}
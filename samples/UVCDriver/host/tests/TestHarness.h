@@ -0,0 +1,75 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _TEST_HARNESS_H_
+#define _TEST_HARNESS_H_
+
+#include <cmath>
+#include <cstdio>
+#include <vector>
+
+/// Minimal test registry for the host unit tests, so they build without a test framework.
+/**
+ * TEST(Suite, Name) defines a test that TestMain.cpp runs. A failed EXPECT_* prints the
+ * expression and carries on with the test, the test counts as failed at the end.
+ */
+namespace TestHarness
+{
+struct Test
+{
+    const char* suite;
+    const char* name;
+    void (*function)();
+};
+
+std::vector<Test>& getTests();
+
+/// Set when an EXPECT_* of the running test failed.
+extern bool gCurrentTestFailed;
+
+struct Registration
+{
+    Registration(const char* suite, const char* name, void (*function)())
+    {
+        getTests().push_back(Test{ suite, name, function });
+    }
+};
+
+inline void
+check(bool condition, const char* expression, const char* file, int line)
+{
+    if (!condition)
+    {
+        std::fprintf(stderr, "%s:%d: expected %s\n", file, line, expression);
+        gCurrentTestFailed = true;
+    }
+}
+
+inline void
+checkNear(double actual, double expected, double tolerance, const char* expression, const char* file, int line)
+{
+    if (!(std::fabs(actual - expected) <= tolerance))
+    {
+        std::fprintf(stderr, "%s:%d: expected %s, got %f instead of %f +- %f\n",
+                     file, line, expression, actual, expected, tolerance);
+        gCurrentTestFailed = true;
+    }
+}
+} // namespace TestHarness
+
+#define TEST(suite, name)                                                                           \
+    static void suite##_##name();                                                                   \
+    static TestHarness::Registration suite##_##name##_registration(#suite, #name, &suite##_##name); \
+    static void suite##_##name()
+
+#define EXPECT_TRUE(condition) TestHarness::check((condition), #condition, __FILE__, __LINE__)
+#define EXPECT_FALSE(condition) TestHarness::check(!(condition), "!(" #condition ")", __FILE__, __LINE__)
+#define EXPECT_EQ(actual, expected) TestHarness::check((actual) == (expected), #actual " == " #expected, __FILE__, __LINE__)
+#define EXPECT_NEAR(actual, expected, tolerance) \
+    TestHarness::checkNear((actual), (expected), (tolerance), #actual " near " #expected, __FILE__, __LINE__)
+
+#endif // _TEST_HARNESS_H_
@@ -0,0 +1,63 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+// Runs the host unit tests.
+//
+//   UVCDriverTests [suite]
+//
+// With a suite only the tests of that suite run. Exits with 1 if a test failed.
+
+#include "TestHarness.h"
+
+#include <cstring>
+
+namespace TestHarness
+{
+bool gCurrentTestFailed = false;
+
+std::vector<Test>&
+getTests()
+{
+    static std::vector<Test> tests;
+    return tests;
+}
+} // namespace TestHarness
+
+int
+main(int argc, char** argv)
+{
+    const char* suite = argc > 1 ? argv[1] : nullptr;
+
+    int run = 0;
+    int failed = 0;
+    for (const TestHarness::Test& test : TestHarness::getTests())
+    {
+        if (suite != nullptr && std::strcmp(suite, test.suite) != 0)
+        {
+            continue;
+        }
+
+        TestHarness::gCurrentTestFailed = false;
+        test.function();
+        run++;
+
+        if (TestHarness::gCurrentTestFailed)
+        {
+            failed++;
+        }
+        std::printf("%s %s.%s\n", TestHarness::gCurrentTestFailed ? "FAIL" : "ok  ", test.suite, test.name);
+    }
+
+    if (run == 0)
+    {
+        std::fprintf(stderr, "No tests%s%s\n", suite != nullptr ? " in suite " : "", suite != nullptr ? suite : "");
+        return 1;
+    }
+
+    std::printf("%d of %d tests passed\n", run - failed, run);
+    return failed > 0 ? 1 : 0;
+}
@@ -0,0 +1,87 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _BANDWIDTH_PLANNER_H_
+#define _BANDWIDTH_PLANNER_H_
+
+#include <cstdint>
+#include <mutex>
+#include <vector>
+
+/// Shares the isochronous bandwidth of the USB buses between the streaming cameras.
+/**
+ * A streaming camera reserves the packet size of its isochronous alternate setting
+ * in every (micro)frame of its bus, whether it sends that much or not. libuvc picks the
+ * first alternate setting that fits dwMaxPayloadTransferSize, and many cameras ask for
+ * the largest packets there are, so a second camera on the bus fails to start.
+ *
+ * The planner computes what a stream really needs and reserves the smallest alternate
+ * setting that carries it, as long as the bus has that much left. One planner is shared
+ * by all the cameras of the driver.
+ */
+class BandwidthPlanner
+{
+public:
+    /// Periodic transfers may use 80% of a high-speed microframe: 7500 bytes.
+    static const uint32_t HIGH_SPEED_BUS_BUDGET = 6000;
+
+    /// Periodic transfers may use 90% of a full-speed frame: 1500 bytes.
+    static const uint32_t FULL_SPEED_BUS_BUDGET = 1350;
+
+    /// Why a stream could not get the bandwidth it needs.
+    enum class Constraint
+    {
+        NONE,       ///< The stream fits.
+        ENDPOINT,   ///< Not even the largest alternate setting of the camera carries the stream.
+        BUS         ///< The alternate setting that would carry it doesn't fit next to the other cameras on the bus.
+    };
+
+    /// Bytes per (micro)frame a stream needs, including the payload header.
+    /**
+     * \param frameSize Bytes of a frame.
+     * \param fps Frame rate.
+     * \param highSpeed True for a high-speed device with 8000 microframes per second, false for 1000 frames.
+     */
+    static uint32_t getRequiredPayloadSize(uint32_t frameSize, uint32_t fps, bool highSpeed);
+
+    static const char* getConstraintName(Constraint constraint);
+
+    /// Bytes per (micro)frame the cameras on one bus may use together, 0 for the defaults above.
+    void setBusBudget(uint32_t busBudget);
+
+    /// Reserve the smallest alternate setting that carries the payload size, replacing an earlier reservation of the camera.
+    /**
+     * \param deviceIndex Camera making the reservation.
+     * \param busNumber Bus the camera is on.
+     * \param highSpeed True for a high-speed device.
+     * \param altSettingSizes Bytes per (micro)frame of each isochronous alternate setting of the camera.
+     * \param requiredSize From getRequiredPayloadSize().
+     * \param reservedSize On success, the size of the alternate setting that was reserved.
+     * \param constraint On failure, why nothing was reserved.
+     *
+     * \return True if the alternate setting was reserved.
+     */
+    bool reserve(int deviceIndex, int busNumber, bool highSpeed, const std::vector<uint32_t>& altSettingSizes,
+                 uint32_t requiredSize, uint32_t& reservedSize, Constraint& constraint);
+
+    /// Give back the reservation of the camera. Does nothing if it has none.
+    void release(int deviceIndex);
+
+private:
+    struct Reservation
+    {
+        int         deviceIndex;
+        int         busNumber;
+        uint32_t    size;
+    };
+
+    std::mutex                  mMutex;
+    std::vector<Reservation>    mReservations;
+    uint32_t                    mBusBudget{ 0 };
+};
+
+#endif // _BANDWIDTH_PLANNER_H_
@@ -0,0 +1,61 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _CAMERA_CONTROL_CACHE_H_
+#define _CAMERA_CONTROL_CACHE_H_
+
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <functional>
+#include <mutex>
+#include <thread>
+
+/// Cache for the camera control values that are needed on the frame path.
+/**
+ * Reading a control from a UVC camera is a synchronous USB control transfer,
+ * which is too expensive to do for every frame on the streaming thread.
+ * The values are instead written to this cache by the control setters and
+ * by a low-rate background refresher, and read from the cache lock-free.
+ */
+class CameraControlCache
+{
+public:
+    /// Function that reads the current control values from the device and stores them in the cache.
+    typedef std::function<void()> RefreshFunction;
+
+    CameraControlCache();
+    ~CameraControlCache();
+
+    /// Start calling the refresh function periodically on a background thread.
+    void startRefresh(RefreshFunction refresh, std::chrono::milliseconds interval);
+
+    /// Stop the background refresher. Blocks until the refresher thread has finished.
+    void stopRefresh();
+
+    uint64_t getExposureValue() const;
+    void setExposureValue(uint64_t exposureTime);
+
+    float getFocusValue() const;
+    void setFocusValue(float value);
+
+private:
+    void refreshLoop();
+
+    std::atomic<uint64_t>       mExposureValue{ 0 };
+    std::atomic<float>          mFocusValue{ 0.f };
+
+    std::thread                 mRefreshThread;
+    std::mutex                  mRefreshMutex;
+    std::condition_variable     mRefreshCondition;
+    bool                        mRefreshRunning{ false };
+    RefreshFunction             mRefresh;
+    std::chrono::milliseconds   mRefreshInterval{ 0 };
+};
+
+#endif // _CAMERA_CONTROL_CACHE_H_
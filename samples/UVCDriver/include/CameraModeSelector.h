@@ -0,0 +1,57 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _CAMERA_MODE_SELECTOR_H_
+#define _CAMERA_MODE_SELECTOR_H_
+
+#include <Vuforia/Driver/Driver.h>
+
+/// Scoring policy for choosing between the camera modes a UVC camera supports.
+/**
+ * A mode scores higher the closer it gets to the preferred frame rate and
+ * resolution. If a bandwidth budget is set, modes that need more USB bandwidth
+ * than the budget are rejected.
+ * Without preferences larger and faster modes score higher.
+ */
+class CameraModeSelector
+{
+public:
+    /// USB 2.0 high-speed isochronous maximum: 3 x 1024 byte transactions per 125us microframe.
+    static const uint64_t USB2_ISOCHRONOUS_BANDWIDTH = 3ULL * 1024ULL * 8000ULL;
+
+    struct Preferences
+    {
+        uint32_t targetFps{ 0 };                                ///< Preferred frame rate, 0 for no preference.
+        uint32_t targetWidth{ 0 };                              ///< Preferred frame width, 0 for no preference.
+        uint32_t targetHeight{ 0 };                             ///< Preferred frame height, 0 for no preference.
+        uint64_t bandwidthBudget{ 0 };                          ///< Available USB bandwidth in bytes per second, 0 for no limit.
+    };
+
+    explicit CameraModeSelector(const Preferences& preferences);
+
+    /// Check whether streaming the mode fits into the bandwidth budget.
+    /**
+     * \param mode The camera mode.
+     * \param maxFrameSize Largest frame the camera sends for the mode in bytes.
+     */
+    bool fitsBandwidth(const Vuforia::Driver::CameraMode& mode, uint32_t maxFrameSize) const;
+
+    /// Score a camera mode, higher is better.
+    /**
+     * \param mode The camera mode.
+     * \param maxFrameSize Largest frame the camera sends for the mode in bytes.
+     * \param compressed True if the frames have to be decoded before they can be delivered.
+     */
+    float score(const Vuforia::Driver::CameraMode& mode, uint32_t maxFrameSize, bool compressed) const;
+
+    const Preferences& getPreferences() const { return mPreferences; }
+
+private:
+    Preferences mPreferences;
+};
+
+#endif // _CAMERA_MODE_SELECTOR_H_
@@ -0,0 +1,82 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _CLOCK_RECOVERY_H_
+#define _CLOCK_RECOVERY_H_
+
+#include <stdint.h>
+
+/// Maps the device clock of a UVC camera to the host CLOCK_MONOTONIC time base.
+/**
+ * UVC payload headers carry a Presentation Time Stamp (PTS), the device clock
+ * value at the start of the exposure, and a Source Clock Reference (SCR), the
+ * device clock value when the payload was sent. Pairing every SCR with the host
+ * time it was received at gives samples of the device-to-host clock mapping.
+ *
+ * The mapping is fitted over a sliding window of samples: the slope by least
+ * squares, which corrects for drift between the two clocks, and the offset by
+ * the lower envelope of the samples, because transfer and scheduling latency
+ * can only make a sample arrive late, never early.
+ *
+ * The 32-bit device clock values wrap around and are unwrapped internally.
+ * The class is not thread-safe, it is meant to be used from the streaming thread only.
+ */
+class ClockRecovery
+{
+public:
+    ClockRecovery();
+
+    /// Forget all samples and set the nominal device clock frequency.
+    /**
+     * \param deviceClockFrequency Device clock frequency in Hz (dwClockFrequency). 0 if unknown.
+     */
+    void reset(uint32_t deviceClockFrequency);
+
+    /// Add a sample of the clock mapping.
+    /**
+     * \param scr Device clock value from the payload header SCR field.
+     * \param hostTimeNs CLOCK_MONOTONIC time in nanoseconds when the payload was received.
+     */
+    void addSample(uint32_t scr, uint64_t hostTimeNs);
+
+    /// Convert a device clock value to host time.
+    /**
+     * \param pts Device clock value from the payload header PTS field.
+     * \param hostTimeNs On success, the CLOCK_MONOTONIC time in nanoseconds.
+     *
+     * \return False if there are not enough samples for a reliable mapping yet.
+     */
+    bool toHostTime(uint32_t pts, uint64_t& hostTimeNs) const;
+
+private:
+    static const uint32_t WINDOW_SIZE = 32;
+    static const uint32_t MIN_SAMPLES = 8;
+
+    struct Sample
+    {
+        int64_t deviceTicks;    ///< Unwrapped device clock value.
+        uint64_t hostTimeNs;
+    };
+
+    void fit();
+
+    Sample      mSamples[WINDOW_SIZE];
+    uint32_t    mSampleCount{ 0 };
+    uint32_t    mNextSample{ 0 };
+
+    uint32_t    mDeviceClockFrequency{ 0 };
+    uint32_t    mLastScr{ 0 };
+    int64_t     mUnwrappedScr{ 0 };
+
+    // Fitted mapping: hostTimeNs = mReferenceHostTimeNs + mOffsetNs + mNsPerTick * (deviceTicks - mReferenceDeviceTicks)
+    int64_t     mReferenceDeviceTicks{ 0 };
+    uint64_t    mReferenceHostTimeNs{ 0 };
+    double      mNsPerTick{ 0.0 };
+    double      mOffsetNs{ 0.0 };
+};
+
+#endif // _CLOCK_RECOVERY_H_
@@ -0,0 +1,118 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _CONTROL_COMMAND_QUEUE_H_
+#define _CONTROL_COMMAND_QUEUE_H_
+
+#include <condition_variable>
+#include <cstdint>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+/// Worker thread that makes the USB control transfers for writing camera controls.
+/**
+ * Writing a control is a synchronous USB control transfer of a few milliseconds,
+ * too slow for the render thread or a UI slider that sends dozens of values.
+ * submit() only stores the command and returns.
+ *
+ * Only the latest write of each control is kept. A command that is replaced before
+ * it ran completes with SUPERSEDED. Commands run in the order of their last submit,
+ * so a mode change submitted before a value is applied before it.
+ *
+ * After a write the control can be read back to confirm the camera took the value,
+ * cameras clamp or round values silently.
+ */
+class ControlCommandQueue
+{
+public:
+    enum class Control
+    {
+        EXPOSURE_MODE,
+        EXPOSURE_VALUE,
+        FOCUS_MODE,
+        FOCUS_VALUE,
+        COUNT
+    };
+
+    enum class Result
+    {
+        SUCCESS,        ///< Written, and confirmed if there was a confirm function.
+        FAILED,         ///< The write failed.
+        NOT_CONFIRMED,  ///< Written, but reading it back gave a different value.
+        SUPERSEDED,     ///< Replaced by a later write of the same control before it ran.
+        CANCELLED       ///< The queue was stopped before the command ran.
+    };
+
+    /// Writes the control, true on success. Runs on the worker thread.
+    typedef std::function<bool()> ApplyFunction;
+
+    /// Reads the control back, true if it has the written value. Runs on the worker thread.
+    typedef std::function<bool()> ConfirmFunction;
+
+    /// Called once per command with its result, on the worker thread.
+    typedef std::function<void(Result)> CompletionFunction;
+
+    /// Counters since start().
+    struct Statistics
+    {
+        uint64_t submitted{ 0 };    ///< Commands handed to submit().
+        uint64_t coalesced{ 0 };    ///< Commands replaced by a later write of the same control.
+        uint64_t applied{ 0 };      ///< Commands that were written successfully.
+        uint64_t failed{ 0 };       ///< Commands that failed or weren't confirmed.
+    };
+
+    ControlCommandQueue();
+    ~ControlCommandQueue();
+
+    /// Start the worker thread.
+    void start();
+
+    /// Stop the worker thread after the running command. The queued commands complete with CANCELLED.
+    void stop();
+
+    /// Queue a write of the control, replacing a queued write of the same control.
+    /**
+     * \param control Control that is written.
+     * \param apply Makes the write.
+     * \param confirm Reads the control back after a successful write. May be empty.
+     * \param completion Receives the result. May be empty.
+     *
+     * \return False if the queue isn't running.
+     */
+    bool submit(Control control, ApplyFunction apply, ConfirmFunction confirm, CompletionFunction completion);
+
+    /// True if a write of the control is queued and hasn't started yet.
+    bool isPending(Control control);
+
+    Statistics getStatistics();
+
+private:
+    struct Command
+    {
+        bool                pending{ false };
+        ApplyFunction       apply;
+        ConfirmFunction     confirm;
+        CompletionFunction  completion;
+    };
+
+    void workerLoop();
+
+    Command                             mCommands[static_cast<int>(Control::COUNT)];
+    std::vector<Control>                mOrder;     // Controls with a pending command, oldest submit first
+    std::vector<CompletionFunction>     mSupersededCompletions;
+
+    Statistics                          mStatistics;
+
+    std::thread                         mThread;
+    std::mutex                          mMutex;
+    std::condition_variable             mCondition;
+    bool                                mRunning{ false };
+};
+
+#endif // _CONTROL_COMMAND_QUEUE_H_
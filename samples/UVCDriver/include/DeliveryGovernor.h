@@ -0,0 +1,76 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _DELIVERY_GOVERNOR_H_
+#define _DELIVERY_GOVERNOR_H_
+
+#include <cstdint>
+#include <mutex>
+
+/// Decides which of the camera frames are passed on to Vuforia.
+/**
+ * The camera keeps streaming at its own rate, the governor lets through every Nth frame
+ * or as many frames as a target frame rate allows. Frames are picked by their timestamps,
+ * with half a camera frame interval of tolerance, so frames the camera dropped don't
+ * shift the pattern.
+ *
+ * In adaptive mode the delivery interval is also stretched so that the consumer spends at
+ * most a share of it in onNewCameraFrame(), e.g. on a device whose CPU is throttled. The
+ * interval grows as soon as the consumer gets slower and shrinks back in small steps, down
+ * to the configured one, so that a single fast frame doesn't undo the throttling.
+ */
+class DeliveryGovernor
+{
+public:
+    struct Settings
+    {
+        uint32_t    decimation{ 1 };    ///< Deliver every Nth frame, 1 for every frame.
+        uint32_t    targetFps{ 0 };     ///< Highest delivery rate, 0 for no limit.
+        bool        adaptive{ false };  ///< Lower the rate further when the consumer is too slow.
+        uint32_t    maxLoad{ 80 };      ///< Percent of the delivery interval the consumer may use.
+        uint32_t    minFps{ 5 };        ///< The adaptive mode doesn't go below this rate.
+    };
+
+    struct Statistics
+    {
+        uint64_t    offered{ 0 };       ///< Frames the camera delivered.
+        uint64_t    delivered{ 0 };     ///< Frames passed on to the consumer.
+        float       deliveryFps{ 0.f }; ///< Current delivery rate, 0 if not limited.
+        float       consumerTimeMs{ 0.f };  ///< Average time the consumer takes per frame.
+    };
+
+    /// Set up the governor for a stream and reset the statistics.
+    /**
+     * \param cameraFps Frame rate the camera streams at.
+     */
+    void configure(const Settings& settings, uint32_t cameraFps);
+
+    /// True if the governor only lets some of the frames through.
+    bool isLimiting();
+
+    /// Decide whether the frame with the timestamp, in nanoseconds, is delivered.
+    bool shouldDeliver(uint64_t timestamp);
+
+    /// Report how long the consumer took for a delivered frame, in nanoseconds.
+    void recordConsumerTime(uint64_t duration);
+
+    Statistics getStatistics();
+
+private:
+    std::mutex  mMutex;
+    Settings    mSettings;
+    double      mCameraInterval{ 0.0 };     ///< Nanoseconds.
+    double      mBaseInterval{ 0.0 };       ///< Delivery interval from the settings, 0 for every frame.
+    double      mMaxInterval{ 0.0 };        ///< Longest interval of the adaptive mode.
+    double      mInterval{ 0.0 };           ///< Current delivery interval.
+    uint64_t    mNextDelivery{ 0 };         ///< Earliest timestamp of the next delivered frame, 0 before the first frame.
+    double      mConsumerTime{ 0.0 };       ///< Moving average, nanoseconds.
+    uint64_t    mOffered{ 0 };
+    uint64_t    mDelivered{ 0 };
+};
+
+#endif // _DELIVERY_GOVERNOR_H_
@@ -0,0 +1,86 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _DEVICE_PROFILE_H_
+#define _DEVICE_PROFILE_H_
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <cstdint>
+#include <string>
+#include <vector>
+
+/// What the driver learns about a camera when it opens and starts it, kept on disk for the next time.
+/**
+ * A camera that is opened again with the same profile skips the diagnostics output, the
+ * camera mode enumeration and the control range queries, and streams with the stream
+ * control negotiated the last time instead of probing for it.
+ *
+ * A profile belongs to one camera, identified by the vendor and product id, the device
+ * release number and the serial number. Cameras without a serial number share the
+ * profile with the other cameras of the same model and firmware.
+ *
+ * The file is a FileHeader followed by the serial number, the ModeRecords, the stream
+ * control bytes and a checksum of everything before it. Files with another version or
+ * a wrong checksum are ignored and replaced by the next save().
+ */
+class DeviceProfile
+{
+public:
+    struct Key
+    {
+        uint16_t    vendorId{ 0 };
+        uint16_t    productId{ 0 };
+        uint16_t    bcdDevice{ 0 };         ///< Device release number, changes with the firmware.
+        std::string serialNumber;           ///< Empty if the camera has none.
+    };
+
+    /// Camera mode from the descriptors with the UVC format it is streamed in.
+    struct Mode
+    {
+        Vuforia::Driver::CameraMode mode;
+        uint32_t                    sourceFormat{ 0 };  ///< uvc_frame_format
+        uint32_t                    maxFrameSize{ 0 };
+    };
+
+    /// Minimum and maximum of a control in the units of the camera.
+    struct ControlRange
+    {
+        bool        valid{ false };
+        int32_t     min{ 0 };
+        int32_t     max{ 0 };
+    };
+
+    /// Name of the profile file of the camera, without a directory.
+    static std::string getFileName(const Key& key);
+
+    /// Read the profile of the camera from the directory.
+    /**
+     * \return False if there is no profile for the key or it can't be used. The profile is cleared then.
+     */
+    bool load(const std::string& directory, const Key& key);
+
+    /// Write the profile to the directory, replacing the previous one. The file is replaced atomically.
+    bool save(const std::string& directory) const;
+
+    /// Forget everything, keeping the key.
+    void clear();
+
+    Key                         key;
+    std::vector<Mode>           modes;                          ///< Every mode of the descriptors, before the mode selection.
+    uint32_t                    inputTerminalControls{ 0 };     ///< bmControls of the input terminal.
+    uint32_t                    processingUnitControls{ 0 };    ///< bmControls of the processing unit.
+    uint8_t                     exposureModes{ 0 };             ///< Auto exposure modes reported by GET_RES, 0 if unknown.
+    ControlRange                exposureTime;                   ///< In 100us units.
+    ControlRange                focus;
+
+    Vuforia::Driver::CameraMode streamMode;                     ///< Camera mode the stream control was negotiated for.
+    uint32_t                    streamSourceFormat{ 0 };        ///< uvc_frame_format the stream control streams.
+    std::vector<uint8_t>        streamControl;                  ///< The uvc_stream_ctrl_t, empty if none was negotiated.
+};
+
+#endif // _DEVICE_PROFILE_H_
@@ -0,0 +1,39 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _DRIVER_LOG_H_
+#define _DRIVER_LOG_H_
+
+// Logging macros shared by the driver sources. Each source file defines
+// MODULE_TAG before including this header.
+//
+// On Android the messages go to logcat. On other platforms (e.g. when the
+// platform independent parts of the driver are built for a Linux host) they
+// are written to stderr.
+
+#if defined(__ANDROID__)
+
+#include <android/log.h>
+
+#define LOG_D(...) __android_log_print(ANDROID_LOG_DEBUG, MODULE_TAG, __VA_ARGS__)
+#define LOG_I(...) __android_log_print(ANDROID_LOG_INFO, MODULE_TAG, __VA_ARGS__)
+#define LOG_E(...) __android_log_print(ANDROID_LOG_ERROR, MODULE_TAG, __VA_ARGS__)
+
+#else
+
+#include <cstdio>
+
+#define DRIVER_LOG_PRINT(level, ...) \
+    do { fprintf(stderr, "%s/%s: ", level, MODULE_TAG); fprintf(stderr, __VA_ARGS__); fprintf(stderr, "\n"); } while (0)
+
+#define LOG_D(...) DRIVER_LOG_PRINT("D", __VA_ARGS__)
+#define LOG_I(...) DRIVER_LOG_PRINT("I", __VA_ARGS__)
+#define LOG_E(...) DRIVER_LOG_PRINT("E", __VA_ARGS__)
+
+#endif
+
+#endif // _DRIVER_LOG_H_
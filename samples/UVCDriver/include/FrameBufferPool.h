@@ -0,0 +1,100 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _FRAME_BUFFER_POOL_H_
+#define _FRAME_BUFFER_POOL_H_
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <atomic>
+#include <memory>
+#include <mutex>
+#include <vector>
+
+/// Preallocated, reference counted output buffers for the frames the driver produces itself.
+/**
+ * Frames straight from libuvc point into libuvc's transfer buffers. Frames the driver
+ * decodes or converts need buffers of their own, which come from this pool so that
+ * streaming doesn't allocate. The buffers are sized for the camera mode the pool is
+ * allocated for and start on a 64 byte boundary, so SIMD code can use aligned loads.
+ *
+ * A buffer goes back to the pool when the last reference is released, typically after
+ * Vuforia returned from onNewCameraFrame(). When no buffer is free, acquire() fails and
+ * the frame has to be dropped, which is counted in the statistics.
+ */
+class FrameBufferPool
+{
+public:
+    /// Alignment of the buffer data in bytes.
+    static const uint32_t ALIGNMENT = 64;
+
+    class Buffer
+    {
+    public:
+        uint8_t* getData() const { return mData; }
+        uint32_t getSize() const { return mSize; }
+
+    private:
+        friend class FrameBufferPool;
+
+        uint8_t*                mData{ nullptr };
+        uint32_t                mSize{ 0 };
+        uint32_t                mIndex{ 0 };
+        std::atomic<uint32_t>   mRefCount{ 0 };
+    };
+
+    /// Counters since the buffers were allocated.
+    struct Statistics
+    {
+        uint64_t acquired{ 0 };     ///< Buffers handed out by acquire().
+        uint64_t exhausted{ 0 };    ///< Calls to acquire() that found no free buffer.
+        uint32_t capacity{ 0 };     ///< Number of buffers in the pool.
+        uint32_t peakInUse{ 0 };    ///< Largest number of buffers in use at the same time.
+    };
+
+    FrameBufferPool();
+    ~FrameBufferPool();
+
+    /// Size in bytes of a frame of the camera mode.
+    static uint32_t getFrameSize(const Vuforia::Driver::CameraMode& cameraMode);
+
+    /// Allocate the buffers for frames of the camera mode.
+    /**
+     * Memory of an earlier allocation with the same buffer size and capacity is reused.
+     * Fails while buffers of the earlier allocation are still referenced.
+     *
+     * \param cameraMode Mode of the frames, determines the buffer size.
+     * \param capacity Number of buffers.
+     */
+    bool allocate(const Vuforia::Driver::CameraMode& cameraMode, uint32_t capacity);
+
+    /// Free the buffers. Fails while buffers are still referenced.
+    bool deallocate();
+
+    /// Take a free buffer with a reference count of 1, nullptr if all buffers are in use.
+    Buffer* acquire();
+
+    /// Add a reference, for another owner of the buffer.
+    void retain(Buffer* buffer);
+
+    /// Drop a reference. The buffer goes back to the pool with the last one.
+    void release(Buffer* buffer);
+
+    Statistics getStatistics();
+
+private:
+    std::unique_ptr<Buffer[]>           mBuffers;
+    uint8_t*                            mMemory{ nullptr };
+    uint32_t                            mBufferSize{ 0 };
+    uint32_t                            mCapacity{ 0 };
+
+    std::mutex                          mMutex;
+    std::vector<uint32_t>               mFreeBuffers;   // Stack of buffer indices not in use
+    Statistics                          mStatistics;
+};
+
+#endif // _FRAME_BUFFER_POOL_H_
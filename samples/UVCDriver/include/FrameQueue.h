@@ -0,0 +1,112 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _FRAME_QUEUE_H_
+#define _FRAME_QUEUE_H_
+
+#include "FrameBufferPool.h"
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <condition_variable>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+/// Bounded queue that decouples the libuvc transfer thread from the Vuforia frame callback.
+/**
+ * The queue owns a preallocated ring of frame buffers. push() only copies the
+ * frame into a free buffer and returns, the frames are delivered to the
+ * Vuforia::Driver::CameraCallback from a dedicated delivery thread. Frames that
+ * are already in a FrameBufferPool buffer are queued without a copy.
+ *
+ * When all buffers are in use the OverflowPolicy decides what happens to the
+ * incoming frame. Every frame that is dropped is counted as an overrun.
+ */
+class FrameQueue
+{
+public:
+    /// What to do when a frame is pushed and no free buffer is available.
+    enum class OverflowPolicy : int32_t
+    {
+        DROP_OLDEST,    ///< Replace the oldest queued frame that hasn't been delivered yet.
+        DROP_NEWEST,    ///< Drop the incoming frame.
+        BLOCK           ///< Wait for the delivery thread to release a buffer, up to a timeout.
+    };
+
+    /// Counters describing the queue behaviour since start().
+    struct Statistics
+    {
+        uint64_t pushed{ 0 };       ///< Frames handed to push().
+        uint64_t delivered{ 0 };    ///< Frames delivered to the callback.
+        uint64_t overruns{ 0 };     ///< Frames dropped because the queue was full.
+    };
+
+    FrameQueue();
+    ~FrameQueue();
+
+    /// Allocate the buffers and start the delivery thread.
+    /**
+     * \param capacity Number of frame buffers in the ring.
+     * \param maxFrameSize Size in bytes of each buffer. Larger frames are dropped.
+     * \param policy Behaviour when the ring is full.
+     * \param cb Callback that receives the frames on the delivery thread.
+     */
+    bool start(uint32_t capacity, uint32_t maxFrameSize, OverflowPolicy policy, Vuforia::Driver::CameraCallback* cb);
+
+    /// Stop the delivery thread. Frames that are still queued are discarded.
+    void stop();
+
+    /// Copy the frame into a free buffer and queue it for delivery.
+    /**
+     * \return True if the frame was queued, false if it was dropped.
+     */
+    bool push(const Vuforia::Driver::CameraFrame& frame);
+
+    /// Queue a frame whose data is in a pool buffer, without copying it.
+    /**
+     * The queue holds a reference to the buffer until the callback returned
+     * or the frame was dropped.
+     *
+     * \return True if the frame was queued, false if it was dropped.
+     */
+    bool push(const Vuforia::Driver::CameraFrame& frame, FrameBufferPool& pool, FrameBufferPool::Buffer* buffer);
+
+    Statistics getStatistics();
+
+private:
+    struct Slot
+    {
+        std::vector<uint8_t>            buffer;
+        Vuforia::Driver::CameraFrame    frame;
+        FrameBufferPool*                pool{ nullptr };        // Set when the frame is in a pool buffer
+        FrameBufferPool::Buffer*        poolBuffer{ nullptr };
+    };
+
+    void deliveryLoop();
+    bool pushFrame(const Vuforia::Driver::CameraFrame& frame, FrameBufferPool* pool, FrameBufferPool::Buffer* poolBuffer);
+    bool acquireSlot(std::unique_lock<std::mutex>& lock, uint32_t& slotIndex);
+    void releasePoolBuffer(Slot& slot);
+
+    std::vector<Slot>                   mSlots;
+    std::vector<uint32_t>               mFreeSlots;     // Stack of slot indices not in use
+    std::vector<uint32_t>               mQueuedSlots;   // Ring of slot indices waiting for delivery
+    uint32_t                            mQueueHead{ 0 };
+    uint32_t                            mQueueCount{ 0 };
+
+    OverflowPolicy                      mPolicy{ OverflowPolicy::DROP_OLDEST };
+    Vuforia::Driver::CameraCallback*    mCallback{ nullptr };
+    Statistics                          mStatistics;
+
+    std::thread                         mDeliveryThread;
+    std::mutex                          mMutex;
+    std::condition_variable             mFrameQueuedCondition;
+    std::condition_variable             mSlotFreedCondition;
+    bool                                mRunning{ false };
+};
+
+#endif // _FRAME_QUEUE_H_
@@ -0,0 +1,129 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _FRAME_RECORDING_H_
+#define _FRAME_RECORDING_H_
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <cstddef>
+#include <cstdint>
+#include <mutex>
+#include <string>
+#include <vector>
+
+/// Container file of the frames a camera delivered to Vuforia, for replaying them without the camera.
+/**
+ * The file is a header followed by the frames one after the other. Every frame is a
+ * FrameHeader with the metadata of the CameraFrame followed by its pixel buffer, padded
+ * to 8 bytes so that the next header is aligned. All values are in the byte order of
+ * the device that recorded the file, which is little endian on all supported platforms.
+ *
+ * The file is written and read through a memory mapping, so frames are copied once
+ * when recording and not at all when replaying.
+ */
+namespace FrameRecording
+{
+const uint32_t MAGIC = 0x52435655; // "UVCR"
+const uint32_t VERSION = 1;
+
+struct FileHeader
+{
+    uint32_t    magic;
+    uint32_t    version;
+    uint32_t    frameCount;     ///< Set when the recording is closed, 0 if it was never closed.
+    uint32_t    reserved;
+    uint32_t    width;          ///< Camera mode the frames were recorded with.
+    uint32_t    height;
+    uint32_t    fps;
+    uint32_t    format;
+    uint64_t    dataSize;       ///< Bytes of frame data following the header.
+};
+
+struct FrameHeader
+{
+    uint64_t    timestamp;
+    uint64_t    exposureTime;
+    uint32_t    index;
+    uint32_t    width;
+    uint32_t    height;
+    uint32_t    stride;
+    uint32_t    format;
+    uint32_t    bufferSize;
+    float       intrinsics[12]; ///< Focal length, principal point and distortion, in the order of CameraIntrinsics.
+};
+
+static_assert(sizeof(FileHeader) == 40, "FileHeader must not have padding");
+static_assert(sizeof(FrameHeader) == 88, "FrameHeader must not have padding");
+}
+
+/// Records frames into a FrameRecording file.
+/**
+ * The file grows in large steps while recording and is truncated to the recorded
+ * frames when the recording is closed. The recorder can be written from the streaming
+ * thread while another thread closes it.
+ */
+class FrameRecorder
+{
+public:
+    ~FrameRecorder();
+
+    /// Create the file, replacing an existing one.
+    bool open(const std::string& path, const Vuforia::Driver::CameraMode& cameraMode);
+
+    /// Finish the file. Does nothing if it is not open.
+    void close();
+
+    bool isRecording();
+
+    /// Append the frame. Frames that don't fit on the disk anymore are dropped.
+    bool write(const Vuforia::Driver::CameraFrame& frame);
+
+    /// Number of frames written since the recording was opened.
+    uint32_t getFrameCount();
+
+private:
+    bool grow(size_t minSize);
+    void unmap();
+
+    std::mutex  mMutex;
+    int         mFile{ -1 };
+    uint8_t*    mData{ nullptr };
+    size_t      mMappedSize{ 0 };
+    size_t      mWriteOffset{ 0 };
+    uint32_t    mFrameCount{ 0 };
+};
+
+/// Reads the frames of a FrameRecording file.
+/**
+ * The frame buffers point into the mapped file and stay valid until the reader is closed.
+ * The mapping is private, so the buffers may be modified without changing the file.
+ */
+class FrameRecordingReader
+{
+public:
+    ~FrameRecordingReader();
+
+    bool open(const std::string& path);
+    void close();
+
+    /// Camera mode the frames were recorded with.
+    const Vuforia::Driver::CameraMode& getCameraMode() const;
+
+    uint32_t getNumFrames() const;
+
+    /// Fill the frame with the metadata of the recorded frame, the buffer points into the file.
+    bool getFrame(uint32_t index, Vuforia::Driver::CameraFrame& out) const;
+
+private:
+    uint8_t*                    mData{ nullptr };
+    size_t                      mSize{ 0 };
+    Vuforia::Driver::CameraMode mCameraMode;
+    std::vector<size_t>         mFrameOffsets;
+};
+
+#endif // _FRAME_RECORDING_H_
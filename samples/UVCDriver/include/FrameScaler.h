@@ -0,0 +1,78 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _FRAME_SCALER_H_
+#define _FRAME_SCALER_H_
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <vector>
+
+/// Turns YUYV frames of one size into smaller YUYV frames, with the matching camera intrinsics.
+/**
+ * CROP cuts the centre of the frame out at full resolution. SCALE crops the centre to the
+ * aspect ratio of the output, if the aspect ratios differ, and shrinks that with a box filter,
+ * so every source pixel contributes and fine texture doesn't alias.
+ *
+ * The source rows and columns each output pixel averages are computed in configure(),
+ * process() doesn't allocate.
+ */
+class FrameScaler
+{
+public:
+    enum class Mode
+    {
+        SCALE,  ///< Downscale, cropping only what doesn't fit the output aspect ratio.
+        CROP    ///< Cut out the centre without scaling.
+    };
+
+    /// Prepare for frames of the source size.
+    /**
+     * \return False if the output is larger than the source, or its width or height is odd.
+     */
+    bool configure(uint32_t sourceWidth, uint32_t sourceHeight, uint32_t width, uint32_t height, Mode mode);
+
+    /// Intrinsics of the output frames for the intrinsics of the source frames.
+    /**
+     * The principal point moves with the crop and is scaled with the focal length.
+     * The distortion coefficients apply to normalized coordinates and stay the same.
+     */
+    Vuforia::Driver::CameraIntrinsics adjustIntrinsics(const Vuforia::Driver::CameraIntrinsics& intrinsics) const;
+
+    /// Produce the output frame in the buffer, which has to hold width * height * 2 bytes.
+    /**
+     * \param in YUYV frame of the configured source size.
+     * \param buffer Receives the output pixels.
+     * \param out Receives the metadata of in, with the size, buffer and intrinsics of the output.
+     *
+     * \return False if the frame doesn't match the configured source.
+     */
+    bool process(const Vuforia::Driver::CameraFrame& in, uint8_t* buffer, Vuforia::Driver::CameraFrame& out) const;
+
+    uint32_t getWidth() const { return mWidth; }
+    uint32_t getHeight() const { return mHeight; }
+
+private:
+    void scale(const Vuforia::Driver::CameraFrame& in, uint8_t* buffer) const;
+
+    uint32_t                mSourceWidth{ 0 };
+    uint32_t                mSourceHeight{ 0 };
+    uint32_t                mWidth{ 0 };
+    uint32_t                mHeight{ 0 };
+
+    // Centre region of the source that is scaled to the output
+    uint32_t                mCropX{ 0 };
+    uint32_t                mCropY{ 0 };
+    uint32_t                mCropWidth{ 0 };
+    uint32_t                mCropHeight{ 0 };
+
+    // Source column/row where the box of each output column/row starts, one more entry for the end
+    std::vector<uint32_t>   mColumnStart;
+    std::vector<uint32_t>   mRowStart;
+};
+
+#endif // _FRAME_SCALER_H_
@@ -0,0 +1,126 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _FRAME_TAP_H_
+#define _FRAME_TAP_H_
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+#include <vector>
+
+/// Hands copies of the camera frames to the application through memory it shares with the driver.
+/**
+ * The application provides a ring of buffers, the direct ByteBuffers of FrameTap.java,
+ * and a header area with one SlotHeader per buffer. write() copies a frame into a free
+ * buffer and fills its header, the reader takes the filled buffers in order with acquire()
+ * and gives them back with release(). The frame data and metadata are never copied
+ * again on their way to Java.
+ *
+ * write() never waits for the reader. When no buffer is free the DropPolicy decides
+ * which frame is lost, the sequence numbers of the frames show the gaps.
+ */
+class FrameTap
+{
+public:
+    /// What to do when a frame is written and the reader holds or hasn't read all buffers yet.
+    enum class DropPolicy : int32_t
+    {
+        DROP_OLDEST,    ///< Overwrite the oldest frame the reader hasn't acquired yet.
+        DROP_NEWEST     ///< Drop the incoming frame.
+    };
+
+    /// Metadata of the frame in a buffer, in the layout FrameTap.java reads in native byte order.
+    struct SlotHeader
+    {
+        int64_t sequence;       ///< Number of the frame, counting every frame written, also the dropped ones.
+        int64_t timestamp;      ///< Capture time in nanoseconds.
+        int64_t exposureTime;   ///< Exposure time in nanoseconds.
+        int32_t width;
+        int32_t height;
+        int32_t stride;
+        int32_t format;         ///< Vuforia::Driver::PixelFormat.
+        int32_t size;           ///< Bytes of frame data in the buffer.
+        int32_t reserved;
+    };
+
+    /// Counters since start().
+    struct Statistics
+    {
+        uint64_t written{ 0 };      ///< Frames copied into a buffer.
+        uint64_t dropped{ 0 };      ///< Frames lost because the reader was behind.
+        uint64_t tooLarge{ 0 };     ///< Frames that didn't fit into a buffer.
+    };
+
+    /// Application memory of one buffer of the ring.
+    struct Slot
+    {
+        uint8_t*    data{ nullptr };
+        uint32_t    capacity{ 0 };
+    };
+
+    FrameTap();
+    ~FrameTap();
+
+    /// Start handing frames to the buffers.
+    /**
+     * The memory has to stay valid until stop() returned.
+     *
+     * \param slots Buffers of the ring, at least two.
+     * \param headers One SlotHeader per buffer.
+     * \param policy Behaviour when no buffer is free.
+     */
+    bool start(const std::vector<Slot>& slots, SlotHeader* headers, DropPolicy policy);
+
+    /// Stop handing frames to the buffers. Waits for a write in progress, wakes up a waiting reader.
+    void stop();
+
+    bool isRunning();
+
+    /// Copy the frame into a free buffer. Called on the streaming thread, doesn't wait for the reader.
+    void write(const Vuforia::Driver::CameraFrame& frame);
+
+    /// Take the oldest filled buffer.
+    /**
+     * \param timeoutMs How long to wait for a frame.
+     *
+     * \return Index of the buffer, -1 on timeout or when the tap was stopped.
+     */
+    int32_t acquire(uint32_t timeoutMs);
+
+    /// Give a buffer returned by acquire() back for writing.
+    void release(int32_t slot);
+
+    Statistics getStatistics();
+
+private:
+    enum class SlotState
+    {
+        FREE,
+        WRITING,
+        FILLED,
+        READING
+    };
+
+    std::vector<Slot>                   mSlots;
+    std::vector<SlotState>              mSlotStates;
+    SlotHeader*                         mHeaders{ nullptr };
+    std::vector<int32_t>                mFilledSlots;   // Filled slots, oldest first
+    DropPolicy                          mPolicy{ DropPolicy::DROP_OLDEST };
+    int64_t                             mNextSequence{ 0 };
+    uint32_t                            mActiveWrites{ 0 };
+    Statistics                          mStatistics;
+
+    std::mutex                          mMutex;
+    std::condition_variable             mFrameFilledCondition;
+    std::condition_variable             mWriteDoneCondition;
+    bool                                mRunning{ false };
+};
+
+#endif // _FRAME_TAP_H_
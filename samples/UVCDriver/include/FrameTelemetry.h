@@ -0,0 +1,109 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _FRAME_TELEMETRY_H_
+#define _FRAME_TELEMETRY_H_
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+
+/// Streaming health counters of one camera.
+/**
+ * Counts the frames that arrive from the camera and the frames that never did,
+ * which shows up as gaps in the UVC frame sequence numbers. The time between
+ * frames, the time Vuforia spends in the frame callback and the duration of the
+ * USB control transfers are recorded in histograms.
+ *
+ * Recording is lock-free and never blocks, so it can be done on the streaming
+ * thread. A snapshot taken while frames are recorded is not atomic as a whole,
+ * but every single counter in it is.
+ */
+class FrameTelemetry
+{
+public:
+    /// Number of histogram buckets.
+    /**
+     * Bucket 0 counts durations below 2 us, bucket i the durations from 2^i us up to
+     * 2^(i+1) us. The last bucket counts everything from 2^(NUM_BUCKETS-1) us up.
+     */
+    static const size_t NUM_BUCKETS = 20;
+
+    /// Counts of a histogram at the time of the snapshot. All durations are in microseconds.
+    struct HistogramSnapshot
+    {
+        uint64_t count{ 0 };
+        uint64_t sum{ 0 };
+        uint64_t sumOfSquares{ 0 };
+        uint64_t max{ 0 };
+        uint64_t buckets[NUM_BUCKETS] = {};
+
+        double getMean() const;
+
+        /// Standard deviation, for the frame intervals this is the jitter.
+        double getStandardDeviation() const;
+    };
+
+    struct Snapshot
+    {
+        uint64_t            framesReceived{ 0 };    ///< Frames that arrived from the camera.
+        uint64_t            framesDropped{ 0 };     ///< Frames missing from the sequence numbers.
+        HistogramSnapshot   frameInterval;          ///< Time between two frames arriving.
+        HistogramSnapshot   callbackDuration;       ///< Time spent in the Vuforia frame callback.
+        HistogramSnapshot   controlTransfer;        ///< Duration of the USB control requests.
+
+        /// Average frame rate, from the mean frame interval.
+        double getFps() const;
+    };
+
+    /// Upper bound of the bucket in microseconds, 0 for the last bucket which has none.
+    static uint64_t getBucketUpperBound(size_t bucket);
+
+    /// Clear all the counters, e.g. when a new stream starts.
+    void reset();
+
+    /// A frame with the UVC sequence number arrived at the CLOCK_MONOTONIC time in nanoseconds.
+    /**
+     * Only to be called from the one thread receiving the frames of the camera.
+     */
+    void recordFrame(uint32_t sequence, uint64_t arrivalTime);
+
+    void recordCallbackDuration(uint64_t duration);
+    void recordControlTransfer(uint64_t duration);
+
+    Snapshot getSnapshot() const;
+
+private:
+    class Histogram
+    {
+    public:
+        Histogram();
+
+        /// Add a duration in nanoseconds.
+        void record(uint64_t duration);
+        void reset();
+        HistogramSnapshot getSnapshot() const;
+
+    private:
+        std::atomic<uint64_t>   mCount{ 0 };
+        std::atomic<uint64_t>   mSum{ 0 };
+        std::atomic<uint64_t>   mSumOfSquares{ 0 };
+        std::atomic<uint64_t>   mMax{ 0 };
+        std::atomic<uint64_t>   mBuckets[NUM_BUCKETS];
+    };
+
+    std::atomic<uint64_t>   mFramesReceived{ 0 };
+    std::atomic<uint64_t>   mFramesDropped{ 0 };
+    std::atomic<uint32_t>   mLastSequence{ 0 };
+    std::atomic<uint64_t>   mLastArrivalTime{ 0 };  // 0 until the first frame
+
+    Histogram               mFrameInterval;
+    Histogram               mCallbackDuration;
+    Histogram               mControlTransfer;
+};
+
+#endif // _FRAME_TELEMETRY_H_
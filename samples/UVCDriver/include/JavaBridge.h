@@ -0,0 +1,127 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _JAVA_BRIDGE_H_
+#define _JAVA_BRIDGE_H_
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <jni.h>
+#include <mutex>
+#include <string>
+#include <vector>
+
+/// Access to the Java side of the driver: USBController, CalibrationController and DriverConfiguration.
+/**
+ * One bridge is shared by all the cameras of the driver. USB devices are addressed
+ * by their index in the USBController device list, several of them can be open at the same time.
+ *
+ * The Java classes and method IDs are all looked up once in init(). A native thread that
+ * calls into the bridge is attached to the JVM on its first call and stays attached until
+ * it exits, instead of being attached and detached around every call.
+ */
+class JavaBridge
+{
+public:
+    /// What libuvc needs to know to open a USB device, fetched from Java in a single call.
+    struct DeviceInfo
+    {
+        int         vendorId{ -1 };
+        int         productId{ -1 };
+        int         fileDescriptor{ -1 };
+        int         busNumber{ -1 };
+        int         deviceNumber{ -1 };
+        std::string usbfs;
+    };
+
+    JavaBridge(Vuforia::Driver::PlatformData* platformData);
+    ~JavaBridge();
+
+    /// Look up the Java classes and methods and create the controller objects. Does nothing if already done.
+    bool init();
+
+    /// Only look up DriverConfiguration, for reading the configuration without touching the USB devices.
+    bool initConfiguration();
+
+    int getNumDevices();
+
+    /// Indices of the devices that may be UVC cameras, most preferred first.
+    /**
+     * Devices without a video streaming interface are left out, so libuvc is never
+     * initialized for hubs, keyboards or storage devices. See DriverConfiguration.DEVICES_PREFERRED
+     * for the order.
+     */
+    std::vector<int> getCameraDevices();
+
+    /// Changes whenever a USB device is attached or detached.
+    int getDeviceListGeneration();
+
+    /// True if the device at the index is plugged in and the USB permission was granted.
+    /**
+     * Device indices stay the same while a device is unplugged, and a device that is
+     * plugged back in takes over its old index.
+     */
+    bool isDeviceAvailable(int index);
+
+    /// Wait for the answers to the pending USB permission requests, at most for the permission timeout.
+    void awaitDevicePermissions();
+
+    /// Open the connection to the device at the index.
+    /**
+     * \param index Index of the device in the USBController device list.
+     * \param info On success, filled with everything needed to open the device with libuvc.
+     *
+     * \return False if the device is gone or the USB permission was not granted.
+     */
+    bool openDevice(int index, DeviceInfo& info);
+    void closeDevice(int index);
+    Vuforia::Driver::CameraIntrinsics getCalibrationValue(int vid, int pid, int width, int height);
+    int getConfigurationInt(const char* key, int defaultValue);
+    std::string getConfigurationString(const char* key, const std::string& defaultValue);
+
+private:
+    JNIEnv* getJNIEnv();
+    bool checkException(JNIEnv* env, const char* methodName);
+    bool initConfigurationMethods(JNIEnv* env);
+
+    JavaVM*                                     mJavaVM{ nullptr };
+    jint                                        mJniVersion{ 0 };
+    jobject                                     mActivity{ nullptr };
+    jclass                                      mUSBControllerClass{ nullptr };
+    jobject                                     mUSBControllerObj{ nullptr };
+    jclass                                      mCalibrationControllerClass{ nullptr };
+    jobject                                     mCalibrationControllerObj{ nullptr };
+    jclass                                      mDriverConfigurationClass{ nullptr };
+    jclass                                      mDeviceInfoClass{ nullptr };
+    std::mutex                                  mInitMutex;
+    bool                                        mInitialized{ false };
+
+    // USBController methods
+    jmethodID                                   mGetNumDevices{ nullptr };
+    jmethodID                                   mGetCameraDevices{ nullptr };
+    jmethodID                                   mGetDeviceListGeneration{ nullptr };
+    jmethodID                                   mIsDeviceAvailable{ nullptr };
+    jmethodID                                   mAwaitPermissions{ nullptr };
+    jmethodID                                   mOpenDevice{ nullptr };
+    jmethodID                                   mCloseDevice{ nullptr };
+    jmethodID                                   mRelease{ nullptr };
+
+    // USBDeviceInfo fields
+    jfieldID                                    mVendorIdField{ nullptr };
+    jfieldID                                    mProductIdField{ nullptr };
+    jfieldID                                    mFileDescriptorField{ nullptr };
+    jfieldID                                    mBusNumberField{ nullptr };
+    jfieldID                                    mDeviceNumberField{ nullptr };
+    jfieldID                                    mUSBFSField{ nullptr };
+
+    // CalibrationController and DriverConfiguration methods
+    jmethodID                                   mGetCalibrationValue{ nullptr };
+    jmethodID                                   mGetConfigurationInt{ nullptr };
+    jmethodID                                   mGetConfigurationString{ nullptr };
+};
+
+#endif // _JAVA_BRIDGE_H_
@@ -0,0 +1,118 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _MJPEG_DECODER_H_
+#define _MJPEG_DECODER_H_
+
+#include "FrameBufferPool.h"
+
+#include <Vuforia/Driver/Driver.h>
+#include <libuvc/libuvc.h>
+
+#include <condition_variable>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+/// Pool of decoder threads that turn MJPEG camera frames into YUYV frames.
+/**
+ * submit() copies the compressed frame into a free job and returns immediately.
+ * The frames are decoded in parallel on the decoder threads, but handed to the
+ * FrameSink strictly in the order they were submitted.
+ *
+ * Decoding is done with libjpeg-turbo through libuvc's uvc_mjpeg2yuyv(), straight
+ * into a buffer from the FrameBufferPool. Frames are dropped when the pool has no
+ * free buffer.
+ */
+class MJPEGDecoder
+{
+public:
+    /// Receives the decoded frames. Called on one of the decoder threads.
+    /**
+     * The frame data is in the pool buffer, which goes back to the pool when the sink
+     * returns unless the sink retained it.
+     */
+    typedef std::function<void(Vuforia::Driver::CameraFrame*, FrameBufferPool::Buffer*)> FrameSink;
+
+    /// Counters and decode timings since start().
+    struct Statistics
+    {
+        uint64_t submitted{ 0 };            ///< Frames handed to submit().
+        uint64_t decoded{ 0 };              ///< Frames decoded and handed to the sink.
+        uint64_t dropped{ 0 };              ///< Frames dropped because all decoders were busy or the pool was empty.
+        uint64_t failed{ 0 };               ///< Frames that failed to decode.
+        uint64_t lastDecodeTimeNs{ 0 };     ///< Decode time of the most recent frame.
+        uint64_t averageDecodeTimeNs{ 0 };  ///< Average decode time over all decoded frames.
+        uint64_t maxDecodeTimeNs{ 0 };      ///< Longest decode time.
+    };
+
+    MJPEGDecoder();
+    ~MJPEGDecoder();
+
+    /// Allocate the buffers and start the decoder threads.
+    /**
+     * \param numThreads Number of decoder threads.
+     * \param width Width of the decoded frames.
+     * \param height Height of the decoded frames.
+     * \param maxCompressedSize Largest compressed frame in bytes, usually dwMaxVideoFrameSize.
+     * \param bufferPool Provides the buffers the frames are decoded into. Needs one per thread
+     *        in addition to the ones held on to by the sink.
+     * \param sink Receives the decoded frames.
+     */
+    bool start(uint32_t numThreads, uint32_t width, uint32_t height, uint32_t maxCompressedSize,
+               FrameBufferPool& bufferPool, FrameSink sink);
+
+    /// Stop the decoder threads. Frames that are not decoded yet are discarded.
+    void stop();
+
+    /// Queue a compressed frame for decoding.
+    /**
+     * \param compressed MJPEG frame from libuvc. The data is copied.
+     * \param frame Metadata (timestamp, exposure, intrinsics, ...) for the decoded frame.
+     *
+     * \return True if the frame was queued, false if it was dropped.
+     */
+    bool submit(const uvc_frame_t* compressed, const Vuforia::Driver::CameraFrame& frame);
+
+    Statistics getStatistics();
+
+private:
+    struct Job
+    {
+        uvc_frame_t*                    compressed{ nullptr };
+        Vuforia::Driver::CameraFrame    frame;
+        uint64_t                        ticket{ 0 };
+    };
+
+    void decodeLoop();
+    void freeJobs();
+
+    std::vector<Job>                    mJobs;
+    std::vector<uint32_t>               mFreeJobs;      // Stack of job indices not in use
+    std::vector<uint32_t>               mPendingJobs;   // Ring of job indices waiting for a decoder
+    uint32_t                            mPendingHead{ 0 };
+    uint32_t                            mPendingCount{ 0 };
+    uint32_t                            mMaxCompressedSize{ 0 };
+
+    // Every submitted frame gets a ticket, the frames are handed to the sink in ticket order
+    uint64_t                            mNextTicket{ 0 };
+    uint64_t                            mNextDeliveryTicket{ 0 };
+
+    FrameBufferPool*                    mBufferPool{ nullptr };
+    FrameSink                           mSink;
+    Statistics                          mStatistics;
+    uint64_t                            mTotalDecodeTimeNs{ 0 };
+
+    std::vector<std::thread>            mThreads;
+    std::mutex                          mMutex;
+    std::condition_variable             mJobPendingCondition;
+    std::condition_variable             mDeliveryCondition;
+    bool                                mRunning{ false };
+};
+
+#endif // _MJPEG_DECODER_H_
@@ -0,0 +1,107 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _PIXEL_CONVERTER_H_
+#define _PIXEL_CONVERTER_H_
+
+#include <cstdint>
+#include <vector>
+
+/// Converts frames between the pixel formats of the cameras and the ones Vuforia takes.
+/**
+ * Every pair of the formats below can be converted. The conversions between the YUV
+ * formats are built from four row kernels, which have SSE2 and NEON versions next to
+ * the scalar ones. The SIMD versions give the same bytes as the scalar ones. The
+ * conversions from and to RGB888 are scalar, BT.601 with limited range.
+ *
+ * The target frames are tightly packed. For NV12 and NV21 sources the chroma plane
+ * follows the luma plane, with the same stride.
+ *
+ * host/ConversionBenchmark measures the conversions on the development machine.
+ */
+class PixelConverter
+{
+public:
+    enum class Format
+    {
+        YUYV,   ///< YUV 4:2:2, Y0 U Y1 V.
+        UYVY,   ///< YUV 4:2:2, U Y0 V Y1.
+        NV12,   ///< YUV 4:2:0, Y plane and interleaved UV plane.
+        NV21,   ///< YUV 4:2:0, Y plane and interleaved VU plane.
+        GRAY,   ///< 8 bit luma only.
+        RGB888  ///< R G B, 8 bit each.
+    };
+
+    enum class Implementation
+    {
+        SCALAR,
+        SIMD    ///< SSE2 or NEON, the scalar kernels if the build has neither.
+    };
+
+    static const char* getFormatName(Format format);
+
+    /// Bytes of a tightly packed frame.
+    static uint32_t getFrameSize(Format format, uint32_t width, uint32_t height);
+
+    /// True if the build has SSE2 or NEON kernels.
+    static bool hasSimd();
+
+    /// Prepare the conversion of frames of the size.
+    /**
+     * \return False if the width is odd, or the height is odd and either format is NV12 or NV21.
+     */
+    bool configure(Format source, Format target, uint32_t width, uint32_t height, Implementation implementation);
+
+    /// Convert a frame.
+    /**
+     * \param source Source frame.
+     * \param sourceStride Bytes per row of the source, of the luma plane for NV12 and NV21.
+     * \param target Receives getFrameSize(target, width, height) bytes.
+     */
+    void convert(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const;
+
+    Format getSourceFormat() const { return mSource; }
+    Format getTargetFormat() const { return mTarget; }
+
+    /// Bytes per row of the target frames.
+    uint32_t getTargetStride() const;
+
+private:
+    /// Row kernels, the SIMD versions finish the row with the scalar ones.
+    struct Kernels
+    {
+        /// Luma of a YUYV (lumaOffset 0) or UYVY (lumaOffset 1) row.
+        void (*extractLuma)(const uint8_t* source, uint8_t* luma, uint32_t width, uint32_t lumaOffset);
+
+        /// Interleaved chroma of a 4:2:0 row from two YUYV or UYVY rows, UV order or swapped to VU.
+        void (*averageChroma)(const uint8_t* row0, const uint8_t* row1, uint8_t* chroma, uint32_t width,
+                              uint32_t lumaOffset, bool swap);
+
+        /// Swap the bytes of each pair, YUYV <-> UYVY and UV <-> VU.
+        void (*swapBytePairs)(const uint8_t* source, uint8_t* target, uint32_t bytes);
+
+        /// first[0] second[0] first[1] second[1] ..., writes 2 * bytes.
+        void (*interleave)(const uint8_t* first, const uint8_t* second, uint8_t* target, uint32_t bytes);
+    };
+
+    void convertFromPacked(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const;
+    void convertFromSemiPlanar(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const;
+    void convertFromGray(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const;
+    void convertFromRGB(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const;
+
+    Format                  mSource{ Format::YUYV };
+    Format                  mTarget{ Format::YUYV };
+    uint32_t                mWidth{ 0 };
+    uint32_t                mHeight{ 0 };
+    Kernels                 mKernels;
+
+    // Neutral chroma for gray sources, the swapped chroma row for NV21 sources.
+    // Written during convert(), so a converter must only be used by one thread at a time.
+    mutable std::vector<uint8_t> mChromaRow;
+};
+
+#endif // _PIXEL_CONVERTER_H_
@@ -0,0 +1,90 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _REPLAY_EXTERNAL_CAMERA_H_
+#define _REPLAY_EXTERNAL_CAMERA_H_
+
+#include "FrameRecording.h"
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <condition_variable>
+#include <mutex>
+#include <string>
+#include <thread>
+
+/// ExternalCamera that delivers the frames of a FrameRecording file instead of a UVC camera.
+/**
+ * The recording offers a single camera mode, the one it was recorded with. The frames
+ * are delivered on a playback thread either at the recorded frame rate or as fast as
+ * the callback takes them, and get new timestamps so that they look live to Vuforia.
+ * Exposure and focus can't be changed.
+ *
+ * The class has no dependencies on Android, libuvc or JNI, so the frame path can be
+ * run and measured on a development machine.
+ *
+ * The documentation of the overridden public methods can be found in Vuforia/Driver/Driver.h header.
+ */
+class ReplayExternalCamera final : public Vuforia::Driver::ExternalCamera
+{
+public:
+    /// \param path Recording to replay.
+    /// \param realTime True to keep the recorded time between frames, false to deliver the frames as fast as possible.
+    /// \param loop True to start over at the end of the recording, false to stop delivering frames.
+    ReplayExternalCamera(const std::string& path, bool realTime, bool loop);
+    ~ReplayExternalCamera();
+
+    bool open() override;
+    bool close() override;
+    bool start(Vuforia::Driver::CameraMode cameraMode, Vuforia::Driver::CameraCallback* cb) override;
+    bool stop() override;
+
+    uint32_t getNumSupportedCameraModes() override;
+    bool getSupportedCameraMode(uint32_t index, Vuforia::Driver::CameraMode* out) override;
+
+    bool supportsExposureMode(Vuforia::Driver::ExposureMode parameter) override;
+    Vuforia::Driver::ExposureMode getExposureMode() override;
+    bool setExposureMode(Vuforia::Driver::ExposureMode mode) override;
+
+    bool supportsExposureValue() override;
+    uint64_t getExposureValueMin() override;
+    uint64_t getExposureValueMax() override;
+    uint64_t getExposureValue() override;
+    bool setExposureValue(uint64_t exposureTime) override;
+
+    bool supportsFocusMode(Vuforia::Driver::FocusMode parameter) override;
+    Vuforia::Driver::FocusMode getFocusMode() override;
+    bool setFocusMode(Vuforia::Driver::FocusMode mode) override;
+
+    bool supportsFocusValue() override;
+    float getFocusValueMin() override;
+    float getFocusValueMax() override;
+    float getFocusValue() override;
+    bool setFocusValue(float value) override;
+
+    /// True while frames are delivered, false once a recording that doesn't loop has ended.
+    bool isPlaying();
+
+private:
+    void playbackLoop();
+
+    std::string                         mPath;
+    bool                                mRealTime{ true };
+    bool                                mLoop{ true };
+
+    FrameRecordingReader                mReader;
+    bool                                mOpened{ false };
+
+    Vuforia::Driver::CameraCallback*    mCallback{ nullptr };
+    std::thread                         mPlaybackThread;
+    std::mutex                          mMutex;
+    std::condition_variable             mCondition;
+    bool                                mRunning{ false };
+    bool                                mPlaying{ false };
+};
+
+#endif // _REPLAY_EXTERNAL_CAMERA_H_
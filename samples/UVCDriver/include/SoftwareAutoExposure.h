@@ -0,0 +1,100 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _SOFTWARE_AUTO_EXPOSURE_H_
+#define _SOFTWARE_AUTO_EXPOSURE_H_
+
+#include <Vuforia/Driver/Driver.h>
+
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+/// Continuous auto exposure done on the host, for cameras whose own auto exposure hunts.
+/**
+ * The camera is kept in manual exposure mode and the exposure time and gain are set
+ * from a luminance histogram of the frames. The streaming thread only copies a fixed
+ * number of luma samples out of a frame, and only when the controller thread is
+ * waiting for them, so the cost per frame is bounded whatever the frame size.
+ * The histogram and the control transfers are done on the controller thread.
+ *
+ * The exposure time is raised before the gain, up to the frame interval so that the
+ * frame rate doesn't drop, and the gain is lowered before the exposure time. Changes
+ * are damped, limited in size and made at most every ADJUST_INTERVAL, and small errors
+ * are ignored, so the loop settles instead of oscillating.
+ */
+class SoftwareAutoExposure
+{
+public:
+    /// Largest number of luma samples taken from a frame.
+    static const uint32_t MAX_SAMPLES = 4096;
+
+    /// Exposure time in nanoseconds, true on success.
+    typedef std::function<bool(uint64_t)> SetExposureFunction;
+
+    /// Gain in the camera's units, true on success.
+    typedef std::function<bool(uint16_t)> SetGainFunction;
+
+    struct Limits
+    {
+        uint64_t    exposureMin{ 0 };       ///< Nanoseconds.
+        uint64_t    exposureMax{ 0 };       ///< Nanoseconds.
+        bool        gainSupported{ false };
+        uint16_t    gainMin{ 0 };
+        uint16_t    gainMax{ 0 };
+    };
+
+    SoftwareAutoExposure();
+    ~SoftwareAutoExposure();
+
+    /// Start adjusting from the current exposure time and gain.
+    /**
+     * \param targetLuminance Mean luma the frames are exposed for, 0 - 255.
+     */
+    bool start(const Limits& limits, uint64_t exposure, uint16_t gain, uint8_t targetLuminance,
+               SetExposureFunction setExposure, SetGainFunction setGain);
+
+    /// Stop adjusting. The camera keeps the last exposure time and gain.
+    void stop();
+
+    bool isRunning();
+
+    /// Frame rate of the stream, limits the exposure time to the frame interval. 0 if unknown.
+    void setFrameRate(uint32_t fps);
+
+    /// Take the luma samples for the next adjustment from a YUYV frame. Never blocks.
+    void submitFrame(const Vuforia::Driver::CameraFrame& frame);
+
+private:
+    void controlLoop();
+    void adjust(const uint32_t* histogram, uint32_t sampleCount);
+
+    std::thread                             mThread;
+    std::mutex                              mMutex;
+    std::condition_variable                 mCondition;
+    bool                                    mRunning{ false };
+
+    // Written by submitFrame() while mSamplesReady is false, read by the controller while it is true
+    std::vector<uint8_t>                    mSamples;
+    uint32_t                                mSampleCount{ 0 };
+    bool                                    mSamplesReady{ false };
+    std::chrono::steady_clock::time_point   mNextSampleTime;
+
+    Limits                                  mLimits;
+    uint64_t                                mExposure{ 0 };
+    uint16_t                                mGain{ 0 };
+    uint8_t                                 mTargetLuminance{ 0 };
+    uint32_t                                mFps{ 0 };
+    SetExposureFunction                     mSetExposure;
+    SetGainFunction                         mSetGain;
+};
+
+#endif // _SOFTWARE_AUTO_EXPOSURE_H_
@@ -0,0 +1,139 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _STANDBY_H_
+#define _STANDBY_H_
+
+#include <chrono>
+#include <condition_variable>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <utility>
+
+/// Keeps an object alive for a while after its user is gone, so that the next user can take it over.
+/**
+ * The UVCDriver keeps the open cameras here between the close() of one external camera and the
+ * open() of the next one, which Vuforia creates from scratch after a pause. An object that
+ * nobody takes within the timeout is destroyed on the thread of the standby, an object that
+ * is still kept when the standby is destroyed goes with it.
+ *
+ * keep(), take() and release() must not be called concurrently.
+ */
+template <typename T>
+class Standby
+{
+public:
+    Standby() = default;
+    ~Standby();
+
+    Standby(const Standby&) = delete;
+    Standby& operator=(const Standby&) = delete;
+
+    /// Keep the object until take() or until the timeout passes. An object kept before is destroyed.
+    void keep(std::unique_ptr<T> object, std::chrono::milliseconds timeout);
+
+    /// The kept object, nullptr if nothing is kept or the timeout passed.
+    /**
+     * Waits for an object that is being destroyed after its timeout, so that what the object
+     * held is released before the caller sets up a new one.
+     */
+    std::unique_ptr<T> take();
+
+    /// Destroy the kept object right away.
+    void release();
+
+    /// True while an object is kept.
+    bool isKeeping();
+
+private:
+    void waitForTimeout();
+
+    std::unique_ptr<T>                      mObject;
+    std::chrono::steady_clock::time_point   mDeadline;
+    std::thread                             mTimeoutThread;
+    std::mutex                              mMutex;
+    std::condition_variable                 mTakenCondition;
+};
+
+template <typename T>
+Standby<T>::~Standby()
+{
+    release();
+}
+
+template <typename T>
+void
+Standby<T>::keep(std::unique_ptr<T> object, std::chrono::milliseconds timeout)
+{
+    release();
+
+    if (object == nullptr)
+    {
+        return;
+    }
+
+    std::lock_guard<std::mutex> lock(mMutex);
+    mObject = std::move(object);
+    mDeadline = std::chrono::steady_clock::now() + timeout;
+    mTimeoutThread = std::thread(&Standby::waitForTimeout, this);
+}
+
+template <typename T>
+std::unique_ptr<T>
+Standby<T>::take()
+{
+    std::unique_ptr<T> object;
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        object = std::move(mObject);
+    }
+    mTakenCondition.notify_all();
+
+    if (mTimeoutThread.joinable())
+    {
+        mTimeoutThread.join();
+    }
+
+    return object;
+}
+
+template <typename T>
+void
+Standby<T>::release()
+{
+    // Destroyed here, without the lock
+    take();
+}
+
+template <typename T>
+bool
+Standby<T>::isKeeping()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mObject != nullptr;
+}
+
+template <typename T>
+void
+Standby<T>::waitForTimeout()
+{
+    std::unique_ptr<T> object;
+    {
+        std::unique_lock<std::mutex> lock(mMutex);
+        if (mTakenCondition.wait_until(lock, mDeadline, [this] { return mObject == nullptr; }))
+        {
+            return;
+        }
+        object = std::move(mObject);
+    }
+
+    // Nobody took it in time. Destroying it may take a while, e.g. closing USB devices, so it
+    // happens without the lock, and take() waits for it.
+}
+
+#endif // _STANDBY_H_
@@ -0,0 +1,252 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#ifndef _UVC_CAMERA_H_
+#define _UVC_CAMERA_H_
+
+#include "BandwidthPlanner.h"
+#include "CameraControlCache.h"
+#include "CameraModeSelector.h"
+#include "ClockRecovery.h"
+#include "ControlCommandQueue.h"
+#include "DeviceProfile.h"
+#include "FrameBufferPool.h"
+#include "FrameQueue.h"
+#include "FrameTelemetry.h"
+#include "JavaBridge.h"
+#include "MJPEGDecoder.h"
+#include "PixelConverter.h"
+#include "SoftwareAutoExposure.h"
+
+#include <Vuforia/Driver/Driver.h>
+#include <libuvc/libuvc.h>
+
+#include <atomic>
+#include <string>
+#include <vector>
+
+/// A single UVC camera with its own libuvc handle, stream, frame queue and calibration.
+/**
+ * The public camera methods mirror Vuforia::Driver::ExternalCamera, their documentation
+ * can be found in Vuforia/Driver/Driver.h header. UVCExternalCamera forwards to them.
+ */
+class UVCCamera
+{
+public:
+    /// Create a camera for the USB device at the index of the USBController device list.
+    /**
+     * The bandwidth planner is shared with the other cameras, so that the cameras on one
+     * USB bus don't reserve more isochronous bandwidth together than the bus has.
+     */
+    UVCCamera(JavaBridge& javaBridge, BandwidthPlanner& bandwidthPlanner, int deviceIndex);
+    ~UVCCamera();
+
+    bool open();
+    bool close();
+    bool start(Vuforia::Driver::CameraMode cameraMode, Vuforia::Driver::CameraCallback* cb);
+    bool stop();
+
+    uint32_t getNumSupportedCameraModes();
+    bool getSupportedCameraMode(uint32_t index, Vuforia::Driver::CameraMode* out);
+    bool supportsCameraMode(const Vuforia::Driver::CameraMode& cameraMode);
+
+    /// Release the USB device after it was unplugged, without stopping the stream.
+    /**
+     * The frame queue, the MJPEG decoder and the negotiated stream control are kept,
+     * so that reconnect() can resume streaming without Vuforia noticing more than a gap.
+     */
+    void disconnect();
+
+    /// Reopen the USB device and resume streaming if the camera was streaming.
+    bool reconnect();
+
+    /// CLOCK_MONOTONIC time in nanoseconds when the last frame arrived from the camera.
+    uint64_t getLastFrameTime() const { return mLastFrameTime; }
+
+    /// Streaming health of the camera, reset whenever the camera is started.
+    FrameTelemetry& getTelemetry() { return mTelemetry; }
+
+    int getDeviceIndex() const { return mDeviceIndex; }
+    bool isConnected() const { return mDeviceHandle != nullptr; }
+    bool isStreaming() const { return mStreaming; }
+    const Vuforia::Driver::CameraMode& getCameraMode() const { return mCameraMode; }
+
+    /// With the software auto exposure enabled, CONTINUOUS_AUTO is done by SoftwareAutoExposure.
+    bool supportsExposureMode(Vuforia::Driver::ExposureMode parameter);
+    Vuforia::Driver::ExposureMode getExposureMode();
+
+    /// The setters queue the write and return, unless controls.async is 0. Failed writes are logged.
+    bool setExposureMode(Vuforia::Driver::ExposureMode mode);
+
+    bool supportsExposureValue();
+    uint64_t getExposureValueMin();
+    uint64_t getExposureValueMax();
+    uint64_t getExposureValue();
+    bool setExposureValue(uint64_t exposureTime);
+
+    bool supportsFocusMode(Vuforia::Driver::FocusMode parameter);
+    Vuforia::Driver::FocusMode getFocusMode();
+    bool setFocusMode(Vuforia::Driver::FocusMode mode);
+
+    bool supportsFocusValue();
+    float getFocusValueMin();
+    float getFocusValueMax();
+    float getFocusValue();
+    bool setFocusValue(float value);
+
+    /// Used by the UVC C-callback to hand a frame over to Vuforia.
+    /**
+     * If the frame queue is enabled the frame is copied into the queue and delivered
+     * from the queue's delivery thread, otherwise it is delivered on the calling thread.
+     */
+    void deliverFrame(Vuforia::Driver::CameraFrame* frame);
+
+    /// Hand a frame the driver produced in a pool buffer over to Vuforia.
+    /**
+     * The frame queue holds on to the buffer instead of copying the frame.
+     */
+    void deliverFrame(Vuforia::Driver::CameraFrame* frame, FrameBufferPool::Buffer* buffer);
+
+    /// Used by the UVC C-callback to hand a compressed frame over to the MJPEG decoder.
+    /**
+     * The decoded frame is passed on to deliverFrame() from one of the decoder threads.
+     */
+    void decodeFrame(const uvc_frame_t* inFrame, const Vuforia::Driver::CameraFrame& frame);
+
+    /// Used by the UVC C-callback for the formats Vuforia doesn't take, UYVY and GRAY8.
+    /**
+     * The frame is converted on the calling thread into a pool buffer and passed on to deliverFrame().
+     */
+    void convertFrame(const uvc_frame_t* inFrame, const Vuforia::Driver::CameraFrame& frame);
+
+    /// Used by the UVC C-callback to get hold of the per frame intrinsics.
+    Vuforia::Driver::CameraIntrinsics getCameraIntrinsics();
+
+    /// Used by the UVC C-callback to get the exposure time without a USB control transfer.
+    uint64_t getCachedExposureValue();
+
+    /// Used by the UVC C-callback to get the capture time of a frame.
+    /**
+     * Maps the PTS and SCR values from the UVC payload headers to the host clock.
+     * Falls back to the time the frame arrived on the host if the camera doesn't
+     * send them or the clock mapping is not established yet.
+     *
+     * \param inFrame The frame received from libuvc.
+     * \param exposureTime Exposure time of the frame in nanoseconds.
+     *
+     * \return End of the exposure in nanoseconds on the CLOCK_MONOTONIC time base.
+     */
+    uint64_t getCaptureTimestamp(const uvc_frame_t* inFrame, uint64_t exposureTime);
+
+private:
+    /// Camera mode advertised to Vuforia together with the format the camera streams it in.
+    struct SupportedCameraMode
+    {
+        Vuforia::Driver::CameraMode mode;
+        uvc_frame_format            sourceFormat{ UVC_FRAME_FORMAT_UNKNOWN };
+        uint32_t                    maxFrameSize{ 0 };  ///< Largest frame the camera sends in this mode.
+        float                       score{ 0.f };       ///< Score from the CameraModeSelector.
+    };
+
+    /// Camera modes offered to Vuforia, selected from the modes of the device profile.
+    void getSupportedCameraModes();
+
+    /// Append the modes of the format descriptors of the subtype to the device profile.
+    void addProfileModes(uvc_vs_desc_subtype formatSubtype);
+    uvc_frame_format getSourceFormat(const Vuforia::Driver::CameraMode& cameraMode);
+
+    /// Vendor and product id, device release and serial number of the opened device.
+    DeviceProfile::Key getProfileKey();
+
+    /// Load the profile of the camera from the profile directory, false if there is none that fits.
+    bool loadProfile();
+
+    /// Fill the device profile from the descriptors and the control ranges of the camera.
+    void readCapabilities();
+
+    /// Negotiate the stream control for the mode and reserve the USB bandwidth for it.
+    /**
+     * The stream control of the device profile is used as is if it was negotiated for the
+     * same mode, otherwise it is probed and stored in the profile.
+     * If the bus can't carry the mode, the same frames are streamed as MJPEG or at a lower
+     * frame rate instead. sourceFormat receives the format the camera streams in.
+     */
+    bool negotiateStreamControl(const Vuforia::Driver::CameraMode& cameraMode, uvc_frame_format& sourceFormat);
+
+    /// Take the stream control from the device profile and reserve the bandwidth it was streamed with.
+    bool useProfileStreamControl(const Vuforia::Driver::CameraMode& cameraMode, uvc_frame_format& sourceFormat);
+
+    /// Probe the camera for the stream control, see negotiateStreamControl().
+    bool probeStreamControl(const Vuforia::Driver::CameraMode& cameraMode, uvc_frame_format& sourceFormat);
+
+    /// True if the USB bandwidth is planned by the driver for this camera.
+    bool usesBandwidthPlanning(bool& highSpeed);
+
+    /// The stream the camera is asked for first, then the fallbacks in the order they are tried.
+    std::vector<SupportedCameraMode> getStreamCandidates(const Vuforia::Driver::CameraMode& cameraMode, uvc_frame_format sourceFormat);
+
+    /// Bytes per (micro)frame of the isochronous alternate settings of the streaming interface.
+    std::vector<uint32_t> getAltSettingSizes(uint8_t interfaceNumber);
+    CameraModeSelector::Preferences getModeSelectionPreferences();
+    void refreshControlCache();
+
+    /// True if the software auto exposure is enabled and the camera has the controls it needs.
+    bool supportsSoftwareAutoExposure();
+
+    /// Switch the camera to manual exposure and start adjusting the exposure time and gain from the frames.
+    bool startSoftwareAutoExposure();
+
+    /// Frame rate of the negotiated stream control. Only valid once the camera was started.
+    uint32_t getStreamFrameRate();
+
+    // Control writes on the calling thread, used by the setters and the control queue
+    bool applyExposureMode(Vuforia::Driver::ExposureMode mode);
+    bool applyExposureValue(uint64_t exposureTime);
+    bool applyFocusMode(Vuforia::Driver::FocusMode mode);
+    bool applyFocusValue(float value);
+
+    JavaBridge&                                 mJavaBridge;
+    BandwidthPlanner&                           mBandwidthPlanner;
+    int                                         mDeviceIndex{ -1 };
+    bool                                        mDeviceOpened{ false };
+    int                                         mVendorId{ -1 };
+    int                                         mProductId{ -1 };
+    int                                         mBusNumber{ -1 };
+
+    uvc_context_t*                              mContext{ nullptr };
+    uvc_device_t*                               mDevice{ nullptr };
+    uvc_device_handle_t*                        mDeviceHandle{ nullptr };
+    uvc_stream_ctrl_t                           mStreamControl;
+    Vuforia::Driver::CameraMode                 mCameraMode;
+    bool                                        mStreaming{ false };
+    std::atomic<uint64_t>                       mLastFrameTime{ 0 };
+
+    Vuforia::Driver::CameraCallback*            mCallback{ nullptr };
+    std::vector<SupportedCameraMode>            mSupportedCameraModes;
+    Vuforia::Driver::CameraIntrinsics           mCameraIntrinsics;
+    CameraControlCache                          mControlCache;
+    FrameBufferPool                             mBufferPool;
+    FrameQueue                                  mFrameQueue;
+    bool                                        mFrameQueueEnabled{ false };
+    MJPEGDecoder                                mMJPEGDecoder;
+    bool                                        mMJPEGDecoderEnabled{ false };
+    PixelConverter                              mConverter;
+    bool                                        mConversionEnabled{ false };
+    ClockRecovery                               mClockRecovery;
+    bool                                        mHardwareTimestampsEnabled{ false };
+    FrameTelemetry                              mTelemetry;
+    SoftwareAutoExposure                        mSoftwareAutoExposure;
+    std::atomic<bool>                           mSoftwareAutoExposureSelected{ false };  ///< Kept over disconnect() and reconnect(), set on the control queue thread.
+    ControlCommandQueue                         mControlQueue;
+    bool                                        mControlQueueEnabled{ false };
+    bool                                        mControlReadBackEnabled{ false };
+    DeviceProfile                               mProfile;
+    std::string                                 mProfileDirectory;  ///< Empty if the profiles are not kept on disk.
+    bool                                        mProfileStreamControlUsed{ false };
+};
+
+#endif // _UVC_CAMERA_H_
@@ -8,12 +8,20 @@ countries.
 #ifndef _UVC_VUFORIA_DRIVER_H_
 #define _UVC_VUFORIA_DRIVER_H_
 
+#include "BandwidthPlanner.h"
+#include "JavaBridge.h"
 #include "UVCExternalCamera.h"
 #include <Vuforia/Driver/Driver.h>
 
 /// UVCDriver that implements the VuforiaDriver base class.
 /**
  * This class is used for constructing and destroying the UVCDriver specific data source objects.
+ * When DriverConfiguration.REPLAY_PATH is set, the camera replays that recording instead of
+ * opening the UVC cameras.
+ *
+ * The Java bridge, the USB bandwidth planner and the camera standby live as long as the driver,
+ * so that the cameras one external camera leaves open in close() can be taken over by the next
+ * one, see DriverConfiguration.STANDBY_TIMEOUT_MS.
  *
  * The documentation of the public methods can be found in Vuforia/Driver/Driver.h header.
  */
@@ -27,9 +35,34 @@ public:
 
     void VUFORIA_DRIVER_CALLING_CONVENTION destroyExternalCamera(Vuforia::Driver::ExternalCamera* instance) override;
 
+    /// The UVC camera created by createExternalCamera(), nullptr if there is none or a recording is replayed.
+    UVCExternalCamera* getExternalCamera();
+
 private:
-    Vuforia::Driver::PlatformData*  mPlatformData{ nullptr };
-    UVCExternalCamera*              mExternalCamera{ nullptr };
+    Vuforia::Driver::PlatformData*      mPlatformData{ nullptr };
+    Vuforia::Driver::ExternalCamera*    mExternalCamera{ nullptr };
+    UVCExternalCamera*                  mUVCExternalCamera{ nullptr };
+
+    JavaBridge                          mJavaBridge;
+    BandwidthPlanner                    mBandwidthPlanner;
+    UVCExternalCamera::CameraStandby    mCameraStandby;     ///< Destroyed first, the cameras use the bridge and the planner.
 };
 
+/// Application API for switching between the UVC cameras and monitoring them,
+/// see MultiCameraController.java and DriverTelemetry.java.
+extern "C"
+{
+/// Number of UVC cameras the driver opened. 0 if Vuforia hasn't opened the camera.
+uint32_t uvcDriver_getNumCameras();
+
+/// Index of the camera delivering frames to Vuforia, -1 if Vuforia hasn't opened the camera.
+int32_t uvcDriver_getActiveCamera();
+
+/// Switch the camera delivering frames to Vuforia, see UVCExternalCamera::setActiveCamera().
+bool uvcDriver_setActiveCamera(uint32_t index);
+
+/// Streaming health of a camera, see UVCExternalCamera::getTelemetry().
+bool uvcDriver_getTelemetry(uint32_t index, FrameTelemetry::Snapshot* out);
+}
+
 #endif // _UVC_VUFORIA_DRIVER_H_
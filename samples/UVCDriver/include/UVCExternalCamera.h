@@ -8,19 +8,78 @@ countries.
 #ifndef _UVC_EXTERNAL_CAMERA_H_
 #define _UVC_EXTERNAL_CAMERA_H_
 
+#include "DeliveryGovernor.h"
+#include "FrameBufferPool.h"
+#include "FrameRecording.h"
+#include "FrameScaler.h"
+#include "FrameTap.h"
+#include "JavaBridge.h"
+#include "Standby.h"
+#include "UVCCamera.h"
+
 #include <Vuforia/Driver/Driver.h>
-#include <libuvc/libuvc.h>
 
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <memory>
+#include <mutex>
+#include <thread>
 #include <vector>
 
 /// UVCExternalCamera that implements the Vuforia::Driver::ExternalCamera base class.
 /**
+ * Vuforia only supports a single external camera, so this class represents all the UVC
+ * cameras connected to the device. Every camera is opened with its own libuvc handle,
+ * and the calls from Vuforia are forwarded to the active camera. The active camera can
+ * be swapped while streaming without closing and reopening the devices.
+ *
+ * A watchdog thread follows the USB hotplug events of the USBController. A camera
+ * that is unplugged is disconnected, and reconnected when it is plugged back in.
+ * If it was streaming, streaming resumes with the previously negotiated stream
+ * control. A camera that stops delivering frames is reconnected as well.
+ *
+ * The cameras share a BandwidthPlanner, so that several cameras can stream from one USB bus.
+ *
+ * The frames delivered to Vuforia can be recorded to a file, see DriverConfiguration.RECORDING_PATH,
+ * and played back later with the ReplayExternalCamera.
+ *
+ * Smaller camera modes can be produced from larger ones, see DriverConfiguration.PROCESSING_MODES.
+ * The camera then streams the larger mode and the frames are scaled or cropped before Vuforia
+ * gets them, with the intrinsics adjusted to match.
+ *
+ * The frames of the active camera, at the resolution the camera streams, are also written
+ * to the FrameTap for the application, see FrameTap.java.
+ *
+ * The cameras always stream at the rate Vuforia asked for, but Vuforia can be given only
+ * some of the frames, see DriverConfiguration.DELIVERY_DECIMATION and DELIVERY_ADAPTIVE.
+ * The FrameTap and the full frame callback still get every frame, the recording only has
+ * the frames Vuforia got.
+ *
+ * With DriverConfiguration.STANDBY_TIMEOUT_MS set, close() leaves the stopped cameras open in the
+ * standby of the UVCDriver, so that the open() and start() that follow a pause take neither the USB
+ * enumeration nor the stream negotiation, also when Vuforia destroys this camera and creates a new
+ * one in between. The standby closes the cameras when nobody opens them within the timeout.
+ *
  * The documentation of the overridden public methods can be found in Vuforia/Driver/Driver.h header.
  */
 class UVCExternalCamera final : public Vuforia::Driver::ExternalCamera
 {
 public:
-    UVCExternalCamera(Vuforia::Driver::PlatformData* platformData);
+    /// The open cameras close() leaves in the standby for the next open().
+    struct StandbyCameras
+    {
+        /// Closes the cameras nobody took.
+        ~StandbyCameras();
+
+        std::vector<std::unique_ptr<UVCCamera>>     cameras;    ///< Stopped, but open.
+        uint32_t                                    activeCamera{ 0 };
+    };
+
+    typedef Standby<StandbyCameras> CameraStandby;
+
+    /// The bridge, the bandwidth planner and the standby belong to the UVCDriver and outlive the camera.
+    UVCExternalCamera(JavaBridge& javaBridge, BandwidthPlanner& bandwidthPlanner, FrameTap& frameTap, CameraStandby& standby);
     ~UVCExternalCamera();
 
     bool open() override;
@@ -51,42 +110,125 @@ public:
     float getFocusValue() override;
     bool setFocusValue(float value) override;
 
-    /// Used by the UVC C-callback to get hold of the Vuforia::Driver-callback.
-    Vuforia::Driver::CameraCallback* getCallback();
-
-    /// Used by the UVC C-callback to get hold of the per frame intrinsics.
-    Vuforia::Driver::CameraIntrinsics getCameraIntrinsics();
+    /// Number of UVC cameras that were opened.
+    uint32_t getNumCameras();
+
+    /// Index of the camera whose frames are delivered to Vuforia.
+    uint32_t getActiveCamera();
+
+    /// Switch the camera whose frames are delivered to Vuforia.
+    /**
+     * If the cameras are streaming, the new camera is started with the camera mode
+     * Vuforia requested before the old one is stopped, so that no frames are missed.
+     *
+     * \param index Index of the camera, between 0 and getNumCameras() - 1.
+     *
+     * \return False if the index is invalid or the camera can't stream the current camera mode.
+     */
+    bool setActiveCamera(uint32_t index);
+
+    /// Streaming health of a camera since it was last started.
+    /**
+     * \param index Index of the camera, between 0 and getNumCameras() - 1.
+     * \param out Receives the telemetry snapshot.
+     *
+     * \return False if the index is invalid.
+     */
+    bool getTelemetry(uint32_t index, FrameTelemetry::Snapshot* out);
+
+    /// Receive the full resolution frames of the active camera while Vuforia gets scaled or cropped ones.
+    /**
+     * Called on the streaming thread before Vuforia gets the processed frame. The frame
+     * is only valid during the call. nullptr to stop receiving frames. Gets every frame
+     * of the camera, also the ones the delivery governor holds back from Vuforia.
+     */
+    void setFullFrameCallback(Vuforia::Driver::CameraCallback* cb);
 
 private:
-    void getSupportedCameraModes();
-
-    // JNI methods
-    int getNumDevices();
-    bool useDevice(int index);
-    int getVendorId();
-    int getProductId();
-    int getFileDescriptor();
-    char* getUSBFS();
-    int getBusNumber();
-    int getDeviceNumber();
-    Vuforia::Driver::CameraIntrinsics getCalibrationValue(int vid, int pid, int width, int height);
-
-    uvc_context_t*                              mContext{ nullptr };
-    uvc_device_t*                               mDevice{ nullptr };
-    uvc_device_handle_t*                        mDeviceHandle{ nullptr };
-    uvc_stream_ctrl_t                           mStreamControl;
-
-    JavaVM*                                     mJavaVM{ nullptr };
-    jint                                        mJniVersion{ 0 };
-    jobject                                     mActivity{ nullptr };
-    jclass                                      mUSBControllerClass{ nullptr };
-    jobject                                     mUSBControllerObj{ nullptr };
-    jclass                                      mCalibrationControllerClass{ nullptr };
-    jobject                                     mCalibrationControllerObj{ nullptr };
-
-    Vuforia::Driver::CameraCallback*            mCallback{ nullptr };
-    std::vector<Vuforia::Driver::CameraMode>    mSupportedCameraModes;
-    Vuforia::Driver::CameraIntrinsics           mCameraIntrinsics;
+    /// Camera mode of DriverConfiguration.PROCESSING_MODES that is produced from a larger one.
+    struct ProcessingRule
+    {
+        uint32_t            sourceWidth;
+        uint32_t            sourceHeight;
+        uint32_t            width;
+        uint32_t            height;
+        FrameScaler::Mode   mode;
+    };
+
+    /// Passes the frames of one camera on to Vuforia while that camera is the active one.
+    /**
+     * The time Vuforia takes to process each frame is recorded in the telemetry of the camera.
+     * While recording, the frames are written to the recording before Vuforia gets them.
+     */
+    class CameraFrameForwarder : public Vuforia::Driver::CameraCallback
+    {
+    public:
+        CameraFrameForwarder(UVCExternalCamera& owner, uint32_t cameraIndex, FrameTelemetry& telemetry);
+
+        void VUFORIA_DRIVER_CALLING_CONVENTION onNewCameraFrame(Vuforia::Driver::CameraFrame* frame) override;
+
+    private:
+        UVCExternalCamera&  mOwner;
+        uint32_t            mCameraIndex;
+        FrameTelemetry&     mTelemetry;
+    };
+
+    /// The active camera, after waiting for the watchdog to finish reconnecting it. nullptr if it is unplugged.
+    UVCCamera* getActiveUVCCamera(std::unique_lock<std::mutex>& lock);
+
+    /// Wait until the watchdog isn't reconnecting any camera, before working on all of them.
+    void waitForReconnect(std::unique_lock<std::mutex>& lock);
+
+    void stopCameras();
+
+    /// Close the cameras, also when close() would keep them open.
+    void closeCameras();
+
+    /// The modes of the camera with the processed ones, which replace native modes of the same size.
+    std::vector<Vuforia::Driver::CameraMode> getCameraModes(UVCCamera& camera);
+
+    /// The rule producing the camera mode, nullptr if the camera streams it as it is.
+    /**
+     * \param streamMode Receives the mode the camera has to stream.
+     */
+    const ProcessingRule* findProcessingRule(UVCCamera& camera, const Vuforia::Driver::CameraMode& cameraMode,
+                                             Vuforia::Driver::CameraMode& streamMode);
+
+    void startWatchdog();
+    void stopWatchdog();
+    void watchdogLoop();
+
+    JavaBridge&                                         mJavaBridge;
+    BandwidthPlanner&                                   mBandwidthPlanner;
+    std::vector<std::unique_ptr<UVCCamera>>             mCameras;
+    std::vector<std::unique_ptr<CameraFrameForwarder>>  mForwarders;
+    std::atomic<uint32_t>                               mActiveCamera{ 0 };
+    std::mutex                                          mMutex;
+    FrameRecorder                                       mRecorder;
+    FrameTap&                                           mFrameTap;
+    CameraStandby&                                      mStandby;
+
+    std::vector<ProcessingRule>                         mProcessingRules;
+    FrameScaler                                         mScaler;
+    FrameBufferPool                                     mProcessedFramePool;
+    bool                                                mProcessingEnabled{ false };
+    std::atomic<uint64_t>                               mProcessingFailures{ 0 };
+    std::atomic<Vuforia::Driver::CameraCallback*>       mFullFrameCallback{ nullptr };
+    DeliveryGovernor                                    mGovernor;
+
+    Vuforia::Driver::CameraCallback*                    mCallback{ nullptr };
+    Vuforia::Driver::CameraMode                         mCameraMode;
+    Vuforia::Driver::CameraMode                         mStreamMode;    ///< What the cameras stream, larger than mCameraMode when processing.
+    bool                                                mStarted{ false };
+    bool                                                mStreamInactiveCameras{ false };
+
+    std::thread                                         mWatchdogThread;
+    std::condition_variable                             mWatchdogCondition;
+    std::condition_variable                             mReconnectCondition;
+    uint32_t                                            mReconnectingCamera;    ///< Reconnected by the watchdog without the lock.
+    bool                                                mWatchdogRunning{ false };
+    std::chrono::milliseconds                           mStallTimeout{ 0 };
+    std::vector<std::chrono::steady_clock::time_point>  mLastReconnectAttempts;
 };
 
 #endif // _UVC_EXTERNAL_CAMERA_H_
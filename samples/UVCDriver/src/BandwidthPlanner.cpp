@@ -0,0 +1,134 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "BandwidthPlanner.h"
+
+#include <algorithm>
+
+#define MODULE_TAG "BandwidthPlanner"
+
+#include "DriverLog.h"
+
+namespace
+{
+// Size of the UVC payload header with all optional fields, sent in every packet
+const uint32_t PAYLOAD_HEADER_SIZE = 12;
+
+// Cameras don't spread a frame evenly over the frame interval, smaller packets than
+// this are too tight for most of them. Same floor as the Linux uvcvideo driver uses.
+const uint32_t MIN_HIGH_SPEED_PAYLOAD_SIZE = 1024;
+}
+
+const uint32_t BandwidthPlanner::HIGH_SPEED_BUS_BUDGET;
+const uint32_t BandwidthPlanner::FULL_SPEED_BUS_BUDGET;
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+uint32_t
+BandwidthPlanner::getRequiredPayloadSize(uint32_t frameSize, uint32_t fps, bool highSpeed)
+{
+    // One frame per second of headroom for a camera running slightly fast
+    uint64_t bytesPerSecond = static_cast<uint64_t>(frameSize) * (fps + 1);
+    uint64_t intervalsPerSecond = highSpeed ? 8000 : 1000;
+
+    uint64_t payloadSize = (bytesPerSecond + intervalsPerSecond - 1) / intervalsPerSecond + PAYLOAD_HEADER_SIZE;
+    if (highSpeed)
+    {
+        payloadSize = std::max<uint64_t>(payloadSize, MIN_HIGH_SPEED_PAYLOAD_SIZE);
+    }
+
+    return static_cast<uint32_t>(std::min<uint64_t>(payloadSize, UINT32_MAX));
+}
+
+const char*
+BandwidthPlanner::getConstraintName(Constraint constraint)
+{
+    switch (constraint)
+    {
+        case Constraint::NONE:
+            return "none";
+        case Constraint::ENDPOINT:
+            return "camera endpoint too small";
+        case Constraint::BUS:
+            return "bus bandwidth used by other cameras";
+    }
+    return "unknown";
+}
+
+void
+BandwidthPlanner::setBusBudget(uint32_t busBudget)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    mBusBudget = busBudget;
+}
+
+bool
+BandwidthPlanner::reserve(int deviceIndex, int busNumber, bool highSpeed, const std::vector<uint32_t>& altSettingSizes,
+                          uint32_t requiredSize, uint32_t& reservedSize, Constraint& constraint)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    // The smallest alternate setting that carries the stream
+    uint32_t altSettingSize = 0;
+    for (uint32_t size : altSettingSizes)
+    {
+        if (size >= requiredSize && (altSettingSize == 0 || size < altSettingSize))
+        {
+            altSettingSize = size;
+        }
+    }
+
+    if (altSettingSize == 0)
+    {
+        constraint = Constraint::ENDPOINT;
+        return false;
+    }
+
+    uint32_t busBudget = mBusBudget > 0 ? mBusBudget : (highSpeed ? HIGH_SPEED_BUS_BUDGET : FULL_SPEED_BUS_BUDGET);
+
+    // The camera's own earlier reservation is replaced, so it doesn't count
+    uint32_t busUsed = 0;
+    for (const Reservation& reservation : mReservations)
+    {
+        if (reservation.busNumber == busNumber && reservation.deviceIndex != deviceIndex)
+        {
+            busUsed += reservation.size;
+        }
+    }
+
+    if (busUsed + altSettingSize > busBudget)
+    {
+        LOG_D("Bus %d: %u of %u bytes per interval in use, %u more needed", busNumber, busUsed, busBudget, altSettingSize);
+        constraint = Constraint::BUS;
+        return false;
+    }
+
+    mReservations.erase(std::remove_if(mReservations.begin(), mReservations.end(),
+                                       [deviceIndex](const Reservation& reservation) { return reservation.deviceIndex == deviceIndex; }),
+                        mReservations.end());
+    mReservations.push_back(Reservation{ deviceIndex, busNumber, altSettingSize });
+
+    LOG_D("Bus %d: device %d reserved %u bytes per interval for %u needed, %u of %u in use",
+          busNumber, deviceIndex, altSettingSize, requiredSize, busUsed + altSettingSize, busBudget);
+
+    reservedSize = altSettingSize;
+    constraint = Constraint::NONE;
+    return true;
+}
+
+void
+BandwidthPlanner::release(int deviceIndex)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    mReservations.erase(std::remove_if(mReservations.begin(), mReservations.end(),
+                                       [deviceIndex](const Reservation& reservation) { return reservation.deviceIndex == deviceIndex; }),
+                        mReservations.end());
+}
@@ -0,0 +1,87 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "CameraControlCache.h"
+
+CameraControlCache::CameraControlCache()
+{
+}
+
+CameraControlCache::~CameraControlCache()
+{
+    stopRefresh();
+}
+
+void
+CameraControlCache::startRefresh(RefreshFunction refresh, std::chrono::milliseconds interval)
+{
+    stopRefresh();
+
+    std::lock_guard<std::mutex> lock(mRefreshMutex);
+    mRefresh = refresh;
+    mRefreshInterval = interval;
+    mRefreshRunning = true;
+    mRefreshThread = std::thread(&CameraControlCache::refreshLoop, this);
+}
+
+void
+CameraControlCache::stopRefresh()
+{
+    {
+        std::lock_guard<std::mutex> lock(mRefreshMutex);
+        mRefreshRunning = false;
+    }
+    mRefreshCondition.notify_all();
+
+    if (mRefreshThread.joinable())
+    {
+        mRefreshThread.join();
+    }
+}
+
+uint64_t
+CameraControlCache::getExposureValue() const
+{
+    return mExposureValue.load(std::memory_order_relaxed);
+}
+
+void
+CameraControlCache::setExposureValue(uint64_t exposureTime)
+{
+    mExposureValue.store(exposureTime, std::memory_order_relaxed);
+}
+
+float
+CameraControlCache::getFocusValue() const
+{
+    return mFocusValue.load(std::memory_order_relaxed);
+}
+
+void
+CameraControlCache::setFocusValue(float value)
+{
+    mFocusValue.store(value, std::memory_order_relaxed);
+}
+
+void
+CameraControlCache::refreshLoop()
+{
+    std::unique_lock<std::mutex> lock(mRefreshMutex);
+    while (mRefreshRunning)
+    {
+        // Wake up either when the interval has passed or when stopRefresh() is called
+        if (mRefreshCondition.wait_for(lock, mRefreshInterval, [this] { return !mRefreshRunning; }))
+        {
+            break;
+        }
+
+        // Don't hold the lock during the (slow) USB control transfers
+        lock.unlock();
+        mRefresh();
+        lock.lock();
+    }
+}
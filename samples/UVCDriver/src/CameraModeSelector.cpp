@@ -0,0 +1,83 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "CameraModeSelector.h"
+
+#include <cfloat>
+#include <cmath>
+
+namespace
+{
+// Area of the 640x480 mode that Vuforia is usually tracking with
+const float REFERENCE_AREA = 640.f * 480.f;
+
+// Penalty for modes that have to be decoded on the CPU before delivery
+const float COMPRESSED_PENALTY = 0.5f;
+}
+
+const uint64_t CameraModeSelector::USB2_ISOCHRONOUS_BANDWIDTH;
+
+CameraModeSelector::CameraModeSelector(const Preferences& preferences)
+    : mPreferences(preferences)
+{
+}
+
+bool
+CameraModeSelector::fitsBandwidth(const Vuforia::Driver::CameraMode& mode, uint32_t maxFrameSize) const
+{
+    if (mPreferences.bandwidthBudget == 0)
+    {
+        return true;
+    }
+
+    uint64_t requiredBandwidth = static_cast<uint64_t>(maxFrameSize) * mode.fps;
+    return requiredBandwidth <= mPreferences.bandwidthBudget;
+}
+
+float
+CameraModeSelector::score(const Vuforia::Driver::CameraMode& mode, uint32_t maxFrameSize, bool compressed) const
+{
+    if (!fitsBandwidth(mode, maxFrameSize) || mode.fps == 0 || mode.width == 0 || mode.height == 0)
+    {
+        return -FLT_MAX;
+    }
+
+    float score = 0.f;
+
+    if (mPreferences.targetFps > 0)
+    {
+        // Falling short of the target frame rate is worse than exceeding it
+        float ratio = static_cast<float>(mode.fps) / mPreferences.targetFps;
+        score -= (ratio < 1.f) ? (1.f - ratio) * 4.f : (ratio - 1.f);
+    }
+    else
+    {
+        score += mode.fps / 60.f;
+    }
+
+    float area = static_cast<float>(mode.width) * mode.height;
+    if (mPreferences.targetWidth > 0 && mPreferences.targetHeight > 0)
+    {
+        float targetArea = static_cast<float>(mPreferences.targetWidth) * mPreferences.targetHeight;
+        float aspectRatio = static_cast<float>(mode.width) / mode.height;
+        float targetAspectRatio = static_cast<float>(mPreferences.targetWidth) / mPreferences.targetHeight;
+
+        score -= std::fabs(std::log2(area / targetArea)) * 2.f;
+        score -= std::fabs(aspectRatio - targetAspectRatio);
+    }
+    else
+    {
+        score += std::log2(area / REFERENCE_AREA) * 4.f;
+    }
+
+    if (compressed)
+    {
+        score -= COMPRESSED_PENALTY;
+    }
+
+    return score;
+}
@@ -0,0 +1,133 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "ClockRecovery.h"
+
+#include <cfloat>
+#include <cmath>
+
+namespace
+{
+// The fitted clock rate may deviate this much from the nominal dwClockFrequency
+// before it is considered garbage. Real crystals are off by ~100 ppm.
+const double MAX_RATE_DEVIATION = 0.01;
+}
+
+ClockRecovery::ClockRecovery()
+{
+}
+
+void
+ClockRecovery::reset(uint32_t deviceClockFrequency)
+{
+    mSampleCount = 0;
+    mNextSample = 0;
+    mDeviceClockFrequency = deviceClockFrequency;
+    mLastScr = 0;
+    mUnwrappedScr = 0;
+    mReferenceDeviceTicks = 0;
+    mReferenceHostTimeNs = 0;
+    mNsPerTick = deviceClockFrequency > 0 ? 1e9 / deviceClockFrequency : 0.0;
+    mOffsetNs = 0.0;
+}
+
+void
+ClockRecovery::addSample(uint32_t scr, uint64_t hostTimeNs)
+{
+    if (mSampleCount == 0)
+    {
+        mUnwrappedScr = scr;
+    }
+    else
+    {
+        // The signed difference handles the 32-bit wrap around
+        mUnwrappedScr += static_cast<int32_t>(scr - mLastScr);
+    }
+    mLastScr = scr;
+
+    mSamples[mNextSample].deviceTicks = mUnwrappedScr;
+    mSamples[mNextSample].hostTimeNs = hostTimeNs;
+    mNextSample = (mNextSample + 1) % WINDOW_SIZE;
+    if (mSampleCount < WINDOW_SIZE)
+    {
+        mSampleCount++;
+    }
+
+    fit();
+}
+
+bool
+ClockRecovery::toHostTime(uint32_t pts, uint64_t& hostTimeNs) const
+{
+    if (mSampleCount < MIN_SAMPLES || mNsPerTick <= 0.0)
+    {
+        return false;
+    }
+
+    // The PTS is sampled before the most recent SCR, unwrap it relative to that
+    int64_t ptsTicks = mUnwrappedScr - static_cast<int32_t>(mLastScr - pts);
+
+    double deltaNs = mOffsetNs + mNsPerTick * static_cast<double>(ptsTicks - mReferenceDeviceTicks);
+    int64_t hostTime = static_cast<int64_t>(mReferenceHostTimeNs) + static_cast<int64_t>(std::llround(deltaNs));
+    if (hostTime <= 0)
+    {
+        return false;
+    }
+
+    hostTimeNs = static_cast<uint64_t>(hostTime);
+    return true;
+}
+
+void
+ClockRecovery::fit()
+{
+    // Work relative to the newest sample to keep the numbers small
+    const Sample& reference = mSamples[(mNextSample + WINDOW_SIZE - 1) % WINDOW_SIZE];
+    mReferenceDeviceTicks = reference.deviceTicks;
+    mReferenceHostTimeNs = reference.hostTimeNs;
+
+    double nominalNsPerTick = mDeviceClockFrequency > 0 ? 1e9 / mDeviceClockFrequency : 0.0;
+
+    // Least squares fit of the clock rate
+    double meanX = 0.0;
+    double meanY = 0.0;
+    for (uint32_t idx = 0; idx < mSampleCount; idx++)
+    {
+        meanX += static_cast<double>(mSamples[idx].deviceTicks - mReferenceDeviceTicks);
+        meanY += static_cast<double>(static_cast<int64_t>(mSamples[idx].hostTimeNs - mReferenceHostTimeNs));
+    }
+    meanX /= mSampleCount;
+    meanY /= mSampleCount;
+
+    double covariance = 0.0;
+    double variance = 0.0;
+    for (uint32_t idx = 0; idx < mSampleCount; idx++)
+    {
+        double x = static_cast<double>(mSamples[idx].deviceTicks - mReferenceDeviceTicks) - meanX;
+        double y = static_cast<double>(static_cast<int64_t>(mSamples[idx].hostTimeNs - mReferenceHostTimeNs)) - meanY;
+        covariance += x * y;
+        variance += x * x;
+    }
+
+    double nsPerTick = variance > 0.0 ? covariance / variance : nominalNsPerTick;
+    if (nominalNsPerTick > 0.0 && std::fabs(nsPerTick / nominalNsPerTick - 1.0) > MAX_RATE_DEVIATION)
+    {
+        // Too few or too noisy samples, trust the nominal rate instead
+        nsPerTick = nominalNsPerTick;
+    }
+    mNsPerTick = nsPerTick;
+
+    // Latency only ever delays a sample, so the offset is the lower envelope of the samples
+    double offset = DBL_MAX;
+    for (uint32_t idx = 0; idx < mSampleCount; idx++)
+    {
+        double x = static_cast<double>(mSamples[idx].deviceTicks - mReferenceDeviceTicks);
+        double y = static_cast<double>(static_cast<int64_t>(mSamples[idx].hostTimeNs - mReferenceHostTimeNs));
+        offset = std::fmin(offset, y - mNsPerTick * x);
+    }
+    mOffsetNs = offset;
+}
@@ -0,0 +1,192 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "ControlCommandQueue.h"
+
+#include <algorithm>
+#include <utility>
+
+#define MODULE_TAG "ControlCommandQueue"
+#include "DriverLog.h"
+
+ControlCommandQueue::ControlCommandQueue()
+{
+}
+
+ControlCommandQueue::~ControlCommandQueue()
+{
+    stop();
+}
+
+void
+ControlCommandQueue::start()
+{
+    stop();
+
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    // One entry per control at most, so the order never grows in submit(). Copying the
+    // functions and remembering the replaced completions may still allocate.
+    mOrder.reserve(static_cast<size_t>(Control::COUNT));
+    mStatistics = Statistics();
+    mRunning = true;
+    mThread = std::thread(&ControlCommandQueue::workerLoop, this);
+}
+
+void
+ControlCommandQueue::stop()
+{
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mRunning = false;
+    }
+    mCondition.notify_all();
+
+    if (mThread.joinable())
+    {
+        mThread.join();
+    }
+
+    // Every command gets its completion, also the ones that never ran
+    std::vector<CompletionFunction> cancelled;
+    std::vector<CompletionFunction> superseded;
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        for (Control control : mOrder)
+        {
+            Command& command = mCommands[static_cast<int>(control)];
+            if (command.completion)
+            {
+                cancelled.push_back(command.completion);
+            }
+            command = Command();
+        }
+        mOrder.clear();
+        superseded.swap(mSupersededCompletions);
+    }
+
+    for (CompletionFunction& completion : superseded)
+    {
+        completion(Result::SUPERSEDED);
+    }
+
+    for (CompletionFunction& completion : cancelled)
+    {
+        completion(Result::CANCELLED);
+    }
+}
+
+bool
+ControlCommandQueue::submit(Control control, ApplyFunction apply, ConfirmFunction confirm, CompletionFunction completion)
+{
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        if (!mRunning)
+        {
+            return false;
+        }
+
+        mStatistics.submitted++;
+
+        Command& command = mCommands[static_cast<int>(control)];
+        if (command.pending)
+        {
+            // Only the latest value matters, the replaced command is reported by the worker
+            mStatistics.coalesced++;
+            if (command.completion)
+            {
+                mSupersededCompletions.push_back(std::move(command.completion));
+            }
+
+            // Moves to the back, so that it still runs after the commands submitted before it
+            mOrder.erase(std::find(mOrder.begin(), mOrder.end(), control));
+        }
+
+        command.pending = true;
+        command.apply = std::move(apply);
+        command.confirm = std::move(confirm);
+        command.completion = std::move(completion);
+        mOrder.push_back(control);
+    }
+
+    mCondition.notify_one();
+    return true;
+}
+
+bool
+ControlCommandQueue::isPending(Control control)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mCommands[static_cast<int>(control)].pending;
+}
+
+ControlCommandQueue::Statistics
+ControlCommandQueue::getStatistics()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mStatistics;
+}
+
+void
+ControlCommandQueue::workerLoop()
+{
+    std::unique_lock<std::mutex> lock(mMutex);
+    while (true)
+    {
+        mCondition.wait(lock, [this] { return !mOrder.empty() || !mSupersededCompletions.empty() || !mRunning; });
+        if (!mRunning)
+        {
+            break;
+        }
+
+        // The replaced commands were submitted before the pending ones, so they are reported first
+        if (!mSupersededCompletions.empty())
+        {
+            std::vector<CompletionFunction> superseded;
+            superseded.swap(mSupersededCompletions);
+
+            lock.unlock();
+            for (CompletionFunction& completion : superseded)
+            {
+                completion(Result::SUPERSEDED);
+            }
+            lock.lock();
+            continue;
+        }
+
+        Control control = mOrder.front();
+        mOrder.erase(mOrder.begin());
+
+        Command command = mCommands[static_cast<int>(control)];
+        mCommands[static_cast<int>(control)] = Command();
+
+        // Don't hold the lock during the (slow) USB control transfers
+        lock.unlock();
+
+        Result result = command.apply() ? Result::SUCCESS : Result::FAILED;
+        if (result == Result::SUCCESS && command.confirm && !command.confirm())
+        {
+            result = Result::NOT_CONFIRMED;
+        }
+
+        if (command.completion)
+        {
+            command.completion(result);
+        }
+
+        lock.lock();
+
+        if (result == Result::SUCCESS)
+        {
+            mStatistics.applied++;
+        }
+        else
+        {
+            mStatistics.failed++;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "DeliveryGovernor.h"
+
+#include <algorithm>
+
+#define MODULE_TAG "DeliveryGovernor"
+
+#include "DriverLog.h"
+
+namespace
+{
+// Weight of a new consumer time in the moving average
+const double CONSUMER_TIME_WEIGHT = 1.0 / 8.0;
+
+// The adaptive interval only follows changes larger than this, so it doesn't jitter
+const double ADAPTIVE_HYSTERESIS = 0.1;
+
+// Largest step the adaptive interval shrinks by per delivered frame
+const double ADAPTIVE_SPEED_UP_STEP = 0.05;
+}
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+void
+DeliveryGovernor::configure(const Settings& settings, uint32_t cameraFps)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    mSettings = settings;
+    mSettings.decimation = std::max(settings.decimation, 1u);
+    mSettings.maxLoad = std::min(std::max(settings.maxLoad, 1u), 100u);
+    mCameraInterval = cameraFps > 0 ? 1e9 / cameraFps : 0.0;
+
+    // Decimation and the target rate both limit the rate, the lower one wins
+    mBaseInterval = mCameraInterval * mSettings.decimation;
+    if (settings.targetFps > 0)
+    {
+        mBaseInterval = std::max(mBaseInterval, 1e9 / settings.targetFps);
+    }
+    if (mBaseInterval <= mCameraInterval)
+    {
+        mBaseInterval = 0.0;
+    }
+
+    mMaxInterval = std::max(mBaseInterval, settings.minFps > 0 ? 1e9 / settings.minFps : 1e9);
+    mInterval = mBaseInterval;
+    mNextDelivery = 0;
+    mConsumerTime = 0.0;
+    mOffered = 0;
+    mDelivered = 0;
+
+    if (mBaseInterval > 0.0 || mSettings.adaptive)
+    {
+        LOG_I("Delivering %s%.1f of %u fps%s", mSettings.adaptive ? "at most " : "",
+              mBaseInterval > 0.0 ? 1e9 / mBaseInterval : static_cast<double>(cameraFps), cameraFps,
+              mSettings.adaptive ? ", adapting to the consumer" : "");
+    }
+}
+
+bool
+DeliveryGovernor::isLimiting()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mBaseInterval > 0.0 || mSettings.adaptive;
+}
+
+bool
+DeliveryGovernor::shouldDeliver(uint64_t timestamp)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    mOffered++;
+
+    if (mInterval <= 0.0)
+    {
+        mDelivered++;
+        return true;
+    }
+
+    // A frame up to half a camera interval early still counts as on time
+    uint64_t tolerance = static_cast<uint64_t>(mCameraInterval / 2);
+    if (mNextDelivery != 0 && timestamp + tolerance < mNextDelivery)
+    {
+        return false;
+    }
+
+    // Scheduled from the previous slot rather than the frame, so the rate doesn't drift.
+    // After a gap, e.g. the stream stalled, the schedule starts over from this frame.
+    uint64_t interval = static_cast<uint64_t>(mInterval);
+    if (mNextDelivery == 0 || timestamp > mNextDelivery + interval)
+    {
+        mNextDelivery = timestamp;
+    }
+    mNextDelivery += interval;
+
+    mDelivered++;
+    return true;
+}
+
+void
+DeliveryGovernor::recordConsumerTime(uint64_t duration)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    mConsumerTime = mConsumerTime > 0.0 ? mConsumerTime + (duration - mConsumerTime) * CONSUMER_TIME_WEIGHT : duration;
+
+    if (!mSettings.adaptive)
+    {
+        return;
+    }
+
+    // The interval in which the consumer uses maxLoad percent of the time
+    double desiredInterval = mConsumerTime * 100.0 / mSettings.maxLoad;
+    desiredInterval = std::min(std::max(desiredInterval, mBaseInterval), mMaxInterval);
+    double currentInterval = std::max(mInterval, mCameraInterval);
+
+    // The configured rate is as fast as it gets, so speeding up towards it doesn't wait for the hysteresis
+    double fastestInterval = std::max(mBaseInterval, mCameraInterval);
+    bool backToFastest = desiredInterval <= fastestInterval && currentInterval > fastestInterval;
+
+    if (desiredInterval > currentInterval * (1.0 + ADAPTIVE_HYSTERESIS))
+    {
+        mInterval = desiredInterval;
+        LOG_D("Consumer takes %.1f ms, delivering at %.1f fps", mConsumerTime / 1e6, 1e9 / mInterval);
+    }
+    else if (desiredInterval < currentInterval * (1.0 - ADAPTIVE_HYSTERESIS) || backToFastest)
+    {
+        mInterval = std::max(desiredInterval, currentInterval * (1.0 - ADAPTIVE_SPEED_UP_STEP));
+
+        // Back at the configured rate, which may be every frame
+        if (mInterval <= mBaseInterval || mInterval <= mCameraInterval)
+        {
+            mInterval = mBaseInterval;
+        }
+    }
+}
+
+DeliveryGovernor::Statistics
+DeliveryGovernor::getStatistics()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    Statistics statistics;
+    statistics.offered = mOffered;
+    statistics.delivered = mDelivered;
+    statistics.deliveryFps = mInterval > 0.0 ? static_cast<float>(1e9 / mInterval) : 0.f;
+    statistics.consumerTimeMs = static_cast<float>(mConsumerTime / 1e6);
+    return statistics;
+}
@@ -0,0 +1,351 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "DeviceProfile.h"
+
+#include <cerrno>
+#include <cstdio>
+#include <cstring>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#define MODULE_TAG "DeviceProfile"
+
+#include "DriverLog.h"
+
+namespace
+{
+const uint32_t MAGIC = 0x50435655; // "UVCP"
+const uint32_t VERSION = 1;
+
+// Profiles are a few kilobytes, anything much larger is not a profile
+const size_t MAX_FILE_SIZE = 1024 * 1024;
+
+const uint32_t RANGE_EXPOSURE_TIME = 1 << 0;
+const uint32_t RANGE_FOCUS = 1 << 1;
+
+struct FileHeader
+{
+    uint32_t    magic;
+    uint32_t    version;
+    uint16_t    vendorId;
+    uint16_t    productId;
+    uint16_t    bcdDevice;
+    uint16_t    serialNumberSize;
+    uint32_t    modeCount;
+    uint32_t    inputTerminalControls;
+    uint32_t    processingUnitControls;
+    uint32_t    exposureModes;
+    uint32_t    ranges;             ///< RANGE_ bits of the valid ranges.
+    int32_t     exposureTimeMin;
+    int32_t     exposureTimeMax;
+    int32_t     focusMin;
+    int32_t     focusMax;
+    uint32_t    streamWidth;
+    uint32_t    streamHeight;
+    uint32_t    streamFps;
+    uint32_t    streamFormat;
+    uint32_t    streamSourceFormat;
+    uint32_t    streamControlSize;
+    uint32_t    reserved;
+};
+
+struct ModeRecord
+{
+    uint32_t    width;
+    uint32_t    height;
+    uint32_t    fps;
+    uint32_t    format;
+    uint32_t    sourceFormat;
+    uint32_t    maxFrameSize;
+};
+
+static_assert(sizeof(FileHeader) == 80, "FileHeader must not have padding");
+static_assert(sizeof(ModeRecord) == 24, "ModeRecord must not have padding");
+
+// FNV-1a, only meant to catch files that were cut short or overwritten
+uint32_t
+getChecksum(const uint8_t* data, size_t size)
+{
+    uint32_t hash = 2166136261u;
+    for (size_t idx = 0; idx < size; idx++)
+    {
+        hash = (hash ^ data[idx]) * 16777619u;
+    }
+    return hash;
+}
+
+void
+append(std::vector<uint8_t>& buffer, const void* data, size_t size)
+{
+    const uint8_t* bytes = static_cast<const uint8_t*>(data);
+    buffer.insert(buffer.end(), bytes, bytes + size);
+}
+
+bool
+readFile(const std::string& path, std::vector<uint8_t>& data)
+{
+    int file = ::open(path.c_str(), O_RDONLY | O_CLOEXEC);
+    if (file < 0)
+    {
+        return false;
+    }
+
+    struct stat fileStat;
+    bool result = fstat(file, &fileStat) == 0 && fileStat.st_size > 0 && static_cast<size_t>(fileStat.st_size) <= MAX_FILE_SIZE;
+    if (result)
+    {
+        data.resize(fileStat.st_size);
+        size_t offset = 0;
+        while (offset < data.size())
+        {
+            ssize_t bytesRead = ::read(file, data.data() + offset, data.size() - offset);
+            if (bytesRead <= 0)
+            {
+                result = false;
+                break;
+            }
+            offset += bytesRead;
+        }
+    }
+
+    ::close(file);
+    return result;
+}
+
+bool
+writeFile(const std::string& path, const std::vector<uint8_t>& data)
+{
+    int file = ::open(path.c_str(), O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0644);
+    if (file < 0)
+    {
+        LOG_E("Failed to create device profile %s: %s", path.c_str(), strerror(errno));
+        return false;
+    }
+
+    size_t offset = 0;
+    while (offset < data.size())
+    {
+        ssize_t bytesWritten = ::write(file, data.data() + offset, data.size() - offset);
+        if (bytesWritten < 0 && errno == EINTR)
+        {
+            continue;
+        }
+        if (bytesWritten <= 0)
+        {
+            LOG_E("Failed to write device profile %s: %s", path.c_str(), strerror(errno));
+            ::close(file);
+            return false;
+        }
+        offset += bytesWritten;
+    }
+
+    // Flushed before the rename, so that a crash leaves either the old or the new profile
+    bool result = fsync(file) == 0;
+    ::close(file);
+    return result;
+}
+}
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+std::string
+DeviceProfile::getFileName(const Key& key)
+{
+    char name[64];
+    snprintf(name, sizeof(name), "uvc-%04x-%04x-%04x", key.vendorId, key.productId, key.bcdDevice);
+
+    // Serial numbers are free text, keep the characters that are safe in a file name.
+    // Serial numbers that end up with the same name are told apart by load().
+    std::string fileName(name);
+    if (!key.serialNumber.empty())
+    {
+        fileName += '-';
+        for (char c : key.serialNumber.substr(0, 64))
+        {
+            bool safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+            fileName += safe ? c : '_';
+        }
+    }
+
+    return fileName + ".profile";
+}
+
+bool
+DeviceProfile::load(const std::string& directory, const Key& profileKey)
+{
+    key = profileKey;
+    clear();
+
+    std::string path = directory + "/" + getFileName(profileKey);
+    std::vector<uint8_t> data;
+    if (!readFile(path, data))
+    {
+        LOG_D("No device profile at %s", path.c_str());
+        return false;
+    }
+
+    FileHeader header;
+    if (data.size() < sizeof(header) + sizeof(uint32_t))
+    {
+        LOG_E("Device profile %s is truncated", path.c_str());
+        return false;
+    }
+    memcpy(&header, data.data(), sizeof(header));
+
+    if (header.magic != MAGIC || header.version != VERSION)
+    {
+        LOG_I("Device profile %s has an unknown version, ignoring it", path.c_str());
+        return false;
+    }
+
+    size_t expectedSize = sizeof(header) + header.serialNumberSize + static_cast<size_t>(header.modeCount) * sizeof(ModeRecord) +
+                          header.streamControlSize + sizeof(uint32_t);
+    uint32_t checksum = 0;
+    if (data.size() == expectedSize)
+    {
+        memcpy(&checksum, data.data() + data.size() - sizeof(checksum), sizeof(checksum));
+    }
+    if (data.size() != expectedSize || checksum != getChecksum(data.data(), data.size() - sizeof(checksum)))
+    {
+        LOG_E("Device profile %s is corrupt, ignoring it", path.c_str());
+        return false;
+    }
+
+    const uint8_t* read = data.data() + sizeof(header);
+    std::string serialNumber(reinterpret_cast<const char*>(read), header.serialNumberSize);
+    read += header.serialNumberSize;
+
+    if (header.vendorId != profileKey.vendorId || header.productId != profileKey.productId ||
+        header.bcdDevice != profileKey.bcdDevice || serialNumber != profileKey.serialNumber)
+    {
+        LOG_D("Device profile %s belongs to another camera", path.c_str());
+        return false;
+    }
+
+    modes.resize(header.modeCount);
+    for (Mode& mode : modes)
+    {
+        ModeRecord record;
+        memcpy(&record, read, sizeof(record));
+        read += sizeof(record);
+
+        mode.mode.width = record.width;
+        mode.mode.height = record.height;
+        mode.mode.fps = record.fps;
+        mode.mode.format = static_cast<Vuforia::Driver::PixelFormat>(record.format);
+        mode.sourceFormat = record.sourceFormat;
+        mode.maxFrameSize = record.maxFrameSize;
+    }
+
+    inputTerminalControls = header.inputTerminalControls;
+    processingUnitControls = header.processingUnitControls;
+    exposureModes = static_cast<uint8_t>(header.exposureModes);
+    exposureTime.valid = (header.ranges & RANGE_EXPOSURE_TIME) != 0;
+    exposureTime.min = header.exposureTimeMin;
+    exposureTime.max = header.exposureTimeMax;
+    focus.valid = (header.ranges & RANGE_FOCUS) != 0;
+    focus.min = header.focusMin;
+    focus.max = header.focusMax;
+
+    streamMode.width = header.streamWidth;
+    streamMode.height = header.streamHeight;
+    streamMode.fps = header.streamFps;
+    streamMode.format = static_cast<Vuforia::Driver::PixelFormat>(header.streamFormat);
+    streamSourceFormat = header.streamSourceFormat;
+    streamControl.assign(read, read + header.streamControlSize);
+
+    LOG_D("Loaded device profile %s with %u camera modes", path.c_str(), header.modeCount);
+    return true;
+}
+
+bool
+DeviceProfile::save(const std::string& directory) const
+{
+    FileHeader header;
+    memset(&header, 0, sizeof(header));
+    header.magic = MAGIC;
+    header.version = VERSION;
+    header.vendorId = key.vendorId;
+    header.productId = key.productId;
+    header.bcdDevice = key.bcdDevice;
+    header.serialNumberSize = static_cast<uint16_t>(key.serialNumber.size());
+    header.modeCount = static_cast<uint32_t>(modes.size());
+    header.inputTerminalControls = inputTerminalControls;
+    header.processingUnitControls = processingUnitControls;
+    header.exposureModes = exposureModes;
+    header.ranges = (exposureTime.valid ? RANGE_EXPOSURE_TIME : 0) | (focus.valid ? RANGE_FOCUS : 0);
+    header.exposureTimeMin = exposureTime.min;
+    header.exposureTimeMax = exposureTime.max;
+    header.focusMin = focus.min;
+    header.focusMax = focus.max;
+    header.streamWidth = streamMode.width;
+    header.streamHeight = streamMode.height;
+    header.streamFps = streamMode.fps;
+    header.streamFormat = static_cast<uint32_t>(streamMode.format);
+    header.streamSourceFormat = streamSourceFormat;
+    header.streamControlSize = static_cast<uint32_t>(streamControl.size());
+
+    std::vector<uint8_t> data;
+    data.reserve(sizeof(header) + key.serialNumber.size() + modes.size() * sizeof(ModeRecord) + streamControl.size() + sizeof(uint32_t));
+    append(data, &header, sizeof(header));
+    append(data, key.serialNumber.data(), key.serialNumber.size());
+
+    for (const Mode& mode : modes)
+    {
+        ModeRecord record;
+        record.width = mode.mode.width;
+        record.height = mode.mode.height;
+        record.fps = mode.mode.fps;
+        record.format = static_cast<uint32_t>(mode.mode.format);
+        record.sourceFormat = mode.sourceFormat;
+        record.maxFrameSize = mode.maxFrameSize;
+        append(data, &record, sizeof(record));
+    }
+
+    append(data, streamControl.data(), streamControl.size());
+
+    uint32_t checksum = getChecksum(data.data(), data.size());
+    append(data, &checksum, sizeof(checksum));
+
+    // Written next to the profile and renamed over it, so a reader never sees half a file
+    std::string path = directory + "/" + getFileName(key);
+    std::string temporaryPath = path + ".tmp";
+    if (!writeFile(temporaryPath, data))
+    {
+        unlink(temporaryPath.c_str());
+        return false;
+    }
+
+    if (rename(temporaryPath.c_str(), path.c_str()) != 0)
+    {
+        LOG_E("Failed to replace device profile %s: %s", path.c_str(), strerror(errno));
+        unlink(temporaryPath.c_str());
+        return false;
+    }
+
+    LOG_D("Saved device profile %s", path.c_str());
+    return true;
+}
+
+void
+DeviceProfile::clear()
+{
+    modes.clear();
+    inputTerminalControls = 0;
+    processingUnitControls = 0;
+    exposureModes = 0;
+    exposureTime = ControlRange();
+    focus = ControlRange();
+    streamMode = Vuforia::Driver::CameraMode();
+    streamSourceFormat = 0;
+    streamControl.clear();
+}
@@ -0,0 +1,169 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameBufferPool.h"
+
+#include <algorithm>
+#include <cstdlib>
+
+#define MODULE_TAG "FrameBufferPool"
+#include "DriverLog.h"
+
+const uint32_t FrameBufferPool::ALIGNMENT;
+
+FrameBufferPool::FrameBufferPool()
+{
+}
+
+FrameBufferPool::~FrameBufferPool()
+{
+    if (!deallocate())
+    {
+        LOG_E("Frame buffer pool destroyed with buffers in use");
+    }
+}
+
+uint32_t
+FrameBufferPool::getFrameSize(const Vuforia::Driver::CameraMode& cameraMode)
+{
+    switch (cameraMode.format)
+    {
+        case Vuforia::Driver::PixelFormat::NV12:
+        case Vuforia::Driver::PixelFormat::NV21:
+            return cameraMode.width * cameraMode.height * 3 / 2;
+        default:
+            // YUYV, and what the decoders produce for everything else
+            return cameraMode.width * cameraMode.height * 2;
+    }
+}
+
+bool
+FrameBufferPool::allocate(const Vuforia::Driver::CameraMode& cameraMode, uint32_t capacity)
+{
+    uint32_t frameSize = getFrameSize(cameraMode);
+    if (frameSize == 0 || capacity == 0)
+    {
+        LOG_E("Invalid frame buffer pool parameters: frame size %u, capacity %u", frameSize, capacity);
+        return false;
+    }
+
+    // Every buffer starts on an aligned address
+    uint32_t bufferSize = (frameSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    if (mFreeBuffers.size() != mCapacity)
+    {
+        LOG_E("Failed to allocate frame buffer pool, %u buffers are still in use", static_cast<uint32_t>(mCapacity - mFreeBuffers.size()));
+        return false;
+    }
+
+    mStatistics = Statistics();
+    mStatistics.capacity = capacity;
+
+    if (mMemory != nullptr && mBufferSize == bufferSize && mCapacity == capacity)
+    {
+        return true;
+    }
+
+    free(mMemory);
+    mMemory = nullptr;
+    mBuffers.reset();
+    mFreeBuffers.clear();
+    mCapacity = 0;
+
+    void* memory = nullptr;
+    if (posix_memalign(&memory, ALIGNMENT, static_cast<size_t>(bufferSize) * capacity) != 0)
+    {
+        LOG_E("Failed to allocate %u frame buffers of %u bytes", capacity, bufferSize);
+        mStatistics.capacity = 0;
+        return false;
+    }
+
+    mMemory = static_cast<uint8_t*>(memory);
+    mBuffers.reset(new Buffer[capacity]);
+    mFreeBuffers.reserve(capacity);
+    for (uint32_t idx = 0; idx < capacity; idx++)
+    {
+        mBuffers[idx].mData = mMemory + static_cast<size_t>(bufferSize) * idx;
+        mBuffers[idx].mSize = frameSize;
+        mBuffers[idx].mIndex = idx;
+        mFreeBuffers.push_back(idx);
+    }
+
+    mBufferSize = bufferSize;
+    mCapacity = capacity;
+
+    LOG_D("Frame buffer pool allocated: %u buffers of %u bytes", capacity, frameSize);
+    return true;
+}
+
+bool
+FrameBufferPool::deallocate()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    if (mFreeBuffers.size() != mCapacity)
+    {
+        return false;
+    }
+
+    free(mMemory);
+    mMemory = nullptr;
+    mBuffers.reset();
+    mFreeBuffers.clear();
+    mBufferSize = 0;
+    mCapacity = 0;
+    return true;
+}
+
+FrameBufferPool::Buffer*
+FrameBufferPool::acquire()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    if (mFreeBuffers.empty())
+    {
+        mStatistics.exhausted++;
+        return nullptr;
+    }
+
+    Buffer* buffer = &mBuffers[mFreeBuffers.back()];
+    mFreeBuffers.pop_back();
+    buffer->mRefCount.store(1, std::memory_order_relaxed);
+
+    mStatistics.acquired++;
+    mStatistics.peakInUse = std::max(mStatistics.peakInUse, static_cast<uint32_t>(mCapacity - mFreeBuffers.size()));
+    return buffer;
+}
+
+void
+FrameBufferPool::retain(Buffer* buffer)
+{
+    buffer->mRefCount.fetch_add(1, std::memory_order_relaxed);
+}
+
+void
+FrameBufferPool::release(Buffer* buffer)
+{
+    // Whoever drops the last reference has seen all writes to the buffer
+    if (buffer->mRefCount.fetch_sub(1, std::memory_order_acq_rel) != 1)
+    {
+        return;
+    }
+
+    std::lock_guard<std::mutex> lock(mMutex);
+    // Reserved for the capacity, never allocates
+    mFreeBuffers.push_back(buffer->mIndex);
+}
+
+FrameBufferPool::Statistics
+FrameBufferPool::getStatistics()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mStatistics;
+}
@@ -0,0 +1,254 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameQueue.h"
+
+#include <chrono>
+#include <cstring>
+
+#define MODULE_TAG "FrameQueue"
+#include "DriverLog.h"
+
+namespace
+{
+// With the BLOCK policy the producer never waits longer than this for a free
+// buffer, so that a stuck consumer can't stall the USB transfers indefinitely.
+const std::chrono::milliseconds BLOCK_TIMEOUT(100);
+}
+
+FrameQueue::FrameQueue()
+{
+}
+
+FrameQueue::~FrameQueue()
+{
+    stop();
+}
+
+bool
+FrameQueue::start(uint32_t capacity, uint32_t maxFrameSize, OverflowPolicy policy, Vuforia::Driver::CameraCallback* cb)
+{
+    stop();
+
+    if (capacity == 0 || maxFrameSize == 0 || cb == nullptr)
+    {
+        LOG_E("Invalid frame queue parameters: capacity %u, max frame size %u", capacity, maxFrameSize);
+        return false;
+    }
+
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    // All memory is allocated here, push() and the delivery thread never allocate
+    mSlots.resize(capacity);
+    mFreeSlots.clear();
+    mFreeSlots.reserve(capacity);
+    for (uint32_t idx = 0; idx < capacity; idx++)
+    {
+        mSlots[idx].buffer.resize(maxFrameSize);
+        mFreeSlots.push_back(idx);
+    }
+
+    mQueuedSlots.assign(capacity, 0);
+    mQueueHead = 0;
+    mQueueCount = 0;
+
+    mPolicy = policy;
+    mCallback = cb;
+    mStatistics = Statistics();
+    mRunning = true;
+    mDeliveryThread = std::thread(&FrameQueue::deliveryLoop, this);
+
+    LOG_D("Frame queue started: capacity %u, buffer size %u, policy %d", capacity, maxFrameSize, static_cast<int>(policy));
+    return true;
+}
+
+void
+FrameQueue::stop()
+{
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mRunning = false;
+    }
+    mFrameQueuedCondition.notify_all();
+    mSlotFreedCondition.notify_all();
+
+    if (mDeliveryThread.joinable())
+    {
+        mDeliveryThread.join();
+    }
+
+    // Give the buffers of the discarded frames back to their pools
+    std::lock_guard<std::mutex> lock(mMutex);
+    for (Slot& slot : mSlots)
+    {
+        releasePoolBuffer(slot);
+    }
+}
+
+bool
+FrameQueue::push(const Vuforia::Driver::CameraFrame& frame)
+{
+    return pushFrame(frame, nullptr, nullptr);
+}
+
+bool
+FrameQueue::push(const Vuforia::Driver::CameraFrame& frame, FrameBufferPool& pool, FrameBufferPool::Buffer* buffer)
+{
+    return pushFrame(frame, &pool, buffer);
+}
+
+FrameQueue::Statistics
+FrameQueue::getStatistics()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mStatistics;
+}
+
+bool
+FrameQueue::pushFrame(const Vuforia::Driver::CameraFrame& frame, FrameBufferPool* pool, FrameBufferPool::Buffer* poolBuffer)
+{
+    std::unique_lock<std::mutex> lock(mMutex);
+    if (!mRunning)
+    {
+        return false;
+    }
+
+    mStatistics.pushed++;
+
+    if (pool == nullptr && frame.bufferSize > mSlots[0].buffer.size())
+    {
+        LOG_E("Frame of %u bytes doesn't fit into the queue buffers of %u bytes", frame.bufferSize, static_cast<uint32_t>(mSlots[0].buffer.size()));
+        mStatistics.overruns++;
+        return false;
+    }
+
+    uint32_t slotIndex = 0;
+    if (!acquireSlot(lock, slotIndex))
+    {
+        mStatistics.overruns++;
+        return false;
+    }
+
+    // The slot is owned by this thread now, so the copy can be done without the lock
+    lock.unlock();
+
+    Slot& slot = mSlots[slotIndex];
+    slot.frame = frame;
+    if (pool != nullptr)
+    {
+        // The frame stays in the pool buffer, the queue just holds on to it
+        pool->retain(poolBuffer);
+        slot.pool = pool;
+        slot.poolBuffer = poolBuffer;
+    }
+    else
+    {
+        memcpy(slot.buffer.data(), frame.buffer, frame.bufferSize);
+        slot.frame.buffer = slot.buffer.data();
+    }
+
+    lock.lock();
+
+    if (!mRunning)
+    {
+        releasePoolBuffer(slot);
+        mFreeSlots.push_back(slotIndex);
+        return false;
+    }
+
+    mQueuedSlots[(mQueueHead + mQueueCount) % mQueuedSlots.size()] = slotIndex;
+    mQueueCount++;
+
+    lock.unlock();
+    mFrameQueuedCondition.notify_one();
+
+    return true;
+}
+
+bool
+FrameQueue::acquireSlot(std::unique_lock<std::mutex>& lock, uint32_t& slotIndex)
+{
+    if (mFreeSlots.empty())
+    {
+        switch (mPolicy)
+        {
+            case OverflowPolicy::DROP_NEWEST:
+                return false;
+            case OverflowPolicy::DROP_OLDEST:
+            {
+                if (mQueueCount == 0)
+                {
+                    // Every buffer is either being delivered or being filled
+                    return false;
+                }
+
+                // Take over the oldest frame that is still waiting for delivery
+                slotIndex = mQueuedSlots[mQueueHead];
+                mQueueHead = (mQueueHead + 1) % mQueuedSlots.size();
+                mQueueCount--;
+                mStatistics.overruns++;
+                releasePoolBuffer(mSlots[slotIndex]);
+                return true;
+            }
+            case OverflowPolicy::BLOCK:
+            {
+                bool slotFreed = mSlotFreedCondition.wait_for(lock, BLOCK_TIMEOUT, [this] { return !mFreeSlots.empty() || !mRunning; });
+                if (!slotFreed || !mRunning)
+                {
+                    return false;
+                }
+                break;
+            }
+            default:
+                LOG_E("Unknown overflow policy: %d", static_cast<int>(mPolicy));
+                return false;
+        }
+    }
+
+    slotIndex = mFreeSlots.back();
+    mFreeSlots.pop_back();
+    return true;
+}
+
+void
+FrameQueue::deliveryLoop()
+{
+    std::unique_lock<std::mutex> lock(mMutex);
+    while (true)
+    {
+        mFrameQueuedCondition.wait(lock, [this] { return mQueueCount > 0 || !mRunning; });
+        if (!mRunning)
+        {
+            break;
+        }
+
+        uint32_t slotIndex = mQueuedSlots[mQueueHead];
+        mQueueHead = (mQueueHead + 1) % mQueuedSlots.size();
+        mQueueCount--;
+
+        // Deliver without the lock, so that the producer can keep filling the other buffers
+        lock.unlock();
+        mCallback->onNewCameraFrame(&mSlots[slotIndex].frame);
+        releasePoolBuffer(mSlots[slotIndex]);
+        lock.lock();
+
+        mFreeSlots.push_back(slotIndex);
+        mStatistics.delivered++;
+        mSlotFreedCondition.notify_one();
+    }
+}
+
+void
+FrameQueue::releasePoolBuffer(Slot& slot)
+{
+    if (slot.pool != nullptr)
+    {
+        slot.pool->release(slot.poolBuffer);
+        slot.pool = nullptr;
+        slot.poolBuffer = nullptr;
+    }
+}
@@ -0,0 +1,334 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameRecording.h"
+
+#include <cerrno>
+#include <cstring>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#define MODULE_TAG "FrameRecording"
+
+#include "DriverLog.h"
+
+namespace
+{
+// The file is extended in steps of this size, a few seconds of 720p YUYV
+const size_t GROW_STEP = 64 * 1024 * 1024;
+
+size_t
+getPaddedSize(size_t size)
+{
+    return (size + 7) & ~static_cast<size_t>(7);
+}
+}
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+FrameRecorder::~FrameRecorder()
+{
+    close();
+}
+
+bool
+FrameRecorder::open(const std::string& path, const Vuforia::Driver::CameraMode& cameraMode)
+{
+    close();
+
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    mFile = ::open(path.c_str(), O_RDWR | O_CREAT | O_TRUNC | O_CLOEXEC, 0644);
+    if (mFile < 0)
+    {
+        LOG_E("Failed to create recording %s: %s", path.c_str(), strerror(errno));
+        return false;
+    }
+
+    if (!grow(sizeof(FrameRecording::FileHeader)))
+    {
+        ::close(mFile);
+        mFile = -1;
+        return false;
+    }
+
+    FrameRecording::FileHeader header;
+    memset(&header, 0, sizeof(header));
+    header.magic = FrameRecording::MAGIC;
+    header.version = FrameRecording::VERSION;
+    header.width = cameraMode.width;
+    header.height = cameraMode.height;
+    header.fps = cameraMode.fps;
+    header.format = static_cast<uint32_t>(cameraMode.format);
+    memcpy(mData, &header, sizeof(header));
+
+    mWriteOffset = sizeof(header);
+    mFrameCount = 0;
+
+    LOG_I("Recording %ux%u @ %u fps to %s", cameraMode.width, cameraMode.height, cameraMode.fps, path.c_str());
+    return true;
+}
+
+void
+FrameRecorder::close()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    if (mFile < 0)
+    {
+        return;
+    }
+
+    // The mapping is gone if growing the file failed half way
+    if (mData != nullptr)
+    {
+        FrameRecording::FileHeader* header = reinterpret_cast<FrameRecording::FileHeader*>(mData);
+        header->frameCount = mFrameCount;
+        header->dataSize = mWriteOffset - sizeof(FrameRecording::FileHeader);
+        unmap();
+    }
+
+    // Give back the unused part of the last growth step
+    if (ftruncate(mFile, mWriteOffset) != 0)
+    {
+        LOG_E("Failed to truncate the recording: %s", strerror(errno));
+    }
+    ::close(mFile);
+    mFile = -1;
+
+    LOG_I("Recorded %u frames", mFrameCount);
+}
+
+bool
+FrameRecorder::isRecording()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mFile >= 0;
+}
+
+bool
+FrameRecorder::write(const Vuforia::Driver::CameraFrame& frame)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    if (mFile < 0 || frame.buffer == nullptr)
+    {
+        return false;
+    }
+
+    size_t frameSize = sizeof(FrameRecording::FrameHeader) + getPaddedSize(frame.bufferSize);
+    if (mWriteOffset + frameSize > mMappedSize && !grow(mWriteOffset + frameSize))
+    {
+        return false;
+    }
+
+    FrameRecording::FrameHeader header;
+    header.timestamp = frame.timestamp;
+    header.exposureTime = frame.exposureTime;
+    header.index = frame.index;
+    header.width = frame.width;
+    header.height = frame.height;
+    header.stride = frame.stride;
+    header.format = static_cast<uint32_t>(frame.format);
+    header.bufferSize = frame.bufferSize;
+    static_assert(sizeof(header.intrinsics) == sizeof(Vuforia::Driver::CameraIntrinsics), "Intrinsics layout mismatch");
+    memcpy(header.intrinsics, &frame.intrinsics, sizeof(header.intrinsics));
+
+    memcpy(mData + mWriteOffset, &header, sizeof(header));
+    memcpy(mData + mWriteOffset + sizeof(header), frame.buffer, frame.bufferSize);
+
+    mWriteOffset += frameSize;
+    mFrameCount++;
+    return true;
+}
+
+uint32_t
+FrameRecorder::getFrameCount()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mFrameCount;
+}
+
+FrameRecordingReader::~FrameRecordingReader()
+{
+    close();
+}
+
+bool
+FrameRecordingReader::open(const std::string& path)
+{
+    close();
+
+    int file = ::open(path.c_str(), O_RDONLY | O_CLOEXEC);
+    if (file < 0)
+    {
+        LOG_E("Failed to open recording %s: %s", path.c_str(), strerror(errno));
+        return false;
+    }
+
+    struct stat fileStat;
+    if (fstat(file, &fileStat) != 0 || static_cast<size_t>(fileStat.st_size) < sizeof(FrameRecording::FileHeader))
+    {
+        LOG_E("Recording %s is too short", path.c_str());
+        ::close(file);
+        return false;
+    }
+
+    // Private and writable, so that the frames can be converted in place during replay
+    void* data = mmap(nullptr, fileStat.st_size, PROT_READ | PROT_WRITE, MAP_PRIVATE, file, 0);
+    ::close(file);
+    if (data == MAP_FAILED)
+    {
+        LOG_E("Failed to map recording %s: %s", path.c_str(), strerror(errno));
+        return false;
+    }
+
+    mData = static_cast<uint8_t*>(data);
+    mSize = fileStat.st_size;
+
+    const FrameRecording::FileHeader* header = reinterpret_cast<const FrameRecording::FileHeader*>(mData);
+    if (header->magic != FrameRecording::MAGIC || header->version != FrameRecording::VERSION)
+    {
+        LOG_E("%s is not a recording this driver can read", path.c_str());
+        close();
+        return false;
+    }
+
+    mCameraMode.width = header->width;
+    mCameraMode.height = header->height;
+    mCameraMode.fps = header->fps;
+    mCameraMode.format = static_cast<Vuforia::Driver::PixelFormat>(header->format);
+
+    // A recording that was never closed, e.g. because the app crashed, has no frame count.
+    // Its frames are read up to the first empty or incomplete one.
+    size_t end = mSize;
+    if (header->frameCount > 0 && sizeof(FrameRecording::FileHeader) + header->dataSize <= mSize)
+    {
+        end = sizeof(FrameRecording::FileHeader) + header->dataSize;
+    }
+
+    size_t offset = sizeof(FrameRecording::FileHeader);
+    while (offset + sizeof(FrameRecording::FrameHeader) <= end)
+    {
+        const FrameRecording::FrameHeader* frameHeader = reinterpret_cast<const FrameRecording::FrameHeader*>(mData + offset);
+        size_t frameSize = sizeof(FrameRecording::FrameHeader) + getPaddedSize(frameHeader->bufferSize);
+        if (frameHeader->bufferSize == 0 || offset + frameSize > end)
+        {
+            break;
+        }
+
+        mFrameOffsets.push_back(offset);
+        offset += frameSize;
+    }
+
+    if (header->frameCount > 0 && mFrameOffsets.size() != header->frameCount)
+    {
+        LOG_E("Recording %s is damaged, read %u of %u frames", path.c_str(), static_cast<uint32_t>(mFrameOffsets.size()), header->frameCount);
+    }
+
+    LOG_I("Opened recording %s: %u frames of %ux%u @ %u fps", path.c_str(), static_cast<uint32_t>(mFrameOffsets.size()),
+          mCameraMode.width, mCameraMode.height, mCameraMode.fps);
+    return true;
+}
+
+void
+FrameRecordingReader::close()
+{
+    if (mData != nullptr)
+    {
+        munmap(mData, mSize);
+        mData = nullptr;
+        mSize = 0;
+    }
+    mFrameOffsets.clear();
+}
+
+const Vuforia::Driver::CameraMode&
+FrameRecordingReader::getCameraMode() const
+{
+    return mCameraMode;
+}
+
+uint32_t
+FrameRecordingReader::getNumFrames() const
+{
+    return mFrameOffsets.size();
+}
+
+bool
+FrameRecordingReader::getFrame(uint32_t index, Vuforia::Driver::CameraFrame& out) const
+{
+    if (index >= mFrameOffsets.size())
+    {
+        return false;
+    }
+
+    const FrameRecording::FrameHeader* header = reinterpret_cast<const FrameRecording::FrameHeader*>(mData + mFrameOffsets[index]);
+    out.timestamp = header->timestamp;
+    out.exposureTime = header->exposureTime;
+    out.buffer = mData + mFrameOffsets[index] + sizeof(FrameRecording::FrameHeader);
+    out.bufferSize = header->bufferSize;
+    out.index = header->index;
+    out.width = header->width;
+    out.height = header->height;
+    out.stride = header->stride;
+    out.format = static_cast<Vuforia::Driver::PixelFormat>(header->format);
+    memcpy(&out.intrinsics, header->intrinsics, sizeof(header->intrinsics));
+    return true;
+}
+
+//=============================================================================
+// PRIVATE METHODS
+//=============================================================================
+
+bool
+FrameRecorder::grow(size_t minSize)
+{
+    size_t newSize = mMappedSize + GROW_STEP;
+    if (newSize < minSize)
+    {
+        newSize = getPaddedSize(minSize) + GROW_STEP;
+    }
+
+    // Allocate the blocks up front, writing to a mapping of a sparse file on a full
+    // disk kills the process with SIGBUS instead of failing
+    int result = posix_fallocate(mFile, 0, newSize);
+    if (result != 0)
+    {
+        LOG_E("Failed to extend the recording to %zu bytes: %s", newSize, strerror(result));
+        return false;
+    }
+
+    unmap();
+
+    void* data = mmap(nullptr, newSize, PROT_READ | PROT_WRITE, MAP_SHARED, mFile, 0);
+    if (data == MAP_FAILED)
+    {
+        LOG_E("Failed to map the recording: %s", strerror(errno));
+        return false;
+    }
+
+    mData = static_cast<uint8_t*>(data);
+    mMappedSize = newSize;
+    return true;
+}
+
+void
+FrameRecorder::unmap()
+{
+    if (mData != nullptr)
+    {
+        munmap(mData, mMappedSize);
+        mData = nullptr;
+        mMappedSize = 0;
+    }
+}
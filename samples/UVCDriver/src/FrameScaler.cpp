@@ -0,0 +1,192 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameScaler.h"
+
+#include <cstring>
+
+#define MODULE_TAG "FrameScaler"
+
+#include "DriverLog.h"
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+bool
+FrameScaler::configure(uint32_t sourceWidth, uint32_t sourceHeight, uint32_t width, uint32_t height, Mode mode)
+{
+    // YUYV stores the chroma of two pixels together, so the output and the crop have to be pairs of pixels.
+    // The height is even as well, so the frames can be converted to the 4:2:0 formats.
+    if (width == 0 || height == 0 || width % 2 != 0 || height % 2 != 0 || width > sourceWidth || height > sourceHeight)
+    {
+        LOG_E("Can't produce %ux%u frames from %ux%u frames", width, height, sourceWidth, sourceHeight);
+        return false;
+    }
+
+    mSourceWidth = sourceWidth;
+    mSourceHeight = sourceHeight;
+    mWidth = width;
+    mHeight = height;
+
+    if (mode == Mode::CROP)
+    {
+        mCropWidth = width;
+        mCropHeight = height;
+    }
+    else if (static_cast<uint64_t>(sourceWidth) * height > static_cast<uint64_t>(width) * sourceHeight)
+    {
+        // Wider than the output, cut the sides off
+        mCropWidth = static_cast<uint32_t>(static_cast<uint64_t>(sourceHeight) * width / height) & ~1u;
+        mCropHeight = sourceHeight;
+    }
+    else
+    {
+        // Taller than the output, cut top and bottom off
+        mCropWidth = sourceWidth;
+        mCropHeight = static_cast<uint32_t>(static_cast<uint64_t>(sourceWidth) * height / width);
+    }
+
+    mCropX = ((sourceWidth - mCropWidth) / 2) & ~1u;
+    mCropY = (sourceHeight - mCropHeight) / 2;
+
+    mColumnStart.resize(width + 1);
+    for (uint32_t x = 0; x <= width; x++)
+    {
+        mColumnStart[x] = mCropX + static_cast<uint32_t>(static_cast<uint64_t>(x) * mCropWidth / width);
+    }
+
+    mRowStart.resize(height + 1);
+    for (uint32_t y = 0; y <= height; y++)
+    {
+        mRowStart[y] = mCropY + static_cast<uint32_t>(static_cast<uint64_t>(y) * mCropHeight / height);
+    }
+
+    LOG_D("%ux%u frames from the %ux%u region at %u,%u of %ux%u frames",
+          width, height, mCropWidth, mCropHeight, mCropX, mCropY, sourceWidth, sourceHeight);
+    return true;
+}
+
+Vuforia::Driver::CameraIntrinsics
+FrameScaler::adjustIntrinsics(const Vuforia::Driver::CameraIntrinsics& intrinsics) const
+{
+    Vuforia::Driver::CameraIntrinsics adjusted = intrinsics;
+
+    // No calibration, nothing to adjust
+    if (intrinsics.focalLengthX == 0.f && intrinsics.focalLengthY == 0.f)
+    {
+        return adjusted;
+    }
+
+    float scaleX = static_cast<float>(mWidth) / mCropWidth;
+    float scaleY = static_cast<float>(mHeight) / mCropHeight;
+
+    adjusted.focalLengthX = intrinsics.focalLengthX * scaleX;
+    adjusted.focalLengthY = intrinsics.focalLengthY * scaleY;
+
+    // Pixel centres are at integer coordinates, the box of an output pixel is centred on its own centre
+    adjusted.principalPointX = (intrinsics.principalPointX - mCropX + 0.5f) * scaleX - 0.5f;
+    adjusted.principalPointY = (intrinsics.principalPointY - mCropY + 0.5f) * scaleY - 0.5f;
+
+    return adjusted;
+}
+
+bool
+FrameScaler::process(const Vuforia::Driver::CameraFrame& in, uint8_t* buffer, Vuforia::Driver::CameraFrame& out) const
+{
+    if (in.format != Vuforia::Driver::PixelFormat::YUYV || in.width != mSourceWidth || in.height != mSourceHeight)
+    {
+        LOG_E("Unexpected %ux%u frame of format %d for %ux%u YUYV", in.width, in.height, static_cast<int>(in.format),
+              mSourceWidth, mSourceHeight);
+        return false;
+    }
+
+    if (mCropWidth == mWidth && mCropHeight == mHeight)
+    {
+        const uint8_t* source = static_cast<const uint8_t*>(in.buffer) + static_cast<size_t>(mCropY) * in.stride + mCropX * 2;
+        for (uint32_t y = 0; y < mHeight; y++)
+        {
+            memcpy(buffer + static_cast<size_t>(y) * mWidth * 2, source + static_cast<size_t>(y) * in.stride, mWidth * 2);
+        }
+    }
+    else
+    {
+        scale(in, buffer);
+    }
+
+    // The packed struct member is copied, a reference to it could be misaligned
+    Vuforia::Driver::CameraIntrinsics intrinsics = in.intrinsics;
+
+    out = in;
+    out.width = mWidth;
+    out.height = mHeight;
+    out.stride = mWidth * 2;
+    out.buffer = buffer;
+    out.bufferSize = mWidth * mHeight * 2;
+    out.intrinsics = adjustIntrinsics(intrinsics);
+    return true;
+}
+
+
+//=============================================================================
+// PRIVATE METHODS
+//=============================================================================
+
+void
+FrameScaler::scale(const Vuforia::Driver::CameraFrame& in, uint8_t* buffer) const
+{
+    const uint8_t* source = static_cast<const uint8_t*>(in.buffer);
+
+    for (uint32_t y = 0; y < mHeight; y++)
+    {
+        uint32_t rowStart = mRowStart[y];
+        uint32_t rowEnd = mRowStart[y + 1];
+        uint8_t* out = buffer + static_cast<size_t>(y) * mWidth * 2;
+
+        for (uint32_t x = 0; x < mWidth; x += 2)
+        {
+            // Y0 U Y1 V, luma of each of the two output pixels
+            for (uint32_t pixel = x; pixel < x + 2; pixel++)
+            {
+                uint32_t columnStart = mColumnStart[pixel];
+                uint32_t columnEnd = mColumnStart[pixel + 1];
+
+                uint32_t sum = 0;
+                for (uint32_t row = rowStart; row < rowEnd; row++)
+                {
+                    const uint8_t* line = source + static_cast<size_t>(row) * in.stride;
+                    for (uint32_t column = columnStart; column < columnEnd; column++)
+                    {
+                        sum += line[column * 2];
+                    }
+                }
+                out[pixel * 2] = static_cast<uint8_t>(sum / ((columnEnd - columnStart) * (rowEnd - rowStart)));
+            }
+
+            // Chroma of the source pixel pairs the two output pixels cover
+            uint32_t pairStart = mColumnStart[x] / 2;
+            uint32_t pairEnd = (mColumnStart[x + 2] + 1) / 2;
+
+            uint32_t sumU = 0;
+            uint32_t sumV = 0;
+            for (uint32_t row = rowStart; row < rowEnd; row++)
+            {
+                const uint8_t* line = source + static_cast<size_t>(row) * in.stride;
+                for (uint32_t pair = pairStart; pair < pairEnd; pair++)
+                {
+                    sumU += line[pair * 4 + 1];
+                    sumV += line[pair * 4 + 3];
+                }
+            }
+
+            uint32_t count = (pairEnd - pairStart) * (rowEnd - rowStart);
+            out[x * 2 + 1] = static_cast<uint8_t>(sumU / count);
+            out[x * 2 + 3] = static_cast<uint8_t>(sumV / count);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameTap.h"
+
+#include <chrono>
+#include <cstring>
+
+#define MODULE_TAG "FrameTap"
+
+#include "DriverLog.h"
+
+// FrameTap.java reads the headers with these offsets
+static_assert(sizeof(FrameTap::SlotHeader) == 48, "FrameTap.java expects 48 byte slot headers");
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+FrameTap::FrameTap()
+{
+}
+
+FrameTap::~FrameTap()
+{
+    stop();
+}
+
+bool
+FrameTap::start(const std::vector<Slot>& slots, SlotHeader* headers, DropPolicy policy)
+{
+    if (slots.size() < 2 || headers == nullptr)
+    {
+        LOG_E("Frame tap needs at least two buffers and the headers");
+        return false;
+    }
+
+    stop();
+
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    mSlots = slots;
+    mSlotStates.assign(slots.size(), SlotState::FREE);
+    mHeaders = headers;
+    memset(mHeaders, 0, sizeof(SlotHeader) * slots.size());
+
+    // write() must not allocate on the streaming thread
+    mFilledSlots.clear();
+    mFilledSlots.reserve(slots.size());
+
+    mPolicy = policy;
+    mNextSequence = 0;
+    mStatistics = Statistics();
+    mRunning = true;
+
+    LOG_D("Frame tap started with %zu buffers, policy %d", slots.size(), static_cast<int>(policy));
+    return true;
+}
+
+void
+FrameTap::stop()
+{
+    std::unique_lock<std::mutex> lock(mMutex);
+    if (!mRunning)
+    {
+        return;
+    }
+
+    mRunning = false;
+    mFrameFilledCondition.notify_all();
+
+    // The application frees the buffers once this returns
+    mWriteDoneCondition.wait(lock, [this] { return mActiveWrites == 0; });
+
+    mSlots.clear();
+    mSlotStates.clear();
+    mFilledSlots.clear();
+    mHeaders = nullptr;
+
+    LOG_D("Frame tap stopped: %llu written, %llu dropped, %llu too large",
+          static_cast<unsigned long long>(mStatistics.written), static_cast<unsigned long long>(mStatistics.dropped),
+          static_cast<unsigned long long>(mStatistics.tooLarge));
+}
+
+bool
+FrameTap::isRunning()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mRunning;
+}
+
+void
+FrameTap::write(const Vuforia::Driver::CameraFrame& frame)
+{
+    int32_t slot = -1;
+    int64_t sequence = 0;
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        if (!mRunning)
+        {
+            return;
+        }
+
+        sequence = mNextSequence++;
+
+        for (size_t idx = 0; idx < mSlotStates.size(); idx++)
+        {
+            if (mSlotStates[idx] == SlotState::FREE)
+            {
+                slot = static_cast<int32_t>(idx);
+                break;
+            }
+        }
+
+        if (slot < 0)
+        {
+            // All buffers are filled or held by the reader
+            mStatistics.dropped++;
+            if (mPolicy == DropPolicy::DROP_NEWEST || mFilledSlots.empty())
+            {
+                return;
+            }
+
+            slot = mFilledSlots.front();
+            mFilledSlots.erase(mFilledSlots.begin());
+        }
+
+        if (frame.bufferSize > mSlots[slot].capacity)
+        {
+            mStatistics.tooLarge++;
+            mSlotStates[slot] = SlotState::FREE;
+            return;
+        }
+
+        mSlotStates[slot] = SlotState::WRITING;
+        mActiveWrites++;
+    }
+
+    // The slot belongs to this thread until it is marked as filled
+    memcpy(mSlots[slot].data, frame.buffer, frame.bufferSize);
+
+    SlotHeader header;
+    header.sequence = sequence;
+    header.timestamp = static_cast<int64_t>(frame.timestamp);
+    header.exposureTime = static_cast<int64_t>(frame.exposureTime);
+    header.width = static_cast<int32_t>(frame.width);
+    header.height = static_cast<int32_t>(frame.height);
+    header.stride = static_cast<int32_t>(frame.stride);
+    header.format = static_cast<int32_t>(frame.format);
+    header.size = static_cast<int32_t>(frame.bufferSize);
+    header.reserved = 0;
+    memcpy(&mHeaders[slot], &header, sizeof(header));
+
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mSlotStates[slot] = SlotState::FILLED;
+        mFilledSlots.push_back(slot);
+        mStatistics.written++;
+        mActiveWrites--;
+    }
+
+    mFrameFilledCondition.notify_one();
+    mWriteDoneCondition.notify_all();
+}
+
+int32_t
+FrameTap::acquire(uint32_t timeoutMs)
+{
+    std::unique_lock<std::mutex> lock(mMutex);
+    mFrameFilledCondition.wait_for(lock, std::chrono::milliseconds(timeoutMs),
+                                   [this] { return !mRunning || !mFilledSlots.empty(); });
+
+    if (!mRunning || mFilledSlots.empty())
+    {
+        return -1;
+    }
+
+    int32_t slot = mFilledSlots.front();
+    mFilledSlots.erase(mFilledSlots.begin());
+    mSlotStates[slot] = SlotState::READING;
+    return slot;
+}
+
+void
+FrameTap::release(int32_t slot)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    // Buffers handed out before a stop() are forgotten already
+    if (slot >= 0 && static_cast<size_t>(slot) < mSlotStates.size() && mSlotStates[slot] == SlotState::READING)
+    {
+        mSlotStates[slot] = SlotState::FREE;
+    }
+}
+
+FrameTap::Statistics
+FrameTap::getStatistics()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mStatistics;
+}
@@ -0,0 +1,192 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "FrameTelemetry.h"
+
+#include <cmath>
+
+namespace
+{
+size_t
+getBucket(uint64_t durationUs)
+{
+    if (durationUs < 2)
+    {
+        return 0;
+    }
+
+    // floor(log2(durationUs))
+    size_t bucket = 63 - __builtin_clzll(durationUs);
+    return bucket < FrameTelemetry::NUM_BUCKETS ? bucket : FrameTelemetry::NUM_BUCKETS - 1;
+}
+}
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+double
+FrameTelemetry::HistogramSnapshot::getMean() const
+{
+    return count > 0 ? static_cast<double>(sum) / count : 0.0;
+}
+
+double
+FrameTelemetry::HistogramSnapshot::getStandardDeviation() const
+{
+    if (count == 0)
+    {
+        return 0.0;
+    }
+
+    double mean = getMean();
+    double variance = static_cast<double>(sumOfSquares) / count - mean * mean;
+    return variance > 0.0 ? std::sqrt(variance) : 0.0;
+}
+
+double
+FrameTelemetry::Snapshot::getFps() const
+{
+    double meanInterval = frameInterval.getMean();
+    return meanInterval > 0.0 ? 1000000.0 / meanInterval : 0.0;
+}
+
+uint64_t
+FrameTelemetry::getBucketUpperBound(size_t bucket)
+{
+    if (bucket >= NUM_BUCKETS - 1)
+    {
+        return 0;
+    }
+
+    return 2ULL << bucket;
+}
+
+void
+FrameTelemetry::reset()
+{
+    mFramesReceived.store(0, std::memory_order_relaxed);
+    mFramesDropped.store(0, std::memory_order_relaxed);
+    mLastSequence.store(0, std::memory_order_relaxed);
+    mLastArrivalTime.store(0, std::memory_order_relaxed);
+
+    mFrameInterval.reset();
+    mCallbackDuration.reset();
+    mControlTransfer.reset();
+}
+
+void
+FrameTelemetry::recordFrame(uint32_t sequence, uint64_t arrivalTime)
+{
+    mFramesReceived.fetch_add(1, std::memory_order_relaxed);
+
+    uint64_t lastArrivalTime = mLastArrivalTime.load(std::memory_order_relaxed);
+    uint32_t lastSequence = mLastSequence.load(std::memory_order_relaxed);
+    mLastSequence.store(sequence, std::memory_order_relaxed);
+    mLastArrivalTime.store(arrivalTime, std::memory_order_relaxed);
+
+    if (lastArrivalTime == 0)
+    {
+        return;
+    }
+
+    // libuvc starts counting from 0 again when the stream is restarted after a
+    // reconnect, that is not a gap and the interval includes the reconnect
+    if (sequence <= lastSequence)
+    {
+        return;
+    }
+
+    if (sequence - lastSequence > 1)
+    {
+        mFramesDropped.fetch_add(sequence - lastSequence - 1, std::memory_order_relaxed);
+    }
+
+    if (arrivalTime > lastArrivalTime)
+    {
+        mFrameInterval.record(arrivalTime - lastArrivalTime);
+    }
+}
+
+void
+FrameTelemetry::recordCallbackDuration(uint64_t duration)
+{
+    mCallbackDuration.record(duration);
+}
+
+void
+FrameTelemetry::recordControlTransfer(uint64_t duration)
+{
+    mControlTransfer.record(duration);
+}
+
+FrameTelemetry::Snapshot
+FrameTelemetry::getSnapshot() const
+{
+    Snapshot snapshot;
+    snapshot.framesReceived = mFramesReceived.load(std::memory_order_relaxed);
+    snapshot.framesDropped = mFramesDropped.load(std::memory_order_relaxed);
+    snapshot.frameInterval = mFrameInterval.getSnapshot();
+    snapshot.callbackDuration = mCallbackDuration.getSnapshot();
+    snapshot.controlTransfer = mControlTransfer.getSnapshot();
+    return snapshot;
+}
+
+//=============================================================================
+// PRIVATE METHODS
+//=============================================================================
+
+FrameTelemetry::Histogram::Histogram()
+{
+    // std::atomic arrays are not zero initialized
+    reset();
+}
+
+void
+FrameTelemetry::Histogram::record(uint64_t duration)
+{
+    uint64_t durationUs = duration / 1000;
+
+    mCount.fetch_add(1, std::memory_order_relaxed);
+    mSum.fetch_add(durationUs, std::memory_order_relaxed);
+    mSumOfSquares.fetch_add(durationUs * durationUs, std::memory_order_relaxed);
+    mBuckets[getBucket(durationUs)].fetch_add(1, std::memory_order_relaxed);
+
+    uint64_t max = mMax.load(std::memory_order_relaxed);
+    while (durationUs > max && !mMax.compare_exchange_weak(max, durationUs, std::memory_order_relaxed))
+    {
+    }
+}
+
+void
+FrameTelemetry::Histogram::reset()
+{
+    mCount.store(0, std::memory_order_relaxed);
+    mSum.store(0, std::memory_order_relaxed);
+    mSumOfSquares.store(0, std::memory_order_relaxed);
+    mMax.store(0, std::memory_order_relaxed);
+    for (std::atomic<uint64_t>& bucket : mBuckets)
+    {
+        bucket.store(0, std::memory_order_relaxed);
+    }
+}
+
+FrameTelemetry::HistogramSnapshot
+FrameTelemetry::Histogram::getSnapshot() const
+{
+    HistogramSnapshot snapshot;
+    snapshot.count = mCount.load(std::memory_order_relaxed);
+    snapshot.sum = mSum.load(std::memory_order_relaxed);
+    snapshot.sumOfSquares = mSumOfSquares.load(std::memory_order_relaxed);
+    snapshot.max = mMax.load(std::memory_order_relaxed);
+    for (size_t idx = 0; idx < NUM_BUCKETS; idx++)
+    {
+        snapshot.buckets[idx] = mBuckets[idx].load(std::memory_order_relaxed);
+    }
+    return snapshot;
+}
@@ -0,0 +1,231 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.samples.uvcDriver;
+
+import android.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary copy of the calibrations parsed from the calibration xml file.
+ *
+ * The xml file only has to be parsed again when it changes: the cache stores the
+ * CRC32 of the xml it was made from and is ignored when that does not match. The
+ * cache is memory-mapped when it is read, the entries are fixed size records.
+ *
+ * Layout, big endian:
+ *   header:  magic, version, xml crc, entry count, payload crc (5 ints)
+ *   entries: vid, pid, width, height (4 ints), calibration (12 floats)
+ */
+final class CalibrationCache
+{
+    private static final String MODULE_TAG = "Vuforia-UVCDriver";
+
+    private static final int MAGIC = 0x55564343; // "UVCC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int ENTRY_SIZE = 4 * 4 + CalibrationStore.CALIBRATION_LENGTH * 4;
+
+    /** A calibration as it is stored in the cache. */
+    static final class Entry
+    {
+        final int vid;
+        final int pid;
+        final int width;
+        final int height;
+        final float[] values;
+
+        Entry(int vid, int pid, int width, int height, float[] values)
+        {
+            this.vid = vid;
+            this.pid = pid;
+            this.width = width;
+            this.height = height;
+            this.values = values;
+        }
+    }
+
+    private CalibrationCache()
+    {
+    }
+
+    /** CRC32 of the xml file, identifies the xml a cache was made from. */
+    static int getHash(byte[] xml)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(xml, 0, xml.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Add the calibrations in the cache file to the store.
+     *
+     * @return False if there is no cache, it was made from another xml file or it is damaged.
+     *         Nothing is added in that case.
+     */
+    static boolean read(File file, int xmlHash, CalibrationStore.Builder calibrations)
+    {
+        if (!file.isFile()) {
+            return false;
+        }
+
+        RandomAccessFile cacheFile = null;
+        try
+        {
+            cacheFile = new RandomAccessFile(file, "r");
+            FileChannel channel = cacheFile.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return false;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int hash = buffer.getInt();
+            int count = buffer.getInt();
+            int payloadCrc = buffer.getInt();
+
+            if (magic != MAGIC || version != VERSION || hash != xmlHash) {
+                return false;
+            }
+
+            if (count < 0 || size != HEADER_SIZE + (long) count * ENTRY_SIZE)
+            {
+                Log.e(MODULE_TAG, "Calibration cache has the wrong size, ignoring it");
+                return false;
+            }
+
+            if (getPayloadCrc(buffer) != payloadCrc)
+            {
+                Log.e(MODULE_TAG, "Calibration cache is damaged, ignoring it");
+                return false;
+            }
+
+            buffer.position(HEADER_SIZE);
+            float[] values = new float[CalibrationStore.CALIBRATION_LENGTH];
+            for (int idx = 0; idx < count; idx++)
+            {
+                int vid = buffer.getInt();
+                int pid = buffer.getInt();
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                for (int valueIdx = 0; valueIdx < values.length; valueIdx++) {
+                    values[valueIdx] = buffer.getFloat();
+                }
+
+                // The store copies the values
+                calibrations.put(vid, pid, width, height, values);
+            }
+
+            Log.d(MODULE_TAG, "Read " + count + " calibrations from " + file.getName());
+            return true;
+        }
+        catch (IOException e)
+        {
+            Log.e(MODULE_TAG, "Failed to read the calibration cache", e);
+            return false;
+        }
+        finally
+        {
+            close(cacheFile);
+        }
+    }
+
+    /** Replace the cache file with the entries. The file is written next to it and renamed, so readers never see half of it. */
+    static void write(File file, int xmlHash, List<Entry> entries)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE);
+        buffer.position(HEADER_SIZE);
+        for (Entry entry : entries)
+        {
+            buffer.putInt(entry.vid);
+            buffer.putInt(entry.pid);
+            buffer.putInt(entry.width);
+            buffer.putInt(entry.height);
+            for (float value : entry.values) {
+                buffer.putFloat(value);
+            }
+        }
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, xmlHash);
+        buffer.putInt(12, entries.size());
+        buffer.putInt(16, getPayloadCrc(buffer));
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream outputStream = null;
+        try
+        {
+            outputStream = new FileOutputStream(tempFile);
+            outputStream.write(buffer.array());
+            outputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+
+            if (!tempFile.renameTo(file))
+            {
+                Log.e(MODULE_TAG, "Failed to replace the calibration cache");
+                tempFile.delete();
+                return;
+            }
+
+            Log.d(MODULE_TAG, "Wrote " + entries.size() + " calibrations to " + file.getName());
+        }
+        catch (IOException e)
+        {
+            Log.e(MODULE_TAG, "Failed to write the calibration cache", e);
+            tempFile.delete();
+        }
+        finally
+        {
+            close(outputStream);
+        }
+    }
+
+    private static int getPayloadCrc(ByteBuffer buffer)
+    {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[4096];
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(HEADER_SIZE);
+        while (payload.hasRemaining())
+        {
+            int length = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static void close(Closeable closeable)
+    {
+        if (closeable == null) {
+            return;
+        }
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing left to do with it
+        }
+    }
+}
@@ -9,26 +9,22 @@ package com.vuforia.samples.uvcDriver;
 
 import android.app.Activity;
 import android.content.res.AssetManager;
-import android.text.TextUtils;
 import android.util.Log;
-import android.util.Pair;
+import android.util.Xml;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXParseException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 public final class CalibrationController
 {
     private static final String MODULE_TAG = "Vuforia-UVCDriver";
     private static final String CALIBRATION_XML_FILENAME = "ExternalCameraCalibration.xml";
+    private static final String CALIBRATION_CACHE_FILENAME = "ExternalCameraCalibration.bin";
 
     private static final String VENDOR_ID_MICROSOFT = "0x045E";
     private static final String VENDOR_ID_LOGITECH = "0x046D";
@@ -37,26 +33,8 @@ public final class CalibrationController
     private static final String PRODUCT_ID_MICROSOFT_LIFECAM_HD_3000_2 = "0x0810";
     private static final String PRODUCT_ID_LOGITECH_C310_HD = "0x081B";
 
-    private class Calibration
-    {
-        public int[] frameSize;
-        public float[] principalPoint;
-        public float[] focalLength;
-        public float[] distortionCoefficients;
-
-        public Calibration(int[] frameSize, float[] principalPoint, float[] focalLength, float[] distortionCoefficients)
-        {
-            this.frameSize = frameSize;
-            this.principalPoint = principalPoint;
-            this.focalLength = focalLength;
-            this.distortionCoefficients = distortionCoefficients;
-        }
-    }
-
-    // Calibration values are mapped from a [VendorID, ProductID]-pair to a list
-    // of calibration values.
-    private HashMap<Pair<Integer, Integer>, ArrayList<Calibration>> mCalibrationMap = null;
-    private float[] mCalibrationValue = new float[12];
+    // Built-in calibrations, overridden by the ones in the xml file
+    private CalibrationStore mCalibrationStore = new CalibrationStore.Builder().build();
 
     public CalibrationController(Activity activity)
     {
@@ -64,274 +42,229 @@ public final class CalibrationController
             return;
         }
 
-        mCalibrationMap = new HashMap<Pair<Integer, Integer>, ArrayList<Calibration>>();
-        addDefaultCalibrations();
-        getCalibrationsFromXML(activity);
-        printCalibrationMap(mCalibrationMap);
+        CalibrationStore.Builder builder = new CalibrationStore.Builder();
+        addDefaultCalibrations(builder);
+        getCalibrationsFromXML(activity, builder);
+        mCalibrationStore = builder.build();
+
+        // Logging every calibration of a large file is slow, only do it when asked for
+        if (Log.isLoggable(MODULE_TAG, Log.DEBUG)) {
+            mCalibrationStore.log();
+        }
     }
 
+    /**
+     * Calibration of the camera at the frame size, derived from another frame size
+     * of the same camera if this one was not calibrated.
+     *
+     * @return principal point, focal length and 8 distortion coefficients in a new array,
+     *         null if there is no calibration for the camera.
+     */
     public float[] getCalibrationValue(int vid, int pid, int width, int height)
     {
-        Pair<Integer, Integer> key = new Pair<Integer, Integer>(vid, pid);
-        ArrayList<Calibration> calibrationList = (ArrayList<Calibration>)mCalibrationMap.get(key);
-        if (calibrationList != null)
-        {
-            for (int idx = 0; idx < calibrationList.size(); idx++)
-            {
-                Calibration calibration = calibrationList.get(idx);
-                if (calibration.frameSize[0] == width && calibration.frameSize[1] == height)
-                {
-                    mCalibrationValue[0] = calibration.principalPoint[0];
-                    mCalibrationValue[1] = calibration.principalPoint[1];
-                    mCalibrationValue[2] = calibration.focalLength[0];
-                    mCalibrationValue[3] = calibration.focalLength[1];
-
-                    for (int coeffIdx = 0; coeffIdx < calibration.distortionCoefficients.length; coeffIdx++)
-                    {
-                        mCalibrationValue[coeffIdx+4] = calibration.distortionCoefficients[coeffIdx];
-                    }
-
-                    Log.d(MODULE_TAG, "Returning calibration:");
-                    printCalibration(calibration);
-                    return mCalibrationValue;
-                }
-            }
-        }
-
-        return null;
+        return mCalibrationStore.get(vid, pid, width, height);
     }
 
-    private void addDefaultCalibrations()
+    private void addDefaultCalibrations(CalibrationStore.Builder builder)
     {
         // Microsoft LifeCam HD-3000
-        {
-            ArrayList<Calibration> calibrationList = new ArrayList<Calibration>();
-            calibrationList.add(new Calibration(new int[]{640, 480},
-                new float[]{318.135f, 228.374f},
-                new float[]{678.154f, 678.17f},
-                new float[]{0.154576f, -1.19143f, 0f, 0f, 2.06105f, 0f, 0f, 0f}));
-
-            // Vid+pid pair.
-            Pair<Integer, Integer> key = new Pair(Integer.decode(VENDOR_ID_MICROSOFT), Integer.decode(PRODUCT_ID_MICROSOFT_LIFECAM_HD_3000_1));
-            mCalibrationMap.put(key, calibrationList);
-
-            // At least one of LifeCam HD-3000 is reporting a wrong product ID, so add this too.
-            ArrayList<Calibration> calibrationList2 = new ArrayList<Calibration>();
-            calibrationList2.add(new Calibration(new int[]{640, 480},
-                new float[]{318.135f, 228.374f},
-                new float[]{678.154f, 678.17f},
-                new float[]{0.154576f, -1.19143f, 0f, 0f, 2.06105f, 0f, 0f, 0f}));
-            Pair<Integer, Integer> key2 = new Pair(Integer.decode(VENDOR_ID_MICROSOFT), Integer.decode(PRODUCT_ID_MICROSOFT_LIFECAM_HD_3000_2));
-            mCalibrationMap.put(key2, calibrationList2);
-        }
+        float[] lifeCamHD3000 = new float[]{318.135f, 228.374f, 678.154f, 678.17f,
+                                            0.154576f, -1.19143f, 0f, 0f, 2.06105f, 0f, 0f, 0f};
+        builder.put(Integer.decode(VENDOR_ID_MICROSOFT), Integer.decode(PRODUCT_ID_MICROSOFT_LIFECAM_HD_3000_1), 640, 480, lifeCamHD3000);
+
+        // At least one of LifeCam HD-3000 is reporting a wrong product ID, so add this too.
+        builder.put(Integer.decode(VENDOR_ID_MICROSOFT), Integer.decode(PRODUCT_ID_MICROSOFT_LIFECAM_HD_3000_2), 640, 480, lifeCamHD3000);
 
         // Logitech C310 HD
-        {
-            ArrayList<Calibration> calibrationList = new ArrayList<Calibration>();
-            calibrationList.add(new Calibration(new int[]{640, 480},
-                new float[]{316f, 230.895f},
-                new float[]{817.172f, 816.951f},
-                new float[]{-0.0456154f, 0.368814f, 0f, 0f, -0.899576f, 0f, 0f, 0f}));
-
-            // Vid+pid pair.
-            Pair<Integer, Integer> key = new Pair(Integer.decode(VENDOR_ID_LOGITECH), Integer.decode(PRODUCT_ID_LOGITECH_C310_HD));
-            mCalibrationMap.put(key, calibrationList);
-        }
+        builder.put(Integer.decode(VENDOR_ID_LOGITECH), Integer.decode(PRODUCT_ID_LOGITECH_C310_HD), 640, 480,
+                    new float[]{316f, 230.895f, 817.172f, 816.951f,
+                                -0.0456154f, 0.368814f, 0f, 0f, -0.899576f, 0f, 0f, 0f});
     }
 
-    private void getCalibrationsFromXML(Activity activity)
+    /**
+     * Add the calibrations of the xml file. They come from the binary cache unless the
+     * xml file has changed since the cache was written, then the xml file is parsed and
+     * the cache is written again.
+     */
+    private void getCalibrationsFromXML(Activity activity, CalibrationStore.Builder calibrations)
     {
-        AssetManager assetManager = activity.getAssets();
-        InputStream inputStream = null;
+        byte[] xml = readAsset(activity.getAssets(), CALIBRATION_XML_FILENAME);
+        if (xml == null) {
+            return;
+        }
+
+        int xmlHash = CalibrationCache.getHash(xml);
+        File cacheFile = new File(activity.getCacheDir(), CALIBRATION_CACHE_FILENAME);
+        if (CalibrationCache.read(cacheFile, xmlHash, calibrations)) {
+            return;
+        }
 
+        ArrayList<CalibrationCache.Entry> entries = new ArrayList<CalibrationCache.Entry>();
         try
         {
-            inputStream = assetManager.open(CALIBRATION_XML_FILENAME);
+            parseCalibrations(xml, entries);
+        }
+        catch (XmlPullParserException e)
+        {
+            Log.e(MODULE_TAG, "Failed to parse " + CALIBRATION_XML_FILENAME, e);
+            return;
+        }
+        catch (Exception e)
+        {
+            Log.e(MODULE_TAG, "Failed to read from " + CALIBRATION_XML_FILENAME, e);
+            return;
+        }
 
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(inputStream);
+        for (CalibrationCache.Entry entry : entries)
+        {
+            calibrations.put(entry.vid, entry.pid, entry.width, entry.height, entry.values);
+        }
+        CalibrationCache.write(cacheFile, xmlHash, entries);
+    }
 
-            NodeList deviceList = doc.getElementsByTagName("CameraDevice");
-            for (int idx = 0; idx < deviceList.getLength(); idx++)
+    private static void parseCalibrations(byte[] xml, ArrayList<CalibrationCache.Entry> entries)
+        throws XmlPullParserException, IOException
+    {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(new ByteArrayInputStream(xml), null);
+
+        int vid = 0, pid = 0;
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next())
+        {
+            if (event == XmlPullParser.END_TAG && "CameraDevice".equals(parser.getName()))
             {
-                Integer vid = 0, pid = 0;
+                vid = 0;
+                pid = 0;
+                continue;
+            }
 
-                Node device = deviceList.item(idx);
-                if (device.getNodeType() == Node.ELEMENT_NODE)
-                {
-                    if (((Element)device).hasAttribute("VID"))
-                    {
-                        String vid_str = ((Element)device).getAttribute("VID");
-                        vid = Integer.decode(vid_str);
-                    }
-
-                    if (((Element)device).hasAttribute("PID"))
-                    {
-                        String pid_str = ((Element)device).getAttribute("PID");
-                        pid = Integer.decode(pid_str);
-                    }
-                }
+            if (event != XmlPullParser.START_TAG) {
+                continue;
+            }
 
+            if ("CameraDevice".equals(parser.getName()))
+            {
+                vid = decodeId(parser.getAttributeValue(null, "VID"));
+                pid = decodeId(parser.getAttributeValue(null, "PID"));
+            }
+            else if ("Calibration".equals(parser.getName()))
+            {
                 if (vid == 0 || pid == 0)
                 {
                     // Cannot find VID or PID for this device, do not proceed
                     continue;
                 }
 
-                Pair<Integer, Integer> key = new Pair(vid, pid);
+                float[] frameSize = new float[2];
+                float[] values = new float[CalibrationStore.CALIBRATION_LENGTH];
+                parseFloats(parser.getAttributeValue(null, "size"), frameSize, 0, 2);
+                parseFloats(parser.getAttributeValue(null, "principal_point"), values, 0, 2);
+                parseFloats(parser.getAttributeValue(null, "focal_length"), values, 2, 2);
+                parseFloats(parser.getAttributeValue(null, "distortion_coefficients"), values, 4, 8);
 
-                NodeList children = device.getChildNodes();
-                for (int child_idx = 0; child_idx < children.getLength(); child_idx++)
-                {
-                    if (children.item(child_idx).getNodeName().equals("Calibration"))
-                    {
-                        int[] frameSize = new int[2];
-                        float[] principalPoint = new float[2];
-                        float[] focalLength = new float[2];
-                        float[] distortionCoefficients = new float[8];
-
-                        Node calibration = children.item(child_idx);
-                        if (calibration.getNodeType() == Node.ELEMENT_NODE)
-                        {
-                            if (((Element)calibration).hasAttribute("size"))
-                            {
-                                String frameSize_str = ((Element)calibration).getAttribute("size");
-                                String[] frameSize_str_arr = frameSize_str.split(" ");
-
-                                if (frameSize_str_arr.length == 2)
-                                {
-                                    frameSize[0] = Integer.decode(frameSize_str_arr[0]);
-                                    frameSize[1] = Integer.decode(frameSize_str_arr[1]);
-                                }
-                            }
-
-                            if (((Element)calibration).hasAttribute("principal_point"))
-                            {
-                                String principalPoint_str = ((Element)calibration).getAttribute("principal_point");
-                                String[] principalPoint_str_arr = principalPoint_str.split(" ");
-
-                                if (principalPoint_str_arr.length == 2)
-                                {
-                                    principalPoint[0] = Float.parseFloat(principalPoint_str_arr[0]);
-                                    principalPoint[1] = Float.parseFloat(principalPoint_str_arr[1]);
-                                }
-                            }
-
-                            if (((Element)calibration).hasAttribute("focal_length"))
-                            {
-                                String focalLength_str = ((Element)calibration).getAttribute("focal_length");
-                                String[] focalLength_str_arr = focalLength_str.split(" ");
-
-                                if (focalLength_str_arr.length == 2)
-                                {
-                                    focalLength[0] = Float.parseFloat(focalLength_str_arr[0]);
-                                    focalLength[1] = Float.parseFloat(focalLength_str_arr[1]);
-                                }
-                            }
-
-                            if (((Element)calibration).hasAttribute("distortion_coefficients"))
-                            {
-                                String distortionCoefficients_str = ((Element)calibration).getAttribute("distortion_coefficients");
-                                String[] distortionCoefficients_str_arr = distortionCoefficients_str.split(" ");
-
-                                if (distortionCoefficients_str_arr.length == 8)
-                                {
-                                    for (int coeffIdx = 0; coeffIdx < distortionCoefficients_str_arr.length; coeffIdx++)
-                                    {
-                                        distortionCoefficients[coeffIdx] = Float.parseFloat(distortionCoefficients_str_arr[coeffIdx]);
-                                    }
-                                }
-                            }
-                        }
-
-                        Calibration calibrationVal = new Calibration(frameSize, principalPoint, focalLength, distortionCoefficients);
-
-                        if (mCalibrationMap.containsKey(key))
-                        {
-                            ArrayList<Calibration> calibrationList = mCalibrationMap.get(key);
-
-                            // Check if there already is a default entry, that the user wants to overwrite.
-                            boolean overwritten = false;
-                            for (int calibIdx = 0; calibIdx < calibrationList.size(); calibIdx++)
-                            {
-                                Calibration existing = calibrationList.get(calibIdx);
-                                if (existing.frameSize[0] == frameSize[0] &&
-                                    existing.frameSize[1] == frameSize[1])
-                                {
-                                    existing.principalPoint[0] = principalPoint[0];
-                                    existing.principalPoint[1] = principalPoint[1];
-                                    existing.focalLength[0] = focalLength[0];
-                                    existing.focalLength[1] = focalLength[1];
-
-                                    for (int coeffIdx = 0; coeffIdx < distortionCoefficients.length; coeffIdx++)
-                                    {
-                                        existing.distortionCoefficients[coeffIdx] = distortionCoefficients[coeffIdx];
-                                    }
-                                    
-                                    overwritten = true;
-
-                                    Log.d(MODULE_TAG, "Overwrote calibration for VID: " + vid + ", PID:" + pid +
-                                                      " frameSize: [" + frameSize[0] + "x" + frameSize[1] + "]");
-                                }
-                            }
-
-                            if (!overwritten)
-                            {
-                                calibrationList.add(calibrationVal);
-                            }
-                        }
-                        else
-                        {
-                            ArrayList<Calibration> calibrationList = new ArrayList<Calibration>();
-                            calibrationList.add(calibrationVal);
-                            mCalibrationMap.put(key, calibrationList);
-                        }
-                    }
-                }
+                entries.add(new CalibrationCache.Entry(vid, pid, (int) frameSize[0], (int) frameSize[1], values));
             }
         }
-        catch (SAXParseException e)
+    }
+
+    private static int decodeId(String value)
+    {
+        if (value == null) {
+            return 0;
+        }
+
+        try
         {
-            Log.e(MODULE_TAG, "Failed to parse " + CALIBRATION_XML_FILENAME, e);
+            return Integer.decode(value.trim());
         }
-        catch (Exception e)
+        catch (NumberFormatException e)
         {
-            Log.e(MODULE_TAG, "Failed to read from " + CALIBRATION_XML_FILENAME, e);
+            return 0;
         }
     }
 
-    private static void printCalibrationMap(HashMap map)
+    /**
+     * Parse exactly count whitespace separated numbers into out, starting at offset.
+     * Leaves out alone if the attribute is missing or has another number of values.
+     */
+    private static void parseFloats(String value, float[] out, int offset, int count)
     {
-        Iterator it = map.keySet().iterator();
+        if (value == null) {
+            return;
+        }
 
-        while (it.hasNext())
+        float[] parsed = new float[count];
+        int numParsed = 0;
+        int length = value.length();
+        int pos = 0;
+        while (pos < length)
         {
-            Pair<Integer, Integer> key = (Pair<Integer, Integer>)it.next();
-            ArrayList<Calibration> value = (ArrayList<Calibration>)map.get(key);
+            while (pos < length && Character.isWhitespace(value.charAt(pos))) {
+                pos++;
+            }
+
+            int start = pos;
+            while (pos < length && !Character.isWhitespace(value.charAt(pos))) {
+                pos++;
+            }
+
+            if (start == pos) {
+                break;
+            }
 
-            // Print key
-            Log.d(MODULE_TAG, "VID: " + String.format("0x%04x", key.first) + ", PID: " + String.format("0x%04x", key.second));
+            if (numParsed == count) {
+                return;
+            }
 
-            // Print values
-            for (int idx = 0; idx < value.size(); idx++)
+            try
+            {
+                parsed[numParsed++] = Float.parseFloat(value.substring(start, pos));
+            }
+            catch (NumberFormatException e)
             {
-                Calibration calibration = value.get(idx);
-                printCalibration(calibration);
+                return;
             }
         }
+
+        if (numParsed == count) {
+            System.arraycopy(parsed, 0, out, offset, count);
+        }
     }
 
-    private static void printCalibration(Calibration calibration)
+    private static byte[] readAsset(AssetManager assetManager, String fileName)
     {
-        ArrayList<Float> distortionCoeffList = new ArrayList<Float>(calibration.distortionCoefficients.length);
-        for (float f : calibration.distortionCoefficients) {
-            distortionCoeffList.add(f);
+        InputStream inputStream = null;
+        try
+        {
+            inputStream = assetManager.open(fileName);
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int length;
+            while ((length = inputStream.read(chunk)) > 0)
+            {
+                outputStream.write(chunk, 0, length);
+            }
+            return outputStream.toByteArray();
+        }
+        catch (IOException e)
+        {
+            Log.e(MODULE_TAG, "Failed to read from " + fileName, e);
+            return null;
+        }
+        finally
+        {
+            if (inputStream != null)
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing left to do with it
+                }
+            }
         }
-        
-        Log.d(MODULE_TAG, "Calibration - Frame Size: " + calibration.frameSize[0] + " x " + calibration.frameSize[1]);
-        Log.d(MODULE_TAG, "Calibration - Principal Point: " + calibration.principalPoint[0] + " and " + calibration.principalPoint[1]);
-        Log.d(MODULE_TAG, "Calibration - Focal Length: " + calibration.focalLength[0] + " and " + calibration.focalLength[1]);
-        Log.d(MODULE_TAG, "Calibration - Distortion coefficients: " + TextUtils.join(", ", distortionCoeffList));
     }
 }
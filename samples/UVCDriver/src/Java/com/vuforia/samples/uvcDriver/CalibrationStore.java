@@ -0,0 +1,223 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.samples.uvcDriver;
+
+import android.text.TextUtils;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable camera calibrations, indexed by vendor id, product id and frame size.
+ *
+ * A calibration is 12 floats: principal point x and y, focal length x and y and
+ * the 8 distortion coefficients, in the layout the native driver expects.
+ *
+ * Frame sizes that were not calibrated are derived from the closest calibrated
+ * size of the same camera. The camera is assumed to scale its full field of view
+ * when the aspect ratio is the same, and to crop it around the center when it is not.
+ * The distortion coefficients apply to normalized coordinates and are kept as they are.
+ */
+public final class CalibrationStore
+{
+    private static final String MODULE_TAG = "Vuforia-UVCDriver";
+
+    /** Number of floats in a calibration. */
+    public static final int CALIBRATION_LENGTH = 12;
+
+    private static final class Calibration
+    {
+        final int width;
+        final int height;
+        final float[] values;
+
+        Calibration(int width, int height, float[] values)
+        {
+            this.width = width;
+            this.height = height;
+            this.values = values;
+        }
+    }
+
+    // Exact calibrations by (vid, pid, width, height)
+    private final Map<Long, Calibration> mCalibrations;
+    // All the calibrations of a camera by (vid, pid), for deriving missing frame sizes
+    private final Map<Integer, Calibration[]> mCameraCalibrations;
+
+    private CalibrationStore(Map<Long, Calibration> calibrations, Map<Integer, Calibration[]> cameraCalibrations)
+    {
+        mCalibrations = calibrations;
+        mCameraCalibrations = cameraCalibrations;
+    }
+
+    /** Collects calibrations, a later calibration for the same camera and frame size replaces the earlier one. */
+    public static final class Builder
+    {
+        private final HashMap<Long, Calibration> mCalibrations = new HashMap<Long, Calibration>();
+
+        public Builder put(int vid, int pid, int width, int height, float[] values)
+        {
+            if (values == null || values.length != CALIBRATION_LENGTH || width <= 0 || height <= 0)
+            {
+                Log.e(MODULE_TAG, "Ignoring invalid calibration for VID: " + vid + ", PID: " + pid +
+                                  " frameSize: [" + width + "x" + height + "]");
+                return this;
+            }
+
+            Calibration previous = mCalibrations.put(getKey(vid, pid, width, height),
+                                                     new Calibration(width, height, values.clone()));
+            if (previous != null)
+            {
+                Log.d(MODULE_TAG, "Overwrote calibration for VID: " + vid + ", PID:" + pid +
+                                  " frameSize: [" + width + "x" + height + "]");
+            }
+            return this;
+        }
+
+        public CalibrationStore build()
+        {
+            HashMap<Integer, ArrayList<Calibration>> cameraLists = new HashMap<Integer, ArrayList<Calibration>>();
+            for (Map.Entry<Long, Calibration> entry : mCalibrations.entrySet())
+            {
+                Integer cameraKey = getCameraKey(entry.getKey());
+                ArrayList<Calibration> list = cameraLists.get(cameraKey);
+                if (list == null)
+                {
+                    list = new ArrayList<Calibration>();
+                    cameraLists.put(cameraKey, list);
+                }
+                list.add(entry.getValue());
+            }
+
+            HashMap<Integer, Calibration[]> cameraCalibrations = new HashMap<Integer, Calibration[]>();
+            for (Map.Entry<Integer, ArrayList<Calibration>> entry : cameraLists.entrySet())
+            {
+                ArrayList<Calibration> list = entry.getValue();
+                cameraCalibrations.put(entry.getKey(), list.toArray(new Calibration[list.size()]));
+            }
+
+            return new CalibrationStore(Collections.unmodifiableMap(new HashMap<Long, Calibration>(mCalibrations)),
+                                        Collections.unmodifiableMap(cameraCalibrations));
+        }
+    }
+
+    /**
+     * Calibration for the camera at the frame size.
+     *
+     * @return A new array the caller may modify, null if the camera has no calibration at all.
+     */
+    public float[] get(int vid, int pid, int width, int height)
+    {
+        Calibration calibration = mCalibrations.get(getKey(vid, pid, width, height));
+        if (calibration != null) {
+            return calibration.values.clone();
+        }
+
+        Calibration[] cameraCalibrations = mCameraCalibrations.get(getCameraKey(vid, pid));
+        if (cameraCalibrations == null || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        Calibration closest = findClosest(cameraCalibrations, width, height);
+        Log.d(MODULE_TAG, "No calibration for [" + width + "x" + height + "], deriving it from [" +
+                          closest.width + "x" + closest.height + "]");
+        return derive(closest, width, height);
+    }
+
+    public void log()
+    {
+        for (Map.Entry<Integer, Calibration[]> entry : mCameraCalibrations.entrySet())
+        {
+            int cameraKey = entry.getKey();
+            Log.d(MODULE_TAG, "VID: " + String.format("0x%04x", cameraKey >>> 16) + ", PID: " + String.format("0x%04x", cameraKey & 0xFFFF));
+
+            for (Calibration calibration : entry.getValue())
+            {
+                ArrayList<Float> distortionCoeffList = new ArrayList<Float>(8);
+                for (int idx = 4; idx < CALIBRATION_LENGTH; idx++) {
+                    distortionCoeffList.add(calibration.values[idx]);
+                }
+
+                Log.d(MODULE_TAG, "Calibration - Frame Size: " + calibration.width + " x " + calibration.height);
+                Log.d(MODULE_TAG, "Calibration - Principal Point: " + calibration.values[0] + " and " + calibration.values[1]);
+                Log.d(MODULE_TAG, "Calibration - Focal Length: " + calibration.values[2] + " and " + calibration.values[3]);
+                Log.d(MODULE_TAG, "Calibration - Distortion coefficients: " + TextUtils.join(", ", distortionCoeffList));
+            }
+        }
+    }
+
+    /** Prefers the same aspect ratio, then the closest width, so that the least scaling is needed. */
+    private static Calibration findClosest(Calibration[] calibrations, int width, int height)
+    {
+        Calibration closest = null;
+        for (Calibration calibration : calibrations)
+        {
+            if (closest == null)
+            {
+                closest = calibration;
+                continue;
+            }
+
+            boolean sameAspect = hasSameAspect(calibration, width, height);
+            boolean closestSameAspect = hasSameAspect(closest, width, height);
+            if (sameAspect != closestSameAspect)
+            {
+                if (sameAspect) {
+                    closest = calibration;
+                }
+                continue;
+            }
+
+            if (Math.abs(calibration.width - width) < Math.abs(closest.width - width)) {
+                closest = calibration;
+            }
+        }
+        return closest;
+    }
+
+    private static boolean hasSameAspect(Calibration calibration, int width, int height)
+    {
+        return (long) calibration.width * height == (long) calibration.height * width;
+    }
+
+    /**
+     * Scale the calibration so that the calibrated field of view covers the frame,
+     * then crop what sticks out on either side equally.
+     */
+    private static float[] derive(Calibration calibration, int width, int height)
+    {
+        float scale = Math.max((float) width / calibration.width, (float) height / calibration.height);
+        float cropX = (calibration.width * scale - width) / 2.0f;
+        float cropY = (calibration.height * scale - height) / 2.0f;
+
+        float[] values = calibration.values.clone();
+        values[0] = calibration.values[0] * scale - cropX;
+        values[1] = calibration.values[1] * scale - cropY;
+        values[2] = calibration.values[2] * scale;
+        values[3] = calibration.values[3] * scale;
+        return values;
+    }
+
+    private static long getKey(int vid, int pid, int width, int height)
+    {
+        return ((long) (vid & 0xFFFF) << 48) | ((long) (pid & 0xFFFF) << 32) |
+               ((long) (width & 0xFFFF) << 16) | (long) (height & 0xFFFF);
+    }
+
+    private static int getCameraKey(int vid, int pid)
+    {
+        return ((vid & 0xFFFF) << 16) | (pid & 0xFFFF);
+    }
+
+    private static int getCameraKey(long key)
+    {
+        return (int) (key >>> 32);
+    }
+}
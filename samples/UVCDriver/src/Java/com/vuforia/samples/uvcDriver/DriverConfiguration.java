@@ -0,0 +1,253 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.samples.uvcDriver;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tuning parameters for the UVC driver.
+ *
+ * The values are read by the native driver when the camera is opened or started,
+ * so they should be set before calling Vuforia.init() or CameraDevice.start().
+ * Keys that have not been set fall back to the driver defaults.
+ */
+public final class DriverConfiguration
+{
+    /** Number of frame buffers between the USB thread and Vuforia. 0 delivers frames directly on the USB thread. */
+    public static final String FRAME_QUEUE_CAPACITY = "frameQueue.capacity";
+
+    /** What to do with a new frame when the frame queue is full. One of the FRAME_QUEUE_POLICY_* values. */
+    public static final String FRAME_QUEUE_POLICY = "frameQueue.policy";
+
+    public static final int FRAME_QUEUE_POLICY_DROP_OLDEST = 0;
+    public static final int FRAME_QUEUE_POLICY_DROP_NEWEST = 1;
+    public static final int FRAME_QUEUE_POLICY_BLOCK = 2;
+
+    /** Number of threads decoding MJPEG frames. 0 disables the MJPEG camera modes. */
+    public static final String MJPEG_DECODER_THREADS = "mjpeg.decoderThreads";
+
+    /**
+     * Preferred frame rate. When set, only the best matching frame rate of each
+     * resolution is offered to Vuforia. 0 for no preference.
+     */
+    public static final String MODE_SELECTION_TARGET_FPS = "modeSelection.targetFps";
+
+    /** Preferred frame width and height. 0 for no preference. */
+    public static final String MODE_SELECTION_TARGET_WIDTH = "modeSelection.targetWidth";
+    public static final String MODE_SELECTION_TARGET_HEIGHT = "modeSelection.targetHeight";
+
+    /**
+     * USB bandwidth in bytes per second that a camera mode may use, measured with the largest frame
+     * the camera reports for the mode, which for MJPEG is the uncompressed size. 0 (default) for no limit.
+     */
+    public static final String MODE_SELECTION_BANDWIDTH_BUDGET = "modeSelection.bandwidthBudget";
+
+    /**
+     * 1 to timestamp frames with the device clock from the UVC payload headers,
+     * 0 to use the time the frame arrived on the host.
+     */
+    public static final String HARDWARE_TIMESTAMPS = "timestamps.hardware";
+
+    /** Maximum number of UVC cameras that are opened. 0 opens all connected cameras. */
+    public static final String MULTI_CAMERA_MAX_CAMERAS = "multiCamera.maxCameras";
+
+    /** Index of the camera that delivers frames to Vuforia when the cameras are opened. */
+    public static final String MULTI_CAMERA_ACTIVE_CAMERA = "multiCamera.activeCamera";
+
+    /**
+     * 1 to keep the inactive cameras streaming so that switching cameras is immediate,
+     * 0 to only stream the active camera. Streaming several cameras needs more USB bandwidth.
+     */
+    public static final String MULTI_CAMERA_STREAM_INACTIVE = "multiCamera.streamInactive";
+
+    /** 1 to reconnect cameras that were unplugged and plugged back in, 0 to disable. */
+    public static final String RECONNECT_ENABLED = "reconnect.enabled";
+
+    /** A streaming camera that delivers no frames for this many milliseconds is reconnected. 0 to disable. */
+    public static final String RECONNECT_STALL_TIMEOUT_MS = "reconnect.stallTimeoutMs";
+
+    /** How long opening a usb device waits for the user to grant the usb permission, in milliseconds. */
+    public static final String USB_PERMISSION_TIMEOUT_MS = "usbPermission.timeoutMs";
+
+    /**
+     * 1 to only open usb devices with a UVC video streaming interface, 0 to try every usb device.
+     * Some cameras report a vendor specific class and are only found with 0.
+     */
+    public static final String DEVICES_VIDEO_CLASS_ONLY = "devices.videoClassOnly";
+
+    /**
+     * Comma separated list of vendor and product ids in hexadecimal, e.g. "046d:0825,1bcf:2c99".
+     * Matching cameras are opened first, in the order of the list, so the first one becomes camera 0.
+     * A product id of * matches every product of the vendor.
+     */
+    public static final String DEVICES_PREFERRED = "devices.preferred";
+
+    /**
+     * String. File the frames delivered to Vuforia are recorded to while the camera is started,
+     * e.g. in getExternalFilesDir(). An existing file is replaced. Not set to disable recording.
+     */
+    public static final String RECORDING_PATH = "recording.path";
+
+    /** String. Recording to replay instead of opening the UVC cameras. Not set to use the cameras. */
+    public static final String REPLAY_PATH = "replay.path";
+
+    /** 1 to replay the recording at the recorded frame rate, 0 to replay it as fast as Vuforia takes the frames. */
+    public static final String REPLAY_REAL_TIME = "replay.realTime";
+
+    /** 1 to start the recording over when it ends, 0 to stop delivering frames. */
+    public static final String REPLAY_LOOP = "replay.loop";
+
+    /**
+     * 1 to reserve only the USB bandwidth a stream needs, so that several cameras fit on one bus,
+     * 0 to let libuvc pick the isochronous alternate setting the camera asks for. When the bus is
+     * full, the camera streams the same frames as MJPEG or at a lower frame rate instead.
+     */
+    public static final String BANDWIDTH_PLANNING = "bandwidth.planning";
+
+    /**
+     * Isochronous bytes per microframe the cameras on one USB bus may reserve together.
+     * 0 for the default of 6000 on high-speed buses and 1350 per frame on full-speed buses.
+     * Lower it if other isochronous devices, e.g. a headset, share the bus with the cameras.
+     */
+    public static final String BANDWIDTH_BUS_BUDGET = "bandwidth.busBudget";
+
+    /**
+     * 1 to do continuous auto exposure in the driver instead of the camera, for cameras whose own
+     * auto exposure hunts. The camera is kept in manual exposure mode and the exposure time and gain
+     * are set from the brightness of the frames. Needs a camera with manual exposure time control.
+     */
+    public static final String EXPOSURE_SOFTWARE = "exposure.software";
+
+    /** Mean brightness, 1 - 255, the software auto exposure exposes the frames for. */
+    public static final String EXPOSURE_SOFTWARE_TARGET = "exposure.softwareTarget";
+
+    /**
+     * String. Comma separated list of camera modes that are produced from larger ones, so that
+     * Vuforia can track on small frames while the camera streams large ones, e.g.
+     * "1920x1080>640x480:scale,1920x1080>640x360:crop". "scale" shrinks the frames, cropping the
+     * centre to the new aspect ratio if needed, "crop" cuts the centre out without scaling.
+     * The mode is offered at every frame rate of the source size and replaces the camera's own
+     * mode of that size. The camera intrinsics are adjusted to the new frames.
+     */
+    public static final String PROCESSING_MODES = "processing.modes";
+
+    /**
+     * 1 (default) to write exposure and focus controls on a worker thread. The setters return
+     * once the write is queued, and a queued write is replaced by a later one of the same control.
+     * 0 to write them on the calling thread.
+     */
+    public static final String CONTROLS_ASYNC = "controls.async";
+
+    /** 1 (default) to read a control back after writing it and log if the camera didn't take the value. */
+    public static final String CONTROLS_READ_BACK = "controls.readBack";
+
+    /**
+     * 1 (default) to convert the frames of UYVY and GRAY8 cameras with the SSE2 or NEON kernels,
+     * 0 for the scalar ones. UYVY frames are delivered as YUYV, GRAY8 frames as NV21.
+     */
+    public static final String CONVERSION_SIMD = "conversion.simd";
+
+    /**
+     * String. Directory the driver keeps a profile of each camera in, e.g. getCacheDir(). A camera
+     * that is opened again skips the enumeration of its modes and controls and starts streaming with
+     * the stream control negotiated the last time. Not set to read everything from the camera.
+     */
+    public static final String DEVICE_PROFILE_DIRECTORY = "deviceProfile.directory";
+
+    /**
+     * Milliseconds the cameras stay open after Vuforia stopped and closed them, e.g. while the
+     * activity is paused. Opening and starting the camera again within that time skips the USB
+     * enumeration and reuses the negotiated stream, also when Vuforia destroys the camera and creates
+     * a new one in between. The cameras don't stream while they wait. Read whenever the camera is
+     * closed, 0 (default) to close the cameras right away.
+     */
+    public static final String STANDBY_TIMEOUT_MS = "standby.timeoutMs";
+
+    /** Pass only every Nth camera frame on to Vuforia, the camera keeps streaming at its rate. 1 (default) for every frame. */
+    public static final String DELIVERY_DECIMATION = "delivery.decimation";
+
+    /** Highest rate frames are passed on to Vuforia at. 0 (default) for no limit. */
+    public static final String DELIVERY_TARGET_FPS = "delivery.targetFps";
+
+    /**
+     * 1 to lower the rate further while Vuforia takes too long per frame, e.g. when the device is
+     * thermally throttled, and to raise it again when Vuforia catches up. 0 (default) to disable.
+     */
+    public static final String DELIVERY_ADAPTIVE = "delivery.adaptive";
+
+    /** Percent of the time between two delivered frames Vuforia may spend on a frame in adaptive mode. Default 80. */
+    public static final String DELIVERY_MAX_LOAD = "delivery.maxLoad";
+
+    /** Lowest rate the adaptive mode goes down to. Default 5. */
+    public static final String DELIVERY_MIN_FPS = "delivery.minFps";
+
+    private static final ConcurrentHashMap<String, String> sValues = new ConcurrentHashMap<String, String>();
+
+    private DriverConfiguration()
+    {
+    }
+
+    public static void setInt(String key, int value)
+    {
+        sValues.put(key, Integer.toString(value));
+    }
+
+    public static int getInt(String key, int defaultValue)
+    {
+        String value = sValues.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    public static void setBoolean(String key, boolean value)
+    {
+        sValues.put(key, Boolean.toString(value));
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue)
+    {
+        String value = sValues.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+
+    public static void setString(String key, String value)
+    {
+        if (value == null)
+        {
+            sValues.remove(key);
+            return;
+        }
+
+        sValues.put(key, value);
+    }
+
+    public static String getString(String key, String defaultValue)
+    {
+        String value = sValues.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public static void reset()
+    {
+        sValues.clear();
+    }
+}
@@ -0,0 +1,130 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.samples.uvcDriver;
+
+/**
+ * Streaming health of the UVC cameras, for reporting from devices in the field.
+ *
+ * The driver counts the frames each camera delivers and the frames missing from the
+ * UVC sequence numbers. It also keeps histograms of the time between frames, the time
+ * Vuforia spends processing a frame and the duration of the USB control requests.
+ * The counters start over whenever the camera is started.
+ *
+ * The methods are implemented by the driver library, it is loaded here so that
+ * they can be resolved. Vuforia uses the same library instance.
+ */
+public final class DriverTelemetry
+{
+    static
+    {
+        System.loadLibrary("UVCDriver");
+    }
+
+    /**
+     * Number of histogram buckets. Bucket 0 counts durations below 2 us, bucket i
+     * the durations from 2^i us up to 2^(i+1) us, the last bucket everything above.
+     */
+    public static final int NUM_BUCKETS = 20;
+
+    // Layout of the array filled by the driver
+    private static final int HISTOGRAM_LENGTH = 4 + NUM_BUCKETS;
+    private static final int SNAPSHOT_LENGTH = 2 + 3 * HISTOGRAM_LENGTH;
+
+    /** Durations recorded by the driver, in microseconds. */
+    public static final class Histogram
+    {
+        public final long count;
+        public final long sumUs;
+        public final long sumOfSquaresUs;
+        public final long maxUs;
+        public final long[] buckets;
+
+        private Histogram(long[] values, int offset)
+        {
+            count = values[offset];
+            sumUs = values[offset + 1];
+            sumOfSquaresUs = values[offset + 2];
+            maxUs = values[offset + 3];
+            buckets = new long[NUM_BUCKETS];
+            System.arraycopy(values, offset + 4, buckets, 0, NUM_BUCKETS);
+        }
+
+        public double getMeanUs()
+        {
+            return count > 0 ? (double) sumUs / count : 0.0;
+        }
+
+        public double getStandardDeviationUs()
+        {
+            if (count == 0) {
+                return 0.0;
+            }
+
+            double mean = getMeanUs();
+            double variance = (double) sumOfSquaresUs / count - mean * mean;
+            return variance > 0.0 ? Math.sqrt(variance) : 0.0;
+        }
+
+        /** Upper bound of the bucket in microseconds, Long.MAX_VALUE for the last bucket. */
+        public static long getBucketUpperBoundUs(int bucket)
+        {
+            return bucket >= NUM_BUCKETS - 1 ? Long.MAX_VALUE : 2L << bucket;
+        }
+    }
+
+    public static final class Snapshot
+    {
+        /** Frames that arrived from the camera. */
+        public final long framesReceived;
+        /** Frames the camera never delivered, from the gaps in the sequence numbers. */
+        public final long framesDropped;
+        /** Time between two frames, the standard deviation is the jitter. */
+        public final Histogram frameInterval;
+        /** Time Vuforia spent processing a frame. */
+        public final Histogram callbackDuration;
+        /** Duration of the USB control requests, e.g. reading or setting the exposure. */
+        public final Histogram controlTransfer;
+
+        private Snapshot(long[] values)
+        {
+            framesReceived = values[0];
+            framesDropped = values[1];
+            frameInterval = new Histogram(values, 2);
+            callbackDuration = new Histogram(values, 2 + HISTOGRAM_LENGTH);
+            controlTransfer = new Histogram(values, 2 + 2 * HISTOGRAM_LENGTH);
+        }
+
+        public double getFps()
+        {
+            double meanInterval = frameInterval.getMeanUs();
+            return meanInterval > 0.0 ? 1000000.0 / meanInterval : 0.0;
+        }
+    }
+
+    private DriverTelemetry()
+    {
+    }
+
+    /**
+     * Get the streaming health of a camera.
+     *
+     * @param cameraIndex Index of the camera, see MultiCameraController.
+     * @return null if Vuforia hasn't opened the camera or the index is invalid.
+     */
+    public static Snapshot getSnapshot(int cameraIndex)
+    {
+        long[] values = new long[SNAPSHOT_LENGTH];
+        if (!nativeGetSnapshot(cameraIndex, values)) {
+            return null;
+        }
+
+        return new Snapshot(values);
+    }
+
+    private static native boolean nativeGetSnapshot(int cameraIndex, long[] values);
+}
@@ -0,0 +1,283 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.samples.uvcDriver;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Gives the application the camera frames Vuforia tracks on, e.g. for barcode decoding or logging.
+ *
+ * The frames of the active camera are copied by the driver into a ring of direct ByteBuffers
+ * that are allocated here, the metadata goes to a header buffer next to them. A thread of the
+ * tap waits for the frames and passes them to the listener, no arrays are copied or objects
+ * allocated per frame. The frames have the resolution the camera streams, also when Vuforia
+ * gets scaled or cropped frames, see DriverConfiguration.PROCESSING_MODES.
+ *
+ * The driver never waits for the listener. A frame that arrives while all buffers are in use
+ * is dropped according to the drop policy, the gaps in the sequence numbers show it.
+ *
+ * The tap can be started before Vuforia opens the camera and keeps running while the active
+ * camera is switched. The methods are implemented by the driver library, it is loaded here
+ * so that they can be resolved. Vuforia uses the same library instance.
+ */
+public final class FrameTap
+{
+    static
+    {
+        System.loadLibrary("UVCDriver");
+    }
+
+    private static final String MODULE_TAG = "Vuforia-UVCDriver";
+
+    /** Overwrite the oldest frame the listener hasn't received yet, the listener gets the latest frames. */
+    public static final int DROP_OLDEST = 0;
+    /** Drop the incoming frame, the listener gets the frames in bursts without gaps. */
+    public static final int DROP_NEWEST = 1;
+
+    /** Pixel formats of the frames, see Vuforia::Driver::PixelFormat. */
+    public static final int FORMAT_UNKNOWN = 0;
+    public static final int FORMAT_YUYV = 1;
+    public static final int FORMAT_NV12 = 2;
+    public static final int FORMAT_NV21 = 3;
+
+    // Layout of the header of each buffer, see FrameTap::SlotHeader
+    private static final int HEADER_SIZE = 48;
+    private static final int HEADER_SEQUENCE = 0;
+    private static final int HEADER_TIMESTAMP = 8;
+    private static final int HEADER_EXPOSURE_TIME = 16;
+    private static final int HEADER_WIDTH = 24;
+    private static final int HEADER_HEIGHT = 28;
+    private static final int HEADER_STRIDE = 32;
+    private static final int HEADER_FORMAT = 36;
+    private static final int HEADER_SIZE_BYTES = 40;
+
+    // How long the tap thread waits for a frame before it checks whether it should stop
+    private static final int ACQUIRE_TIMEOUT_MS = 100;
+
+    /** Receives the frames on the thread of the tap. */
+    public interface Listener
+    {
+        /**
+         * The frame and its buffer are only valid during the call, copy what is needed later.
+         * The driver drops frames while the listener is busy, it doesn't wait for it.
+         */
+        void onFrame(Frame frame);
+    }
+
+    /** A frame in one of the buffers of the tap. The objects are reused for the following frames. */
+    public static final class Frame
+    {
+        private final ByteBuffer mBuffer;
+        private long mSequence;
+        private long mTimestamp;
+        private long mExposureTime;
+        private int mWidth;
+        private int mHeight;
+        private int mStride;
+        private int mFormat;
+
+        private Frame(ByteBuffer buffer)
+        {
+            mBuffer = buffer;
+        }
+
+        /** Number of the frame since the tap was started. Frames that were dropped leave a gap. */
+        public long getSequence() { return mSequence; }
+
+        /** Capture time in nanoseconds on the System.nanoTime() time base (CLOCK_MONOTONIC). */
+        public long getTimestamp() { return mTimestamp; }
+
+        /** Exposure time in nanoseconds, 0 if unknown. */
+        public long getExposureTime() { return mExposureTime; }
+
+        public int getWidth() { return mWidth; }
+        public int getHeight() { return mHeight; }
+
+        /** Bytes per row. */
+        public int getStride() { return mStride; }
+
+        /** One of the FORMAT_ constants. */
+        public int getFormat() { return mFormat; }
+
+        /** The pixels, from position 0 to the limit. Read-only use, the driver writes the next frame into it. */
+        public ByteBuffer getBuffer() { return mBuffer; }
+    }
+
+    private static final Object sLock = new Object();
+    // The thread delivering the frames of the running tap, the thread of a previous tap may still be in the listener
+    private static volatile Thread sThread = null;
+    private static volatile boolean sRunning = false;
+    // Referenced here while the driver writes to them
+    private static ByteBuffer[] sBuffers = null;
+    private static ByteBuffer sHeaders = null;
+
+    private FrameTap()
+    {
+    }
+
+    /**
+     * Start passing frames to the listener. A running tap is stopped first.
+     *
+     * @param listener Receives the frames.
+     * @param numBuffers Number of buffers in the ring, at least 2. The listener holds one,
+     *                   the others take the frames that arrive meanwhile.
+     * @param bufferSize Size of each buffer, e.g. width * height * 2 for YUYV frames.
+     *                   Larger frames are dropped.
+     * @param dropPolicy DROP_OLDEST or DROP_NEWEST.
+     * @return False if the arguments are invalid or the driver library couldn't take the buffers.
+     */
+    public static boolean start(Listener listener, int numBuffers, int bufferSize, int dropPolicy)
+    {
+        if (listener == null || numBuffers < 2 || bufferSize <= 0 ||
+            (dropPolicy != DROP_OLDEST && dropPolicy != DROP_NEWEST))
+        {
+            Log.e(MODULE_TAG, "Invalid frame tap arguments");
+            return false;
+        }
+
+        stop();
+
+        synchronized (sLock)
+        {
+            ByteBuffer[] buffers = new ByteBuffer[numBuffers];
+            final Frame[] frames = new Frame[numBuffers];
+            for (int idx = 0; idx < numBuffers; idx++)
+            {
+                buffers[idx] = ByteBuffer.allocateDirect(bufferSize);
+                frames[idx] = new Frame(buffers[idx]);
+            }
+
+            final ByteBuffer headers = ByteBuffer.allocateDirect(numBuffers * HEADER_SIZE).order(ByteOrder.nativeOrder());
+
+            if (!nativeStart(buffers, headers, dropPolicy))
+            {
+                Log.e(MODULE_TAG, "Failed to start the frame tap");
+                return false;
+            }
+
+            sBuffers = buffers;
+            sHeaders = headers;
+            sRunning = true;
+
+            final Listener frameListener = listener;
+            sThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    deliverFrames(frameListener, frames, headers);
+                }
+            }, "UVCDriver-FrameTap");
+            sThread.start();
+        }
+
+        return true;
+    }
+
+    /** Stop passing frames. Waits for the listener to return, unless it is called from the listener. */
+    public static void stop()
+    {
+        Thread thread;
+        synchronized (sLock)
+        {
+            if (!sRunning)
+            {
+                return;
+            }
+
+            sRunning = false;
+            // Returns once the driver doesn't write to the buffers anymore
+            nativeStop();
+
+            thread = sThread;
+            sThread = null;
+            sBuffers = null;
+            sHeaders = null;
+        }
+
+        // Joined outside of the lock, the listener may call stop() itself
+        if (thread != Thread.currentThread())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Counters since the tap was started.
+     *
+     * @return Frames written to the buffers, frames dropped because the listener was behind,
+     *         and frames that didn't fit into a buffer.
+     */
+    public static long[] getStatistics()
+    {
+        long[] values = new long[3];
+        nativeGetStatistics(values);
+        return values;
+    }
+
+    private static void deliverFrames(Listener listener, Frame[] frames, ByteBuffer headers)
+    {
+        // The frames and headers belong to the tap this thread was started for. A listener that
+        // calls stop() and start() gets a new thread, this one ends once the listener returns.
+        while (sThread == Thread.currentThread())
+        {
+            int slot = nativeAcquire(ACQUIRE_TIMEOUT_MS);
+            if (slot < 0)
+            {
+                continue;
+            }
+
+            int offset = slot * HEADER_SIZE;
+            Frame frame = frames[slot];
+            frame.mSequence = headers.getLong(offset + HEADER_SEQUENCE);
+            frame.mTimestamp = headers.getLong(offset + HEADER_TIMESTAMP);
+            frame.mExposureTime = headers.getLong(offset + HEADER_EXPOSURE_TIME);
+            frame.mWidth = headers.getInt(offset + HEADER_WIDTH);
+            frame.mHeight = headers.getInt(offset + HEADER_HEIGHT);
+            frame.mStride = headers.getInt(offset + HEADER_STRIDE);
+            frame.mFormat = headers.getInt(offset + HEADER_FORMAT);
+            frame.mBuffer.clear();
+            frame.mBuffer.limit(headers.getInt(offset + HEADER_SIZE_BYTES));
+
+            try
+            {
+                listener.onFrame(frame);
+            }
+            catch (RuntimeException e)
+            {
+                Log.e(MODULE_TAG, "Frame tap listener failed", e);
+            }
+            finally
+            {
+                synchronized (sLock)
+                {
+                    // The buffers of a stopped tap are forgotten by the driver, the slot may be in use by a newer tap
+                    if (sThread == Thread.currentThread())
+                    {
+                        nativeRelease(slot);
+                    }
+                }
+            }
+        }
+    }
+
+    private static native boolean nativeStart(ByteBuffer[] buffers, ByteBuffer headers, int dropPolicy);
+    private static native void nativeStop();
+    private static native int nativeAcquire(int timeoutMs);
+    private static native void nativeRelease(int slot);
+    private static native void nativeGetStatistics(long[] values);
+}
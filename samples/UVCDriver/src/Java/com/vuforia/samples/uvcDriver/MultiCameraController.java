@@ -0,0 +1,44 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.samples.uvcDriver;
+
+/**
+ * Switches between the UVC cameras the driver has opened.
+ *
+ * The driver opens every connected UVC camera (see DriverConfiguration.MULTI_CAMERA_MAX_CAMERAS)
+ * and delivers the frames of the active one to Vuforia. The active camera can be changed
+ * at any time after Vuforia has opened the camera, without stopping the tracker.
+ *
+ * The methods are implemented by the driver library, it is loaded here so that
+ * they can be resolved. Vuforia uses the same library instance.
+ */
+public final class MultiCameraController
+{
+    static
+    {
+        System.loadLibrary("UVCDriver");
+    }
+
+    private MultiCameraController()
+    {
+    }
+
+    /** Number of open UVC cameras. 0 if Vuforia hasn't opened the camera yet. */
+    public static native int getNumCameras();
+
+    /** Index of the camera delivering frames to Vuforia, -1 if Vuforia hasn't opened the camera yet. */
+    public static native int getActiveCamera();
+
+    /**
+     * Switch the camera delivering frames to Vuforia.
+     *
+     * @param index Index of the camera, between 0 and getNumCameras() - 1.
+     * @return False if the index is invalid or the camera can't stream the camera mode Vuforia is using.
+     */
+    public static native boolean setActiveCamera(int index);
+}
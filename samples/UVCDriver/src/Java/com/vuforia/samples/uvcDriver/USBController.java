@@ -8,20 +8,25 @@ countries.
 package com.vuforia.samples.uvcDriver;
 
 import android.app.Activity;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.res.AssetManager;
+import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public final class USBController
 {
@@ -29,14 +34,25 @@ public final class USBController
     private static final String MODULE_TAG = "Vuforia-UVCDriver";
     private static final int INVALID_VALUE = -1;
 
-    // Any arbitrary string to match the request and the result
-    private static final String REQUEST_USB_PERMISSION = "com.vuforia.samples.uvcDriver.usbPermission";
-    
+    private static final int DEFAULT_PERMISSION_TIMEOUT_MS = 15000;
+
+    // Not in UsbConstants, see the USB Device Class Definition for Video Devices
+    private static final int USB_SUBCLASS_VIDEO_STREAMING = 0x02;
+
+    private Activity mActivity = null;
     private UsbManager mUsbManager = null;
-    private UsbDevice[] mUsbDeviceList;
-    private UsbDevice mUsbDevice = null;
-    private UsbDeviceConnection mConnection = null;
-    private HashMap<UsbDevice, CountDownLatch> mPermissionLatchMap = null;
+    // Devices by index. The index of a device stays the same while it is unplugged,
+    // its entry is null until it is plugged back in, so that the native cameras can
+    // keep referring to it.
+    private final ArrayList<UsbDevice> mUsbDeviceList = new ArrayList<UsbDevice>();
+    // Open connections by device list index, several cameras can be streaming at once
+    private final SparseArray<UsbDeviceConnection> mConnections = new SparseArray<UsbDeviceConnection>();
+    // The devices that were unplugged, by their former index
+    private final SparseArray<UsbDevice> mDetachedDevices = new SparseArray<UsbDevice>();
+    private USBPermissionManager mPermissionManager = null;
+    // Incremented on every change to the device list, polled by the native driver
+    private volatile int mDeviceListGeneration = 0;
+    private BroadcastReceiver mBroadcastReceiver = null;
 
     public USBController(Activity activity)
     {
@@ -44,136 +60,256 @@ public final class USBController
             return;
         }
 
+        mActivity = activity;
         mUsbManager = (UsbManager)activity.getSystemService(Context.USB_SERVICE);
         HashMap<String, UsbDevice> usbDeviceHashMap = mUsbManager.getDeviceList();
+        mUsbDeviceList.addAll(usbDeviceHashMap.values());
 
-        mUsbDeviceList = new UsbDevice[usbDeviceHashMap.size()];
-        mUsbDeviceList = usbDeviceHashMap.values().toArray(mUsbDeviceList);
-
-        mPermissionLatchMap = new HashMap<UsbDevice, CountDownLatch>(mUsbDeviceList.length);
+        mPermissionManager = new USBPermissionManager(activity, mUsbManager);
 
-        BroadcastReceiver broadcastReceiver = new BroadcastReceiver()
+        mBroadcastReceiver = new BroadcastReceiver()
         {
             @Override
             public void onReceive(Context context, Intent intent)
             {
-                if (intent.getAction().equals(REQUEST_USB_PERMISSION))
+                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (device == null) {
+                    return;
+                }
+
+                if (intent.getAction().equals(UsbManager.ACTION_USB_DEVICE_ATTACHED))
                 {
-                    UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-                    if (device != null && mPermissionLatchMap.get(device) != null)
-                    {
-                        // We got the permission result for this device, countdown the latch 
-                        mPermissionLatchMap.get(device).countDown();
-                    }
+                    onDeviceAttached(device);
+                }
+                else if (intent.getAction().equals(UsbManager.ACTION_USB_DEVICE_DETACHED))
+                {
+                    onDeviceDetached(device);
                 }
             }
         };
-        
-        for (int idx = 0; idx < mUsbDeviceList.length; idx++)
-        {
-            UsbDevice device = mUsbDeviceList[idx];
-            if (!mUsbManager.hasPermission(device))
-            {
-                activity.registerReceiver(broadcastReceiver, new IntentFilter(REQUEST_USB_PERMISSION));
 
-                PendingIntent permissionIntent = PendingIntent.getBroadcast(activity, 0, new Intent(REQUEST_USB_PERMISSION), 0);
-                mUsbManager.requestPermission(device, permissionIntent);
+        IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        activity.registerReceiver(mBroadcastReceiver, filter);
 
-                // Put a latch for this device because we need to wait for the permission result
-                mPermissionLatchMap.put(device, new CountDownLatch(1));
+        // Ask for all the permissions at once, the devices can be opened as soon as theirs is granted.
+        // Devices that are not cameras are left alone, so the user isn't asked about them.
+        for (UsbDevice device : mUsbDeviceList)
+        {
+            if (isCameraCandidate(device)) {
+                mPermissionManager.requestPermission(device);
             }
         }
     }
 
-    public void closeConnection()
+    /** Stop watching for usb devices and close all the connections. */
+    public void release()
+    {
+        if (mBroadcastReceiver != null)
+        {
+            mActivity.unregisterReceiver(mBroadcastReceiver);
+            mBroadcastReceiver = null;
+        }
+
+        if (mPermissionManager != null)
+        {
+            mPermissionManager.release();
+        }
+
+        closeAllDevices();
+    }
+
+    public synchronized void closeDevice(int index)
     {
-        if (mConnection != null) {
-            mConnection.close();
-            mConnection = null;
+        UsbDeviceConnection connection = mConnections.get(index);
+        if (connection != null) {
+            connection.close();
+            mConnections.remove(index);
         }
     }
 
-    public int getNumDevices()
+    public synchronized void closeAllDevices()
     {
-        return mUsbDeviceList.length;
+        for (int idx = 0; idx < mConnections.size(); idx++)
+        {
+            mConnections.valueAt(idx).close();
+        }
+        mConnections.clear();
     }
 
-    public boolean useDevice(int index)
+    public synchronized int getNumDevices()
     {
-          Log.d(MODULE_TAG, "useDevice(int index)java部分被调用: " + index);
-        // Clear up existing device and connection
-        mUsbDevice = null;
-        closeConnection();
+        return mUsbDeviceList.size();
+    }
+
+    /**
+     * Indices of the plugged in devices that may be cameras, the ones listed in
+     * DriverConfiguration.DEVICES_PREFERRED first, in the order of the list.
+     */
+    public int[] getCameraDevices()
+    {
+        final ArrayList<int[]> preferred = parsePreferredDevices(
+                DriverConfiguration.getString(DriverConfiguration.DEVICES_PREFERRED, null));
+
+        final ArrayList<Integer> indices = new ArrayList<Integer>();
+        final ArrayList<UsbDevice> devices = new ArrayList<UsbDevice>();
+        synchronized (this)
+        {
+            devices.addAll(mUsbDeviceList);
+        }
 
-        if (index >= mUsbDeviceList.length)
+        for (int idx = 0; idx < devices.size(); idx++)
         {
-            Log.e(MODULE_TAG, "Invalid usb device index: " + index);
-            return false;
+            UsbDevice device = devices.get(idx);
+            if (device != null && isCameraCandidate(device)) {
+                indices.add(idx);
+            }
         }
 
-        UsbDevice device = mUsbDeviceList[index];
+        // The sort is stable, devices with the same rank keep the order of the device list
+        Collections.sort(indices, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer lhs, Integer rhs)
+            {
+                int lhsRank = getPreferenceRank(devices.get(lhs), preferred);
+                int rhsRank = getPreferenceRank(devices.get(rhs), preferred);
+                return lhsRank < rhsRank ? -1 : (lhsRank == rhsRank ? 0 : 1);
+            }
+        });
 
-        if (mPermissionLatchMap.get(device) != null)
+        int[] result = new int[indices.size()];
+        for (int idx = 0; idx < result.length; idx++)
+        {
+            result[idx] = indices.get(idx);
+        }
+
+        return result;
+    }
+
+    /** Changes whenever a device is attached or detached. */
+    public int getDeviceListGeneration()
+    {
+        return mDeviceListGeneration;
+    }
+
+    /** True if the device at the index is plugged in and the usb permission has been granted. Does not block. */
+    public boolean isDeviceAvailable(int index)
+    {
+        UsbDevice device = getDevice(index);
+        return device != null && mPermissionManager.hasPermission(device);
+    }
+
+    /**
+     * Wait until all the pending usb permission requests are answered, or the permission
+     * timeout is reached. The requests run in parallel, so this takes at most one timeout.
+     */
+    public void awaitPermissions()
+    {
+        ArrayList<Future<Boolean>> requests = new ArrayList<Future<Boolean>>();
+        synchronized (this)
+        {
+            for (UsbDevice device : mUsbDeviceList)
+            {
+                if (device != null && isCameraCandidate(device)) {
+                    requests.add(mPermissionManager.requestPermission(device));
+                }
+            }
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + getPermissionTimeout();
+        for (Future<Boolean> request : requests)
         {
             try
             {
-                mPermissionLatchMap.get(device).await();
+                request.get(Math.max(deadline - SystemClock.elapsedRealtime(), 0), TimeUnit.MILLISECONDS);
             }
-            catch (InterruptedException ex)
+            catch (Exception ex)
             {
-                Log.e(MODULE_TAG, "Error while awaiting permission latch for usb device at index " + index, ex);
-                return false;
+                // Timed out, the device stays unavailable until the user answers
             }
         }
-        
-        if (!mUsbManager.hasPermission(device))
+    }
+
+    /**
+     * Open the connection to the device at the index.
+     *
+     * @return What is needed to open the device with libuvc, null if the device
+     *         is gone or the usb permission was not granted.
+     */
+    public USBDeviceInfo openDevice(int index)
+    {
+        // Reopening a device replaces its previous connection
+        closeDevice(index);
+
+        UsbDevice device = getDevice(index);
+        if (device == null)
         {
-            Log.e(MODULE_TAG, "Usb permission has been denied for usb device at index " + index);
-            return false;
+            Log.e(MODULE_TAG, "No usb device at index: " + index);
+            return null;
         }
 
-        // Assign new device and open new connection
-        mUsbDevice = device;
-        mConnection = mUsbManager.openDevice(mUsbDevice);
+        if (!mPermissionManager.awaitPermission(device, getPermissionTimeout()))
+        {
+            Log.e(MODULE_TAG, "No usb permission for usb device at index " + index);
+            return null;
+        }
 
-        return true;
+        UsbDeviceConnection connection = mUsbManager.openDevice(device);
+        if (connection == null)
+        {
+            Log.e(MODULE_TAG, "Failed to open usb device at index " + index);
+            return null;
+        }
+
+        synchronized (this)
+        {
+            mConnections.put(index, connection);
+        }
+
+        return new USBDeviceInfo(device.getVendorId(), device.getProductId(), connection.getFileDescriptor(),
+                                 getUSBFS(index), getBusNumber(index), getDeviceNumber(index));
     }
 
-    public int getVendorId()
+    public int getVendorId(int index)
     {
-        if (mUsbDevice == null) {
+        UsbDevice device = getDevice(index);
+        if (device == null) {
             return INVALID_VALUE;
         }
 
-        return mUsbDevice.getVendorId();
+        return device.getVendorId();
     }
 
-    public int getProductId()
+    public int getProductId(int index)
     {
-        if (mUsbDevice == null) {
+        UsbDevice device = getDevice(index);
+        if (device == null) {
             return INVALID_VALUE;
         }
 
-        return mUsbDevice.getProductId();
+        return device.getProductId();
     }
 
-    public int getFileDescriptor()
+    public synchronized int getFileDescriptor(int index)
     {
-        if (mConnection == null) {
+        UsbDeviceConnection connection = mConnections.get(index);
+        if (connection == null) {
             return INVALID_VALUE;
         }
         
-        return mConnection.getFileDescriptor();
+        return connection.getFileDescriptor();
     }
 
-    public String getUSBFS()
+    public String getUSBFS(int index)
     {
-        if (mUsbDevice == null) {
+        UsbDevice device = getDevice(index);
+        if (device == null) {
             return null;
         }
         
         String result = null;
-        final String deviceName = mUsbDevice.getDeviceName();
+        final String deviceName = device.getDeviceName();
 
         final String[] deviceNameArr = !TextUtils.isEmpty(deviceName) ? deviceName.split("/") : null;
         if ((deviceNameArr != null) && (deviceNameArr.length > 2))
@@ -192,13 +328,14 @@ public final class USBController
         return result;
     }
 
-    public int getBusNumber()
+    public int getBusNumber(int index)
     {
-        if (mUsbDevice == null) {
+        UsbDevice device = getDevice(index);
+        if (device == null) {
             return INVALID_VALUE;
         }
         
-        final String deviceName = mUsbDevice.getDeviceName();
+        final String deviceName = device.getDeviceName();
         final String[] deviceNameArr = !TextUtils.isEmpty(deviceName) ? deviceName.split("/") : null;
 
         if (deviceNameArr == null) {
@@ -210,13 +347,14 @@ public final class USBController
         return Integer.parseInt(deviceNameArr[deviceNameArr.length-2]);
     }
 
-    public int getDeviceNumber()
+    public int getDeviceNumber(int index)
     {
-        if (mUsbDevice == null) {
+        UsbDevice device = getDevice(index);
+        if (device == null) {
             return INVALID_VALUE;
         }
         
-        final String deviceName = mUsbDevice.getDeviceName();
+        final String deviceName = device.getDeviceName();
         final String[] deviceNameArr = !TextUtils.isEmpty(deviceName) ? deviceName.split("/") : null;
 
         if (deviceNameArr == null) {
@@ -227,4 +365,152 @@ public final class USBController
         // e.g. if device name is dev/bus/usb/001/004, the device number is 004
         return Integer.parseInt(deviceNameArr[deviceNameArr.length-1]);
     }
+
+    private synchronized UsbDevice getDevice(int index)
+    {
+        if (index < 0 || index >= mUsbDeviceList.size()) {
+            return null;
+        }
+
+        return mUsbDeviceList.get(index);
+    }
+
+    /** True if the device has a UVC video streaming interface. */
+    private static boolean isVideoDevice(UsbDevice device)
+    {
+        for (int idx = 0; idx < device.getInterfaceCount(); idx++)
+        {
+            UsbInterface usbInterface = device.getInterface(idx);
+            if (usbInterface.getInterfaceClass() == UsbConstants.USB_CLASS_VIDEO &&
+                usbInterface.getInterfaceSubclass() == USB_SUBCLASS_VIDEO_STREAMING)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isCameraCandidate(UsbDevice device)
+    {
+        if (DriverConfiguration.getInt(DriverConfiguration.DEVICES_VIDEO_CLASS_ONLY, 1) == 0) {
+            return true;
+        }
+
+        return isVideoDevice(device);
+    }
+
+    /** Parses the "vid:pid,vid:pid" preference list, a product id of -1 stands for *. */
+    private static ArrayList<int[]> parsePreferredDevices(String value)
+    {
+        ArrayList<int[]> result = new ArrayList<int[]>();
+        if (TextUtils.isEmpty(value)) {
+            return result;
+        }
+
+        for (String entry : value.split(","))
+        {
+            String[] ids = entry.trim().split(":");
+            if (ids.length != 2)
+            {
+                Log.e(MODULE_TAG, "Ignoring invalid preferred device: " + entry);
+                continue;
+            }
+
+            try
+            {
+                int vendorId = Integer.parseInt(ids[0].trim(), 16);
+                int productId = ids[1].trim().equals("*") ? INVALID_VALUE : Integer.parseInt(ids[1].trim(), 16);
+                result.add(new int[] { vendorId, productId });
+            }
+            catch (NumberFormatException ex)
+            {
+                Log.e(MODULE_TAG, "Ignoring invalid preferred device: " + entry);
+            }
+        }
+
+        return result;
+    }
+
+    /** Position of the device in the preference list, devices that are not listed come last. */
+    private static int getPreferenceRank(UsbDevice device, ArrayList<int[]> preferred)
+    {
+        for (int idx = 0; idx < preferred.size(); idx++)
+        {
+            int[] ids = preferred.get(idx);
+            if (ids[0] == device.getVendorId() && (ids[1] == INVALID_VALUE || ids[1] == device.getProductId())) {
+                return idx;
+            }
+        }
+
+        return preferred.size();
+    }
+
+    private int getPermissionTimeout()
+    {
+        return DriverConfiguration.getInt(DriverConfiguration.USB_PERMISSION_TIMEOUT_MS, DEFAULT_PERMISSION_TIMEOUT_MS);
+    }
+
+    private void onDeviceAttached(UsbDevice device)
+    {
+        synchronized (this)
+        {
+            if (mUsbDeviceList.contains(device)) {
+                return;
+            }
+
+            // A device that is plugged back in takes over the index of the unplugged device
+            // with the same vendor and product id, so that the native camera can reopen it
+            int index = -1;
+            for (int idx = 0; idx < mUsbDeviceList.size(); idx++)
+            {
+                UsbDevice unplugged = mDetachedDevices.get(idx);
+                if (mUsbDeviceList.get(idx) == null && unplugged != null &&
+                    unplugged.getVendorId() == device.getVendorId() && unplugged.getProductId() == device.getProductId())
+                {
+                    index = idx;
+                    break;
+                }
+            }
+
+            if (index >= 0)
+            {
+                mUsbDeviceList.set(index, device);
+                mDetachedDevices.remove(index);
+            }
+            else
+            {
+                index = mUsbDeviceList.size();
+                mUsbDeviceList.add(device);
+            }
+
+            Log.i(MODULE_TAG, "Usb device attached at index " + index + ": " + device.getDeviceName());
+            mDeviceListGeneration++;
+        }
+
+        if (isCameraCandidate(device)) {
+            mPermissionManager.requestPermission(device);
+        }
+    }
+
+    private void onDeviceDetached(UsbDevice device)
+    {
+        synchronized (this)
+        {
+            int index = mUsbDeviceList.indexOf(device);
+            if (index < 0) {
+                return;
+            }
+
+            closeDevice(index);
+            mUsbDeviceList.set(index, null);
+            mDetachedDevices.put(index, device);
+
+            Log.i(MODULE_TAG, "Usb device detached at index " + index + ": " + device.getDeviceName());
+            mDeviceListGeneration++;
+        }
+
+        // Android revokes the permission when the device is gone
+        mPermissionManager.forget(device);
+    }
 }
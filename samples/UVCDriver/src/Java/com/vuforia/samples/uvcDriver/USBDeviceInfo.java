@@ -0,0 +1,35 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.samples.uvcDriver;
+
+/**
+ * Everything the native driver needs to open a usb device with libuvc.
+ *
+ * Returned by USBController.openDevice() so that the driver gets all the values
+ * in a single call instead of one JNI round-trip per value. The fields are read
+ * directly from native code, don't rename them.
+ */
+public final class USBDeviceInfo
+{
+    public final int vendorId;
+    public final int productId;
+    public final int fileDescriptor;
+    public final String usbfs;
+    public final int busNumber;
+    public final int deviceNumber;
+
+    public USBDeviceInfo(int vendorId, int productId, int fileDescriptor, String usbfs, int busNumber, int deviceNumber)
+    {
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.fileDescriptor = fileDescriptor;
+        this.usbfs = usbfs;
+        this.busNumber = busNumber;
+        this.deviceNumber = deviceNumber;
+    }
+}
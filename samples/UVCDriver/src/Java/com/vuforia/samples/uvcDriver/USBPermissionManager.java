@@ -0,0 +1,246 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.samples.uvcDriver;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Requests usb permissions without blocking.
+ *
+ * Every request returns a Future that completes with the result of the permission
+ * dialog. Requests for several devices are all issued at once, so the caller can
+ * go on with the devices that are already authorized while the others are pending.
+ * Granted permissions are cached until the device is detached.
+ */
+public final class USBPermissionManager
+{
+    private static final String MODULE_TAG = "Vuforia-UVCDriver";
+
+    // Any arbitrary string to match the request and the result
+    private static final String REQUEST_USB_PERMISSION = "com.vuforia.samples.uvcDriver.usbPermission";
+
+    private final Activity mActivity;
+    private final UsbManager mUsbManager;
+    // Pending requests by device name
+    private final ConcurrentHashMap<String, PermissionFuture> mPendingRequests = new ConcurrentHashMap<String, PermissionFuture>();
+    // Names of the devices we know to have permission for
+    private final Set<String> mGrantedDevices = Collections.synchronizedSet(new HashSet<String>());
+    private BroadcastReceiver mBroadcastReceiver = null;
+
+    public USBPermissionManager(Activity activity, UsbManager usbManager)
+    {
+        mActivity = activity;
+        mUsbManager = usbManager;
+
+        mBroadcastReceiver = new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                if (!intent.getAction().equals(REQUEST_USB_PERMISSION)) {
+                    return;
+                }
+
+                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (device == null) {
+                    return;
+                }
+
+                boolean granted = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false);
+                onPermissionResult(device, granted);
+            }
+        };
+        activity.registerReceiver(mBroadcastReceiver, new IntentFilter(REQUEST_USB_PERMISSION));
+    }
+
+    public void release()
+    {
+        if (mBroadcastReceiver != null)
+        {
+            mActivity.unregisterReceiver(mBroadcastReceiver);
+            mBroadcastReceiver = null;
+        }
+
+        // Nobody is going to answer the pending requests anymore
+        for (PermissionFuture future : mPendingRequests.values())
+        {
+            future.complete(false);
+        }
+        mPendingRequests.clear();
+    }
+
+    /** True if the permission for the device has been granted. Does not block. */
+    public boolean hasPermission(UsbDevice device)
+    {
+        if (mGrantedDevices.contains(device.getDeviceName())) {
+            return true;
+        }
+
+        if (mUsbManager.hasPermission(device))
+        {
+            mGrantedDevices.add(device.getDeviceName());
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Request the permission for the device, unless it has been granted already.
+     *
+     * @return A Future with the result of the request. A request that is still pending
+     *         is shared, so calling this again does not bring up another dialog.
+     */
+    public Future<Boolean> requestPermission(UsbDevice device)
+    {
+        if (hasPermission(device)) {
+            return PermissionFuture.completed(true);
+        }
+
+        PermissionFuture future = new PermissionFuture();
+        PermissionFuture pending = mPendingRequests.putIfAbsent(device.getDeviceName(), future);
+        if (pending != null) {
+            return pending;
+        }
+
+        PendingIntent permissionIntent = PendingIntent.getBroadcast(mActivity, 0, new Intent(REQUEST_USB_PERMISSION), 0);
+        mUsbManager.requestPermission(device, permissionIntent);
+
+        return future;
+    }
+
+    /**
+     * Request the permission for the device and wait for the result.
+     *
+     * @param timeoutMs How long to wait for the user to answer.
+     * @return False if the permission was denied or there was no answer in time.
+     *         A request that timed out stays pending and can still be granted later.
+     */
+    public boolean awaitPermission(UsbDevice device, long timeoutMs)
+    {
+        Future<Boolean> future = requestPermission(device);
+
+        try
+        {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex)
+        {
+            Log.e(MODULE_TAG, "Timed out waiting for the usb permission of " + device.getDeviceName());
+        }
+        catch (InterruptedException ex)
+        {
+            Log.e(MODULE_TAG, "Interrupted while waiting for the usb permission of " + device.getDeviceName(), ex);
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex)
+        {
+            Log.e(MODULE_TAG, "Failed to get the usb permission of " + device.getDeviceName(), ex);
+        }
+
+        return false;
+    }
+
+    /** Forget the cached permission of a detached device, Android revokes it on detach. */
+    public void forget(UsbDevice device)
+    {
+        mGrantedDevices.remove(device.getDeviceName());
+
+        PermissionFuture pending = mPendingRequests.remove(device.getDeviceName());
+        if (pending != null) {
+            pending.complete(false);
+        }
+    }
+
+    private void onPermissionResult(UsbDevice device, boolean granted)
+    {
+        if (granted) {
+            mGrantedDevices.add(device.getDeviceName());
+        }
+        else {
+            Log.e(MODULE_TAG, "Usb permission has been denied for " + device.getDeviceName());
+        }
+
+        PermissionFuture pending = mPendingRequests.remove(device.getDeviceName());
+        if (pending != null) {
+            pending.complete(granted);
+        }
+    }
+
+    /** Future that is completed by the permission broadcast. */
+    private static final class PermissionFuture implements Future<Boolean>
+    {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mGranted = false;
+
+        static PermissionFuture completed(boolean granted)
+        {
+            PermissionFuture future = new PermissionFuture();
+            future.complete(granted);
+            return future;
+        }
+
+        void complete(boolean granted)
+        {
+            mGranted = granted;
+            mDone.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            // The permission dialog can't be taken back
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException
+        {
+            mDone.await();
+            return mGranted;
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+        {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return mGranted;
+        }
+    }
+}
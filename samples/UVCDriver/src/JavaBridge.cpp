@@ -0,0 +1,583 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "JavaBridge.h"
+
+#include <cstring>
+#include <pthread.h>
+
+#define JAVA_USB_CONTROLLER_CLASS "com/vuforia/samples/uvcDriver/USBController"
+#define JAVA_USB_DEVICE_INFO_CLASS "com/vuforia/samples/uvcDriver/USBDeviceInfo"
+#define JAVA_CALIBRATION_CONTROLLER_CLASS "com/vuforia/samples/uvcDriver/CalibrationController"
+#define JAVA_DRIVER_CONFIGURATION_CLASS "com/vuforia/samples/uvcDriver/DriverConfiguration"
+#define MODULE_TAG "JavaBridge"
+
+#include "DriverLog.h"
+
+namespace
+{
+// Native threads are attached to the JVM on their first call into Java and stay
+// attached. The key destructor detaches them when they exit, which the JVM requires
+// before a native thread that was attached can terminate.
+pthread_key_t gAttachedThreadKey;
+pthread_once_t gAttachedThreadKeyOnce = PTHREAD_ONCE_INIT;
+
+void
+detachThread(void* javaVM)
+{
+    static_cast<JavaVM*>(javaVM)->DetachCurrentThread();
+}
+
+void
+createAttachedThreadKey()
+{
+    pthread_key_create(&gAttachedThreadKey, detachThread);
+}
+
+jclass
+findGlobalClass(JNIEnv* env, const char* name)
+{
+    jclass localClass = env->FindClass(name);
+    if (localClass == nullptr)
+    {
+        env->ExceptionClear();
+        LOG_E("Failed to get Java class %s", name);
+        return nullptr;
+    }
+
+    jclass globalClass = (jclass) env->NewGlobalRef(localClass);
+    env->DeleteLocalRef(localClass);
+    return globalClass;
+}
+
+jmethodID
+getMethod(JNIEnv* env, jclass clazz, const char* name, const char* signature)
+{
+    jmethodID method = env->GetMethodID(clazz, name, signature);
+    if (method == nullptr)
+    {
+        env->ExceptionClear();
+        LOG_E("Failed to get '%s' method", name);
+    }
+    return method;
+}
+
+jfieldID
+getField(JNIEnv* env, jclass clazz, const char* name, const char* signature)
+{
+    jfieldID field = env->GetFieldID(clazz, name, signature);
+    if (field == nullptr)
+    {
+        env->ExceptionClear();
+        LOG_E("Failed to get '%s' field", name);
+    }
+    return field;
+}
+
+jobject
+newGlobalObject(JNIEnv* env, jclass clazz, jobject activity)
+{
+    jmethodID constructor = getMethod(env, clazz, "<init>", "(Landroid/app/Activity;)V");
+    if (constructor == nullptr)
+    {
+        return nullptr;
+    }
+
+    jobject localObj = env->NewObject(clazz, constructor, activity);
+    if (localObj == nullptr)
+    {
+        env->ExceptionClear();
+        return nullptr;
+    }
+
+    jobject globalObj = env->NewGlobalRef(localObj);
+    env->DeleteLocalRef(localObj);
+    return globalObj;
+}
+
+template<typename T>
+void
+deleteGlobalRef(JNIEnv* env, T& ref)
+{
+    if (ref != nullptr)
+    {
+        env->DeleteGlobalRef(ref);
+        ref = nullptr;
+    }
+}
+}
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+JavaBridge::JavaBridge(Vuforia::Driver::PlatformData* platformData)
+{
+    if (platformData != nullptr)
+    {
+        mJniVersion = platformData->jniVersion;
+        mActivity = platformData->activity;
+        mJavaVM = platformData->javaVM;
+    }
+}
+
+JavaBridge::~JavaBridge()
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr)
+    {
+        return;
+    }
+
+    if (mUSBControllerObj != nullptr && mRelease != nullptr)
+    {
+        // Stops the hotplug receiver and closes any connection that is still open
+        env->CallVoidMethod(mUSBControllerObj, mRelease);
+        checkException(env, "release");
+    }
+
+    deleteGlobalRef(env, mUSBControllerClass);
+    deleteGlobalRef(env, mUSBControllerObj);
+    deleteGlobalRef(env, mDeviceInfoClass);
+    deleteGlobalRef(env, mCalibrationControllerClass);
+    deleteGlobalRef(env, mCalibrationControllerObj);
+    deleteGlobalRef(env, mDriverConfigurationClass);
+}
+
+bool
+JavaBridge::init()
+{
+    std::lock_guard<std::mutex> lock(mInitMutex);
+
+    if (mInitialized)
+    {
+        return true;
+    }
+
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr)
+    {
+        return false;
+    }
+
+    if (mUSBControllerClass == nullptr)
+    {
+        mUSBControllerClass = findGlobalClass(env, JAVA_USB_CONTROLLER_CLASS);
+        if (mUSBControllerClass == nullptr)
+        {
+            return false;
+        }
+    }
+
+    if (mUSBControllerObj == nullptr)
+    {
+        mUSBControllerObj = newGlobalObject(env, mUSBControllerClass, mActivity);
+        if (mUSBControllerObj == nullptr)
+        {
+            LOG_E("Failed to get Java USBController object");
+            return false;
+        }
+    }
+
+    if (mDeviceInfoClass == nullptr)
+    {
+        mDeviceInfoClass = findGlobalClass(env, JAVA_USB_DEVICE_INFO_CLASS);
+        if (mDeviceInfoClass == nullptr)
+        {
+            return false;
+        }
+    }
+
+    if (mCalibrationControllerClass == nullptr)
+    {
+        mCalibrationControllerClass = findGlobalClass(env, JAVA_CALIBRATION_CONTROLLER_CLASS);
+        if (mCalibrationControllerClass == nullptr)
+        {
+            return false;
+        }
+    }
+
+    if (mCalibrationControllerObj == nullptr)
+    {
+        mCalibrationControllerObj = newGlobalObject(env, mCalibrationControllerClass, mActivity);
+        if (mCalibrationControllerObj == nullptr)
+        {
+            LOG_E("Failed to get Java CalibrationController object");
+            return false;
+        }
+    }
+
+    if (!initConfigurationMethods(env))
+    {
+        return false;
+    }
+
+    // Resolve every method and field up front, the calls below only use the cached IDs
+    mGetNumDevices = getMethod(env, mUSBControllerClass, "getNumDevices", "()I");
+    mGetCameraDevices = getMethod(env, mUSBControllerClass, "getCameraDevices", "()[I");
+    mGetDeviceListGeneration = getMethod(env, mUSBControllerClass, "getDeviceListGeneration", "()I");
+    mIsDeviceAvailable = getMethod(env, mUSBControllerClass, "isDeviceAvailable", "(I)Z");
+    mAwaitPermissions = getMethod(env, mUSBControllerClass, "awaitPermissions", "()V");
+    mOpenDevice = getMethod(env, mUSBControllerClass, "openDevice", "(I)L" JAVA_USB_DEVICE_INFO_CLASS ";");
+    mCloseDevice = getMethod(env, mUSBControllerClass, "closeDevice", "(I)V");
+    mRelease = getMethod(env, mUSBControllerClass, "release", "()V");
+
+    mVendorIdField = getField(env, mDeviceInfoClass, "vendorId", "I");
+    mProductIdField = getField(env, mDeviceInfoClass, "productId", "I");
+    mFileDescriptorField = getField(env, mDeviceInfoClass, "fileDescriptor", "I");
+    mBusNumberField = getField(env, mDeviceInfoClass, "busNumber", "I");
+    mDeviceNumberField = getField(env, mDeviceInfoClass, "deviceNumber", "I");
+    mUSBFSField = getField(env, mDeviceInfoClass, "usbfs", "Ljava/lang/String;");
+
+    mGetCalibrationValue = getMethod(env, mCalibrationControllerClass, "getCalibrationValue", "(IIII)[F");
+
+    mInitialized = mGetNumDevices != nullptr && mGetCameraDevices != nullptr && mGetDeviceListGeneration != nullptr && mIsDeviceAvailable != nullptr &&
+                   mAwaitPermissions != nullptr && mOpenDevice != nullptr && mCloseDevice != nullptr && mRelease != nullptr &&
+                   mVendorIdField != nullptr && mProductIdField != nullptr && mFileDescriptorField != nullptr &&
+                   mBusNumberField != nullptr && mDeviceNumberField != nullptr && mUSBFSField != nullptr &&
+                   mGetCalibrationValue != nullptr;
+
+    return mInitialized;
+}
+
+bool
+JavaBridge::initConfiguration()
+{
+    std::lock_guard<std::mutex> lock(mInitMutex);
+
+    JNIEnv* env = getJNIEnv();
+    return env != nullptr && initConfigurationMethods(env);
+}
+
+int
+JavaBridge::getNumDevices()
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || !mInitialized)
+    {
+        return -1;
+    }
+
+    jint numDevices = env->CallIntMethod(mUSBControllerObj, mGetNumDevices);
+    if (checkException(env, "getNumDevices"))
+    {
+        return -1;
+    }
+
+    LOG_D("Number of USB Devices: %d", numDevices);
+    return numDevices;
+}
+
+std::vector<int>
+JavaBridge::getCameraDevices()
+{
+    std::vector<int> devices;
+
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || !mInitialized)
+    {
+        return devices;
+    }
+
+    jintArray jarr_devices = (jintArray) env->CallObjectMethod(mUSBControllerObj, mGetCameraDevices);
+    if (checkException(env, "getCameraDevices") || jarr_devices == nullptr)
+    {
+        return devices;
+    }
+
+    devices.resize(env->GetArrayLength(jarr_devices));
+    if (!devices.empty())
+    {
+        env->GetIntArrayRegion(jarr_devices, 0, static_cast<jsize>(devices.size()), reinterpret_cast<jint*>(devices.data()));
+    }
+    env->DeleteLocalRef(jarr_devices);
+
+    LOG_D("Number of USB camera candidates: %d", static_cast<int>(devices.size()));
+    return devices;
+}
+
+int
+JavaBridge::getDeviceListGeneration()
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || !mInitialized)
+    {
+        return -1;
+    }
+
+    jint generation = env->CallIntMethod(mUSBControllerObj, mGetDeviceListGeneration);
+    if (checkException(env, "getDeviceListGeneration"))
+    {
+        return -1;
+    }
+
+    return generation;
+}
+
+bool
+JavaBridge::isDeviceAvailable(int index)
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || !mInitialized)
+    {
+        return false;
+    }
+
+    jboolean result = env->CallBooleanMethod(mUSBControllerObj, mIsDeviceAvailable, index);
+    if (checkException(env, "isDeviceAvailable"))
+    {
+        return false;
+    }
+
+    return result;
+}
+
+void
+JavaBridge::awaitDevicePermissions()
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || !mInitialized)
+    {
+        return;
+    }
+
+    env->CallVoidMethod(mUSBControllerObj, mAwaitPermissions);
+    checkException(env, "awaitPermissions");
+}
+
+bool
+JavaBridge::openDevice(int index, DeviceInfo& info)
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || !mInitialized)
+    {
+        return false;
+    }
+
+    jobject deviceInfo = env->CallObjectMethod(mUSBControllerObj, mOpenDevice, index);
+    if (checkException(env, "openDevice") || deviceInfo == nullptr)
+    {
+        return false;
+    }
+
+    info.vendorId = env->GetIntField(deviceInfo, mVendorIdField);
+    info.productId = env->GetIntField(deviceInfo, mProductIdField);
+    info.fileDescriptor = env->GetIntField(deviceInfo, mFileDescriptorField);
+    info.busNumber = env->GetIntField(deviceInfo, mBusNumberField);
+    info.deviceNumber = env->GetIntField(deviceInfo, mDeviceNumberField);
+    info.usbfs.clear();
+
+    jstring jstr_usbfs = (jstring) env->GetObjectField(deviceInfo, mUSBFSField);
+    if (jstr_usbfs != nullptr)
+    {
+        const char* utf_usbfs = env->GetStringUTFChars(jstr_usbfs, nullptr);
+        if (utf_usbfs != nullptr)
+        {
+            info.usbfs = utf_usbfs;
+            env->ReleaseStringUTFChars(jstr_usbfs, utf_usbfs);
+        }
+        env->DeleteLocalRef(jstr_usbfs);
+    }
+    env->DeleteLocalRef(deviceInfo);
+
+    LOG_D("Device %d: VendorId: 0x%04x, ProductId: 0x%04x, FileDescriptor: %d, USBFS: %s, BusNumber: %d, DeviceNumber: %d",
+          index, info.vendorId, info.productId, info.fileDescriptor, info.usbfs.c_str(), info.busNumber, info.deviceNumber);
+
+    return true;
+}
+
+void
+JavaBridge::closeDevice(int index)
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || !mInitialized)
+    {
+        return;
+    }
+
+    env->CallVoidMethod(mUSBControllerObj, mCloseDevice, index);
+    checkException(env, "closeDevice");
+}
+
+Vuforia::Driver::CameraIntrinsics
+JavaBridge::getCalibrationValue(int vid, int pid, int width, int height)
+{
+    Vuforia::Driver::CameraIntrinsics intrinsics; // default intrinsics with all zero values
+
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || !mInitialized)
+    {
+        return intrinsics;
+    }
+
+    jfloatArray calibrationValue = (jfloatArray) env->CallObjectMethod(mCalibrationControllerObj, mGetCalibrationValue, vid, pid, width, height);
+    if (checkException(env, "getCalibrationValue") || calibrationValue == nullptr)
+    {
+        LOG_E("No calibration value for [VID: %d, PID: %d, Width: %d, Height: %d]", vid, pid, width, height);
+        return intrinsics;
+    }
+
+    if (env->GetArrayLength(calibrationValue) != 12)
+    {
+        LOG_E("Calibration value for [VID: %d, PID: %d, Width: %d, Height: %d] is not of a correct length", vid, pid, width, height);
+        env->DeleteLocalRef(calibrationValue);
+        return intrinsics;
+    }
+
+    // Copies the values out, no need to pin or copy back the whole array
+    jfloat calibrationArr[12];
+    env->GetFloatArrayRegion(calibrationValue, 0, 12, calibrationArr);
+    env->DeleteLocalRef(calibrationValue);
+
+    intrinsics.principalPointX = calibrationArr[0];
+    intrinsics.principalPointY = calibrationArr[1];
+    intrinsics.focalLengthX = calibrationArr[2];
+    intrinsics.focalLengthY = calibrationArr[3];
+    memcpy(intrinsics.distortionCoefficients, &(calibrationArr[4]), 8 * sizeof(float));
+
+    return intrinsics;
+}
+
+int
+JavaBridge::getConfigurationInt(const char* key, int defaultValue)
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || mGetConfigurationInt == nullptr)
+    {
+        return defaultValue;
+    }
+
+    jstring jstr_key = env->NewStringUTF(key);
+    jint value = env->CallStaticIntMethod(mDriverConfigurationClass, mGetConfigurationInt, jstr_key, defaultValue);
+    env->DeleteLocalRef(jstr_key);
+    if (checkException(env, "getInt"))
+    {
+        return defaultValue;
+    }
+
+    LOG_D("Configuration %s: %d", key, value);
+    return value;
+}
+
+std::string
+JavaBridge::getConfigurationString(const char* key, const std::string& defaultValue)
+{
+    JNIEnv* env = getJNIEnv();
+    if (env == nullptr || mGetConfigurationString == nullptr)
+    {
+        return defaultValue;
+    }
+
+    jstring jstr_key = env->NewStringUTF(key);
+    jstring jstr_value = (jstring) env->CallStaticObjectMethod(mDriverConfigurationClass, mGetConfigurationString, jstr_key, nullptr);
+    env->DeleteLocalRef(jstr_key);
+    if (checkException(env, "getString") || jstr_value == nullptr)
+    {
+        return defaultValue;
+    }
+
+    std::string value;
+    const char* utf_value = env->GetStringUTFChars(jstr_value, nullptr);
+    if (utf_value != nullptr)
+    {
+        value = utf_value;
+        env->ReleaseStringUTFChars(jstr_value, utf_value);
+    }
+    env->DeleteLocalRef(jstr_value);
+
+    LOG_D("Configuration %s: %s", key, value.c_str());
+    return value;
+}
+
+//=============================================================================
+// PRIVATE METHODS
+//=============================================================================
+
+bool
+JavaBridge::initConfigurationMethods(JNIEnv* env)
+{
+    // Called with the init lock held
+    if (mDriverConfigurationClass == nullptr)
+    {
+        mDriverConfigurationClass = findGlobalClass(env, JAVA_DRIVER_CONFIGURATION_CLASS);
+        if (mDriverConfigurationClass == nullptr)
+        {
+            return false;
+        }
+    }
+
+    if (mGetConfigurationInt == nullptr)
+    {
+        mGetConfigurationInt = env->GetStaticMethodID(mDriverConfigurationClass, "getInt", "(Ljava/lang/String;I)I");
+        if (mGetConfigurationInt == nullptr)
+        {
+            env->ExceptionClear();
+            LOG_E("Failed to get 'getInt' method");
+        }
+    }
+
+    if (mGetConfigurationString == nullptr)
+    {
+        mGetConfigurationString = env->GetStaticMethodID(mDriverConfigurationClass, "getString", "(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;");
+        if (mGetConfigurationString == nullptr)
+        {
+            env->ExceptionClear();
+            LOG_E("Failed to get 'getString' method");
+        }
+    }
+
+    return mGetConfigurationInt != nullptr && mGetConfigurationString != nullptr;
+}
+
+JNIEnv*
+JavaBridge::getJNIEnv()
+{
+    if (mJavaVM == nullptr)
+    {
+        return nullptr;
+    }
+
+    JNIEnv* env = nullptr;
+    jint result = mJavaVM->GetEnv((void**) &env, mJniVersion);
+    if (result == JNI_OK)
+    {
+        return env;
+    }
+
+    if (result != JNI_EDETACHED)
+    {
+        LOG_E("Failed to get JNIEnv: error %d", static_cast<int>(result));
+        return nullptr;
+    }
+
+    if (mJavaVM->AttachCurrentThread(&env, nullptr) != JNI_OK)
+    {
+        LOG_E("Failed to attach thread to the JVM");
+        return nullptr;
+    }
+
+    // Keep the thread attached, it is detached when it exits
+    pthread_once(&gAttachedThreadKeyOnce, createAttachedThreadKey);
+    pthread_setspecific(gAttachedThreadKey, mJavaVM);
+
+    return env;
+}
+
+bool
+JavaBridge::checkException(JNIEnv* env, const char* methodName)
+{
+    if (!env->ExceptionCheck())
+    {
+        return false;
+    }
+
+    LOG_E("Java exception in '%s'", methodName);
+    env->ExceptionDescribe();
+    env->ExceptionClear();
+    return true;
+}
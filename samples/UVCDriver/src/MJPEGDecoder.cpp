@@ -0,0 +1,275 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "MJPEGDecoder.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cstring>
+
+#define MODULE_TAG "MJPEGDecoder"
+#include "DriverLog.h"
+
+MJPEGDecoder::MJPEGDecoder()
+{
+}
+
+MJPEGDecoder::~MJPEGDecoder()
+{
+    stop();
+}
+
+bool
+MJPEGDecoder::start(uint32_t numThreads, uint32_t width, uint32_t height, uint32_t maxCompressedSize,
+                    FrameBufferPool& bufferPool, FrameSink sink)
+{
+    stop();
+
+    if (numThreads == 0 || width == 0 || height == 0 || maxCompressedSize == 0 || !sink)
+    {
+        LOG_E("Invalid MJPEG decoder parameters: %u threads, %ux%u, max compressed size %u", numThreads, width, height, maxCompressedSize);
+        return false;
+    }
+
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    // Two jobs per thread, so that the next frame can be copied in while all threads are decoding
+    uint32_t numJobs = numThreads * 2;
+
+    mJobs.resize(numJobs);
+    mFreeJobs.clear();
+    mFreeJobs.reserve(numJobs);
+    for (uint32_t idx = 0; idx < numJobs; idx++)
+    {
+        mJobs[idx].compressed = uvc_allocate_frame(maxCompressedSize);
+        if (mJobs[idx].compressed == nullptr)
+        {
+            LOG_E("Failed to allocate MJPEG decoder buffers");
+            freeJobs();
+            return false;
+        }
+
+        mFreeJobs.push_back(idx);
+    }
+
+    mPendingJobs.assign(numJobs, 0);
+    mPendingHead = 0;
+    mPendingCount = 0;
+    mMaxCompressedSize = maxCompressedSize;
+    mNextTicket = 0;
+    mNextDeliveryTicket = 0;
+
+    mBufferPool = &bufferPool;
+    mSink = sink;
+    mStatistics = Statistics();
+    mTotalDecodeTimeNs = 0;
+    mRunning = true;
+
+    for (uint32_t idx = 0; idx < numThreads; idx++)
+    {
+        mThreads.push_back(std::thread(&MJPEGDecoder::decodeLoop, this));
+    }
+
+    LOG_D("MJPEG decoder started: %u threads, %ux%u", numThreads, width, height);
+    return true;
+}
+
+void
+MJPEGDecoder::stop()
+{
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mRunning = false;
+    }
+    mJobPendingCondition.notify_all();
+    mDeliveryCondition.notify_all();
+
+    for (std::thread& thread : mThreads)
+    {
+        thread.join();
+    }
+    mThreads.clear();
+
+    std::lock_guard<std::mutex> lock(mMutex);
+    freeJobs();
+}
+
+bool
+MJPEGDecoder::submit(const uvc_frame_t* compressed, const Vuforia::Driver::CameraFrame& frame)
+{
+    std::unique_lock<std::mutex> lock(mMutex);
+    if (!mRunning)
+    {
+        return false;
+    }
+
+    mStatistics.submitted++;
+
+    if (compressed->data_bytes > mMaxCompressedSize)
+    {
+        LOG_E("Compressed frame of %u bytes exceeds the maximum of %u bytes", static_cast<uint32_t>(compressed->data_bytes), mMaxCompressedSize);
+        mStatistics.dropped++;
+        return false;
+    }
+
+    if (mFreeJobs.empty())
+    {
+        mStatistics.dropped++;
+        return false;
+    }
+
+    uint32_t jobIndex = mFreeJobs.back();
+    mFreeJobs.pop_back();
+
+    // The job is owned by this thread now, so the copy can be done without the lock
+    lock.unlock();
+
+    Job& job = mJobs[jobIndex];
+
+    // Take over the frame properties from libuvc but keep our own data buffer
+    void* data = job.compressed->data;
+    *job.compressed = *compressed;
+    job.compressed->data = data;
+    job.compressed->library_owns_data = 1;
+    memcpy(data, compressed->data, compressed->data_bytes);
+
+    job.frame = frame;
+
+    lock.lock();
+
+    if (!mRunning)
+    {
+        mFreeJobs.push_back(jobIndex);
+        return false;
+    }
+
+    job.ticket = mNextTicket++;
+    mPendingJobs[(mPendingHead + mPendingCount) % mPendingJobs.size()] = jobIndex;
+    mPendingCount++;
+
+    lock.unlock();
+    mJobPendingCondition.notify_one();
+
+    return true;
+}
+
+MJPEGDecoder::Statistics
+MJPEGDecoder::getStatistics()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mStatistics;
+}
+
+void
+MJPEGDecoder::decodeLoop()
+{
+    std::unique_lock<std::mutex> lock(mMutex);
+    while (true)
+    {
+        mJobPendingCondition.wait(lock, [this] { return mPendingCount > 0 || !mRunning; });
+        if (!mRunning)
+        {
+            break;
+        }
+
+        uint32_t jobIndex = mPendingJobs[mPendingHead];
+        mPendingHead = (mPendingHead + 1) % mPendingJobs.size();
+        mPendingCount--;
+
+        Job& job = mJobs[jobIndex];
+
+        lock.unlock();
+
+        uvc_error_t result = UVC_ERROR_NO_MEM;
+        uint64_t decodeTimeNs = 0;
+        uvc_frame_t decoded;
+        memset(&decoded, 0, sizeof(decoded));
+
+        FrameBufferPool::Buffer* buffer = mBufferPool->acquire();
+        if (buffer != nullptr)
+        {
+            // Not owned by libuvc, so uvc_mjpeg2yuyv() fails instead of reallocating if the frame doesn't fit
+            decoded.data = buffer->getData();
+            decoded.data_bytes = buffer->getSize();
+            decoded.library_owns_data = 0;
+
+            std::chrono::steady_clock::time_point decodeStart = std::chrono::steady_clock::now();
+            result = uvc_mjpeg2yuyv(job.compressed, &decoded);
+            decodeTimeNs = std::chrono::duration_cast<std::chrono::nanoseconds>(std::chrono::steady_clock::now() - decodeStart).count();
+        }
+
+        lock.lock();
+
+        // Frames are decoded in parallel, wait for our turn so that they leave the decoder in order
+        mDeliveryCondition.wait(lock, [this, &job] { return job.ticket == mNextDeliveryTicket || !mRunning; });
+        if (!mRunning)
+        {
+            if (buffer != nullptr)
+            {
+                mBufferPool->release(buffer);
+            }
+            break;
+        }
+
+        if (buffer == nullptr)
+        {
+            // Every buffer is still queued or being delivered
+            mStatistics.dropped++;
+        }
+        else if (result == UVC_SUCCESS)
+        {
+            mStatistics.decoded++;
+            mStatistics.lastDecodeTimeNs = decodeTimeNs;
+            mStatistics.maxDecodeTimeNs = std::max(mStatistics.maxDecodeTimeNs, decodeTimeNs);
+            mTotalDecodeTimeNs += decodeTimeNs;
+            mStatistics.averageDecodeTimeNs = mTotalDecodeTimeNs / mStatistics.decoded;
+
+            job.frame.format = Vuforia::Driver::PixelFormat::YUYV;
+            job.frame.width = decoded.width;
+            job.frame.height = decoded.height;
+            job.frame.stride = decoded.step;
+            job.frame.buffer = buffer->getData();
+            job.frame.bufferSize = decoded.width * decoded.height * 2;
+
+            // The other decoders can't deliver before us, so the sink can be called without the lock
+            lock.unlock();
+            mSink(&job.frame, buffer);
+            lock.lock();
+        }
+        else
+        {
+            LOG_E("Failed to decode MJPEG frame %u : error %d", job.frame.index, static_cast<int>(result));
+            mStatistics.failed++;
+        }
+
+        if (buffer != nullptr)
+        {
+            mBufferPool->release(buffer);
+        }
+
+        mNextDeliveryTicket++;
+        mFreeJobs.push_back(jobIndex);
+        mDeliveryCondition.notify_all();
+    }
+}
+
+void
+MJPEGDecoder::freeJobs()
+{
+    for (Job& job : mJobs)
+    {
+        if (job.compressed != nullptr)
+        {
+            uvc_free_frame(job.compressed);
+        }
+    }
+
+    mJobs.clear();
+    mFreeJobs.clear();
+    mPendingJobs.clear();
+    mPendingCount = 0;
+}
@@ -0,0 +1,601 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "PixelConverter.h"
+
+#include <cstring>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define PIXEL_CONVERTER_NEON 1
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define PIXEL_CONVERTER_SSE2 1
+#endif
+
+#define MODULE_TAG "PixelConverter"
+
+#include "DriverLog.h"
+
+namespace
+{
+// Chroma of a pixel without colour
+const uint8_t NEUTRAL_CHROMA = 128;
+
+bool
+isPacked(PixelConverter::Format format)
+{
+    return format == PixelConverter::Format::YUYV || format == PixelConverter::Format::UYVY;
+}
+
+bool
+isSemiPlanar(PixelConverter::Format format)
+{
+    return format == PixelConverter::Format::NV12 || format == PixelConverter::Format::NV21;
+}
+
+uint8_t
+clampToByte(int32_t value)
+{
+    return static_cast<uint8_t>(value < 0 ? 0 : (value > 255 ? 255 : value));
+}
+
+// BT.601, limited range, in 8 bit fixed point
+uint8_t
+getLuma(int32_t r, int32_t g, int32_t b)
+{
+    return static_cast<uint8_t>(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+}
+
+uint8_t
+getU(int32_t r, int32_t g, int32_t b)
+{
+    return static_cast<uint8_t>(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+}
+
+uint8_t
+getV(int32_t r, int32_t g, int32_t b)
+{
+    return static_cast<uint8_t>(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+}
+
+void
+writeRGB(uint8_t y, uint8_t u, uint8_t v, uint8_t* rgb)
+{
+    int32_t c = 298 * (static_cast<int32_t>(y) - 16);
+    int32_t d = static_cast<int32_t>(u) - 128;
+    int32_t e = static_cast<int32_t>(v) - 128;
+
+    rgb[0] = clampToByte((c + 409 * e + 128) >> 8);
+    rgb[1] = clampToByte((c - 100 * d - 208 * e + 128) >> 8);
+    rgb[2] = clampToByte((c + 516 * d + 128) >> 8);
+}
+
+
+//=============================================================================
+// SCALAR KERNELS
+//=============================================================================
+
+void
+extractLumaScalar(const uint8_t* source, uint8_t* luma, uint32_t width, uint32_t lumaOffset)
+{
+    for (uint32_t x = 0; x < width; x++)
+    {
+        luma[x] = source[x * 2 + lumaOffset];
+    }
+}
+
+void
+averageChromaScalar(const uint8_t* row0, const uint8_t* row1, uint8_t* chroma, uint32_t width, uint32_t lumaOffset, bool swap)
+{
+    // Rounds up like the SIMD averages
+    uint32_t chromaOffset = 1 - lumaOffset;
+    for (uint32_t x = 0; x < width; x += 2)
+    {
+        uint8_t u = static_cast<uint8_t>((row0[x * 2 + chromaOffset] + row1[x * 2 + chromaOffset] + 1) >> 1);
+        uint8_t v = static_cast<uint8_t>((row0[x * 2 + chromaOffset + 2] + row1[x * 2 + chromaOffset + 2] + 1) >> 1);
+        chroma[x] = swap ? v : u;
+        chroma[x + 1] = swap ? u : v;
+    }
+}
+
+void
+swapBytePairsScalar(const uint8_t* source, uint8_t* target, uint32_t bytes)
+{
+    for (uint32_t idx = 0; idx < bytes; idx += 2)
+    {
+        uint8_t first = source[idx];
+        target[idx] = source[idx + 1];
+        target[idx + 1] = first;
+    }
+}
+
+void
+interleaveScalar(const uint8_t* first, const uint8_t* second, uint8_t* target, uint32_t bytes)
+{
+    for (uint32_t idx = 0; idx < bytes; idx++)
+    {
+        target[idx * 2] = first[idx];
+        target[idx * 2 + 1] = second[idx];
+    }
+}
+
+
+//=============================================================================
+// SIMD KERNELS, 16 PIXELS OR BYTES AT A TIME
+//=============================================================================
+
+#if PIXEL_CONVERTER_NEON
+
+void
+extractLumaSimd(const uint8_t* source, uint8_t* luma, uint32_t width, uint32_t lumaOffset)
+{
+    uint32_t x = 0;
+    for (; x + 16 <= width; x += 16)
+    {
+        uint8x16x2_t pixels = vld2q_u8(source + x * 2);
+        vst1q_u8(luma + x, lumaOffset == 0 ? pixels.val[0] : pixels.val[1]);
+    }
+    extractLumaScalar(source + x * 2, luma + x, width - x, lumaOffset);
+}
+
+void
+averageChromaSimd(const uint8_t* row0, const uint8_t* row1, uint8_t* chroma, uint32_t width, uint32_t lumaOffset, bool swap)
+{
+    uint32_t x = 0;
+    for (; x + 16 <= width; x += 16)
+    {
+        uint8x16x2_t pixels0 = vld2q_u8(row0 + x * 2);
+        uint8x16x2_t pixels1 = vld2q_u8(row1 + x * 2);
+        uint8x16_t average = lumaOffset == 0 ? vrhaddq_u8(pixels0.val[1], pixels1.val[1]) : vrhaddq_u8(pixels0.val[0], pixels1.val[0]);
+        vst1q_u8(chroma + x, swap ? vrev16q_u8(average) : average);
+    }
+    averageChromaScalar(row0 + x * 2, row1 + x * 2, chroma + x, width - x, lumaOffset, swap);
+}
+
+void
+swapBytePairsSimd(const uint8_t* source, uint8_t* target, uint32_t bytes)
+{
+    uint32_t idx = 0;
+    for (; idx + 16 <= bytes; idx += 16)
+    {
+        vst1q_u8(target + idx, vrev16q_u8(vld1q_u8(source + idx)));
+    }
+    swapBytePairsScalar(source + idx, target + idx, bytes - idx);
+}
+
+void
+interleaveSimd(const uint8_t* first, const uint8_t* second, uint8_t* target, uint32_t bytes)
+{
+    uint32_t idx = 0;
+    for (; idx + 16 <= bytes; idx += 16)
+    {
+        uint8x16x2_t pairs;
+        pairs.val[0] = vld1q_u8(first + idx);
+        pairs.val[1] = vld1q_u8(second + idx);
+        vst2q_u8(target + idx * 2, pairs);
+    }
+    interleaveScalar(first + idx, second + idx, target + idx * 2, bytes - idx);
+}
+
+#elif PIXEL_CONVERTER_SSE2
+
+// The byte at the given offset of each 16 bit lane, in the low byte of the lane
+__m128i
+selectBytes(__m128i pairs, uint32_t offset)
+{
+    return offset == 0 ? _mm_and_si128(pairs, _mm_set1_epi16(0x00ff)) : _mm_srli_epi16(pairs, 8);
+}
+
+__m128i
+swapBytes(__m128i pairs)
+{
+    return _mm_or_si128(_mm_slli_epi16(pairs, 8), _mm_srli_epi16(pairs, 8));
+}
+
+void
+extractLumaSimd(const uint8_t* source, uint8_t* luma, uint32_t width, uint32_t lumaOffset)
+{
+    uint32_t x = 0;
+    for (; x + 16 <= width; x += 16)
+    {
+        __m128i pixels0 = _mm_loadu_si128(reinterpret_cast<const __m128i*>(source + x * 2));
+        __m128i pixels1 = _mm_loadu_si128(reinterpret_cast<const __m128i*>(source + x * 2 + 16));
+        __m128i packed = _mm_packus_epi16(selectBytes(pixels0, lumaOffset), selectBytes(pixels1, lumaOffset));
+        _mm_storeu_si128(reinterpret_cast<__m128i*>(luma + x), packed);
+    }
+    extractLumaScalar(source + x * 2, luma + x, width - x, lumaOffset);
+}
+
+void
+averageChromaSimd(const uint8_t* row0, const uint8_t* row1, uint8_t* chroma, uint32_t width, uint32_t lumaOffset, bool swap)
+{
+    uint32_t chromaOffset = 1 - lumaOffset;
+    uint32_t x = 0;
+    for (; x + 16 <= width; x += 16)
+    {
+        __m128i average0 = _mm_avg_epu8(_mm_loadu_si128(reinterpret_cast<const __m128i*>(row0 + x * 2)),
+                                        _mm_loadu_si128(reinterpret_cast<const __m128i*>(row1 + x * 2)));
+        __m128i average1 = _mm_avg_epu8(_mm_loadu_si128(reinterpret_cast<const __m128i*>(row0 + x * 2 + 16)),
+                                        _mm_loadu_si128(reinterpret_cast<const __m128i*>(row1 + x * 2 + 16)));
+        __m128i packed = _mm_packus_epi16(selectBytes(average0, chromaOffset), selectBytes(average1, chromaOffset));
+        _mm_storeu_si128(reinterpret_cast<__m128i*>(chroma + x), swap ? swapBytes(packed) : packed);
+    }
+    averageChromaScalar(row0 + x * 2, row1 + x * 2, chroma + x, width - x, lumaOffset, swap);
+}
+
+void
+swapBytePairsSimd(const uint8_t* source, uint8_t* target, uint32_t bytes)
+{
+    uint32_t idx = 0;
+    for (; idx + 16 <= bytes; idx += 16)
+    {
+        __m128i pairs = _mm_loadu_si128(reinterpret_cast<const __m128i*>(source + idx));
+        _mm_storeu_si128(reinterpret_cast<__m128i*>(target + idx), swapBytes(pairs));
+    }
+    swapBytePairsScalar(source + idx, target + idx, bytes - idx);
+}
+
+void
+interleaveSimd(const uint8_t* first, const uint8_t* second, uint8_t* target, uint32_t bytes)
+{
+    uint32_t idx = 0;
+    for (; idx + 16 <= bytes; idx += 16)
+    {
+        __m128i a = _mm_loadu_si128(reinterpret_cast<const __m128i*>(first + idx));
+        __m128i b = _mm_loadu_si128(reinterpret_cast<const __m128i*>(second + idx));
+        _mm_storeu_si128(reinterpret_cast<__m128i*>(target + idx * 2), _mm_unpacklo_epi8(a, b));
+        _mm_storeu_si128(reinterpret_cast<__m128i*>(target + idx * 2 + 16), _mm_unpackhi_epi8(a, b));
+    }
+    interleaveScalar(first + idx, second + idx, target + idx * 2, bytes - idx);
+}
+
+#endif
+}
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+const char*
+PixelConverter::getFormatName(Format format)
+{
+    switch (format)
+    {
+        case Format::YUYV:
+            return "YUYV";
+        case Format::UYVY:
+            return "UYVY";
+        case Format::NV12:
+            return "NV12";
+        case Format::NV21:
+            return "NV21";
+        case Format::GRAY:
+            return "GRAY";
+        case Format::RGB888:
+            return "RGB888";
+    }
+
+    return "UNKNOWN";
+}
+
+uint32_t
+PixelConverter::getFrameSize(Format format, uint32_t width, uint32_t height)
+{
+    switch (format)
+    {
+        case Format::NV12:
+        case Format::NV21:
+            return width * height * 3 / 2;
+        case Format::GRAY:
+            return width * height;
+        case Format::RGB888:
+            return width * height * 3;
+        default:
+            return width * height * 2;
+    }
+}
+
+bool
+PixelConverter::hasSimd()
+{
+#if PIXEL_CONVERTER_NEON || PIXEL_CONVERTER_SSE2
+    return true;
+#else
+    return false;
+#endif
+}
+
+bool
+PixelConverter::configure(Format source, Format target, uint32_t width, uint32_t height, Implementation implementation)
+{
+    // 4:2:2 chroma covers pixel pairs, 4:2:0 chroma 2x2 blocks
+    bool evenHeight = !isSemiPlanar(source) && !isSemiPlanar(target);
+    if (width == 0 || height == 0 || width % 2 != 0 || (!evenHeight && height % 2 != 0))
+    {
+        LOG_E("Can't convert %ux%u frames from %s to %s", width, height, getFormatName(source), getFormatName(target));
+        return false;
+    }
+
+    mSource = source;
+    mTarget = target;
+    mWidth = width;
+    mHeight = height;
+
+    mKernels.extractLuma = extractLumaScalar;
+    mKernels.averageChroma = averageChromaScalar;
+    mKernels.swapBytePairs = swapBytePairsScalar;
+    mKernels.interleave = interleaveScalar;
+
+#if PIXEL_CONVERTER_NEON || PIXEL_CONVERTER_SSE2
+    if (implementation == Implementation::SIMD)
+    {
+        mKernels.extractLuma = extractLumaSimd;
+        mKernels.averageChroma = averageChromaSimd;
+        mKernels.swapBytePairs = swapBytePairsSimd;
+        mKernels.interleave = interleaveSimd;
+    }
+#endif
+
+    // Gray frames are interleaved with this row for the YUV 4:2:2 targets
+    mChromaRow.assign(width, NEUTRAL_CHROMA);
+    return true;
+}
+
+void
+PixelConverter::convert(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const
+{
+    if (isPacked(mSource))
+    {
+        convertFromPacked(source, sourceStride, target);
+    }
+    else if (isSemiPlanar(mSource))
+    {
+        convertFromSemiPlanar(source, sourceStride, target);
+    }
+    else if (mSource == Format::GRAY)
+    {
+        convertFromGray(source, sourceStride, target);
+    }
+    else
+    {
+        convertFromRGB(source, sourceStride, target);
+    }
+}
+
+uint32_t
+PixelConverter::getTargetStride() const
+{
+    switch (mTarget)
+    {
+        case Format::YUYV:
+        case Format::UYVY:
+            return mWidth * 2;
+        case Format::RGB888:
+            return mWidth * 3;
+        default:
+            return mWidth;
+    }
+}
+
+
+//=============================================================================
+// PRIVATE METHODS
+//=============================================================================
+
+void
+PixelConverter::convertFromPacked(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const
+{
+    uint32_t lumaOffset = mSource == Format::UYVY ? 1 : 0;
+    uint32_t targetStride = getTargetStride();
+
+    if (isSemiPlanar(mTarget))
+    {
+        uint8_t* chroma = target + mWidth * mHeight;
+        for (uint32_t y = 0; y < mHeight; y += 2)
+        {
+            const uint8_t* row0 = source + static_cast<size_t>(y) * sourceStride;
+            const uint8_t* row1 = row0 + sourceStride;
+            mKernels.extractLuma(row0, target + static_cast<size_t>(y) * mWidth, mWidth, lumaOffset);
+            mKernels.extractLuma(row1, target + static_cast<size_t>(y + 1) * mWidth, mWidth, lumaOffset);
+            mKernels.averageChroma(row0, row1, chroma + static_cast<size_t>(y / 2) * mWidth, mWidth, lumaOffset, mTarget == Format::NV21);
+        }
+        return;
+    }
+
+    for (uint32_t y = 0; y < mHeight; y++)
+    {
+        const uint8_t* row = source + static_cast<size_t>(y) * sourceStride;
+        uint8_t* out = target + static_cast<size_t>(y) * targetStride;
+
+        if (mTarget == mSource)
+        {
+            memcpy(out, row, targetStride);
+        }
+        else if (isPacked(mTarget))
+        {
+            mKernels.swapBytePairs(row, out, targetStride);
+        }
+        else if (mTarget == Format::GRAY)
+        {
+            mKernels.extractLuma(row, out, mWidth, lumaOffset);
+        }
+        else
+        {
+            const uint8_t* u = row + 1 - lumaOffset;
+            for (uint32_t x = 0; x < mWidth; x += 2)
+            {
+                writeRGB(row[x * 2 + lumaOffset], u[x * 2], u[x * 2 + 2], out + x * 3);
+                writeRGB(row[x * 2 + 2 + lumaOffset], u[x * 2], u[x * 2 + 2], out + x * 3 + 3);
+            }
+        }
+    }
+}
+
+void
+PixelConverter::convertFromSemiPlanar(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const
+{
+    const uint8_t* sourceChroma = source + static_cast<size_t>(sourceStride) * mHeight;
+    bool sourceSwapped = mSource == Format::NV21;
+    uint32_t targetStride = getTargetStride();
+
+    if (isSemiPlanar(mTarget) || mTarget == Format::GRAY)
+    {
+        for (uint32_t y = 0; y < mHeight; y++)
+        {
+            memcpy(target + static_cast<size_t>(y) * mWidth, source + static_cast<size_t>(y) * sourceStride, mWidth);
+        }
+
+        if (mTarget == Format::GRAY)
+        {
+            return;
+        }
+
+        uint8_t* chroma = target + mWidth * mHeight;
+        for (uint32_t y = 0; y < mHeight / 2; y++)
+        {
+            const uint8_t* row = sourceChroma + static_cast<size_t>(y) * sourceStride;
+            if (mTarget == mSource)
+            {
+                memcpy(chroma + static_cast<size_t>(y) * mWidth, row, mWidth);
+            }
+            else
+            {
+                mKernels.swapBytePairs(row, chroma + static_cast<size_t>(y) * mWidth, mWidth);
+            }
+        }
+        return;
+    }
+
+    for (uint32_t y = 0; y < mHeight; y++)
+    {
+        const uint8_t* luma = source + static_cast<size_t>(y) * sourceStride;
+        const uint8_t* uv = sourceChroma + static_cast<size_t>(y / 2) * sourceStride;
+        uint8_t* out = target + static_cast<size_t>(y) * targetStride;
+
+        // Each chroma row is used for two rows, in UV order
+        if (sourceSwapped)
+        {
+            mKernels.swapBytePairs(uv, mChromaRow.data(), mWidth);
+            uv = mChromaRow.data();
+        }
+
+        if (mTarget == Format::YUYV)
+        {
+            mKernels.interleave(luma, uv, out, mWidth);
+        }
+        else if (mTarget == Format::UYVY)
+        {
+            mKernels.interleave(uv, luma, out, mWidth);
+        }
+        else
+        {
+            for (uint32_t x = 0; x < mWidth; x += 2)
+            {
+                writeRGB(luma[x], uv[x], uv[x + 1], out + x * 3);
+                writeRGB(luma[x + 1], uv[x], uv[x + 1], out + x * 3 + 3);
+            }
+        }
+    }
+}
+
+void
+PixelConverter::convertFromGray(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const
+{
+    uint32_t targetStride = getTargetStride();
+
+    for (uint32_t y = 0; y < mHeight; y++)
+    {
+        const uint8_t* luma = source + static_cast<size_t>(y) * sourceStride;
+        uint8_t* out = target + static_cast<size_t>(y) * targetStride;
+
+        switch (mTarget)
+        {
+            case Format::YUYV:
+                mKernels.interleave(luma, mChromaRow.data(), out, mWidth);
+                break;
+            case Format::UYVY:
+                mKernels.interleave(mChromaRow.data(), luma, out, mWidth);
+                break;
+            case Format::RGB888:
+                for (uint32_t x = 0; x < mWidth; x++)
+                {
+                    writeRGB(luma[x], NEUTRAL_CHROMA, NEUTRAL_CHROMA, out + x * 3);
+                }
+                break;
+            default:
+                memcpy(out, luma, mWidth);
+        }
+    }
+
+    if (isSemiPlanar(mTarget))
+    {
+        memset(target + mWidth * mHeight, NEUTRAL_CHROMA, mWidth * mHeight / 2);
+    }
+}
+
+void
+PixelConverter::convertFromRGB(const uint8_t* source, uint32_t sourceStride, uint8_t* target) const
+{
+    uint32_t targetStride = getTargetStride();
+
+    if (mTarget == Format::RGB888)
+    {
+        for (uint32_t y = 0; y < mHeight; y++)
+        {
+            memcpy(target + static_cast<size_t>(y) * targetStride, source + static_cast<size_t>(y) * sourceStride, targetStride);
+        }
+        return;
+    }
+
+    uint8_t* chroma = target + mWidth * mHeight;
+    for (uint32_t y = 0; y < mHeight; y++)
+    {
+        const uint8_t* rgb = source + static_cast<size_t>(y) * sourceStride;
+        uint8_t* out = target + static_cast<size_t>(y) * targetStride;
+
+        if (mTarget == Format::GRAY || isSemiPlanar(mTarget))
+        {
+            for (uint32_t x = 0; x < mWidth; x++)
+            {
+                out[x] = getLuma(rgb[x * 3], rgb[x * 3 + 1], rgb[x * 3 + 2]);
+            }
+
+            // The chroma of each 2x2 block is computed from its average colour with the second row
+            if (isSemiPlanar(mTarget) && y % 2 == 1)
+            {
+                const uint8_t* above = rgb - sourceStride;
+                uint8_t* uv = chroma + static_cast<size_t>(y / 2) * mWidth;
+                for (uint32_t x = 0; x < mWidth; x += 2)
+                {
+                    int32_t r = (above[x * 3] + above[x * 3 + 3] + rgb[x * 3] + rgb[x * 3 + 3] + 2) >> 2;
+                    int32_t g = (above[x * 3 + 1] + above[x * 3 + 4] + rgb[x * 3 + 1] + rgb[x * 3 + 4] + 2) >> 2;
+                    int32_t b = (above[x * 3 + 2] + above[x * 3 + 5] + rgb[x * 3 + 2] + rgb[x * 3 + 5] + 2) >> 2;
+                    uv[x] = mTarget == Format::NV12 ? getU(r, g, b) : getV(r, g, b);
+                    uv[x + 1] = mTarget == Format::NV12 ? getV(r, g, b) : getU(r, g, b);
+                }
+            }
+            continue;
+        }
+
+        // YUYV or UYVY, the chroma of each pixel pair from its average colour
+        uint32_t lumaOffset = mTarget == Format::UYVY ? 1 : 0;
+        uint32_t chromaOffset = 1 - lumaOffset;
+        for (uint32_t x = 0; x < mWidth; x += 2)
+        {
+            const uint8_t* pixel = rgb + x * 3;
+            int32_t r = (pixel[0] + pixel[3] + 1) >> 1;
+            int32_t g = (pixel[1] + pixel[4] + 1) >> 1;
+            int32_t b = (pixel[2] + pixel[5] + 1) >> 1;
+            out[x * 2 + lumaOffset] = getLuma(pixel[0], pixel[1], pixel[2]);
+            out[x * 2 + 2 + lumaOffset] = getLuma(pixel[3], pixel[4], pixel[5]);
+            out[x * 2 + chromaOffset] = getU(r, g, b);
+            out[x * 2 + 2 + chromaOffset] = getV(r, g, b);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "ReplayExternalCamera.h"
+
+#include <chrono>
+#include <ctime>
+
+#define MODULE_TAG "ReplayExternalCamera"
+
+#include "DriverLog.h"
+
+namespace
+{
+uint64_t
+getCurrentTimestamp()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000000000ULL + t.tv_nsec;
+}
+}
+
+ReplayExternalCamera::ReplayExternalCamera(const std::string& path, bool realTime, bool loop)
+    : mPath(path)
+    , mRealTime(realTime)
+    , mLoop(loop)
+{
+}
+
+ReplayExternalCamera::~ReplayExternalCamera()
+{
+    stop();
+    close();
+}
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+bool
+ReplayExternalCamera::open()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    if (!mReader.open(mPath))
+    {
+        return false;
+    }
+
+    if (mReader.getNumFrames() == 0)
+    {
+        LOG_E("Recording %s has no frames", mPath.c_str());
+        mReader.close();
+        return false;
+    }
+
+    mOpened = true;
+    return true;
+}
+
+bool
+ReplayExternalCamera::close()
+{
+    stop();
+
+    std::lock_guard<std::mutex> lock(mMutex);
+    mReader.close();
+    mOpened = false;
+    return true;
+}
+
+bool
+ReplayExternalCamera::start(Vuforia::Driver::CameraMode cameraMode, Vuforia::Driver::CameraCallback* cb)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    if (!mOpened)
+    {
+        LOG_E("Failed attempt to start camera. No recording is open.");
+        return false;
+    }
+
+    if (mPlaybackThread.joinable())
+    {
+        LOG_E("Failed attempt to start camera. Camera is already started.");
+        return false;
+    }
+
+    const Vuforia::Driver::CameraMode& recordedMode = mReader.getCameraMode();
+    if (cameraMode.width != recordedMode.width || cameraMode.height != recordedMode.height || cameraMode.format != recordedMode.format)
+    {
+        LOG_E("Recording has %ux%u frames, can't start %ux%u", recordedMode.width, recordedMode.height, cameraMode.width, cameraMode.height);
+        return false;
+    }
+
+    mCallback = cb;
+    mRunning = true;
+    mPlaying = true;
+    mPlaybackThread = std::thread(&ReplayExternalCamera::playbackLoop, this);
+    return true;
+}
+
+bool
+ReplayExternalCamera::stop()
+{
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mRunning = false;
+    }
+    mCondition.notify_all();
+
+    if (mPlaybackThread.joinable())
+    {
+        mPlaybackThread.join();
+    }
+    return true;
+}
+
+uint32_t
+ReplayExternalCamera::getNumSupportedCameraModes()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mOpened ? 1 : 0;
+}
+
+bool
+ReplayExternalCamera::getSupportedCameraMode(uint32_t index, Vuforia::Driver::CameraMode* out)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    if (!mOpened || index != 0 || out == nullptr)
+    {
+        return false;
+    }
+
+    *out = mReader.getCameraMode();
+    return true;
+}
+
+bool
+ReplayExternalCamera::supportsExposureMode(Vuforia::Driver::ExposureMode /*parameter*/)
+{
+    return false;
+}
+
+Vuforia::Driver::ExposureMode
+ReplayExternalCamera::getExposureMode()
+{
+    return Vuforia::Driver::ExposureMode::UNKNOWN;
+}
+
+bool
+ReplayExternalCamera::setExposureMode(Vuforia::Driver::ExposureMode /*mode*/)
+{
+    return false;
+}
+
+bool
+ReplayExternalCamera::supportsExposureValue()
+{
+    return false;
+}
+
+uint64_t
+ReplayExternalCamera::getExposureValueMin()
+{
+    return 0;
+}
+
+uint64_t
+ReplayExternalCamera::getExposureValueMax()
+{
+    return 0;
+}
+
+uint64_t
+ReplayExternalCamera::getExposureValue()
+{
+    return 0;
+}
+
+bool
+ReplayExternalCamera::setExposureValue(uint64_t /*exposureTime*/)
+{
+    return false;
+}
+
+bool
+ReplayExternalCamera::supportsFocusMode(Vuforia::Driver::FocusMode /*parameter*/)
+{
+    return false;
+}
+
+Vuforia::Driver::FocusMode
+ReplayExternalCamera::getFocusMode()
+{
+    return Vuforia::Driver::FocusMode::UNKNOWN;
+}
+
+bool
+ReplayExternalCamera::setFocusMode(Vuforia::Driver::FocusMode /*mode*/)
+{
+    return false;
+}
+
+bool
+ReplayExternalCamera::supportsFocusValue()
+{
+    return false;
+}
+
+float
+ReplayExternalCamera::getFocusValueMin()
+{
+    return 0.f;
+}
+
+float
+ReplayExternalCamera::getFocusValueMax()
+{
+    return 0.f;
+}
+
+float
+ReplayExternalCamera::getFocusValue()
+{
+    return 0.f;
+}
+
+bool
+ReplayExternalCamera::setFocusValue(float /*value*/)
+{
+    return false;
+}
+
+bool
+ReplayExternalCamera::isPlaying()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mPlaying;
+}
+
+//=============================================================================
+// PRIVATE METHODS
+//=============================================================================
+
+void
+ReplayExternalCamera::playbackLoop()
+{
+    uint32_t numFrames = mReader.getNumFrames();
+    uint32_t frameIndex = 0;
+
+    Vuforia::Driver::CameraFrame frame;
+    mReader.getFrame(0, frame);
+    uint64_t firstTimestamp = frame.timestamp;
+
+    // A pass over the recording starts at the time the previous pass would have delivered
+    // the frame after its last one, so a looping recording keeps a steady frame rate
+    uint64_t recordedDuration = 0;
+    if (numFrames > 1 && mReader.getFrame(numFrames - 1, frame) && frame.timestamp > firstTimestamp)
+    {
+        recordedDuration = (frame.timestamp - firstTimestamp) * numFrames / (numFrames - 1);
+    }
+
+    uint64_t passStart = getCurrentTimestamp();
+    std::chrono::steady_clock::time_point passStartTime = std::chrono::steady_clock::now();
+
+    std::unique_lock<std::mutex> lock(mMutex);
+    while (mRunning)
+    {
+        for (uint32_t idx = 0; idx < numFrames && mRunning; idx++)
+        {
+            mReader.getFrame(idx, frame);
+            uint64_t offset = frame.timestamp > firstTimestamp ? frame.timestamp - firstTimestamp : 0;
+
+            if (mRealTime)
+            {
+                std::chrono::steady_clock::time_point deliveryTime = passStartTime + std::chrono::nanoseconds(offset);
+                if (mCondition.wait_until(lock, deliveryTime, [this] { return !mRunning; }))
+                {
+                    break;
+                }
+                frame.timestamp = passStart + offset;
+            }
+            else
+            {
+                frame.timestamp = getCurrentTimestamp();
+            }
+            frame.index = frameIndex++;
+
+            // Not holding the lock in the callback, so that stop() never waits for Vuforia
+            lock.unlock();
+            mCallback->onNewCameraFrame(&frame);
+            lock.lock();
+        }
+
+        if (!mLoop)
+        {
+            break;
+        }
+
+        passStart += recordedDuration;
+        passStartTime += std::chrono::nanoseconds(recordedDuration);
+    }
+
+    mPlaying = false;
+    LOG_D("Playback ended after %u frames", frameIndex);
+}
@@ -0,0 +1,309 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "SoftwareAutoExposure.h"
+
+#include <algorithm>
+#include <cmath>
+
+#define MODULE_TAG "SoftwareAutoExposure"
+
+#include "DriverLog.h"
+
+namespace
+{
+// Exposure changes take a few frames to show up in the stream, sampling earlier would overshoot
+const std::chrono::milliseconds ADJUST_INTERVAL(200);
+
+// Errors smaller than this fraction of the target are ignored, so that the loop settles
+const float DEAD_BAND = 0.1f;
+
+// Fraction of the error that is corrected in one step, and the largest change of one step
+const float DAMPING = 0.6f;
+const float MAX_STEP_RATIO = 1.5f;
+
+// Specular highlights and lamps are left out of the mean, so they don't darken the rest of the frame
+const float HIGHLIGHT_FRACTION = 0.02f;
+
+// When this fraction of the samples is clipped, the mean doesn't show how bright the scene is
+const float SATURATED_FRACTION = 0.25f;
+const uint32_t SATURATED_LUMINANCE = 250;
+
+// Gain is changed in steps of this fraction of its range
+const uint32_t GAIN_STEPS = 16;
+}
+
+const uint32_t SoftwareAutoExposure::MAX_SAMPLES;
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+SoftwareAutoExposure::SoftwareAutoExposure()
+{
+    mSamples.resize(MAX_SAMPLES);
+}
+
+SoftwareAutoExposure::~SoftwareAutoExposure()
+{
+    stop();
+}
+
+bool
+SoftwareAutoExposure::start(const Limits& limits, uint64_t exposure, uint16_t gain, uint8_t targetLuminance,
+                            SetExposureFunction setExposure, SetGainFunction setGain)
+{
+    stop();
+
+    if (limits.exposureMax <= limits.exposureMin || targetLuminance == 0)
+    {
+        LOG_E("Invalid exposure range or target luminance");
+        return false;
+    }
+
+    mLimits = limits;
+    mExposure = std::min(std::max(exposure, limits.exposureMin), limits.exposureMax);
+    mGain = limits.gainSupported ? std::min(std::max(gain, limits.gainMin), limits.gainMax) : gain;
+    mTargetLuminance = targetLuminance;
+    mSetExposure = setExposure;
+    mSetGain = setGain;
+
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mSamplesReady = false;
+        mNextSampleTime = std::chrono::steady_clock::now();
+        mRunning = true;
+    }
+
+    mThread = std::thread(&SoftwareAutoExposure::controlLoop, this);
+
+    LOG_D("Started, exposure %llu ns, gain %u, target luminance %u",
+          static_cast<unsigned long long>(mExposure), mGain, mTargetLuminance);
+    return true;
+}
+
+void
+SoftwareAutoExposure::stop()
+{
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        if (!mRunning)
+        {
+            return;
+        }
+        mRunning = false;
+    }
+
+    mCondition.notify_all();
+    if (mThread.joinable())
+    {
+        mThread.join();
+    }
+
+    LOG_D("Stopped");
+}
+
+bool
+SoftwareAutoExposure::isRunning()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mRunning;
+}
+
+void
+SoftwareAutoExposure::setFrameRate(uint32_t fps)
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    mFps = fps;
+}
+
+void
+SoftwareAutoExposure::submitFrame(const Vuforia::Driver::CameraFrame& frame)
+{
+    if (frame.format != Vuforia::Driver::PixelFormat::YUYV || frame.width == 0 || frame.height == 0)
+    {
+        return;
+    }
+
+    // Never wait on the streaming thread, a busy controller just misses this frame
+    std::unique_lock<std::mutex> lock(mMutex, std::try_to_lock);
+    if (!lock.owns_lock() || !mRunning || mSamplesReady || std::chrono::steady_clock::now() < mNextSampleTime)
+    {
+        return;
+    }
+
+    // Sample a regular grid, the spacing keeps the number of samples below MAX_SAMPLES
+    uint32_t step = static_cast<uint32_t>(std::ceil(std::sqrt(static_cast<double>(frame.width) * frame.height / MAX_SAMPLES)));
+    step = std::max<uint32_t>(step, 1);
+
+    const uint8_t* buffer = static_cast<const uint8_t*>(frame.buffer);
+    uint32_t count = 0;
+    for (uint32_t y = step / 2; y < frame.height && count < MAX_SAMPLES; y += step)
+    {
+        const uint8_t* row = buffer + static_cast<size_t>(y) * frame.stride;
+        for (uint32_t x = step / 2; x < frame.width && count < MAX_SAMPLES; x += step)
+        {
+            // Y0 U Y1 V, the luma of every pixel is at an even byte
+            mSamples[count++] = row[x * 2];
+        }
+    }
+
+    mSampleCount = count;
+    mSamplesReady = true;
+
+    lock.unlock();
+    mCondition.notify_one();
+}
+
+
+//=============================================================================
+// PRIVATE METHODS
+//=============================================================================
+
+void
+SoftwareAutoExposure::controlLoop()
+{
+    uint32_t histogram[256];
+
+    while (true)
+    {
+        uint32_t sampleCount = 0;
+        {
+            std::unique_lock<std::mutex> lock(mMutex);
+            mCondition.wait(lock, [this]() { return mSamplesReady || !mRunning; });
+            if (!mRunning)
+            {
+                return;
+            }
+            sampleCount = mSampleCount;
+        }
+
+        // submitFrame() leaves the samples alone until mSamplesReady is reset
+        std::fill(histogram, histogram + 256, 0);
+        for (uint32_t i = 0; i < sampleCount; ++i)
+        {
+            ++histogram[mSamples[i]];
+        }
+
+        if (sampleCount > 0)
+        {
+            adjust(histogram, sampleCount);
+        }
+
+        std::lock_guard<std::mutex> lock(mMutex);
+        mSamplesReady = false;
+        mNextSampleTime = std::chrono::steady_clock::now() + ADJUST_INTERVAL;
+    }
+}
+
+void
+SoftwareAutoExposure::adjust(const uint32_t* histogram, uint32_t sampleCount)
+{
+    // Mean luminance without the brightest samples
+    uint32_t included = sampleCount - static_cast<uint32_t>(sampleCount * HIGHLIGHT_FRACTION);
+    uint32_t remaining = included;
+    uint64_t sum = 0;
+    for (uint32_t value = 0; value < 256 && remaining > 0; ++value)
+    {
+        uint32_t n = std::min(histogram[value], remaining);
+        sum += static_cast<uint64_t>(n) * value;
+        remaining -= n;
+    }
+    float mean = std::max(static_cast<float>(sum) / std::max<uint32_t>(included, 1), 1.f);
+
+    uint32_t saturated = 0;
+    for (uint32_t value = SATURATED_LUMINANCE; value < 256; ++value)
+    {
+        saturated += histogram[value];
+    }
+
+    float ratio = mTargetLuminance / mean;
+    if (saturated > sampleCount * SATURATED_FRACTION)
+    {
+        // The clipped samples may be much brighter than they look, go down by a full step
+        ratio = 1.f / MAX_STEP_RATIO;
+    }
+    else if (std::fabs(ratio - 1.f) < DEAD_BAND)
+    {
+        return;
+    }
+    else
+    {
+        ratio = 1.f + (ratio - 1.f) * DAMPING;
+        ratio = std::min(std::max(ratio, 1.f / MAX_STEP_RATIO), MAX_STEP_RATIO);
+    }
+
+    // Longer exposures than the frame interval would lower the frame rate
+    uint64_t exposureMax = mLimits.exposureMax;
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        if (mFps > 0)
+        {
+            exposureMax = std::max(std::min<uint64_t>(exposureMax, 1000000000ULL / mFps), mLimits.exposureMin);
+        }
+    }
+
+    uint32_t gainStep = mLimits.gainSupported ? std::max<uint32_t>((mLimits.gainMax - mLimits.gainMin) / GAIN_STEPS, 1) : 0;
+    uint64_t exposure = mExposure;
+    uint16_t gain = mGain;
+
+    if (ratio > 1.f)
+    {
+        // Brighter: exposure time first, gain once the exposure time is at its limit
+        if (mExposure < exposureMax)
+        {
+            exposure = std::min(static_cast<uint64_t>(mExposure * ratio) + 1, exposureMax);
+        }
+        else if (mLimits.gainSupported && mGain < mLimits.gainMax)
+        {
+            gain = static_cast<uint16_t>(std::min<uint32_t>(mGain + gainStep, mLimits.gainMax));
+        }
+    }
+    else
+    {
+        // Darker: gain first, it adds noise, then exposure time
+        if (mLimits.gainSupported && mGain > mLimits.gainMin)
+        {
+            gain = static_cast<uint16_t>(std::max<int32_t>(static_cast<int32_t>(mGain) - static_cast<int32_t>(gainStep), mLimits.gainMin));
+        }
+        else if (mExposure > mLimits.exposureMin)
+        {
+            exposure = std::max(static_cast<uint64_t>(mExposure * ratio), mLimits.exposureMin);
+        }
+    }
+
+    // Also brings the exposure time back into the frame interval after the frame rate went up
+    exposure = std::min(exposure, exposureMax);
+
+    if (exposure != mExposure)
+    {
+        if (mSetExposure(exposure))
+        {
+            mExposure = exposure;
+        }
+        else
+        {
+            LOG_E("Failed to set exposure time %llu ns", static_cast<unsigned long long>(exposure));
+        }
+    }
+
+    if (gain != mGain)
+    {
+        if (mSetGain(gain))
+        {
+            mGain = gain;
+        }
+        else
+        {
+            LOG_E("Failed to set gain %u", gain);
+        }
+    }
+
+    LOG_D("Mean luminance %.1f, %u of %u samples saturated, exposure %llu ns, gain %u",
+          mean, saturated, sampleCount, static_cast<unsigned long long>(mExposure), mGain);
+}
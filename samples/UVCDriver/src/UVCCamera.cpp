@@ -0,0 +1,2209 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+#include "UVCCamera.h"
+
+#include <algorithm>
+#include <cstring>
+#include <string>
+
+// Needed for the payload header timestamps, libuvc doesn't pass them on with the frame
+#include <libuvc/libuvc_internal.h>
+
+#define MODULE_TAG "UVCCamera"
+
+#include "DriverLog.h"
+
+// This macro is set to 0 because the libuvc fork by saki4510t that we use here
+// doesn't implement uvc_get_focus_simple_range() and uvc_set_focus_simple_range()
+// even though both of them are declared in the header file.
+#define SIMPLE_FOCUS_METHODS_IMPLEMENTED 0
+
+namespace
+{
+// How often the cached camera control values are refreshed from the device while streaming.
+const std::chrono::milliseconds CONTROL_CACHE_REFRESH_INTERVAL(500);
+
+// Configuration keys, see DriverConfiguration.java for the documentation
+const char* CONFIG_FRAME_QUEUE_CAPACITY = "frameQueue.capacity";
+const char* CONFIG_FRAME_QUEUE_POLICY = "frameQueue.policy";
+const char* CONFIG_MJPEG_DECODER_THREADS = "mjpeg.decoderThreads";
+const char* CONFIG_MODE_SELECTION_TARGET_FPS = "modeSelection.targetFps";
+const char* CONFIG_MODE_SELECTION_TARGET_WIDTH = "modeSelection.targetWidth";
+const char* CONFIG_MODE_SELECTION_TARGET_HEIGHT = "modeSelection.targetHeight";
+const char* CONFIG_MODE_SELECTION_BANDWIDTH_BUDGET = "modeSelection.bandwidthBudget";
+const char* CONFIG_HARDWARE_TIMESTAMPS = "timestamps.hardware";
+const char* CONFIG_BANDWIDTH_PLANNING = "bandwidth.planning";
+const char* CONFIG_EXPOSURE_SOFTWARE = "exposure.software";
+const char* CONFIG_EXPOSURE_SOFTWARE_TARGET = "exposure.softwareTarget";
+const char* CONFIG_CONTROLS_ASYNC = "controls.async";
+const char* CONFIG_CONTROLS_READ_BACK = "controls.readBack";
+const char* CONFIG_CONVERSION_SIMD = "conversion.simd";
+const char* CONFIG_DEVICE_PROFILE_DIRECTORY = "deviceProfile.directory";
+
+const int DEFAULT_FRAME_QUEUE_CAPACITY = 3;
+const int DEFAULT_MJPEG_DECODER_THREADS = 2;
+const int DEFAULT_HARDWARE_TIMESTAMPS = 1;
+const int DEFAULT_BANDWIDTH_PLANNING = 1;
+const int DEFAULT_EXPOSURE_SOFTWARE = 0;
+const int DEFAULT_EXPOSURE_SOFTWARE_TARGET = 110;
+const int DEFAULT_CONTROLS_ASYNC = 1;
+const int DEFAULT_CONTROLS_READ_BACK = 1;
+const int DEFAULT_CONVERSION_SIMD = 1;
+
+// Hardware timestamps further than this in the past are considered broken
+const uint64_t MAX_CAPTURE_LATENCY_NS = 500000000ULL;
+
+// Frame rates that are tried for cameras describing their frame intervals as a continuous range
+const uint32_t CONTINUOUS_INTERVAL_CANDIDATE_FPS[] = { 120, 90, 60, 50, 30, 25, 24, 20, 15, 10, 5 };
+
+enum UVCInputTerminalBitShift
+{
+    BIT_SHIFT_CT_SCANNING_MODE_CONTROL,
+    BIT_SHIFT_CT_AE_MODE_CONTROL,
+    BIT_SHIFT_CT_AE_PRIORITY_CONTROL,
+    BIT_SHIFT_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL,
+    BIT_SHIFT_CT_EXPOSURE_TIME_RELATIVE_CONTROL,
+    BIT_SHIFT_CT_FOCUS_ABSOLUTE_CONTROL,
+    BIT_SHIFT_CT_FOCUS_RELATIVE_CONTROL,
+    BIT_SHIFT_CT_IRIS_ABSOLUTE_CONTROL,
+    BIT_SHIFT_CT_IRIS_RELATIVE_CONTROL,
+    BIT_SHIFT_CT_ZOOM_ABSOLUTE_CONTROL,
+    BIT_SHIFT_CT_ZOOM_RELATIVE_CONTROL,
+    BIT_SHIFT_CT_PANTILT_ABSOLUTE_CONTROL,
+    BIT_SHIFT_CT_PANTILT_RELATIVE_CONTROL,
+    BIT_SHIFT_CT_ROLL_ABSOLUTE_CONTROL,
+    BIT_SHIFT_CT_ROLL_RELATIVE_CONTROL,
+
+    BIT_SHIFT_CT_FOCUS_AUTO_CONTROL = 17,
+    BIT_SHIFT_CT_PRIVACY_CONTROL,
+    BIT_SHIFT_CT_FOCUS_SIMPLE_CONTROL,
+    BIT_SHIFT_CT_DIGITAL_WINDOW_CONTROL,
+    BIT_SHIFT_CT_REGION_OF_INTEREST_CONTROL
+};
+
+enum UVCProcessingUnitBitShift
+{
+    BIT_SHIFT_PU_BRIGHTNESS_CONTROL,
+    BIT_SHIFT_PU_CONTRAST_CONTROL,
+    BIT_SHIFT_PU_HUE_CONTROL,
+    BIT_SHIFT_PU_SATURATION_CONTROL,
+    BIT_SHIFT_PU_SHARPNESS_CONTROL,
+    BIT_SHIFT_PU_GAMMA_CONTROL,
+    BIT_SHIFT_PU_WHITE_BALANCE_TEMPERATURE_CONTROL,
+    BIT_SHIFT_PU_WHITE_BALANCE_COMPONENT_CONTROL,
+    BIT_SHIFT_PU_BACKLIGHT_COMPENSATION_CONTROL,
+    BIT_SHIFT_PU_GAIN_CONTROL,
+    BIT_SHIFT_PU_POWER_LINE_FREQUENCY_CONTROL,
+    BIT_SHIFT_PU_HUE_AUTO_CONTROL,
+    BIT_SHIFT_PU_WHITE_BALANCE_TEMPERATURE_AUTO_CONTROL,
+    BIT_SHIFT_PU_WHITE_BALANCE_COMPONENT_AUTO_CONTROL,
+    BIT_SHIFT_PU_DIGITAL_MULTIPLIER_CONTROL,
+    BIT_SHIFT_PU_DIGITAL_MULTIPLIER_LIMIT_CONTROL,
+    BIT_SHIFT_PU_ANALOG_VIDEO_STANDARD_CONTROL,
+    BIT_SHIFT_PU_ANALOG_LOCK_STATUS_CONTROL,
+    BIT_SHIFT_PU_CONTRAST_AUTO_CONTROL
+};
+
+enum UVCExposureMode
+{
+    EXPOSURE_MODE_MANUAL = 1,
+    EXPOSURE_MODE_AUTO = 2,
+    EXPOSURE_MODE_SHUTTER_PRIORITY = 4,
+    EXPOSURE_MODE_APERTURE_PRIORITY = 8
+};
+
+enum UVCAutoFocusMode
+{
+    AUTO_FOCUS_MODE_FIXED,
+    AUTO_FOCUS_MODE_AUTO
+};
+
+enum UVCSimpleFocusMode
+{
+    SIMPLE_FOCUS_MODE_FULL_RANGE,
+    SIMPLE_FOCUS_MODE_MACRO,
+    SIMPLE_FOCUS_MODE_PEOPLE,
+    SIMPLE_FOCUS_MODE_SCENE
+};
+
+void
+printCameraControlSupport(const uvc_input_terminal_t* inputTerminal, const uvc_processing_unit_t* processingUnit)
+{
+    LOG_D("UVC_CT_SCANNING_MODE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_SCANNING_MODE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_AE_MODE_CONTROL supported: %s",                   (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_AE_MODE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_AE_PRIORITY_CONTROL supported: %s",               (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_AE_PRIORITY_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL supported: %s",    (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_EXPOSURE_TIME_RELATIVE_CONTROL supported: %s",    (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_EXPOSURE_TIME_RELATIVE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_FOCUS_ABSOLUTE_CONTROL supported: %s",            (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_ABSOLUTE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_FOCUS_RELATIVE_CONTROL supported: %s",            (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_RELATIVE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_IRIS_ABSOLUTE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_IRIS_ABSOLUTE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_IRIS_RELATIVE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_IRIS_RELATIVE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_ZOOM_ABSOLUTE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_ZOOM_ABSOLUTE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_ZOOM_RELATIVE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_ZOOM_RELATIVE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_PANTILT_ABSOLUTE_CONTROL supported: %s",          (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_PANTILT_ABSOLUTE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_PANTILT_RELATIVE_CONTROL supported: %s",          (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_PANTILT_RELATIVE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_ROLL_ABSOLUTE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_ROLL_ABSOLUTE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_ROLL_RELATIVE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_ROLL_RELATIVE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_FOCUS_AUTO_CONTROL supported: %s",                (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_AUTO_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_PRIVACY_CONTROL supported: %s",                   (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_PRIVACY_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_FOCUS_SIMPLE_CONTROL supported: %s",              (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_SIMPLE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_DIGITAL_WINDOW_CONTROL supported: %s",            (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_DIGITAL_WINDOW_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_CT_REGION_OF_INTEREST_CONTROL supported: %s",        (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_REGION_OF_INTEREST_CONTROL)) ? "YES" : "NO");
+
+    LOG_D("UVC_PU_BRIGHTNESS_CONTROL supported: %s",                        (processingUnit->bmControls & (1 << BIT_SHIFT_PU_BRIGHTNESS_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_CONTRAST_CONTROL supported: %s",                          (processingUnit->bmControls & (1 << BIT_SHIFT_PU_CONTRAST_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_HUE_CONTROL supported: %s",                               (processingUnit->bmControls & (1 << BIT_SHIFT_PU_HUE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_SATURATION_CONTROL supported: %s",                        (processingUnit->bmControls & (1 << BIT_SHIFT_PU_SATURATION_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_SHARPNESS_CONTROL supported: %s",                         (processingUnit->bmControls & (1 << BIT_SHIFT_PU_SHARPNESS_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_GAMMA_CONTROL supported: %s",                             (processingUnit->bmControls & (1 << BIT_SHIFT_PU_GAMMA_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_WHITE_BALANCE_TEMPERATURE_CONTROL supported: %s",         (processingUnit->bmControls & (1 << BIT_SHIFT_PU_WHITE_BALANCE_TEMPERATURE_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_WHITE_BALANCE_COMPONENT_CONTROL supported: %s",           (processingUnit->bmControls & (1 << BIT_SHIFT_PU_WHITE_BALANCE_COMPONENT_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_BACKLIGHT_COMPENSATION_CONTROL supported: %s",            (processingUnit->bmControls & (1 << BIT_SHIFT_PU_BACKLIGHT_COMPENSATION_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_GAIN_CONTROL supported: %s",                              (processingUnit->bmControls & (1 << BIT_SHIFT_PU_GAIN_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_POWER_LINE_FREQUENCY_CONTROL supported: %s",              (processingUnit->bmControls & (1 << BIT_SHIFT_PU_POWER_LINE_FREQUENCY_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_HUE_AUTO_CONTROL supported: %s",                          (processingUnit->bmControls & (1 << BIT_SHIFT_PU_HUE_AUTO_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_WHITE_BALANCE_TEMPERATURE_AUTO_CONTROL supported: %s",    (processingUnit->bmControls & (1 << BIT_SHIFT_PU_WHITE_BALANCE_TEMPERATURE_AUTO_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_WHITE_BALANCE_COMPONENT_AUTO_CONTROL supported: %s",      (processingUnit->bmControls & (1 << BIT_SHIFT_PU_WHITE_BALANCE_COMPONENT_AUTO_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_DIGITAL_MULTIPLIER_CONTROL supported: %s",                (processingUnit->bmControls & (1 << BIT_SHIFT_PU_DIGITAL_MULTIPLIER_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_DIGITAL_MULTIPLIER_LIMIT_CONTROL supported: %s",          (processingUnit->bmControls & (1 << BIT_SHIFT_PU_DIGITAL_MULTIPLIER_LIMIT_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_ANALOG_VIDEO_STANDARD_CONTROL supported: %s",             (processingUnit->bmControls & (1 << BIT_SHIFT_PU_ANALOG_VIDEO_STANDARD_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_ANALOG_LOCK_STATUS_CONTROL supported: %s",                (processingUnit->bmControls & (1 << BIT_SHIFT_PU_ANALOG_LOCK_STATUS_CONTROL)) ? "YES" : "NO");
+    LOG_D("UVC_PU_CONTRAST_AUTO_CONTROL supported: %s",                     (processingUnit->bmControls & (1 << BIT_SHIFT_PU_CONTRAST_AUTO_CONTROL)) ? "supported" : "not supported");
+}
+
+uvc_frame_format
+getUVCPixelFormat(Vuforia::Driver::PixelFormat vuforiaFormat)
+{
+    uvc_frame_format uvcFormat = UVC_FRAME_FORMAT_UNKNOWN;
+
+    switch (vuforiaFormat)
+    {
+        case Vuforia::Driver::PixelFormat::YUYV:
+            uvcFormat = UVC_FRAME_FORMAT_YUYV;
+            break;
+        default:
+            LOG_D("No suitable UVC frame format for Vuforia frame format: %d", vuforiaFormat);
+    }
+
+    return uvcFormat;
+}
+
+Vuforia::Driver::PixelFormat
+getVuforiaPixelFormat(uvc_frame_format uvcFormat)
+{
+    Vuforia::Driver::PixelFormat vuforiaFormat = Vuforia::Driver::PixelFormat::UNKNOWN;
+
+    switch (uvcFormat)
+    {
+        case UVC_FRAME_FORMAT_YUYV:
+            vuforiaFormat = Vuforia::Driver::PixelFormat::YUYV;
+            break;
+        default:
+            LOG_D("No suitable Vuforia frame format for UVC image format: %d", uvcFormat);
+    }
+
+    return vuforiaFormat;
+}
+
+// Formats the camera streams that are converted before Vuforia gets them
+bool
+getConverterSourceFormat(uvc_frame_format uvcFormat, PixelConverter::Format& format)
+{
+    switch (uvcFormat)
+    {
+        case UVC_FRAME_FORMAT_UYVY:
+            format = PixelConverter::Format::UYVY;
+            return true;
+        case UVC_FRAME_FORMAT_GRAY8:
+            format = PixelConverter::Format::GRAY;
+            return true;
+        default:
+            return false;
+    }
+}
+
+const char*
+getSourceFormatName(uvc_frame_format uvcFormat)
+{
+    switch (uvcFormat)
+    {
+        case UVC_FRAME_FORMAT_MJPEG:
+            return "MJPEG";
+        case UVC_FRAME_FORMAT_UYVY:
+            return "UYVY";
+        case UVC_FRAME_FORMAT_GRAY8:
+            return "GRAY8";
+        default:
+            return "YUYV";
+    }
+}
+
+// Size of an uncompressed frame as the camera sends it
+uint32_t
+getUncompressedFrameSize(uvc_frame_format uvcFormat, uint32_t width, uint32_t height)
+{
+    return uvcFormat == UVC_FRAME_FORMAT_GRAY8 ? width * height : width * height * 2;
+}
+
+// Collects the frame intervals (in 100ns units) of a frame descriptor.
+// Only intervals that libuvc's stream negotiation can match are returned:
+// libuvc looks up the interval from the frame rate as 10000000 / fps.
+std::vector<uint32_t>
+getFrameIntervals(const uvc_frame_desc_t* frameDesc)
+{
+    std::vector<uint32_t> intervals;
+
+    if (frameDesc->intervals != nullptr)
+    {
+        // Discrete intervals, the list is terminated by a zero entry
+        for (const uint32_t* intervalPtr = frameDesc->intervals; *intervalPtr != 0; intervalPtr++)
+        {
+            uint32_t fps = 10000000 / (*intervalPtr);
+            if (fps > 0)
+            {
+                intervals.push_back(*intervalPtr);
+            }
+        }
+    }
+    else
+    {
+        // Continuous range from dwMinFrameInterval to dwMaxFrameInterval in steps of dwFrameIntervalStep
+        for (uint32_t fps : CONTINUOUS_INTERVAL_CANDIDATE_FPS)
+        {
+            uint32_t interval = 10000000 / fps;
+            if (interval >= frameDesc->dwMinFrameInterval &&
+                interval <= frameDesc->dwMaxFrameInterval &&
+                (frameDesc->dwFrameIntervalStep == 0 || (interval - frameDesc->dwMinFrameInterval) % frameDesc->dwFrameIntervalStep == 0))
+            {
+                intervals.push_back(interval);
+            }
+        }
+    }
+
+    return intervals;
+}
+
+uint64_t
+getCurrentTimestamp()
+{
+    // Vuforia timestamp is in 1ns unit
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    uint64_t timeNanoSecMonotonic = t.tv_sec * 1000000000ULL + t.tv_nsec;
+    return timeNanoSecMonotonic;
+}
+
+// Records the duration of the USB control requests made in its scope.
+class ControlTransferTimer
+{
+public:
+    ControlTransferTimer(FrameTelemetry& telemetry)
+        : mTelemetry(telemetry)
+        , mStartTime(getCurrentTimestamp())
+    {
+    }
+
+    ~ControlTransferTimer()
+    {
+        mTelemetry.recordControlTransfer(getCurrentTimestamp() - mStartTime);
+    }
+
+private:
+    FrameTelemetry& mTelemetry;
+    uint64_t        mStartTime;
+};
+
+// Logs the outcome of a control write that didn't simply succeed.
+void
+logControlResult(const char* control, ControlCommandQueue::Result result)
+{
+    switch (result)
+    {
+        case ControlCommandQueue::Result::FAILED:
+            LOG_E("Failed to set %s", control);
+            break;
+        case ControlCommandQueue::Result::NOT_CONFIRMED:
+            LOG_E("Camera didn't take the %s that was set", control);
+            break;
+        case ControlCommandQueue::Result::CANCELLED:
+            LOG_D("Setting %s was cancelled", control);
+            break;
+        default:
+            break;
+    }
+}
+
+// Callback that is called from libuvc when a new frame is available.
+void
+uvcCallbackFunc(uvc_frame_t* inFrame, void* user_ptr)
+{
+    UVCCamera* uvcCamera = static_cast<UVCCamera*>(user_ptr);
+    uvcCamera->getTelemetry().recordFrame(inFrame->sequence, getCurrentTimestamp());
+
+    Vuforia::Driver::CameraFrame frame;
+    frame.index = inFrame->sequence;
+    frame.width = inFrame->width;
+    frame.height = inFrame->height;
+    frame.format = getVuforiaPixelFormat(inFrame->frame_format);
+    frame.stride = inFrame->step;
+    frame.buffer = reinterpret_cast<uint8_t*>(inFrame->data);
+    frame.bufferSize = inFrame->data_bytes;
+    // Reading the exposure from the device would be a USB control transfer
+    // on the streaming thread, so use the cached value instead
+    frame.exposureTime = uvcCamera->getCachedExposureValue();
+    frame.timestamp = uvcCamera->getCaptureTimestamp(inFrame, frame.exposureTime);
+    frame.intrinsics = uvcCamera->getCameraIntrinsics();
+
+    if (inFrame->frame_format == UVC_FRAME_FORMAT_MJPEG)
+    {
+        uvcCamera->decodeFrame(inFrame, frame);
+    }
+    else if (frame.format == Vuforia::Driver::PixelFormat::UNKNOWN)
+    {
+        uvcCamera->convertFrame(inFrame, frame);
+    }
+    else
+    {
+        uvcCamera->deliverFrame(&frame);
+    }
+}
+}
+
+UVCCamera::UVCCamera(JavaBridge& javaBridge, BandwidthPlanner& bandwidthPlanner, int deviceIndex)
+    : mJavaBridge(javaBridge)
+    , mBandwidthPlanner(bandwidthPlanner)
+    , mDeviceIndex(deviceIndex)
+{
+}
+
+UVCCamera::~UVCCamera()
+{
+    stop();
+    close();
+}
+
+
+//=============================================================================
+// PUBLIC INTERFACE IMPLEMENTATION
+//=============================================================================
+
+bool
+UVCCamera::open()
+{
+    LOG_D("Opening usb device at index %d", mDeviceIndex);
+
+    // Everything needed to open the device comes back with the connection in a single call
+    JavaBridge::DeviceInfo deviceInfo;
+    if (!mJavaBridge.openDevice(mDeviceIndex, deviceInfo))
+    {
+        // Either we can't get hold of the device at this index
+        // or the permission for this device is denied
+        LOG_E("Failed to open usb device at index %d", mDeviceIndex);
+        return false;
+    }
+    mDeviceOpened = true;
+
+    if (deviceInfo.usbfs.empty())
+    {
+        LOG_E("Failed to get USBFS for device: %d", mDeviceIndex);
+        close();
+        return false;
+    }
+
+    uvc_error_t result = uvc_init2(&mContext, nullptr, deviceInfo.usbfs.c_str());
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to initialize UVC : error %d", static_cast<int>(result));
+        mContext = nullptr;
+        close();
+        return false;
+    }
+
+    mVendorId = deviceInfo.vendorId;
+    mProductId = deviceInfo.productId;
+    mBusNumber = deviceInfo.busNumber;
+
+    result = uvc_get_device_with_fd(mContext, &mDevice, mVendorId, mProductId, nullptr, deviceInfo.fileDescriptor,
+                                    deviceInfo.busNumber, deviceInfo.deviceNumber);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to get usb device for index: %d, error %d", mDeviceIndex, static_cast<int>(result));
+        mDevice = nullptr;
+        close();
+        return false;
+    }
+
+    result = uvc_open(mDevice, &mDeviceHandle);
+    if (result != UVC_SUCCESS)
+    {
+        // Not a camera, or a camera that libuvc can't handle
+        LOG_E("Failed to open usb device for index: %d, error %d", mDeviceIndex, static_cast<int>(result));
+        mDeviceHandle = nullptr;
+        close();
+        return false;
+    }
+
+    LOG_I("Successfully opened usb device for index: %d", mDeviceIndex);
+
+    // Control writes are made on the queue's worker thread instead of the caller's
+    mControlQueueEnabled = mJavaBridge.getConfigurationInt(CONFIG_CONTROLS_ASYNC, DEFAULT_CONTROLS_ASYNC) != 0;
+    mControlReadBackEnabled = mJavaBridge.getConfigurationInt(CONFIG_CONTROLS_READ_BACK, DEFAULT_CONTROLS_READ_BACK) != 0;
+    if (mControlQueueEnabled)
+    {
+        mControlQueue.start();
+    }
+
+    // A camera that was opened before skips the enumeration and the control queries
+    mProfileDirectory = mJavaBridge.getConfigurationString(CONFIG_DEVICE_PROFILE_DIRECTORY, "");
+    bool profileLoaded = !mProfileDirectory.empty() && loadProfile();
+    if (!profileLoaded)
+    {
+        readCapabilities();
+    }
+
+    getSupportedCameraModes();
+
+    if (profileLoaded)
+    {
+        LOG_I("Using the device profile of %04x:%04x from a previous run", mVendorId, mProductId);
+        return true;
+    }
+
+    // Log the camera capabilities. The full descriptor dump is only printed by debug builds.
+#ifndef NDEBUG
+    uvc_print_diag(mDeviceHandle, stdout);
+#endif
+    printCameraControlSupport(uvc_get_input_terminals(mDeviceHandle), uvc_get_processing_units(mDeviceHandle));
+
+    if (!mProfileDirectory.empty())
+    {
+        mProfile.save(mProfileDirectory);
+    }
+
+    return true;
+}
+
+bool
+UVCCamera::close()
+{
+    // The controller and the control queue make control transfers on the device handle
+    mSoftwareAutoExposure.stop();
+
+    if (mControlQueueEnabled)
+    {
+        mControlQueue.stop();
+        mControlQueueEnabled = false;
+
+        ControlCommandQueue::Statistics stats = mControlQueue.getStatistics();
+        LOG_D("Control queue: %llu submitted, %llu coalesced, %llu applied, %llu failed",
+              static_cast<unsigned long long>(stats.submitted), static_cast<unsigned long long>(stats.coalesced),
+              static_cast<unsigned long long>(stats.applied), static_cast<unsigned long long>(stats.failed));
+    }
+
+    if (mDeviceHandle != nullptr)
+    {
+        uvc_close(mDeviceHandle);
+        mDeviceHandle = nullptr;
+    }
+
+    if (mDevice != nullptr)
+    {
+        uvc_unref_device(mDevice);
+        mDevice = nullptr;
+    }
+
+    if (mContext != nullptr)
+    {
+        uvc_exit(mContext);
+        mContext = nullptr;
+    }
+
+    if (mDeviceOpened)
+    {
+        mJavaBridge.closeDevice(mDeviceIndex);
+        mDeviceOpened = false;
+    }
+
+    return true;
+}
+
+bool
+UVCCamera::start(Vuforia::Driver::CameraMode cameraMode, Vuforia::Driver::CameraCallback* cb)
+{
+    if (mDeviceHandle == nullptr)
+    {
+        LOG_E("Failed attempt to start camera. No device handle found.");
+        return false;
+    }
+    mCallback = cb;
+    mTelemetry.reset();
+
+    // Get camera calibration for the current opened device and the specified width and height
+    mCameraIntrinsics = mJavaBridge.getCalibrationValue(mVendorId, mProductId, cameraMode.width, cameraMode.height);
+
+    // The camera might have to stream in a different format or frame rate than what
+    // is delivered to Vuforia, if the USB bus can't carry the requested stream
+    uvc_frame_format sourceFormat = UVC_FRAME_FORMAT_UNKNOWN;
+    if (!negotiateStreamControl(cameraMode, sourceFormat))
+    {
+        return false;
+    }
+    mSoftwareAutoExposure.setFrameRate(getStreamFrameRate());
+
+    // Make sure the control cache is valid before the first frame arrives
+    refreshControlCache();
+
+    // The device clock mapping has to be learned again for every stream
+    mHardwareTimestampsEnabled = mJavaBridge.getConfigurationInt(CONFIG_HARDWARE_TIMESTAMPS, DEFAULT_HARDWARE_TIMESTAMPS) != 0;
+    mClockRecovery.reset(mStreamControl.dwClockFrequency);
+
+    // Set up the queue that decouples the libuvc transfer thread from Vuforia
+    int queueCapacity = mJavaBridge.getConfigurationInt(CONFIG_FRAME_QUEUE_CAPACITY, DEFAULT_FRAME_QUEUE_CAPACITY);
+    if (queueCapacity > 0)
+    {
+        // YUYV frames are 2 bytes per pixel, but trust the negotiated size if the camera asks for more
+        uint32_t maxFrameSize = std::max(mStreamControl.dwMaxVideoFrameSize, cameraMode.width * cameraMode.height * 2);
+        FrameQueue::OverflowPolicy policy = static_cast<FrameQueue::OverflowPolicy>(
+            mJavaBridge.getConfigurationInt(CONFIG_FRAME_QUEUE_POLICY, static_cast<int>(FrameQueue::OverflowPolicy::DROP_OLDEST)));
+
+        mFrameQueueEnabled = mFrameQueue.start(queueCapacity, maxFrameSize, policy, mCallback);
+        if (!mFrameQueueEnabled)
+        {
+            LOG_E("Failed to start frame queue, delivering frames on the USB thread");
+        }
+    }
+
+    if (sourceFormat == UVC_FRAME_FORMAT_MJPEG)
+    {
+        int decoderThreads = std::max(mJavaBridge.getConfigurationInt(CONFIG_MJPEG_DECODER_THREADS, DEFAULT_MJPEG_DECODER_THREADS), 1);
+
+        // For MJPEG dwMaxVideoFrameSize is the size of the largest compressed frame
+        uint32_t maxCompressedSize = mStreamControl.dwMaxVideoFrameSize > 0 ? mStreamControl.dwMaxVideoFrameSize : cameraMode.width * cameraMode.height * 2;
+
+        // One buffer per decoder thread and per queue slot, and one for a slot that was just released
+        uint32_t numBuffers = decoderThreads + (mFrameQueueEnabled ? queueCapacity : 0) + 1;
+
+        mMJPEGDecoderEnabled = mBufferPool.allocate(cameraMode, numBuffers) &&
+                               mMJPEGDecoder.start(decoderThreads, cameraMode.width, cameraMode.height, maxCompressedSize, mBufferPool,
+                                                   [this](Vuforia::Driver::CameraFrame* frame, FrameBufferPool::Buffer* buffer) { deliverFrame(frame, buffer); });
+        if (!mMJPEGDecoderEnabled)
+        {
+            LOG_E("Failed to start MJPEG decoder");
+            mFrameQueue.stop();
+            mFrameQueueEnabled = false;
+            mBandwidthPlanner.release(mDeviceIndex);
+            return false;
+        }
+    }
+
+    PixelConverter::Format converterFormat = PixelConverter::Format::YUYV;
+    if (getConverterSourceFormat(sourceFormat, converterFormat))
+    {
+        // Converted on the USB thread into a pool buffer, one buffer per queue slot and one being converted
+        uint32_t numBuffers = (mFrameQueueEnabled ? queueCapacity : 0) + 2;
+        PixelConverter::Implementation implementation =
+            mJavaBridge.getConfigurationInt(CONFIG_CONVERSION_SIMD, DEFAULT_CONVERSION_SIMD) != 0
+                ? PixelConverter::Implementation::SIMD : PixelConverter::Implementation::SCALAR;
+
+        mConversionEnabled = mConverter.configure(converterFormat,
+                                                  cameraMode.format == Vuforia::Driver::PixelFormat::NV21 ? PixelConverter::Format::NV21 : PixelConverter::Format::YUYV,
+                                                  cameraMode.width, cameraMode.height, implementation) &&
+                             mBufferPool.allocate(cameraMode, numBuffers);
+        if (!mConversionEnabled)
+        {
+            LOG_E("Failed to set up the conversion of %s frames", getSourceFormatName(sourceFormat));
+            mFrameQueue.stop();
+            mFrameQueueEnabled = false;
+            mBandwidthPlanner.release(mDeviceIndex);
+            return false;
+        }
+    }
+
+    // Start the camera capture
+    uvc_error_t result = uvc_start_streaming(mDeviceHandle, &mStreamControl, &uvcCallbackFunc, this, 0);
+    if (result != UVC_SUCCESS && mProfileStreamControlUsed)
+    {
+        // The camera didn't take the stream control of the profile, negotiate it like the first time.
+        // The decoder or converter set up above only fits if the camera streams the same format.
+        LOG_I("Stream control from the device profile was rejected : error %d, negotiating it again", static_cast<int>(result));
+        mBandwidthPlanner.release(mDeviceIndex);
+        mProfile.streamControl.clear();
+
+        uvc_frame_format negotiatedFormat = UVC_FRAME_FORMAT_UNKNOWN;
+        if (negotiateStreamControl(cameraMode, negotiatedFormat) && negotiatedFormat == sourceFormat)
+        {
+            mSoftwareAutoExposure.setFrameRate(getStreamFrameRate());
+            mClockRecovery.reset(mStreamControl.dwClockFrequency);
+            result = uvc_start_streaming(mDeviceHandle, &mStreamControl, &uvcCallbackFunc, this, 0);
+        }
+    }
+
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to start camera stream : error %d", static_cast<int>(result));
+        mMJPEGDecoder.stop();
+        mMJPEGDecoderEnabled = false;
+        mConversionEnabled = false;
+        mFrameQueue.stop();
+        mFrameQueueEnabled = false;
+        mBandwidthPlanner.release(mDeviceIndex);
+        return false;
+    }
+
+    mControlCache.startRefresh([this] { refreshControlCache(); }, CONTROL_CACHE_REFRESH_INTERVAL);
+
+    mCameraMode = cameraMode;
+    mLastFrameTime = getCurrentTimestamp();
+    mStreaming = true;
+    return true;
+}
+
+void
+UVCCamera::disconnect()
+{
+    if (mDeviceHandle == nullptr)
+    {
+        return;
+    }
+
+    LOG_I("Disconnecting usb device at index %d", mDeviceIndex);
+
+    // The frame queue, the decoder and the stream control are kept for reconnect()
+    mControlCache.stopRefresh();
+    if (mStreaming)
+    {
+        uvc_stop_streaming(mDeviceHandle);
+    }
+
+    close();
+}
+
+bool
+UVCCamera::reconnect()
+{
+    disconnect();
+
+    if (!open())
+    {
+        return false;
+    }
+
+    // The camera came back with its own exposure settings
+    if (mSoftwareAutoExposureSelected && !startSoftwareAutoExposure())
+    {
+        mSoftwareAutoExposureSelected = false;
+    }
+
+    if (!mStreaming)
+    {
+        return true;
+    }
+
+    // Resume with the stream control that was negotiated in start(), libuvc commits it as is
+    mClockRecovery.reset(mStreamControl.dwClockFrequency);
+    uvc_error_t result = uvc_start_streaming(mDeviceHandle, &mStreamControl, &uvcCallbackFunc, this, 0);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to resume camera stream : error %d", static_cast<int>(result));
+        close();
+        return false;
+    }
+
+    mControlCache.startRefresh([this] { refreshControlCache(); }, CONTROL_CACHE_REFRESH_INTERVAL);
+    mLastFrameTime = getCurrentTimestamp();
+
+    LOG_I("Resumed streaming on usb device at index %d", mDeviceIndex);
+    return true;
+}
+
+bool
+UVCCamera::stop()
+{
+    // A disconnected camera has no device handle, but the frame queue and the decoder still run
+    if (mDeviceHandle == nullptr && !mStreaming)
+    {
+        LOG_E("Failed attempt to stop camera. No device handle found.");
+        return false;
+    }
+
+    mControlCache.stopRefresh();
+
+    // Stop the USB transfers first, so that nothing is pushed to the queue anymore
+    if (mDeviceHandle != nullptr)
+    {
+        uvc_stop_streaming(mDeviceHandle);
+    }
+    mStreaming = false;
+
+    // The decoder and the conversion deliver pool buffers
+    bool bufferPoolUsed = mMJPEGDecoderEnabled || mConversionEnabled;
+    mConversionEnabled = false;
+
+    // The decoder delivers into the frame queue, so it has to be stopped before the queue
+    if (mMJPEGDecoderEnabled)
+    {
+        MJPEGDecoder::Statistics statistics = mMJPEGDecoder.getStatistics();
+        LOG_D("MJPEG decoder statistics: submitted %llu, decoded %llu, dropped %llu, failed %llu, decode time avg %.2f ms, max %.2f ms",
+              static_cast<unsigned long long>(statistics.submitted),
+              static_cast<unsigned long long>(statistics.decoded),
+              static_cast<unsigned long long>(statistics.dropped),
+              static_cast<unsigned long long>(statistics.failed),
+              statistics.averageDecodeTimeNs / 1000000.0,
+              statistics.maxDecodeTimeNs / 1000000.0);
+
+        mMJPEGDecoder.stop();
+        mMJPEGDecoderEnabled = false;
+    }
+
+    if (bufferPoolUsed)
+    {
+        FrameBufferPool::Statistics poolStatistics = mBufferPool.getStatistics();
+        LOG_D("Frame buffer pool statistics: capacity %u, acquired %llu, exhausted %llu, peak in use %u",
+              poolStatistics.capacity,
+              static_cast<unsigned long long>(poolStatistics.acquired),
+              static_cast<unsigned long long>(poolStatistics.exhausted),
+              poolStatistics.peakInUse);
+    }
+
+    if (mFrameQueueEnabled)
+    {
+        FrameQueue::Statistics statistics = mFrameQueue.getStatistics();
+        LOG_D("Frame queue statistics: pushed %llu, delivered %llu, overruns %llu",
+              static_cast<unsigned long long>(statistics.pushed),
+              static_cast<unsigned long long>(statistics.delivered),
+              static_cast<unsigned long long>(statistics.overruns));
+
+        mFrameQueue.stop();
+        mFrameQueueEnabled = false;
+    }
+
+    mBandwidthPlanner.release(mDeviceIndex);
+    return true;
+}
+
+uint32_t
+UVCCamera::getNumSupportedCameraModes()
+{
+    return mSupportedCameraModes.size();
+}
+
+bool
+UVCCamera::getSupportedCameraMode(uint32_t index, Vuforia::Driver::CameraMode* out)
+{
+    if (index >= mSupportedCameraModes.size())
+    {
+        LOG_E("Invalid camera mode index");
+        return false;
+    }
+
+    *out = mSupportedCameraModes[index].mode;
+    return true;
+}
+
+bool
+UVCCamera::supportsCameraMode(const Vuforia::Driver::CameraMode& cameraMode)
+{
+    for (const SupportedCameraMode& supportedMode : mSupportedCameraModes)
+    {
+        if (supportedMode.mode.width == cameraMode.width &&
+            supportedMode.mode.height == cameraMode.height &&
+            supportedMode.mode.fps == cameraMode.fps &&
+            supportedMode.mode.format == cameraMode.format)
+        {
+            return true;
+        }
+    }
+
+    return false;
+}
+
+bool
+UVCCamera::supportsExposureMode(Vuforia::Driver::ExposureMode parameter)
+{
+    if (parameter == Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO && supportsSoftwareAutoExposure())
+    {
+        return true;
+    }
+
+    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
+    if (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_AE_MODE_CONTROL))
+    {
+        // Read with GET_RES when the camera was opened
+        uint8_t supportedMode = mProfile.exposureModes;
+
+        switch (parameter)
+        {
+            case Vuforia::Driver::ExposureMode::AUTO:
+                // Unless otherwise stated auto exposure is always continuous, not only for one exposure
+                return false;
+            case Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO:
+                // Both usb exposure mode AUTO and APERTURE PRIORITY are essentially continuous auto exposure
+                // 1. AUTO - auto exposure time, auto iris
+                // 2. APERTURE_PRIORITY - auto exposure time, manual iris
+                return supportedMode & EXPOSURE_MODE_AUTO || supportedMode & EXPOSURE_MODE_APERTURE_PRIORITY;
+            case Vuforia::Driver::ExposureMode::MANUAL:
+                return supportedMode & EXPOSURE_MODE_MANUAL;
+            case Vuforia::Driver::ExposureMode::SHUTTER_PRIORITY:
+                return supportedMode & EXPOSURE_MODE_SHUTTER_PRIORITY;
+            default:
+                LOG_E("Unknown exposure mode: %d", parameter);
+        }
+    }
+
+    return false;
+}
+
+Vuforia::Driver::ExposureMode
+UVCCamera::getExposureMode()
+{
+    // The camera itself is in manual mode while the software auto exposure runs
+    if (mSoftwareAutoExposure.isRunning())
+    {
+        return Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO;
+    }
+
+    uint8_t mode = 0;
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result = uvc_get_ae_mode(mDeviceHandle, &mode, UVC_GET_CUR);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to get exposure mode : error %d", static_cast<int>(result));
+        return Vuforia::Driver::ExposureMode::UNKNOWN;
+    }
+
+    Vuforia::Driver::ExposureMode exposureMode = Vuforia::Driver::ExposureMode::UNKNOWN;
+
+    switch (mode)
+    {
+        case EXPOSURE_MODE_MANUAL:
+            exposureMode = Vuforia::Driver::ExposureMode::MANUAL;
+            break;
+        case EXPOSURE_MODE_AUTO:
+        case EXPOSURE_MODE_APERTURE_PRIORITY:
+            // Both usb exposure mode AUTO and APERTURE PRIORITY are essentially continuous auto exposure
+            // 1. AUTO - auto exposure time, auto iris
+            // 2. APERTURE_PRIORITY - auto exposure time, manual iris
+            exposureMode = Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO;
+            break;
+        case EXPOSURE_MODE_SHUTTER_PRIORITY:
+            exposureMode = Vuforia::Driver::ExposureMode::SHUTTER_PRIORITY;
+            break;
+        default:
+            LOG_E("Unknown exposure mode : %d", mode);
+    }
+
+    return exposureMode;
+}
+
+bool
+UVCCamera::setExposureMode(Vuforia::Driver::ExposureMode mode)
+{
+    // Only the modes that need a control transfer are queued, the others are answered right away
+    if (!mControlQueueEnabled || mode == Vuforia::Driver::ExposureMode::AUTO)
+    {
+        return applyExposureMode(mode);
+    }
+
+    return mControlQueue.submit(ControlCommandQueue::Control::EXPOSURE_MODE,
+                                [this, mode] { return applyExposureMode(mode); },
+                                mControlReadBackEnabled ? ControlCommandQueue::ConfirmFunction([this, mode] { return getExposureMode() == mode; }) : nullptr,
+                                [](ControlCommandQueue::Result result) { logControlResult("exposure mode", result); });
+}
+
+bool
+UVCCamera::supportsExposureValue()
+{
+    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
+    return inputTerminal->bmControls & (1 << BIT_SHIFT_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL);
+}
+
+uint64_t
+UVCCamera::getExposureValueMin()
+{
+    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
+    if (mProfile.exposureTime.valid)
+    {
+        return static_cast<uint64_t>(mProfile.exposureTime.min) * 100000;
+    }
+
+    int minExposureTime = 0;
+
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result = uvc_get_exposure_abs(mDeviceHandle, &minExposureTime, UVC_GET_MIN);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to get min exposure time : error %d", static_cast<int>(result));
+    }
+
+    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
+    return static_cast<uint64_t>(minExposureTime) * 100000;
+}
+
+uint64_t
+UVCCamera::getExposureValueMax()
+{
+    if (mProfile.exposureTime.valid)
+    {
+        return static_cast<uint64_t>(mProfile.exposureTime.max) * 100000;
+    }
+
+    int maxExposureTime = 0;
+
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result = uvc_get_exposure_abs(mDeviceHandle, &maxExposureTime, UVC_GET_MAX);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to get max exposure time : error %d", static_cast<int>(result));
+    }
+
+    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
+    return static_cast<uint64_t>(maxExposureTime) * 100000;
+}
+
+uint64_t
+UVCCamera::getExposureValue()
+{
+    int exposureTime = 0;
+
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result = uvc_get_exposure_abs(mDeviceHandle, &exposureTime, UVC_GET_CUR);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to get exposure time : error %d", static_cast<int>(result));
+        return mControlCache.getExposureValue();
+    }
+
+    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
+    uint64_t exposureValue = static_cast<uint64_t>(exposureTime) * 100000;
+    mControlCache.setExposureValue(exposureValue);
+    return exposureValue;
+}
+
+bool
+UVCCamera::setExposureValue(uint64_t exposureTime)
+{
+    if (!mControlQueueEnabled)
+    {
+        return applyExposureValue(exposureTime);
+    }
+
+    // The camera only takes whole 100us units
+    uint64_t expectedValue = exposureTime / 100000 * 100000;
+    return mControlQueue.submit(ControlCommandQueue::Control::EXPOSURE_VALUE,
+                                [this, exposureTime] { return applyExposureValue(exposureTime); },
+                                mControlReadBackEnabled ? ControlCommandQueue::ConfirmFunction([this, expectedValue] { return getExposureValue() == expectedValue; }) : nullptr,
+                                [](ControlCommandQueue::Result result) { logControlResult("exposure value", result); });
+}
+
+bool
+UVCCamera::supportsFocusMode(Vuforia::Driver::FocusMode parameter)
+{
+    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
+
+    switch (parameter)
+    {
+        case Vuforia::Driver::FocusMode::AUTO:
+            // Unless otherwise stated auto focus is always continuous, not only for one exposure
+            return false;
+        case Vuforia::Driver::FocusMode::CONTINUOUS_AUTO:
+            return (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_AUTO_CONTROL));
+        case Vuforia::Driver::FocusMode::MACRO:
+        case Vuforia::Driver::FocusMode::INFINITY_FOCUS:
+#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
+            return (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_SIMPLE_CONTROL));
+#else
+            return false;
+#endif
+        case Vuforia::Driver::FocusMode::FIXED:
+            // Fixed focus mode is always supported. But whether we support
+            // getting / setting the absolute focus value is another matter.
+            return true;
+        default:
+            LOG_E("Unknown focus mode: %d", parameter);
+    }
+
+    return false;
+}
+
+Vuforia::Driver::FocusMode
+UVCCamera::getFocusMode()
+{
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result;
+    uint8_t state = 0;
+
+    // Check whether auto focus is on
+    result = uvc_get_focus_auto(mDeviceHandle, &state, UVC_GET_CUR);
+    if (result == UVC_SUCCESS && state == 1)
+    {
+        return Vuforia::Driver::FocusMode::CONTINUOUS_AUTO;
+    }
+
+#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
+    // Check whether simple focus mode is set to macro or scene
+    result = uvc_get_focus_simple_range(mDeviceHandle, &state, UVC_GET_CUR);
+    if (result == UVC_SUCCESS)
+    {
+        switch (state)
+        {
+            case SIMPLE_FOCUS_MODE_MACRO:
+                return Vuforia::Driver::FocusMode::MACRO;
+            case SIMPLE_FOCUS_MODE_SCENE:
+                return Vuforia::Driver::FocusMode::INFINITY_FOCUS;
+            default:
+                break;
+        }
+    }
+#endif
+
+    // If all else failed, then we are essentially on fixed focus mode
+    return Vuforia::Driver::FocusMode::FIXED;
+}
+
+bool
+UVCCamera::setFocusMode(Vuforia::Driver::FocusMode mode)
+{
+    // Only the modes that need a control transfer are queued, the others are answered right away
+    if (!mControlQueueEnabled || mode == Vuforia::Driver::FocusMode::AUTO
+#if !SIMPLE_FOCUS_METHODS_IMPLEMENTED
+        || mode == Vuforia::Driver::FocusMode::MACRO || mode == Vuforia::Driver::FocusMode::INFINITY_FOCUS
+#endif
+        )
+    {
+        return applyFocusMode(mode);
+    }
+
+    return mControlQueue.submit(ControlCommandQueue::Control::FOCUS_MODE,
+                                [this, mode] { return applyFocusMode(mode); },
+                                mControlReadBackEnabled ? ControlCommandQueue::ConfirmFunction([this, mode] { return getFocusMode() == mode; }) : nullptr,
+                                [](ControlCommandQueue::Result result) { logControlResult("focus mode", result); });
+}
+
+bool
+UVCCamera::supportsFocusValue()
+{
+    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
+    return inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_ABSOLUTE_CONTROL);
+}
+
+float
+UVCCamera::getFocusValueMin()
+{
+    if (mProfile.focus.valid)
+    {
+        return mProfile.focus.min;
+    }
+
+    short minFocusVal = -1;
+
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result = uvc_get_focus_abs(mDeviceHandle, &minFocusVal, UVC_GET_MIN);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to get min focus value : error %d", static_cast<int>(result));
+    }
+
+    return minFocusVal;
+}
+
+float
+UVCCamera::getFocusValueMax()
+{
+    if (mProfile.focus.valid)
+    {
+        return mProfile.focus.max;
+    }
+
+    short maxFocusVal = -1;
+
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result = uvc_get_focus_abs(mDeviceHandle, &maxFocusVal, UVC_GET_MAX);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to get max focus value : error %d", static_cast<int>(result));
+    }
+
+    return maxFocusVal;
+}
+
+float
+UVCCamera::getFocusValue()
+{
+    short focusVal = -1;
+
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result = uvc_get_focus_abs(mDeviceHandle, &focusVal, UVC_GET_CUR);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to get focus value : error %d", static_cast<int>(result));
+        return mControlCache.getFocusValue();
+    }
+
+    mControlCache.setFocusValue(focusVal);
+    return focusVal;
+}
+
+bool
+UVCCamera::setFocusValue(float value)
+{
+    if (!mControlQueueEnabled)
+    {
+        return applyFocusValue(value);
+    }
+
+    float expectedValue = static_cast<short>(value);
+    return mControlQueue.submit(ControlCommandQueue::Control::FOCUS_VALUE,
+                                [this, value] { return applyFocusValue(value); },
+                                mControlReadBackEnabled ? ControlCommandQueue::ConfirmFunction([this, expectedValue] { return getFocusValue() == expectedValue; }) : nullptr,
+                                [](ControlCommandQueue::Result result) { logControlResult("focus value", result); });
+}
+
+
+//=============================================================================
+// PUBLIC METHODS USED BY THE CALLBACK
+//=============================================================================
+
+void
+UVCCamera::deliverFrame(Vuforia::Driver::CameraFrame* frame)
+{
+    // Only copies a few samples, and only when the controller is waiting for them
+    mSoftwareAutoExposure.submitFrame(*frame);
+
+    if (mFrameQueueEnabled)
+    {
+        mFrameQueue.push(*frame);
+    }
+    else if (mCallback)
+    {
+        mCallback->onNewCameraFrame(frame);
+    }
+    else
+    {
+        LOG_E("Camera frame callback to Vuforia is not found");
+    }
+}
+
+void
+UVCCamera::deliverFrame(Vuforia::Driver::CameraFrame* frame, FrameBufferPool::Buffer* buffer)
+{
+    mSoftwareAutoExposure.submitFrame(*frame);
+
+    if (mFrameQueueEnabled)
+    {
+        mFrameQueue.push(*frame, mBufferPool, buffer);
+    }
+    else if (mCallback)
+    {
+        // The buffer is held by the caller until Vuforia returns
+        mCallback->onNewCameraFrame(frame);
+    }
+    else
+    {
+        LOG_E("Camera frame callback to Vuforia is not found");
+    }
+}
+
+void
+UVCCamera::convertFrame(const uvc_frame_t* inFrame, const Vuforia::Driver::CameraFrame& frame)
+{
+    if (!mConversionEnabled)
+    {
+        LOG_E("Received a %s frame but the conversion is not set up", getSourceFormatName(inFrame->frame_format));
+        return;
+    }
+
+    // Frames cut short by a transfer error are dropped
+    uint32_t sourceSize = getUncompressedFrameSize(inFrame->frame_format, inFrame->width, inFrame->height);
+    if (inFrame->data_bytes < sourceSize || inFrame->step == 0)
+    {
+        return;
+    }
+
+    // All buffers are queued, the pool counts the frame as exhausted
+    FrameBufferPool::Buffer* buffer = mBufferPool.acquire();
+    if (buffer == nullptr)
+    {
+        return;
+    }
+
+    mConverter.convert(static_cast<const uint8_t*>(inFrame->data), inFrame->step, buffer->getData());
+
+    Vuforia::Driver::CameraFrame converted = frame;
+    converted.format = mConverter.getTargetFormat() == PixelConverter::Format::NV21 ? Vuforia::Driver::PixelFormat::NV21
+                                                                                      : Vuforia::Driver::PixelFormat::YUYV;
+    converted.buffer = buffer->getData();
+    converted.bufferSize = PixelConverter::getFrameSize(mConverter.getTargetFormat(), frame.width, frame.height);
+    converted.stride = mConverter.getTargetStride();
+
+    deliverFrame(&converted, buffer);
+    mBufferPool.release(buffer);
+}
+
+void
+UVCCamera::decodeFrame(const uvc_frame_t* inFrame, const Vuforia::Driver::CameraFrame& frame)
+{
+    if (mMJPEGDecoderEnabled)
+    {
+        mMJPEGDecoder.submit(inFrame, frame);
+    }
+    else
+    {
+        LOG_E("Received a compressed frame but the MJPEG decoder is not running");
+    }
+}
+
+Vuforia::Driver::CameraIntrinsics
+UVCCamera::getCameraIntrinsics()
+{
+    return mCameraIntrinsics;
+}
+
+uint64_t
+UVCCamera::getCachedExposureValue()
+{
+    return mControlCache.getExposureValue();
+}
+
+uint64_t
+UVCCamera::getCaptureTimestamp(const uvc_frame_t* inFrame, uint64_t exposureTime)
+{
+    uint64_t now = getCurrentTimestamp();
+    mLastFrameTime = now;
+
+    if (!mHardwareTimestampsEnabled || inFrame->source == nullptr || inFrame->source->streams == nullptr)
+    {
+        return now;
+    }
+
+    // The payload header values of the frame are kept in the stream handle until the next
+    // frame completes. The transfer thread swaps them under cb_mutex, which libuvc releases
+    // before calling us, so hold it while reading to get the PTS and SCR of the same frame.
+    // Values that already belong to the next frame are not used.
+    uvc_stream_handle_t* stream = inFrame->source->streams;
+    uint32_t pts = 0;
+    uint32_t scr = 0;
+    bool sameFrame = false;
+    pthread_mutex_lock(&stream->cb_mutex);
+    if (stream->hold_seq == inFrame->sequence)
+    {
+        pts = stream->hold_pts;
+        scr = stream->hold_last_scr;
+        sameFrame = true;
+    }
+    pthread_mutex_unlock(&stream->cb_mutex);
+
+    if (!sameFrame)
+    {
+        return now;
+    }
+
+    // Not every camera sends the optional PTS and SCR fields
+    if (scr != 0)
+    {
+        mClockRecovery.addSample(scr, now);
+    }
+
+    uint64_t startOfExposure = 0;
+    if (pts == 0 || !mClockRecovery.toHostTime(pts, startOfExposure))
+    {
+        return now;
+    }
+
+    // PTS is the start of the exposure, Vuforia expects the end of it
+    uint64_t timestamp = startOfExposure + exposureTime;
+    if (timestamp > now || timestamp + MAX_CAPTURE_LATENCY_NS < now)
+    {
+        return now;
+    }
+
+    return timestamp;
+}
+
+//=============================================================================
+// PRIVATE METHODS
+//=============================================================================
+
+void
+UVCCamera::getSupportedCameraModes()
+{
+    mSupportedCameraModes.clear();
+
+    bool mjpegEnabled = mJavaBridge.getConfigurationInt(CONFIG_MJPEG_DECODER_THREADS, DEFAULT_MJPEG_DECODER_THREADS) > 0;
+    for (const DeviceProfile::Mode& profileMode : mProfile.modes)
+    {
+        if (profileMode.sourceFormat == UVC_FRAME_FORMAT_MJPEG && !mjpegEnabled)
+        {
+            continue;
+        }
+
+        SupportedCameraMode supportedMode;
+        supportedMode.mode = profileMode.mode;
+        supportedMode.sourceFormat = static_cast<uvc_frame_format>(profileMode.sourceFormat);
+        supportedMode.maxFrameSize = profileMode.maxFrameSize;
+        mSupportedCameraModes.push_back(supportedMode);
+    }
+
+    CameraModeSelector selector(getModeSelectionPreferences());
+
+    bool anyModeFitsBandwidth = false;
+    for (SupportedCameraMode& supportedMode : mSupportedCameraModes)
+    {
+        supportedMode.score = selector.score(supportedMode.mode, supportedMode.maxFrameSize, supportedMode.sourceFormat == UVC_FRAME_FORMAT_MJPEG);
+        anyModeFitsBandwidth |= selector.fitsBandwidth(supportedMode.mode, supportedMode.maxFrameSize);
+    }
+
+    // Drop the modes the USB bandwidth can't sustain, unless that would leave nothing at all
+    if (anyModeFitsBandwidth)
+    {
+        mSupportedCameraModes.erase(std::remove_if(mSupportedCameraModes.begin(), mSupportedCameraModes.end(),
+                                                   [&selector](const SupportedCameraMode& supportedMode) {
+                                                       return !selector.fitsBandwidth(supportedMode.mode, supportedMode.maxFrameSize);
+                                                   }),
+                                    mSupportedCameraModes.end());
+    }
+    else
+    {
+        LOG_E("No camera mode fits into the bandwidth budget of %llu bytes/s", static_cast<unsigned long long>(selector.getPreferences().bandwidthBudget));
+    }
+
+    // Best mode first
+    std::stable_sort(mSupportedCameraModes.begin(), mSupportedCameraModes.end(),
+                     [](const SupportedCameraMode& a, const SupportedCameraMode& b) { return a.score > b.score; });
+
+    // With a frame rate preference only offer the best scoring frame rate of each resolution,
+    // so that whichever resolution Vuforia picks it runs at the preferred rate
+    if (selector.getPreferences().targetFps > 0)
+    {
+        std::vector<SupportedCameraMode> bestModes;
+        for (const SupportedCameraMode& supportedMode : mSupportedCameraModes)
+        {
+            bool resolutionAdded = false;
+            for (const SupportedCameraMode& bestMode : bestModes)
+            {
+                if (bestMode.mode.width == supportedMode.mode.width && bestMode.mode.height == supportedMode.mode.height)
+                {
+                    resolutionAdded = true;
+                    break;
+                }
+            }
+
+            if (!resolutionAdded)
+            {
+                bestModes.push_back(supportedMode);
+            }
+        }
+        mSupportedCameraModes.swap(bestModes);
+    }
+
+    for (const SupportedCameraMode& supportedMode : mSupportedCameraModes)
+    {
+        LOG_D("Supported camera mode: %ux%u @ %u fps from %s, score %.2f", supportedMode.mode.width, supportedMode.mode.height, supportedMode.mode.fps,
+              getSourceFormatName(supportedMode.sourceFormat), supportedMode.score);
+    }
+}
+
+void
+UVCCamera::addProfileModes(uvc_vs_desc_subtype formatSubtype)
+{
+    // The frame descriptors of a format have the matching frame descriptor subtype
+    uvc_vs_desc_subtype frameSubtype = (formatSubtype == UVC_VS_FORMAT_MJPEG) ? UVC_VS_FRAME_MJPEG : UVC_VS_FRAME_UNCOMPRESSED;
+
+    for (const uvc_format_desc_t* formatDesc = uvc_get_format_descs(mDeviceHandle); formatDesc != nullptr; formatDesc = formatDesc->next)
+    {
+        if (formatDesc->bDescriptorSubtype != formatSubtype)
+        {
+            continue;
+        }
+
+        Vuforia::Driver::PixelFormat pixelFormat = Vuforia::Driver::PixelFormat::UNKNOWN;
+        uvc_frame_format sourceFormat = UVC_FRAME_FORMAT_UNKNOWN;
+
+        if (formatSubtype == UVC_VS_FORMAT_MJPEG)
+        {
+            // MJPEG frames are decoded to YUYV before they are delivered to Vuforia
+            pixelFormat = Vuforia::Driver::PixelFormat::YUYV;
+            sourceFormat = UVC_FRAME_FORMAT_MJPEG;
+        }
+        else
+        {
+            std::string fourccFormat(formatDesc->fourccFormat, formatDesc->fourccFormat + sizeof(formatDesc->fourccFormat));
+
+            if (fourccFormat == "YUY2")
+            {
+                pixelFormat = Vuforia::Driver::PixelFormat::YUYV;
+                sourceFormat = UVC_FRAME_FORMAT_YUYV;
+            }
+            else if (fourccFormat == "UYVY")
+            {
+                // Converted to YUYV, swapping the bytes costs less than a copy does
+                pixelFormat = Vuforia::Driver::PixelFormat::YUYV;
+                sourceFormat = UVC_FRAME_FORMAT_UYVY;
+            }
+            else if (fourccFormat == "Y800" || fourccFormat == "GREY")
+            {
+                // Converted to NV21 with neutral chroma, the smallest frame Vuforia takes
+                pixelFormat = Vuforia::Driver::PixelFormat::NV21;
+                sourceFormat = UVC_FRAME_FORMAT_GRAY8;
+            }
+        }
+
+        if (pixelFormat == Vuforia::Driver::PixelFormat::UNKNOWN)
+        {
+            LOG_D("Frame format %s is not currently supported by Vuforia. Skipping.", formatDesc->fourccFormat);
+            continue;
+        }
+
+        for (uvc_frame_desc_t* frameDesc = formatDesc->frame_descs; frameDesc != nullptr; frameDesc = frameDesc->next)
+        {
+            if (frameDesc->bDescriptorSubtype != frameSubtype)
+            {
+                continue;
+            }
+
+            for (uint32_t interval : getFrameIntervals(frameDesc))
+            {
+                DeviceProfile::Mode profileMode;
+                profileMode.mode.format = pixelFormat;
+                profileMode.mode.fps = 10000000 / interval; // UVC interval unit is 100ns
+                profileMode.mode.width = frameDesc->wWidth;
+                profileMode.mode.height = frameDesc->wHeight;
+                profileMode.sourceFormat = sourceFormat;
+
+                // dwMaxVideoFrameBufferSize is deprecated for uncompressed formats, so compute the size
+                profileMode.maxFrameSize = (sourceFormat == UVC_FRAME_FORMAT_MJPEG && frameDesc->dwMaxVideoFrameBufferSize > 0)
+                    ? frameDesc->dwMaxVideoFrameBufferSize
+                    : getUncompressedFrameSize(sourceFormat, frameDesc->wWidth, frameDesc->wHeight);
+
+                bool alreadySupported = false;
+                for (const DeviceProfile::Mode& existing : mProfile.modes)
+                {
+                    if (existing.mode.width == profileMode.mode.width &&
+                        existing.mode.height == profileMode.mode.height &&
+                        existing.mode.fps == profileMode.mode.fps &&
+                        existing.mode.format == profileMode.mode.format)
+                    {
+                        alreadySupported = true;
+                        break;
+                    }
+                }
+
+                if (!alreadySupported)
+                {
+                    mProfile.modes.push_back(profileMode);
+                }
+            }
+        }
+    }
+}
+
+DeviceProfile::Key
+UVCCamera::getProfileKey()
+{
+    DeviceProfile::Key key;
+    key.vendorId = static_cast<uint16_t>(mVendorId);
+    key.productId = static_cast<uint16_t>(mProductId);
+
+    // The device descriptor is cached by libusb, only the serial number costs a control transfer
+    libusb_device_descriptor descriptor;
+    if (libusb_get_device_descriptor(mDevice->usb_dev, &descriptor) != 0)
+    {
+        return key;
+    }
+    key.bcdDevice = descriptor.bcdDevice;
+
+    if (descriptor.iSerialNumber != 0)
+    {
+        unsigned char serialNumber[128];
+        ControlTransferTimer timer(mTelemetry);
+        int length = libusb_get_string_descriptor_ascii(mDeviceHandle->usb_devh, descriptor.iSerialNumber, serialNumber, sizeof(serialNumber));
+        if (length > 0)
+        {
+            key.serialNumber.assign(reinterpret_cast<const char*>(serialNumber), length);
+        }
+    }
+
+    return key;
+}
+
+bool
+UVCCamera::loadProfile()
+{
+    if (!mProfile.load(mProfileDirectory, getProfileKey()))
+    {
+        return false;
+    }
+
+    // libuvc has parsed the descriptors in uvc_open() anyway, so the control bitmaps
+    // are a free check that the profile still describes the camera
+    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
+    const uvc_processing_unit_t* processingUnit = uvc_get_processing_units(mDeviceHandle);
+    if ((inputTerminal != nullptr ? inputTerminal->bmControls : 0) != mProfile.inputTerminalControls ||
+        (processingUnit != nullptr ? processingUnit->bmControls : 0) != mProfile.processingUnitControls)
+    {
+        LOG_I("Device profile doesn't match the camera's controls, reading the capabilities again");
+        mProfile.clear();
+        return false;
+    }
+
+    return true;
+}
+
+void
+UVCCamera::readCapabilities()
+{
+    mProfile.clear();
+
+    // Uncompressed modes are added first, so that an MJPEG mode is only
+    // advertised when the camera can't deliver the same mode uncompressed.
+    // The MJPEG modes are always kept, getSupportedCameraModes() leaves them out if the decoder is disabled.
+    addProfileModes(UVC_VS_FORMAT_UNCOMPRESSED);
+    addProfileModes(UVC_VS_FORMAT_MJPEG);
+
+    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
+    const uvc_processing_unit_t* processingUnit = uvc_get_processing_units(mDeviceHandle);
+    mProfile.inputTerminalControls = inputTerminal != nullptr ? inputTerminal->bmControls : 0;
+    mProfile.processingUnitControls = processingUnit != nullptr ? processingUnit->bmControls : 0;
+
+    ControlTransferTimer timer(mTelemetry);
+
+    if (mProfile.inputTerminalControls & (1 << BIT_SHIFT_CT_AE_MODE_CONTROL))
+    {
+        uint8_t exposureModes = 0;
+        if (uvc_get_ae_mode(mDeviceHandle, &exposureModes, UVC_GET_RES) == UVC_SUCCESS)
+        {
+            mProfile.exposureModes = exposureModes;
+        }
+    }
+
+    // Ranges that can't be read are left invalid, the getters then ask the camera and log the error
+    if (mProfile.inputTerminalControls & (1 << BIT_SHIFT_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL))
+    {
+        int minExposureTime = 0;
+        int maxExposureTime = 0;
+        mProfile.exposureTime.valid = uvc_get_exposure_abs(mDeviceHandle, &minExposureTime, UVC_GET_MIN) == UVC_SUCCESS &&
+                                      uvc_get_exposure_abs(mDeviceHandle, &maxExposureTime, UVC_GET_MAX) == UVC_SUCCESS;
+        mProfile.exposureTime.min = minExposureTime;
+        mProfile.exposureTime.max = maxExposureTime;
+    }
+
+    if (mProfile.inputTerminalControls & (1 << BIT_SHIFT_CT_FOCUS_ABSOLUTE_CONTROL))
+    {
+        short minFocusVal = -1;
+        short maxFocusVal = -1;
+        mProfile.focus.valid = uvc_get_focus_abs(mDeviceHandle, &minFocusVal, UVC_GET_MIN) == UVC_SUCCESS &&
+                               uvc_get_focus_abs(mDeviceHandle, &maxFocusVal, UVC_GET_MAX) == UVC_SUCCESS;
+        mProfile.focus.min = minFocusVal;
+        mProfile.focus.max = maxFocusVal;
+    }
+}
+
+uvc_frame_format
+UVCCamera::getSourceFormat(const Vuforia::Driver::CameraMode& cameraMode)
+{
+    for (const SupportedCameraMode& supportedMode : mSupportedCameraModes)
+    {
+        if (supportedMode.mode.width == cameraMode.width &&
+            supportedMode.mode.height == cameraMode.height &&
+            supportedMode.mode.fps == cameraMode.fps &&
+            supportedMode.mode.format == cameraMode.format)
+        {
+            return supportedMode.sourceFormat;
+        }
+    }
+
+    // Not one of the advertised modes, try to stream it as is
+    return getUVCPixelFormat(cameraMode.format);
+}
+
+bool
+UVCCamera::negotiateStreamControl(const Vuforia::Driver::CameraMode& cameraMode, uvc_frame_format& sourceFormat)
+{
+    mProfileStreamControlUsed = useProfileStreamControl(cameraMode, sourceFormat);
+    if (mProfileStreamControlUsed)
+    {
+        LOG_D("Using the stream control from the device profile for %ux%u @ %u fps", cameraMode.width, cameraMode.height, cameraMode.fps);
+        return true;
+    }
+
+    if (!probeStreamControl(cameraMode, sourceFormat))
+    {
+        return false;
+    }
+
+    // Remembered with the reservation size instead of what the camera asked for, like reconnect() resumes it
+    mProfile.streamMode = cameraMode;
+    mProfile.streamSourceFormat = sourceFormat;
+    const uint8_t* streamControl = reinterpret_cast<const uint8_t*>(&mStreamControl);
+    mProfile.streamControl.assign(streamControl, streamControl + sizeof(mStreamControl));
+    if (!mProfileDirectory.empty())
+    {
+        mProfile.save(mProfileDirectory);
+    }
+
+    return true;
+}
+
+bool
+UVCCamera::useProfileStreamControl(const Vuforia::Driver::CameraMode& cameraMode, uvc_frame_format& sourceFormat)
+{
+    const Vuforia::Driver::CameraMode& streamMode = mProfile.streamMode;
+    if (mProfile.streamControl.size() != sizeof(uvc_stream_ctrl_t) ||
+        streamMode.width != cameraMode.width || streamMode.height != cameraMode.height ||
+        streamMode.fps != cameraMode.fps || streamMode.format != cameraMode.format)
+    {
+        return false;
+    }
+
+    // An MJPEG stream picked for the bandwidth can only be used while the decoder is enabled
+    uvc_frame_format profileFormat = static_cast<uvc_frame_format>(mProfile.streamSourceFormat);
+    if (profileFormat == UVC_FRAME_FORMAT_MJPEG &&
+        mJavaBridge.getConfigurationInt(CONFIG_MJPEG_DECODER_THREADS, DEFAULT_MJPEG_DECODER_THREADS) <= 0)
+    {
+        return false;
+    }
+
+    uvc_stream_ctrl_t streamControl;
+    memcpy(&streamControl, mProfile.streamControl.data(), sizeof(streamControl));
+
+    // The bus may be shared differently than last time, so the bandwidth is reserved again
+    bool highSpeed = false;
+    if (usesBandwidthPlanning(highSpeed))
+    {
+        std::vector<uint32_t> altSettingSizes = getAltSettingSizes(streamControl.bInterfaceNumber);
+        if (!altSettingSizes.empty())
+        {
+            uint32_t reservedSize = 0;
+            BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+            if (!mBandwidthPlanner.reserve(mDeviceIndex, mBusNumber, highSpeed, altSettingSizes, streamControl.dwMaxPayloadTransferSize,
+                                           reservedSize, constraint))
+            {
+                LOG_D("Stream control from the device profile doesn't fit: %s", BandwidthPlanner::getConstraintName(constraint));
+                return false;
+            }
+            streamControl.dwMaxPayloadTransferSize = reservedSize;
+        }
+    }
+
+    mStreamControl = streamControl;
+    sourceFormat = profileFormat;
+    return true;
+}
+
+bool
+UVCCamera::probeStreamControl(const Vuforia::Driver::CameraMode& cameraMode, uvc_frame_format& sourceFormat)
+{
+    sourceFormat = getSourceFormat(cameraMode);
+
+    bool highSpeed = false;
+    if (!usesBandwidthPlanning(highSpeed))
+    {
+        uvc_error_t result = uvc_get_stream_ctrl_format_size(mDeviceHandle, &mStreamControl, sourceFormat, cameraMode.width, cameraMode.height, cameraMode.fps);
+        if (result != UVC_SUCCESS)
+        {
+            LOG_E("Failed to get camera stream control : error %d", static_cast<int>(result));
+            return false;
+        }
+        return true;
+    }
+
+    BandwidthPlanner::Constraint downgradeConstraint = BandwidthPlanner::Constraint::NONE;
+
+    std::vector<SupportedCameraMode> candidates = getStreamCandidates(cameraMode, sourceFormat);
+    for (size_t idx = 0; idx < candidates.size(); idx++)
+    {
+        const SupportedCameraMode& candidate = candidates[idx];
+
+        uvc_stream_ctrl_t streamControl;
+        if (uvc_get_stream_ctrl_format_size(mDeviceHandle, &streamControl, candidate.sourceFormat,
+                                            candidate.mode.width, candidate.mode.height, candidate.mode.fps) != UVC_SUCCESS)
+        {
+            continue;
+        }
+
+        // A bulk endpoint has no alternate settings and reserves nothing
+        std::vector<uint32_t> altSettingSizes = getAltSettingSizes(streamControl.bInterfaceNumber);
+        if (!altSettingSizes.empty())
+        {
+            // Compressed frames are never larger than the camera's maximum, uncompressed ones are always the same size
+            uint32_t frameSize = (candidate.sourceFormat == UVC_FRAME_FORMAT_MJPEG && streamControl.dwMaxVideoFrameSize > 0)
+                ? streamControl.dwMaxVideoFrameSize
+                : getUncompressedFrameSize(candidate.sourceFormat, candidate.mode.width, candidate.mode.height);
+
+            uint32_t requiredSize = BandwidthPlanner::getRequiredPayloadSize(frameSize, candidate.mode.fps, highSpeed);
+            if (streamControl.dwMaxPayloadTransferSize > 0)
+            {
+                requiredSize = std::min(requiredSize, streamControl.dwMaxPayloadTransferSize);
+            }
+
+            uint32_t reservedSize = 0;
+            BandwidthPlanner::Constraint constraint = BandwidthPlanner::Constraint::NONE;
+            if (!mBandwidthPlanner.reserve(mDeviceIndex, mBusNumber, highSpeed, altSettingSizes, requiredSize, reservedSize, constraint))
+            {
+                LOG_D("%ux%u @ %u fps from %s needs %u bytes per interval: %s", candidate.mode.width, candidate.mode.height, candidate.mode.fps,
+                      getSourceFormatName(candidate.sourceFormat), requiredSize, BandwidthPlanner::getConstraintName(constraint));
+                if (downgradeConstraint == BandwidthPlanner::Constraint::NONE)
+                {
+                    downgradeConstraint = constraint;
+                }
+                continue;
+            }
+
+            // libuvc streams with the first alternate setting whose packets are at least this large
+            streamControl.dwMaxPayloadTransferSize = reservedSize;
+        }
+
+        if (idx > 0)
+        {
+            LOG_I("Streaming %ux%u @ %u fps from %s instead of %u fps from %s, %s",
+                  candidate.mode.width, candidate.mode.height, candidate.mode.fps, getSourceFormatName(candidate.sourceFormat),
+                  cameraMode.fps, getSourceFormatName(sourceFormat), BandwidthPlanner::getConstraintName(downgradeConstraint));
+        }
+
+        mStreamControl = streamControl;
+        sourceFormat = candidate.sourceFormat;
+        return true;
+    }
+
+    if (downgradeConstraint == BandwidthPlanner::Constraint::NONE)
+    {
+        LOG_E("Failed to get camera stream control for %ux%u @ %u fps", cameraMode.width, cameraMode.height, cameraMode.fps);
+        return false;
+    }
+
+    LOG_E("No stream of %ux%u fits into the USB bandwidth, %s", cameraMode.width, cameraMode.height,
+          BandwidthPlanner::getConstraintName(downgradeConstraint));
+    return false;
+}
+
+bool
+UVCCamera::usesBandwidthPlanning(bool& highSpeed)
+{
+    // SuperSpeed endpoints burst several packets per interval, which the descriptors
+    // parsed here don't describe, so leave the choice to libuvc for them
+    int speed = libusb_get_device_speed(mDevice->usb_dev);
+    highSpeed = speed == LIBUSB_SPEED_HIGH;
+    return mJavaBridge.getConfigurationInt(CONFIG_BANDWIDTH_PLANNING, DEFAULT_BANDWIDTH_PLANNING) != 0 &&
+           (speed == LIBUSB_SPEED_HIGH || speed == LIBUSB_SPEED_FULL);
+}
+
+std::vector<UVCCamera::SupportedCameraMode>
+UVCCamera::getStreamCandidates(const Vuforia::Driver::CameraMode& cameraMode, uvc_frame_format sourceFormat)
+{
+    // MJPEG needs a fraction of the bandwidth and is decoded to the same frames, so
+    // it is tried before giving up frame rate. The resolution is never changed,
+    // Vuforia keeps expecting frames of the size it asked for.
+    bool mjpegAvailable = cameraMode.format == Vuforia::Driver::PixelFormat::YUYV &&
+                          mJavaBridge.getConfigurationInt(CONFIG_MJPEG_DECODER_THREADS, DEFAULT_MJPEG_DECODER_THREADS) > 0;
+
+    std::vector<uint32_t> frameRates(1, cameraMode.fps);
+    std::vector<uvc_frame_format> sourceFormats(1, sourceFormat);
+    for (const SupportedCameraMode& supportedMode : mSupportedCameraModes)
+    {
+        if (supportedMode.mode.width == cameraMode.width && supportedMode.mode.height == cameraMode.height &&
+            supportedMode.mode.format == cameraMode.format && supportedMode.mode.fps < cameraMode.fps)
+        {
+            frameRates.push_back(supportedMode.mode.fps);
+            sourceFormats.push_back(supportedMode.sourceFormat);
+        }
+    }
+
+    // Fastest first after the requested rate
+    std::vector<size_t> order(frameRates.size());
+    for (size_t idx = 0; idx < order.size(); idx++)
+    {
+        order[idx] = idx;
+    }
+    std::stable_sort(order.begin() + 1, order.end(), [&frameRates](size_t a, size_t b) { return frameRates[a] > frameRates[b]; });
+
+    std::vector<SupportedCameraMode> candidates;
+    for (size_t idx : order)
+    {
+        SupportedCameraMode candidate;
+        candidate.mode = cameraMode;
+        candidate.mode.fps = frameRates[idx];
+        candidate.sourceFormat = sourceFormats[idx];
+        candidates.push_back(candidate);
+
+        if (mjpegAvailable && candidate.sourceFormat != UVC_FRAME_FORMAT_MJPEG)
+        {
+            candidate.sourceFormat = UVC_FRAME_FORMAT_MJPEG;
+            candidates.push_back(candidate);
+        }
+    }
+
+    return candidates;
+}
+
+std::vector<uint32_t>
+UVCCamera::getAltSettingSizes(uint8_t interfaceNumber)
+{
+    std::vector<uint32_t> sizes;
+
+    uint8_t endpointAddress = 0;
+    for (const uvc_streaming_interface_t* streamInterface = mDeviceHandle->info->stream_ifs; streamInterface != nullptr; streamInterface = streamInterface->next)
+    {
+        if (streamInterface->bInterfaceNumber == interfaceNumber)
+        {
+            endpointAddress = streamInterface->bEndpointAddress;
+            break;
+        }
+    }
+
+    const libusb_config_descriptor* config = mDeviceHandle->info->config;
+    if (endpointAddress == 0 || config == nullptr)
+    {
+        return sizes;
+    }
+
+    for (int interfaceIdx = 0; interfaceIdx < config->bNumInterfaces; interfaceIdx++)
+    {
+        const libusb_interface& usbInterface = config->interface[interfaceIdx];
+        for (int altIdx = 0; altIdx < usbInterface.num_altsetting; altIdx++)
+        {
+            const libusb_interface_descriptor& altSetting = usbInterface.altsetting[altIdx];
+            if (altSetting.bInterfaceNumber != interfaceNumber)
+            {
+                continue;
+            }
+
+            for (int endpointIdx = 0; endpointIdx < altSetting.bNumEndpoints; endpointIdx++)
+            {
+                const libusb_endpoint_descriptor& endpoint = altSetting.endpoint[endpointIdx];
+                if (endpoint.bEndpointAddress != endpointAddress ||
+                    (endpoint.bmAttributes & 0x03) != LIBUSB_TRANSFER_TYPE_ISOCHRONOUS)
+                {
+                    continue;
+                }
+
+                // wMaxPacketSize: bits 0-10 packet size, bits 11-12 additional transactions per microframe
+                uint32_t packetSize = endpoint.wMaxPacketSize & 0x07ff;
+                uint32_t transactions = ((endpoint.wMaxPacketSize >> 11) & 0x03) + 1;
+                sizes.push_back(packetSize * transactions);
+            }
+        }
+    }
+
+    return sizes;
+}
+
+CameraModeSelector::Preferences
+UVCCamera::getModeSelectionPreferences()
+{
+    CameraModeSelector::Preferences preferences;
+    preferences.targetFps = std::max(mJavaBridge.getConfigurationInt(CONFIG_MODE_SELECTION_TARGET_FPS, 0), 0);
+    preferences.targetWidth = std::max(mJavaBridge.getConfigurationInt(CONFIG_MODE_SELECTION_TARGET_WIDTH, 0), 0);
+    preferences.targetHeight = std::max(mJavaBridge.getConfigurationInt(CONFIG_MODE_SELECTION_TARGET_HEIGHT, 0), 0);
+    // The budget is measured against the largest frame of a mode, which for MJPEG is the uncompressed
+    // worst case, so a default budget would drop compressed modes that stream fine. Only set on request.
+    preferences.bandwidthBudget = std::max(mJavaBridge.getConfigurationInt(CONFIG_MODE_SELECTION_BANDWIDTH_BUDGET, 0), 0);
+    return preferences;
+}
+
+void
+UVCCamera::refreshControlCache()
+{
+    // The cache holds the values used on the frame path, the modes are read from the device when asked for.
+    // Only query the controls the camera reports as supported, so that the
+    // periodic refresh doesn't spam the log with errors for missing controls.
+    // Controls with a queued write are skipped, they are about to change anyway.
+    if (supportsExposureValue() && !mControlQueue.isPending(ControlCommandQueue::Control::EXPOSURE_VALUE))
+    {
+        getExposureValue();
+    }
+
+    if (supportsFocusValue() && !mControlQueue.isPending(ControlCommandQueue::Control::FOCUS_VALUE))
+    {
+        getFocusValue();
+    }
+}
+
+bool
+UVCCamera::supportsSoftwareAutoExposure()
+{
+    if (mJavaBridge.getConfigurationInt(CONFIG_EXPOSURE_SOFTWARE, DEFAULT_EXPOSURE_SOFTWARE) == 0)
+    {
+        return false;
+    }
+
+    // The camera has to take the exposure time from the host
+    return supportsExposureMode(Vuforia::Driver::ExposureMode::MANUAL) && supportsExposureValue();
+}
+
+bool
+UVCCamera::startSoftwareAutoExposure()
+{
+    {
+        ControlTransferTimer timer(mTelemetry);
+        uvc_error_t result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_MANUAL);
+        if (result != UVC_SUCCESS)
+        {
+            LOG_E("Failed to set exposure mode to MANUAL for software auto exposure : error %d", static_cast<int>(result));
+            return false;
+        }
+    }
+
+    SoftwareAutoExposure::Limits limits;
+    limits.exposureMin = getExposureValueMin();
+    limits.exposureMax = getExposureValueMax();
+
+    uint16_t gain = 0;
+    const uvc_processing_unit_t* processingUnit = uvc_get_processing_units(mDeviceHandle);
+    if (processingUnit != nullptr && (processingUnit->bmControls & (1 << BIT_SHIFT_PU_GAIN_CONTROL)))
+    {
+        ControlTransferTimer timer(mTelemetry);
+        limits.gainSupported = uvc_get_gain(mDeviceHandle, &limits.gainMin, UVC_GET_MIN) == UVC_SUCCESS &&
+                               uvc_get_gain(mDeviceHandle, &limits.gainMax, UVC_GET_MAX) == UVC_SUCCESS &&
+                               uvc_get_gain(mDeviceHandle, &gain, UVC_GET_CUR) == UVC_SUCCESS &&
+                               limits.gainMax > limits.gainMin;
+    }
+
+    int target = mJavaBridge.getConfigurationInt(CONFIG_EXPOSURE_SOFTWARE_TARGET, DEFAULT_EXPOSURE_SOFTWARE_TARGET);
+    uint8_t targetLuminance = static_cast<uint8_t>(std::min(std::max(target, 1), 255));
+
+    mSoftwareAutoExposure.setFrameRate(mStreaming ? getStreamFrameRate() : 0);
+    bool started = mSoftwareAutoExposure.start(limits, getExposureValue(), gain, targetLuminance,
+        [this](uint64_t exposureTime) { return applyExposureValue(exposureTime); },
+        [this](uint16_t value)
+        {
+            ControlTransferTimer timer(mTelemetry);
+            uvc_error_t result = uvc_set_gain(mDeviceHandle, value);
+            if (result != UVC_SUCCESS)
+            {
+                LOG_E("Failed to set gain to %u : error %d", value, static_cast<int>(result));
+                return false;
+            }
+            return true;
+        });
+
+    if (!started)
+    {
+        LOG_E("Failed to start software auto exposure");
+        return false;
+    }
+
+    return true;
+}
+
+uint32_t
+UVCCamera::getStreamFrameRate()
+{
+    // dwFrameInterval is in 100ns units
+    return mStreamControl.dwFrameInterval > 0 ? 10000000 / mStreamControl.dwFrameInterval : 0;
+}
+
+bool
+UVCCamera::applyExposureMode(Vuforia::Driver::ExposureMode mode)
+{
+    if (mode == Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO && supportsSoftwareAutoExposure())
+    {
+        bool started = startSoftwareAutoExposure();
+        mSoftwareAutoExposureSelected = started;
+        return started;
+    }
+
+    // Any other mode hands the exposure back to the camera or the application
+    mSoftwareAutoExposure.stop();
+    mSoftwareAutoExposureSelected = false;
+
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result;
+
+    switch (mode)
+    {
+        case Vuforia::Driver::ExposureMode::AUTO:
+            // Unless otherwise stated auto exposure is always continuous, not only for one exposure
+            LOG_E("Auto exposure mode for only one exposure is not supported");
+            return false;
+        case Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO:
+        {
+            // Since both usb exposure mode AUTO and APERTURE PRIORITY are essentially continuous auto exposure
+            // we try both of them and see which one is going through
+
+            // Try to set to AUTO mode
+            result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_AUTO);
+            if (result == UVC_SUCCESS)
+            {
+                LOG_D("Successfully set exposure mode to AUTO");
+                return true;
+            }
+            else
+            {
+                LOG_E("Failed to set exposure mode to AUTO : error %d. Trying to set exposure mode to APERTURE PRIORITY.", static_cast<int>(result));
+            }
+
+            // If AUTO is not successful, try to set to APERTURE PRIORITY mode
+            result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_APERTURE_PRIORITY);
+            if (result == UVC_SUCCESS)
+            {
+                LOG_D("Successfully set exposure mode to APERTURE PRIORITY");
+                return true;
+            }
+            else
+            {
+                LOG_E("Failed to set exposure mode to APERTURE PRIORITY : error %d", static_cast<int>(result));
+            }
+
+            // If we are here, our attempt to set to either AUTO or APERTURE PRIORITY both ends in failure
+            LOG_E("Failed to set exposure mode to AUTO or APERTURE PRIORITY : error %d", static_cast<int>(result));
+            return false;
+        }
+        case Vuforia::Driver::ExposureMode::MANUAL:
+        {
+            result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_MANUAL);
+            if (result != UVC_SUCCESS)
+            {
+                LOG_E("Failed to set exposure mode to MANUAL : error %d", static_cast<int>(result));
+                return false;
+            }
+
+            return true;
+        }
+        case Vuforia::Driver::ExposureMode::SHUTTER_PRIORITY:
+        {
+            result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_SHUTTER_PRIORITY);
+            if (result != UVC_SUCCESS)
+            {
+                LOG_E("Failed to set exposure mode to SHUTTER PRIORITY : error %d", static_cast<int>(result));
+                return false;
+            }
+
+            return true;
+        }
+        default:
+            LOG_E("Unknown exposure mode : %d", mode);
+    }
+
+    return false;
+}
+
+bool
+UVCCamera::applyExposureValue(uint64_t exposureTime)
+{
+    uvc_error_t result;
+
+    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
+    uint32_t value = static_cast<uint32_t>(exposureTime / 100000);
+    ControlTransferTimer timer(mTelemetry);
+    result = uvc_set_exposure_abs(mDeviceHandle, value);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to set exposure time to %d : error %d", value, static_cast<int>(result));
+        return false;
+    }
+
+    mControlCache.setExposureValue(static_cast<uint64_t>(value) * 100000);
+    return true;
+}
+
+bool
+UVCCamera::applyFocusMode(Vuforia::Driver::FocusMode mode)
+{
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result;
+
+    switch (mode)
+    {
+        case Vuforia::Driver::FocusMode::AUTO:
+            // Unless otherwise stated auto focus is always continuous, not only for one exposure
+            LOG_E("Auto focus mode for only one exposure is not supported");
+            return false;
+        case Vuforia::Driver::FocusMode::CONTINUOUS_AUTO:
+        {
+            result = uvc_set_focus_auto(mDeviceHandle, AUTO_FOCUS_MODE_AUTO);
+            if (result != UVC_SUCCESS)
+            {
+                LOG_E("Failed to set auto focus mode to AUTO : error %d", static_cast<int>(result));
+                return false;
+            }
+
+            return true;
+        }
+        case Vuforia::Driver::FocusMode::MACRO:
+        {
+#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
+            result = uvc_set_focus_simple_range(mDeviceHandle, SIMPLE_FOCUS_MODE_MACRO);
+            if (result != UVC_SUCCESS)
+            {
+                LOG_E("Failed to set simple focus mode to MACRO : error %d", static_cast<int>(result));
+                return false;
+            }
+
+            return true;
+#else
+            LOG_D("Implementation to set simple focus mode to MACRO is not found");
+            return false;
+#endif
+        }
+        case Vuforia::Driver::FocusMode::INFINITY_FOCUS:
+        {
+#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
+            result = uvc_set_focus_simple_range(mDeviceHandle, SIMPLE_FOCUS_MODE_SCENE);
+            if (result != UVC_SUCCESS)
+            {
+                LOG_E("Failed to set simple focus mode to SCENE : error %d", static_cast<int>(result));
+                return false;
+            }
+
+            return true;
+#else
+            LOG_D("Implementation to set simple focus mode to SCENE is not found");
+            return false;
+#endif
+        }
+        case Vuforia::Driver::FocusMode::FIXED:
+        {
+            // If we support auto focus, set the auto focus mode to FIXED
+            const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
+            if (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_AUTO_CONTROL))
+            {
+                result = uvc_set_focus_auto(mDeviceHandle, AUTO_FOCUS_MODE_FIXED);
+                if (result != UVC_SUCCESS)
+                {
+                    LOG_E("Failed to set auto focus mode to FIXED : error %d", static_cast<int>(result));
+                    return false;
+                }
+            }
+
+// If we support simple focus, set it to FULL_RANGE mode
+#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
+            if (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_SIMPLE_CONTROL))
+            {
+                result = uvc_set_focus_simple_range(mDeviceHandle, SIMPLE_FOCUS_MODE_FULL_RANGE);
+                if (result != UVC_SUCCESS)
+                {
+                    LOG_E("Failed to set simple focus mode to FULL_RANGE : error %d", static_cast<int>(result));
+                    return false;
+                }
+            }
+#endif
+
+            return true;
+        }
+        default:
+            LOG_E("Unknown focus mode: %d", mode);
+    }
+
+    return false;
+}
+
+bool
+UVCCamera::applyFocusValue(float value)
+{
+    short focusVal = static_cast<short>(value);
+
+    ControlTransferTimer timer(mTelemetry);
+    uvc_error_t result = uvc_set_focus_abs(mDeviceHandle, focusVal);
+    if (result != UVC_SUCCESS)
+    {
+        LOG_E("Failed to set focus value to %d : error %d", focusVal, static_cast<int>(result));
+        return false;
+    }
+
+    mControlCache.setFocusValue(focusVal);
+    return true;
+}
@@ -7,11 +7,32 @@ countries.
 ===============================================================================*/
 
 #include "UVCDriver.h"
+#include "JavaBridge.h"
+#include "ReplayExternalCamera.h"
+#include <mutex>
 #include <string>
+#include <vector>
 
 namespace
 {
+// Configuration keys, see DriverConfiguration.java for the documentation
+const char* CONFIG_REPLAY_PATH = "replay.path";
+const char* CONFIG_REPLAY_REAL_TIME = "replay.realTime";
+const char* CONFIG_REPLAY_LOOP = "replay.loop";
+
 UVCDriver* g_UVCVuforiaDriverInstance = nullptr;
+
+// Guards the driver and camera instances against the application calls below
+std::mutex g_UVCVuforiaDriverMutex;
+
+// Outlives the cameras, so that the application can set it up before Vuforia opens the camera
+FrameTap g_FrameTap;
+
+UVCExternalCamera*
+getExternalCamera()
+{
+    return g_UVCVuforiaDriverInstance != nullptr ? g_UVCVuforiaDriverInstance->getExternalCamera() : nullptr;
+}
 }
 
 
@@ -23,6 +44,8 @@ extern "C"
 Vuforia::Driver::VuforiaDriver*
 vuforiaDriver_init(Vuforia::Driver::PlatformData* platformData, void* userdata)
 {
+    std::lock_guard<std::mutex> lock(g_UVCVuforiaDriverMutex);
+
     if (g_UVCVuforiaDriverInstance == nullptr)
     {
         g_UVCVuforiaDriverInstance = new UVCDriver(platformData);
@@ -36,6 +59,8 @@ vuforiaDriver_init(Vuforia::Driver::PlatformData* platformData, void* userdata)
 void
 vuforiaDriver_deinit(Vuforia::Driver::VuforiaDriver* instance)
 {
+    std::lock_guard<std::mutex> lock(g_UVCVuforiaDriverMutex);
+
     if (instance == g_UVCVuforiaDriverInstance)
     {
         delete static_cast<UVCDriver*>(instance);
@@ -60,12 +85,182 @@ vuforiaDriver_getLibraryVersion(char* outString, const uint32_t maxLength)
 }
 
 
+//=============================================================================
+// MULTI-CAMERA API FOR THE APPLICATION
+//=============================================================================
+extern "C"
+{
+uint32_t
+uvcDriver_getNumCameras()
+{
+    std::lock_guard<std::mutex> lock(g_UVCVuforiaDriverMutex);
+
+    UVCExternalCamera* camera = getExternalCamera();
+    return camera != nullptr ? camera->getNumCameras() : 0;
+}
+
+int32_t
+uvcDriver_getActiveCamera()
+{
+    std::lock_guard<std::mutex> lock(g_UVCVuforiaDriverMutex);
+
+    UVCExternalCamera* camera = getExternalCamera();
+    return camera != nullptr ? static_cast<int32_t>(camera->getActiveCamera()) : -1;
+}
+
+bool
+uvcDriver_setActiveCamera(uint32_t index)
+{
+    std::lock_guard<std::mutex> lock(g_UVCVuforiaDriverMutex);
+
+    UVCExternalCamera* camera = getExternalCamera();
+    return camera != nullptr && camera->setActiveCamera(index);
+}
+
+bool
+uvcDriver_getTelemetry(uint32_t index, FrameTelemetry::Snapshot* out)
+{
+    std::lock_guard<std::mutex> lock(g_UVCVuforiaDriverMutex);
+
+    UVCExternalCamera* camera = getExternalCamera();
+    return camera != nullptr && camera->getTelemetry(index, out);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_vuforia_samples_uvcDriver_MultiCameraController_getNumCameras(JNIEnv*, jclass)
+{
+    return uvcDriver_getNumCameras();
+}
+
+JNIEXPORT jint JNICALL
+Java_com_vuforia_samples_uvcDriver_MultiCameraController_getActiveCamera(JNIEnv*, jclass)
+{
+    return uvcDriver_getActiveCamera();
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_vuforia_samples_uvcDriver_MultiCameraController_setActiveCamera(JNIEnv*, jclass, jint index)
+{
+    return index >= 0 && uvcDriver_setActiveCamera(static_cast<uint32_t>(index));
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_vuforia_samples_uvcDriver_DriverTelemetry_nativeGetSnapshot(JNIEnv* env, jclass, jint index, jlongArray out)
+{
+    // Layout of the array, see DriverTelemetry.java
+    const jsize histogramLength = 4 + FrameTelemetry::NUM_BUCKETS;
+    const jsize snapshotLength = 2 + 3 * histogramLength;
+
+    FrameTelemetry::Snapshot snapshot;
+    if (index < 0 || out == nullptr || env->GetArrayLength(out) < snapshotLength ||
+        !uvcDriver_getTelemetry(static_cast<uint32_t>(index), &snapshot))
+    {
+        return JNI_FALSE;
+    }
+
+    jlong values[snapshotLength];
+    values[0] = snapshot.framesReceived;
+    values[1] = snapshot.framesDropped;
+
+    const FrameTelemetry::HistogramSnapshot* histograms[] = { &snapshot.frameInterval, &snapshot.callbackDuration, &snapshot.controlTransfer };
+    jlong* histogramValues = &values[2];
+    for (const FrameTelemetry::HistogramSnapshot* histogram : histograms)
+    {
+        histogramValues[0] = histogram->count;
+        histogramValues[1] = histogram->sum;
+        histogramValues[2] = histogram->sumOfSquares;
+        histogramValues[3] = histogram->max;
+        for (size_t idx = 0; idx < FrameTelemetry::NUM_BUCKETS; idx++)
+        {
+            histogramValues[4 + idx] = histogram->buckets[idx];
+        }
+        histogramValues += histogramLength;
+    }
+
+    env->SetLongArrayRegion(out, 0, snapshotLength, values);
+    return JNI_TRUE;
+}
+}
+
+
+//=============================================================================
+// FRAME TAP API FOR THE APPLICATION, SEE FrameTap.java
+//=============================================================================
+extern "C"
+{
+JNIEXPORT jboolean JNICALL
+Java_com_vuforia_samples_uvcDriver_FrameTap_nativeStart(JNIEnv* env, jclass, jobjectArray buffers, jobject headers, jint policy)
+{
+    if (buffers == nullptr || headers == nullptr)
+    {
+        return JNI_FALSE;
+    }
+
+    jsize numBuffers = env->GetArrayLength(buffers);
+    if (env->GetDirectBufferCapacity(headers) < static_cast<jlong>(numBuffers * sizeof(FrameTap::SlotHeader)))
+    {
+        return JNI_FALSE;
+    }
+
+    // Only the addresses are kept, FrameTap.java holds on to the buffers until the tap is stopped
+    std::vector<FrameTap::Slot> slots(numBuffers);
+    for (jsize idx = 0; idx < numBuffers; idx++)
+    {
+        jobject buffer = env->GetObjectArrayElement(buffers, idx);
+        slots[idx].data = buffer != nullptr ? static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer)) : nullptr;
+        slots[idx].capacity = buffer != nullptr ? static_cast<uint32_t>(env->GetDirectBufferCapacity(buffer)) : 0;
+        env->DeleteLocalRef(buffer);
+
+        if (slots[idx].data == nullptr)
+        {
+            return JNI_FALSE;
+        }
+    }
+
+    FrameTap::SlotHeader* slotHeaders = static_cast<FrameTap::SlotHeader*>(env->GetDirectBufferAddress(headers));
+    return g_FrameTap.start(slots, slotHeaders, static_cast<FrameTap::DropPolicy>(policy)) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL
+Java_com_vuforia_samples_uvcDriver_FrameTap_nativeStop(JNIEnv*, jclass)
+{
+    g_FrameTap.stop();
+}
+
+JNIEXPORT jint JNICALL
+Java_com_vuforia_samples_uvcDriver_FrameTap_nativeAcquire(JNIEnv*, jclass, jint timeoutMs)
+{
+    return g_FrameTap.acquire(timeoutMs > 0 ? static_cast<uint32_t>(timeoutMs) : 0);
+}
+
+JNIEXPORT void JNICALL
+Java_com_vuforia_samples_uvcDriver_FrameTap_nativeRelease(JNIEnv*, jclass, jint slot)
+{
+    g_FrameTap.release(slot);
+}
+
+JNIEXPORT void JNICALL
+Java_com_vuforia_samples_uvcDriver_FrameTap_nativeGetStatistics(JNIEnv* env, jclass, jlongArray out)
+{
+    if (out == nullptr || env->GetArrayLength(out) < 3)
+    {
+        return;
+    }
+
+    FrameTap::Statistics stats = g_FrameTap.getStatistics();
+    jlong values[] = { static_cast<jlong>(stats.written), static_cast<jlong>(stats.dropped), static_cast<jlong>(stats.tooLarge) };
+    env->SetLongArrayRegion(out, 0, 3, values);
+}
+}
+
+
 //=============================================================================
 // PUBLIC INTERFACE IMPLEMENTATION
 //=============================================================================
 
 UVCDriver::UVCDriver(Vuforia::Driver::PlatformData* platformData)
     : mPlatformData(platformData)
+    , mJavaBridge(platformData)
 {
 }
 
@@ -78,11 +273,35 @@ UVCDriver::createExternalCamera()
 {
     if (mExternalCamera == nullptr)
     {
-        mExternalCamera = new UVCExternalCamera(mPlatformData);
+        // Only the configuration is looked up here, the camera sets up the rest of the bridge when it is opened
+        std::string replayPath;
+        bool replayRealTime = true;
+        bool replayLoop = true;
+        {
+            JavaBridge javaBridge(mPlatformData);
+            if (javaBridge.initConfiguration())
+            {
+                replayPath = javaBridge.getConfigurationString(CONFIG_REPLAY_PATH, "");
+                replayRealTime = javaBridge.getConfigurationInt(CONFIG_REPLAY_REAL_TIME, 1) != 0;
+                replayLoop = javaBridge.getConfigurationInt(CONFIG_REPLAY_LOOP, 1) != 0;
+            }
+        }
+
+        std::lock_guard<std::mutex> lock(g_UVCVuforiaDriverMutex);
+        if (!replayPath.empty())
+        {
+            mExternalCamera = new ReplayExternalCamera(replayPath, replayRealTime, replayLoop);
+            return mExternalCamera;
+        }
+
+        // The cameras a previous instance left open in the standby are handed over in open()
+        mUVCExternalCamera = new UVCExternalCamera(mJavaBridge, mBandwidthPlanner, g_FrameTap, mCameraStandby);
+        mExternalCamera = mUVCExternalCamera;
         return mExternalCamera;
     }
 
-    // Creating multiple cameras considered an error
+    // Vuforia supports a single external camera. It represents all the connected
+    // UVC cameras, so creating multiple cameras considered an error
     return nullptr;
 }
 
@@ -92,7 +311,30 @@ UVCDriver::destroyExternalCamera(Vuforia::Driver::ExternalCamera* instance)
 {
     if (instance == mExternalCamera)
     {
-        delete static_cast<UVCExternalCamera*>(instance);
-        mExternalCamera = nullptr;
+        // Destroying closes all the cameras, which can take a while, so detach the
+        // instance under the lock and delete it outside of it
+        bool isUVCCamera = false;
+        {
+            std::lock_guard<std::mutex> lock(g_UVCVuforiaDriverMutex);
+            isUVCCamera = instance == mUVCExternalCamera;
+            mExternalCamera = nullptr;
+            mUVCExternalCamera = nullptr;
+        }
+
+        // ExternalCamera has no virtual destructor
+        if (isUVCCamera)
+        {
+            delete static_cast<UVCExternalCamera*>(instance);
+        }
+        else
+        {
+            delete static_cast<ReplayExternalCamera*>(instance);
+        }
     }
 }
+
+UVCExternalCamera*
+UVCDriver::getExternalCamera()
+{
+    return mUVCExternalCamera;
+}
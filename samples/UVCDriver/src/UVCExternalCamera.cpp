@@ -7,291 +7,168 @@ countries.
 
 #include "UVCExternalCamera.h"
 
-#include <android/log.h>
-#include <string>
+#include <algorithm>
+#include <cstdio>
+#include <cstring>
+#include <ctime>
+#include <limits>
+#include <sstream>
 
-#define JAVA_USB_CONTROLLER_CLASS "com/vuforia/samples/uvcDriver/USBController"
-#define JAVA_CALIBRATION_CONTROLLER_CLASS "com/vuforia/samples/uvcDriver/CalibrationController"
 #define MODULE_TAG "UVCExternalCamera"
 
-#define LOG_D(...) __android_log_print(ANDROID_LOG_DEBUG, MODULE_TAG, __VA_ARGS__)
-#define LOG_I(...) __android_log_print(ANDROID_LOG_INFO, MODULE_TAG, __VA_ARGS__)
-#define LOG_E(...) __android_log_print(ANDROID_LOG_ERROR, MODULE_TAG, __VA_ARGS__)
-
-// This macro is set to 0 because the libuvc fork by saki4510t that we use here
-// doesn't implement uvc_get_focus_simple_range() and uvc_set_focus_simple_range()
-// even though both of them are declared in the header file.
-#define SIMPLE_FOCUS_METHODS_IMPLEMENTED 0
+#include "DriverLog.h"
 
 namespace
 {
-enum UVCInputTerminalBitShift
-{
-    BIT_SHIFT_CT_SCANNING_MODE_CONTROL,
-    BIT_SHIFT_CT_AE_MODE_CONTROL,
-    BIT_SHIFT_CT_AE_PRIORITY_CONTROL,
-    BIT_SHIFT_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL,
-    BIT_SHIFT_CT_EXPOSURE_TIME_RELATIVE_CONTROL,
-    BIT_SHIFT_CT_FOCUS_ABSOLUTE_CONTROL,
-    BIT_SHIFT_CT_FOCUS_RELATIVE_CONTROL,
-    BIT_SHIFT_CT_IRIS_ABSOLUTE_CONTROL,
-    BIT_SHIFT_CT_IRIS_RELATIVE_CONTROL,
-    BIT_SHIFT_CT_ZOOM_ABSOLUTE_CONTROL,
-    BIT_SHIFT_CT_ZOOM_RELATIVE_CONTROL,
-    BIT_SHIFT_CT_PANTILT_ABSOLUTE_CONTROL,
-    BIT_SHIFT_CT_PANTILT_RELATIVE_CONTROL,
-    BIT_SHIFT_CT_ROLL_ABSOLUTE_CONTROL,
-    BIT_SHIFT_CT_ROLL_RELATIVE_CONTROL,
-
-    BIT_SHIFT_CT_FOCUS_AUTO_CONTROL = 17,
-    BIT_SHIFT_CT_PRIVACY_CONTROL,
-    BIT_SHIFT_CT_FOCUS_SIMPLE_CONTROL,
-    BIT_SHIFT_CT_DIGITAL_WINDOW_CONTROL,
-    BIT_SHIFT_CT_REGION_OF_INTEREST_CONTROL
-};
-
-enum UVCProcessingUnitBitShift
-{
-    BIT_SHIFT_PU_BRIGHTNESS_CONTROL,
-    BIT_SHIFT_PU_CONTRAST_CONTROL,
-    BIT_SHIFT_PU_HUE_CONTROL,
-    BIT_SHIFT_PU_SATURATION_CONTROL,
-    BIT_SHIFT_PU_SHARPNESS_CONTROL,
-    BIT_SHIFT_PU_GAMMA_CONTROL,
-    BIT_SHIFT_PU_WHITE_BALANCE_TEMPERATURE_CONTROL,
-    BIT_SHIFT_PU_WHITE_BALANCE_COMPONENT_CONTROL,
-    BIT_SHIFT_PU_BACKLIGHT_COMPENSATION_CONTROL,
-    BIT_SHIFT_PU_GAIN_CONTROL,
-    BIT_SHIFT_PU_POWER_LINE_FREQUENCY_CONTROL,
-    BIT_SHIFT_PU_HUE_AUTO_CONTROL,
-    BIT_SHIFT_PU_WHITE_BALANCE_TEMPERATURE_AUTO_CONTROL,
-    BIT_SHIFT_PU_WHITE_BALANCE_COMPONENT_AUTO_CONTROL,
-    BIT_SHIFT_PU_DIGITAL_MULTIPLIER_CONTROL,
-    BIT_SHIFT_PU_DIGITAL_MULTIPLIER_LIMIT_CONTROL,
-    BIT_SHIFT_PU_ANALOG_VIDEO_STANDARD_CONTROL,
-    BIT_SHIFT_PU_ANALOG_LOCK_STATUS_CONTROL,
-    BIT_SHIFT_PU_CONTRAST_AUTO_CONTROL
-};
-
-enum UVCExposureMode
-{
-    EXPOSURE_MODE_MANUAL = 1,
-    EXPOSURE_MODE_AUTO = 2,
-    EXPOSURE_MODE_SHUTTER_PRIORITY = 4,
-    EXPOSURE_MODE_APERTURE_PRIORITY = 8
-};
+// Configuration keys, see DriverConfiguration.java for the documentation
+const char* CONFIG_MULTI_CAMERA_MAX_CAMERAS = "multiCamera.maxCameras";
+const char* CONFIG_MULTI_CAMERA_ACTIVE_CAMERA = "multiCamera.activeCamera";
+const char* CONFIG_MULTI_CAMERA_STREAM_INACTIVE = "multiCamera.streamInactive";
+const char* CONFIG_RECONNECT_ENABLED = "reconnect.enabled";
+const char* CONFIG_RECONNECT_STALL_TIMEOUT = "reconnect.stallTimeoutMs";
+const char* CONFIG_RECORDING_PATH = "recording.path";
+const char* CONFIG_BANDWIDTH_BUS_BUDGET = "bandwidth.busBudget";
+const char* CONFIG_PROCESSING_MODES = "processing.modes";
+const char* CONFIG_STANDBY_TIMEOUT = "standby.timeoutMs";
+const char* CONFIG_DELIVERY_DECIMATION = "delivery.decimation";
+const char* CONFIG_DELIVERY_TARGET_FPS = "delivery.targetFps";
+const char* CONFIG_DELIVERY_ADAPTIVE = "delivery.adaptive";
+const char* CONFIG_DELIVERY_MAX_LOAD = "delivery.maxLoad";
+const char* CONFIG_DELIVERY_MIN_FPS = "delivery.minFps";
+
+const int DEFAULT_RECONNECT_ENABLED = 1;
+const int DEFAULT_RECONNECT_STALL_TIMEOUT_MS = 2000;
+const int DEFAULT_DELIVERY_MAX_LOAD = 80;
+const int DEFAULT_DELIVERY_MIN_FPS = 5;
+
+// How often the watchdog checks the device list and the frame arrival
+const std::chrono::milliseconds WATCHDOG_INTERVAL(250);
+
+// A camera that failed to reconnect is retried this often while its device is available
+const std::chrono::milliseconds RECONNECT_RETRY_INTERVAL(1000);
+
+// Value of mReconnectingCamera while the watchdog isn't reconnecting any camera
+const uint32_t NO_CAMERA = std::numeric_limits<uint32_t>::max();
+
+// Frames are processed in the frame callback of the camera, on the delivery thread of its
+// frame queue or on the streaming thread without one, and delivered right away. One buffer
+// is in use at a time, a second one covers the overlap while the active camera is switched
+const uint32_t PROCESSED_FRAME_BUFFERS = 2;
 
-enum UVCAutoFocusMode
-{
-    AUTO_FOCUS_MODE_FIXED,
-    AUTO_FOCUS_MODE_AUTO
-};
-
-enum UVCSimpleFocusMode
-{
-    SIMPLE_FOCUS_MODE_FULL_RANGE,
-    SIMPLE_FOCUS_MODE_MACRO,
-    SIMPLE_FOCUS_MODE_PEOPLE,
-    SIMPLE_FOCUS_MODE_SCENE
-};
-
-void
-printCameraControlSupport(const uvc_input_terminal_t* inputTerminal, const uvc_processing_unit_t* processingUnit)
+uint64_t
+getCurrentTimestamp()
 {
-    LOG_D("UVC_CT_SCANNING_MODE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_SCANNING_MODE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_AE_MODE_CONTROL supported: %s",                   (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_AE_MODE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_AE_PRIORITY_CONTROL supported: %s",               (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_AE_PRIORITY_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL supported: %s",    (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_EXPOSURE_TIME_RELATIVE_CONTROL supported: %s",    (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_EXPOSURE_TIME_RELATIVE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_FOCUS_ABSOLUTE_CONTROL supported: %s",            (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_ABSOLUTE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_FOCUS_RELATIVE_CONTROL supported: %s",            (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_RELATIVE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_IRIS_ABSOLUTE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_IRIS_ABSOLUTE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_IRIS_RELATIVE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_IRIS_RELATIVE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_ZOOM_ABSOLUTE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_ZOOM_ABSOLUTE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_ZOOM_RELATIVE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_ZOOM_RELATIVE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_PANTILT_ABSOLUTE_CONTROL supported: %s",          (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_PANTILT_ABSOLUTE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_PANTILT_RELATIVE_CONTROL supported: %s",          (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_PANTILT_RELATIVE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_ROLL_ABSOLUTE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_ROLL_ABSOLUTE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_ROLL_RELATIVE_CONTROL supported: %s",             (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_ROLL_RELATIVE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_FOCUS_AUTO_CONTROL supported: %s",                (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_AUTO_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_PRIVACY_CONTROL supported: %s",                   (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_PRIVACY_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_FOCUS_SIMPLE_CONTROL supported: %s",              (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_SIMPLE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_DIGITAL_WINDOW_CONTROL supported: %s",            (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_DIGITAL_WINDOW_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_CT_REGION_OF_INTEREST_CONTROL supported: %s",        (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_REGION_OF_INTEREST_CONTROL)) ? "YES" : "NO");
-
-    LOG_D("UVC_PU_BRIGHTNESS_CONTROL supported: %s",                        (processingUnit->bmControls & (1 << BIT_SHIFT_PU_BRIGHTNESS_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_CONTRAST_CONTROL supported: %s",                          (processingUnit->bmControls & (1 << BIT_SHIFT_PU_CONTRAST_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_HUE_CONTROL supported: %s",                               (processingUnit->bmControls & (1 << BIT_SHIFT_PU_HUE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_SATURATION_CONTROL supported: %s",                        (processingUnit->bmControls & (1 << BIT_SHIFT_PU_SATURATION_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_SHARPNESS_CONTROL supported: %s",                         (processingUnit->bmControls & (1 << BIT_SHIFT_PU_SHARPNESS_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_GAMMA_CONTROL supported: %s",                             (processingUnit->bmControls & (1 << BIT_SHIFT_PU_GAMMA_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_WHITE_BALANCE_TEMPERATURE_CONTROL supported: %s",         (processingUnit->bmControls & (1 << BIT_SHIFT_PU_WHITE_BALANCE_TEMPERATURE_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_WHITE_BALANCE_COMPONENT_CONTROL supported: %s",           (processingUnit->bmControls & (1 << BIT_SHIFT_PU_WHITE_BALANCE_COMPONENT_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_BACKLIGHT_COMPENSATION_CONTROL supported: %s",            (processingUnit->bmControls & (1 << BIT_SHIFT_PU_BACKLIGHT_COMPENSATION_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_GAIN_CONTROL supported: %s",                              (processingUnit->bmControls & (1 << BIT_SHIFT_PU_GAIN_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_POWER_LINE_FREQUENCY_CONTROL supported: %s",              (processingUnit->bmControls & (1 << BIT_SHIFT_PU_POWER_LINE_FREQUENCY_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_HUE_AUTO_CONTROL supported: %s",                          (processingUnit->bmControls & (1 << BIT_SHIFT_PU_HUE_AUTO_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_WHITE_BALANCE_TEMPERATURE_AUTO_CONTROL supported: %s",    (processingUnit->bmControls & (1 << BIT_SHIFT_PU_WHITE_BALANCE_TEMPERATURE_AUTO_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_WHITE_BALANCE_COMPONENT_AUTO_CONTROL supported: %s",      (processingUnit->bmControls & (1 << BIT_SHIFT_PU_WHITE_BALANCE_COMPONENT_AUTO_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_DIGITAL_MULTIPLIER_CONTROL supported: %s",                (processingUnit->bmControls & (1 << BIT_SHIFT_PU_DIGITAL_MULTIPLIER_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_DIGITAL_MULTIPLIER_LIMIT_CONTROL supported: %s",          (processingUnit->bmControls & (1 << BIT_SHIFT_PU_DIGITAL_MULTIPLIER_LIMIT_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_ANALOG_VIDEO_STANDARD_CONTROL supported: %s",             (processingUnit->bmControls & (1 << BIT_SHIFT_PU_ANALOG_VIDEO_STANDARD_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_ANALOG_LOCK_STATUS_CONTROL supported: %s",                (processingUnit->bmControls & (1 << BIT_SHIFT_PU_ANALOG_LOCK_STATUS_CONTROL)) ? "YES" : "NO");
-    LOG_D("UVC_PU_CONTRAST_AUTO_CONTROL supported: %s",                     (processingUnit->bmControls & (1 << BIT_SHIFT_PU_CONTRAST_AUTO_CONTROL)) ? "supported" : "not supported");
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000000000ULL + t.tv_nsec;
 }
 
-uvc_frame_format
-getUVCPixelFormat(Vuforia::Driver::PixelFormat vuforiaFormat)
+bool
+isSameCameraMode(const Vuforia::Driver::CameraMode& a, const Vuforia::Driver::CameraMode& b)
 {
-    uvc_frame_format uvcFormat = UVC_FRAME_FORMAT_UNKNOWN;
-
-    switch (vuforiaFormat)
-    {
-        case Vuforia::Driver::PixelFormat::YUYV:
-            uvcFormat = UVC_FRAME_FORMAT_YUYV;
-            break;
-        default:
-            LOG_D("No suitable UVC frame format for Vuforia frame format: %d", vuforiaFormat);
-    }
-
-    return uvcFormat;
+    return a.width == b.width && a.height == b.height && a.fps == b.fps && a.format == b.format;
 }
-
-Vuforia::Driver::PixelFormat
-getVuforiaPixelFormat(uvc_frame_format uvcFormat)
-{
-    Vuforia::Driver::PixelFormat vuforiaFormat = Vuforia::Driver::PixelFormat::UNKNOWN;
-
-    switch (uvcFormat)
-    {
-        case UVC_FRAME_FORMAT_YUYV:
-            vuforiaFormat = Vuforia::Driver::PixelFormat::YUYV;
-            break;
-        default:
-            LOG_D("No suitable Vuforia frame format for UVC image format: %d", uvcFormat);
-    }
-
-    return vuforiaFormat;
 }
 
-uint64_t
-getCurrentTimestamp()
+UVCExternalCamera::CameraFrameForwarder::CameraFrameForwarder(UVCExternalCamera& owner, uint32_t cameraIndex, FrameTelemetry& telemetry)
+    : mOwner(owner)
+    , mCameraIndex(cameraIndex)
+    , mTelemetry(telemetry)
 {
-    // Vuforia timestamp is in 1ns unit
-    struct timespec t;
-    clock_gettime(CLOCK_MONOTONIC, &t);
-    uint64_t timeNanoSecMonotonic = t.tv_sec * 1000000000ULL + t.tv_nsec;
-    return timeNanoSecMonotonic;
 }
 
-// Wrapper that gets the JNIEnv pointer from JVM and attaches it to the current
-// thread if necessary. In case the thread was attached, it will be released
-// in the destructor.
-class ScopedJNIEnv
+void
+UVCExternalCamera::CameraFrameForwarder::onNewCameraFrame(Vuforia::Driver::CameraFrame* frame)
 {
-public:
-    ScopedJNIEnv(JavaVM* javaVM, jint jniVersion)
-        : mJavaVM(javaVM)
+    // The inactive cameras may be streaming as well, only the active one reaches Vuforia
+    if (mOwner.mActiveCamera.load() != mCameraIndex)
     {
-        if (mJavaVM->GetEnv((void**) &mJNIEnv, jniVersion) == JNI_EDETACHED)
-        {
-            mJavaVM->AttachCurrentThread(&mJNIEnv, nullptr);
-            mThreadAttached = true;
-        }
+        return;
     }
 
-    ~ScopedJNIEnv()
+    // Copied for the application before processing, so that it gets the full resolution
+    mOwner.mFrameTap.write(*frame);
+
+    if (mOwner.mProcessingEnabled)
     {
-        if (mThreadAttached)
+        Vuforia::Driver::CameraCallback* fullFrameCallback = mOwner.mFullFrameCallback.load();
+        if (fullFrameCallback != nullptr)
         {
-            mJavaVM->DetachCurrentThread();
+            fullFrameCallback->onNewCameraFrame(frame);
         }
     }
 
-    JNIEnv*
-    operator->() const
+    // The governor only limits what Vuforia gets. Frames Vuforia doesn't get
+    // are dropped before they cost any processing.
+    if (!mOwner.mGovernor.shouldDeliver(frame->timestamp))
     {
-        return mJNIEnv;
+        return;
     }
 
-private:
-    bool mThreadAttached = false;
-    JNIEnv* mJNIEnv = nullptr;
-    JavaVM* mJavaVM = nullptr;
-};
+    Vuforia::Driver::CameraFrame* deliveredFrame = frame;
+    Vuforia::Driver::CameraFrame processedFrame;
+    FrameBufferPool::Buffer* buffer = nullptr;
 
-// Callback that is called from libuvc when a new frame is available.
-void
-uvcCallbackFunc(uvc_frame_t* inFrame, void* user_ptr)
-{
-    UVCExternalCamera* uvcExternalCamera = static_cast<UVCExternalCamera*>(user_ptr);
-
-    Vuforia::Driver::CameraFrame frame;
-    frame.index = inFrame->sequence;
-    frame.width = inFrame->width;
-    frame.height = inFrame->height;
-    frame.format = getVuforiaPixelFormat(inFrame->frame_format);
-    frame.stride = inFrame->step;
-    frame.buffer = reinterpret_cast<uint8_t*>(inFrame->data);
-    frame.bufferSize = inFrame->data_bytes;
-    // libuvc doesn't have proper timestamp implemented for the incoming frame
-    // so we generate it ourselves here
-    frame.timestamp = getCurrentTimestamp();
-    frame.exposureTime = uvcExternalCamera->getExposureValue();
-    frame.intrinsics = uvcExternalCamera->getCameraIntrinsics();
-
-    Vuforia::Driver::CameraCallback* vuforiaCallback = uvcExternalCamera->getCallback();
-    if (vuforiaCallback)
-    {
-        vuforiaCallback->onNewCameraFrame(&frame);
-    }
-    else
+    if (mOwner.mProcessingEnabled)
     {
-        LOG_E("Camera frame callback to Vuforia is not found");
+        buffer = mOwner.mProcessedFramePool.acquire();
+        if (buffer == nullptr || !mOwner.mScaler.process(*frame, buffer->getData(), processedFrame))
+        {
+            mOwner.mProcessingFailures++;
+            if (buffer != nullptr)
+            {
+                mOwner.mProcessedFramePool.release(buffer);
+            }
+            return;
+        }
+        deliveredFrame = &processedFrame;
     }
-}
-}
 
-UVCExternalCamera::UVCExternalCamera(Vuforia::Driver::PlatformData* platformData)
-{
-    if (platformData != nullptr)
+    // Recorded as Vuforia receives it, so that replaying it exercises the same path
+    mOwner.mRecorder.write(*deliveredFrame);
+
+    std::chrono::steady_clock::time_point callbackStart = std::chrono::steady_clock::now();
+    mOwner.mCallback->onNewCameraFrame(deliveredFrame);
+    uint64_t callbackDuration = std::chrono::duration_cast<std::chrono::nanoseconds>(std::chrono::steady_clock::now() - callbackStart).count();
+    mTelemetry.recordCallbackDuration(callbackDuration);
+    mOwner.mGovernor.recordConsumerTime(callbackDuration);
+
+    if (buffer != nullptr)
     {
-        mJniVersion = platformData->jniVersion;
-        mActivity = platformData->activity;
-        mJavaVM = platformData->javaVM;
+        mOwner.mProcessedFramePool.release(buffer);
     }
 }
 
-UVCExternalCamera::~UVCExternalCamera()
+UVCExternalCamera::StandbyCameras::~StandbyCameras()
 {
-    stop();
-    close();
-
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
-
-    if (mUSBControllerClass != nullptr)
+    if (!cameras.empty())
     {
-        jniEnv->DeleteGlobalRef(mUSBControllerClass);
-        mUSBControllerClass = nullptr;
+        LOG_I("Closing %u usb cameras that were left in the standby", static_cast<uint32_t>(cameras.size()));
     }
 
-    if (mUSBControllerObj != nullptr)
+    for (std::unique_ptr<UVCCamera>& camera : cameras)
     {
-        jniEnv->DeleteGlobalRef(mUSBControllerObj);
-        mUSBControllerObj = nullptr;
+        camera->close();
     }
+}
 
-    if (mCalibrationControllerClass != nullptr)
-    {
-        jniEnv->DeleteGlobalRef(mCalibrationControllerClass);
-        mCalibrationControllerClass = nullptr;
-    }
+UVCExternalCamera::UVCExternalCamera(JavaBridge& javaBridge, BandwidthPlanner& bandwidthPlanner, FrameTap& frameTap, CameraStandby& standby)
+    : mJavaBridge(javaBridge)
+    , mBandwidthPlanner(bandwidthPlanner)
+    , mFrameTap(frameTap)
+    , mStandby(standby)
+    , mReconnectingCamera(NO_CAMERA)
+{
+}
 
-    if (mCalibrationControllerObj != nullptr)
+UVCExternalCamera::~UVCExternalCamera()
+{
+    // The cameras close() left in the standby belong to the driver, the ones still here are closed
+    if (mStarted)
     {
-        jniEnv->DeleteGlobalRef(mCalibrationControllerObj);
-        mCalibrationControllerObj = nullptr;
+        stop();
     }
+    closeCameras();
 }
 
 
@@ -301,153 +178,137 @@ UVCExternalCamera::~UVCExternalCamera()
 
 bool
 UVCExternalCamera::open()
-
 {
-    LOG_D("open() method invoke");
-
-    uvc_error_t result;
-
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
-
-    if (mUSBControllerClass == nullptr)
+    if (!mJavaBridge.init())
     {
-        jclass usbControllerClass = jniEnv->FindClass(JAVA_USB_CONTROLLER_CLASS);
-        if (usbControllerClass == nullptr)
-        {
-            LOG_E("Failed to get Java USBController class");
-            return false;
-        }
-
-        mUSBControllerClass = (jclass) jniEnv->NewGlobalRef(usbControllerClass);
-        jniEnv->DeleteLocalRef(usbControllerClass);
+        return false;
     }
 
-    if (mUSBControllerObj == nullptr)
-    {
-        jmethodID mid_constructor = jniEnv->GetMethodID(mUSBControllerClass, "<init>", "(Landroid/app/Activity;)V");
-        if (mid_constructor == nullptr)
-        {
-            LOG_E("Failed to get constructor method");
-            return false;
-        }
+    // Left open by the close() of this or of an earlier camera, so they are ready without enumerating them again
+    std::unique_ptr<StandbyCameras> standbyCameras = mStandby.take();
 
-        jobject usbControllerObj = jniEnv->NewObject(mUSBControllerClass, mid_constructor, mActivity);
-        if (usbControllerObj == nullptr)
-        {
-            LOG_E("Failed to get Java USBController object");
-            return false;
-        }
+    stopWatchdog();
 
-        mUSBControllerObj = (jobject) jniEnv->NewGlobalRef(usbControllerObj);
-        jniEnv->DeleteLocalRef(usbControllerObj);
-    }
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    mCameras.clear();
+    mForwarders.clear();
+
+    int maxCameras = mJavaBridge.getConfigurationInt(CONFIG_MULTI_CAMERA_MAX_CAMERAS, 0);
+    mBandwidthPlanner.setBusBudget(std::max(mJavaBridge.getConfigurationInt(CONFIG_BANDWIDTH_BUS_BUDGET, 0), 0));
 
-    if (mCalibrationControllerClass == nullptr)
+    // e.g. "1920x1080>640x480:scale,1920x1080>640x480:crop"
+    mProcessingRules.clear();
+    std::istringstream processingModes(mJavaBridge.getConfigurationString(CONFIG_PROCESSING_MODES, ""));
+    std::string entry;
+    while (std::getline(processingModes, entry, ','))
     {
-        jclass calibrationControllerClass = jniEnv->FindClass(JAVA_CALIBRATION_CONTROLLER_CLASS);
-        if (calibrationControllerClass == nullptr)
+        ProcessingRule rule;
+        char mode[16] = {};
+        if (sscanf(entry.c_str(), " %ux%u>%ux%u:%15s", &rule.sourceWidth, &rule.sourceHeight, &rule.width, &rule.height, mode) != 5 ||
+            (strcmp(mode, "scale") != 0 && strcmp(mode, "crop") != 0) ||
+            rule.width == 0 || rule.height == 0 || rule.width % 2 != 0 || rule.height % 2 != 0 ||
+            rule.width > rule.sourceWidth || rule.height > rule.sourceHeight)
         {
-            LOG_E("Failed to get Java CalibrationController class");
-            return false;
+            LOG_E("Invalid processing mode \"%s\"", entry.c_str());
+            continue;
         }
 
-        mCalibrationControllerClass = (jclass) jniEnv->NewGlobalRef(calibrationControllerClass);
-        jniEnv->DeleteLocalRef(calibrationControllerClass);
+        rule.mode = strcmp(mode, "crop") == 0 ? FrameScaler::Mode::CROP : FrameScaler::Mode::SCALE;
+        mProcessingRules.push_back(rule);
     }
 
-    if (mCalibrationControllerObj == nullptr)
+    if (standbyCameras != nullptr)
     {
-        jmethodID mid_constructor = jniEnv->GetMethodID(mCalibrationControllerClass, "<init>", "(Landroid/app/Activity;)V");
-        if (mid_constructor == nullptr)
-        {
-            LOG_E("Failed to get constructor method");
-            return false;
-        }
+        mCameras = std::move(standbyCameras->cameras);
+        mActiveCamera = std::min(standbyCameras->activeCamera, static_cast<uint32_t>(mCameras.size() - 1));
 
-        jobject calibrationControllerObj = jniEnv->NewObject(mCalibrationControllerClass, mid_constructor, mActivity);
-        if (calibrationControllerObj == nullptr)
+        // Nothing watched the cameras in the standby. One that was unplugged meanwhile is
+        // disconnected now, and reconnected by the watchdog when it is plugged back in.
+        for (uint32_t idx = 0; idx < mCameras.size(); idx++)
         {
-            LOG_E("Failed to get Java CalibrationController object");
-            return false;
+            if (mCameras[idx]->isConnected() && !mJavaBridge.isDeviceAvailable(mCameras[idx]->getDeviceIndex()))
+            {
+                LOG_I("Camera %u was unplugged during the standby", idx);
+                mCameras[idx]->disconnect();
+            }
         }
 
-        mCalibrationControllerObj = (jobject) jniEnv->NewGlobalRef(calibrationControllerObj);
-        jniEnv->DeleteLocalRef(calibrationControllerObj);
+        LOG_I("Resuming %u usb cameras from standby, camera %u is active", static_cast<uint32_t>(mCameras.size()), mActiveCamera.load());
     }
-
-    result = UVC_ERROR_OTHER;
-
-    // Iterate through all the usb devices, since we do not know which one is the camera
-    int numDevices = getNumDevices();
-    for (int idx = 0; idx < numDevices; idx++)
+    else
     {
-        LOG_D("执行useDevice: %d", idx);
-        if (!useDevice(idx))
+        // Only the devices with a video streaming interface are tried, most preferred first.
+        // The devices that already have the usb permission are probed first, the permission
+        // requests of the others run in the meantime and are only waited for if needed.
+        std::vector<int> candidates = mJavaBridge.getCameraDevices();
+        std::vector<bool> probed(candidates.size(), false);
+        for (int pass = 0; pass < 2; pass++)
         {
-           
-            LOG_E("Failed open Device: %d", idx);
+            if (pass == 1)
+            {
+                if (maxCameras > 0 && mCameras.size() >= static_cast<size_t>(maxCameras))
+                {
+                    break;
+                }
 
-            // Either we can't get hold of the device at this index
-            // or the permission for this device is denied
-            continue;
-        }
+                mJavaBridge.awaitDevicePermissions();
+            }
 
-        char* usbfs = getUSBFS();
-        if (!usbfs)
-        {
-            LOG_E("Failed to get USBFS for device: %d", idx);
-            continue;
-        }
+            for (size_t idx = 0; idx < candidates.size(); idx++)
+            {
+                if (maxCameras > 0 && mCameras.size() >= static_cast<size_t>(maxCameras))
+                {
+                    break;
+                }
 
-        if (mContext)
-        {
-            LOG_I("Previous uvc-context found, deinitalizing old one");
-            uvc_exit(mContext);
-            mContext = nullptr;
-        }
+                if (probed[idx] || !mJavaBridge.isDeviceAvailable(candidates[idx]))
+                {
+                    continue;
+                }
+                probed[idx] = true;
 
-        result = uvc_init2(&mContext, nullptr, usbfs);
-        if (result != UVC_SUCCESS)
-        {
-            free(usbfs);
-            LOG_E("Failed to initialize UVC : error %d", static_cast<int>(result));
-            continue;
-        }
-        free(usbfs);
+                std::unique_ptr<UVCCamera> camera(new UVCCamera(mJavaBridge, mBandwidthPlanner, candidates[idx]));
+                if (!camera->open())
+                {
+                    continue;
+                }
 
-        result = uvc_get_device_with_fd(mContext, &mDevice, getVendorId(), getProductId(), nullptr, getFileDescriptor(), getBusNumber(), getDeviceNumber());
-        if (result != UVC_SUCCESS)
-        {
-            LOG_E("Failed to get usb device for index: %d, error %d", idx, static_cast<int>(result));
-            continue;
+                mCameras.push_back(std::move(camera));
+            }
         }
 
-        result = uvc_open(mDevice, &mDeviceHandle);
-        if (result == UVC_SUCCESS)
+        if (mCameras.empty())
         {
-            // We successfully opened the first found usb camera
-            LOG_I("Successfully opened usb device for index: %d", idx);
-            break;
+            // If we get here, it means that either:
+            // 1. None of the usb devices is a camera, or
+            // 2. We fail to open all the connected usb cameras
+            LOG_E("Failed to open any usb camera");
+            return false;
         }
-        else
+
+        int activeCamera = mJavaBridge.getConfigurationInt(CONFIG_MULTI_CAMERA_ACTIVE_CAMERA, 0);
+        if (activeCamera < 0 || static_cast<size_t>(activeCamera) >= mCameras.size())
         {
-            LOG_E("Failed to open usb device for index: %d, error %d", idx, static_cast<int>(result));
+            LOG_E("Configured active camera %d not available, using camera 0", activeCamera);
+            activeCamera = 0;
         }
+        mActiveCamera = activeCamera;
+
+        LOG_I("Opened %u usb cameras, camera %d is active", static_cast<uint32_t>(mCameras.size()), activeCamera);
     }
 
-    if (result != UVC_SUCCESS)
+    for (uint32_t idx = 0; idx < mCameras.size(); idx++)
     {
-        // If we get failure here, it means that either:
-        // 1. All the usb devices are NOT camera, or
-        // 2. We fail to open all the connected usb cameras
-        return false;
+        mForwarders.push_back(std::unique_ptr<CameraFrameForwarder>(new CameraFrameForwarder(*this, idx, mCameras[idx]->getTelemetry())));
     }
 
-    getSupportedCameraModes();
-
-    // Log the camera capabilities
-    uvc_print_diag(mDeviceHandle, stdout);
-    printCameraControlSupport(uvc_get_input_terminals(mDeviceHandle), uvc_get_processing_units(mDeviceHandle));
+    if (mJavaBridge.getConfigurationInt(CONFIG_RECONNECT_ENABLED, DEFAULT_RECONNECT_ENABLED) != 0)
+    {
+        mStallTimeout = std::chrono::milliseconds(
+            std::max(mJavaBridge.getConfigurationInt(CONFIG_RECONNECT_STALL_TIMEOUT, DEFAULT_RECONNECT_STALL_TIMEOUT_MS), 0));
+        startWatchdog();
+    }
 
     return true;
 }
@@ -455,777 +316,626 @@ UVCExternalCamera::open()
 bool
 UVCExternalCamera::close()
 {
-    if (mDeviceHandle != nullptr)
-    {
-        uvc_close(mDeviceHandle);
-        mDeviceHandle = nullptr;
-    }
+    // Read on every close, so that the application can turn the standby off before it exits
+    std::chrono::milliseconds standbyTimeout(std::max(mJavaBridge.getConfigurationInt(CONFIG_STANDBY_TIMEOUT, 0), 0));
 
-    if (mDevice != nullptr)
+    // The watchdog works on the cameras, so it has to be gone before they are handed over
+    stopWatchdog();
+
+    std::unique_ptr<StandbyCameras> standbyCameras;
     {
-        uvc_unref_device(mDevice);
-        mDevice = nullptr;
+        std::lock_guard<std::mutex> lock(mMutex);
+
+        if (standbyTimeout.count() > 0 && !mCameras.empty() && !mStarted)
+        {
+            // The cameras are stopped, so nothing streams, but the devices stay open for the next open().
+            // Vuforia may destroy this camera meanwhile, so they go to the standby of the driver.
+            standbyCameras.reset(new StandbyCameras());
+            standbyCameras->cameras = std::move(mCameras);
+            standbyCameras->activeCamera = mActiveCamera.load();
+            mCameras.clear();
+            mForwarders.clear();
+
+            LOG_I("Keeping %u usb cameras open for %lld ms", static_cast<uint32_t>(standbyCameras->cameras.size()),
+                  static_cast<long long>(standbyTimeout.count()));
+        }
     }
 
-    if (mContext != nullptr)
+    if (standbyCameras != nullptr)
     {
-        uvc_exit(mContext);
-        mContext = nullptr;
+        mStandby.keep(std::move(standbyCameras), standbyTimeout);
+        return true;
     }
 
+    closeCameras();
     return true;
 }
 
+void
+UVCExternalCamera::closeCameras()
+{
+    // The watchdog works on the cameras, so it has to be gone before they are
+    stopWatchdog();
+
+    std::lock_guard<std::mutex> lock(mMutex);
+
+    for (std::unique_ptr<UVCCamera>& camera : mCameras)
+    {
+        camera->close();
+    }
+    mCameras.clear();
+    mForwarders.clear();
+}
+
 bool
 UVCExternalCamera::start(Vuforia::Driver::CameraMode cameraMode, Vuforia::Driver::CameraCallback* cb)
 {
-    if (mDeviceHandle == nullptr)
+    std::unique_lock<std::mutex> lock(mMutex);
+    waitForReconnect(lock);
+
+    if (mCameras.empty())
     {
-        LOG_E("Failed attempt to start camera. No device handle found.");
+        LOG_E("Failed attempt to start camera. No camera is open.");
         return false;
     }
+
     mCallback = cb;
+    mCameraMode = cameraMode;
+    mStreamInactiveCameras = mJavaBridge.getConfigurationInt(CONFIG_MULTI_CAMERA_STREAM_INACTIVE, 0) != 0;
 
-    // Get camera calibration for the current opened device and the specified width and height
-    mCameraIntrinsics = getCalibrationValue(getVendorId(), getProductId(), cameraMode.width, cameraMode.height);
+    uint32_t activeCamera = mActiveCamera.load();
 
-    // Get stream control for specified parameters
-    uvc_error_t result = uvc_get_stream_ctrl_format_size(mDeviceHandle, &mStreamControl, getUVCPixelFormat(cameraMode.format), cameraMode.width, cameraMode.height, cameraMode.fps);
-    if (result != UVC_SUCCESS)
+    // Processed modes are streamed in their source mode and scaled or cropped in the forwarder
+    mProcessingEnabled = false;
+    mProcessingFailures = 0;
+    const ProcessingRule* rule = findProcessingRule(*mCameras[activeCamera], cameraMode, mStreamMode);
+    if (rule != nullptr)
     {
-        LOG_E("Failed to get camera stream control : error %d", static_cast<int>(result));
-        return false;
+        if (!mScaler.configure(rule->sourceWidth, rule->sourceHeight, rule->width, rule->height, rule->mode) ||
+            !mProcessedFramePool.allocate(cameraMode, PROCESSED_FRAME_BUFFERS))
+        {
+            return false;
+        }
+
+        LOG_I("Delivering %ux%u frames %s from %ux%u", cameraMode.width, cameraMode.height,
+              rule->mode == FrameScaler::Mode::CROP ? "cropped" : "scaled", mStreamMode.width, mStreamMode.height);
+        mProcessingEnabled = true;
     }
 
-    // Start the camera capture
-    result = uvc_start_streaming(mDeviceHandle, &mStreamControl, &uvcCallbackFunc, this, 0);
-    if (result != UVC_SUCCESS)
+    // Set up before the first frame arrives
+    DeliveryGovernor::Settings deliverySettings;
+    deliverySettings.decimation = std::max(mJavaBridge.getConfigurationInt(CONFIG_DELIVERY_DECIMATION, 1), 1);
+    deliverySettings.targetFps = std::max(mJavaBridge.getConfigurationInt(CONFIG_DELIVERY_TARGET_FPS, 0), 0);
+    deliverySettings.adaptive = mJavaBridge.getConfigurationInt(CONFIG_DELIVERY_ADAPTIVE, 0) != 0;
+    deliverySettings.maxLoad = std::max(mJavaBridge.getConfigurationInt(CONFIG_DELIVERY_MAX_LOAD, DEFAULT_DELIVERY_MAX_LOAD), 1);
+    deliverySettings.minFps = std::max(mJavaBridge.getConfigurationInt(CONFIG_DELIVERY_MIN_FPS, DEFAULT_DELIVERY_MIN_FPS), 1);
+    mGovernor.configure(deliverySettings, mStreamMode.fps);
+
+    if (!mCameras[activeCamera]->start(mStreamMode, mForwarders[activeCamera].get()))
     {
-        LOG_E("Failed to start camera stream : error %d", static_cast<int>(result));
+        mProcessingEnabled = false;
         return false;
     }
 
+    if (mStreamInactiveCameras)
+    {
+        // Keep the other cameras warm so that swapping is immediate. Only the cameras that can
+        // stream the same mode are started, the others are started when they become active.
+        for (uint32_t idx = 0; idx < mCameras.size(); idx++)
+        {
+            if (idx != activeCamera && mCameras[idx]->supportsCameraMode(mStreamMode))
+            {
+                mCameras[idx]->start(mStreamMode, mForwarders[idx].get());
+            }
+        }
+    }
+
+    std::string recordingPath = mJavaBridge.getConfigurationString(CONFIG_RECORDING_PATH, "");
+    if (!recordingPath.empty())
+    {
+        // Streaming without the recording is still useful, so a failure is only logged
+        mRecorder.open(recordingPath, cameraMode);
+    }
+
+    mStarted = true;
     return true;
 }
 
 bool
 UVCExternalCamera::stop()
 {
-    if (mDeviceHandle == nullptr)
+    std::unique_lock<std::mutex> lock(mMutex);
+    waitForReconnect(lock);
+
+    if (mCameras.empty())
     {
-        LOG_E("Failed attempt to stop camera. No device handle found.");
+        LOG_E("Failed attempt to stop camera. No camera is open.");
         return false;
     }
 
-    uvc_stop_streaming(mDeviceHandle);
+    stopCameras();
+    mRecorder.close();
+    mStarted = false;
+
+    if (mGovernor.isLimiting())
+    {
+        DeliveryGovernor::Statistics statistics = mGovernor.getStatistics();
+        LOG_D("Delivery statistics: offered %llu, delivered %llu, last rate %.1f fps, consumer time avg %.2f ms",
+              static_cast<unsigned long long>(statistics.offered),
+              static_cast<unsigned long long>(statistics.delivered),
+              statistics.deliveryFps, statistics.consumerTimeMs);
+    }
+
+    if (mProcessingEnabled)
+    {
+        FrameBufferPool::Statistics statistics = mProcessedFramePool.getStatistics();
+        LOG_D("Frame processing statistics: processed %llu, failed %llu",
+              static_cast<unsigned long long>(statistics.acquired),
+              static_cast<unsigned long long>(mProcessingFailures.load()));
+        mProcessingEnabled = false;
+    }
     return true;
 }
 
 uint32_t
 UVCExternalCamera::getNumSupportedCameraModes()
 {
-    return mSupportedCameraModes.size();
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? getCameraModes(*camera).size() : 0;
 }
 
 bool
 UVCExternalCamera::getSupportedCameraMode(uint32_t index, Vuforia::Driver::CameraMode* out)
 {
-    if (index >= mSupportedCameraModes.size())
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    if (camera == nullptr)
+    {
+        return false;
+    }
+
+    std::vector<Vuforia::Driver::CameraMode> cameraModes = getCameraModes(*camera);
+    if (index >= cameraModes.size())
     {
         LOG_E("Invalid camera mode index");
         return false;
     }
 
-    *out = mSupportedCameraModes[index];
+    *out = cameraModes[index];
     return true;
 }
 
 bool
 UVCExternalCamera::supportsExposureMode(Vuforia::Driver::ExposureMode parameter)
 {
-    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
-    if (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_AE_MODE_CONTROL))
-    {
-        uint8_t supportedMode = 0;
-        uvc_error_t result = uvc_get_ae_mode(mDeviceHandle, &supportedMode, UVC_GET_RES);
-
-        switch (parameter)
-        {
-            case Vuforia::Driver::ExposureMode::AUTO:
-                // Unless otherwise stated auto exposure is always continuous, not only for one exposure
-                return false;
-            case Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO:
-                // Both usb exposure mode AUTO and APERTURE PRIORITY are essentially continuous auto exposure
-                // 1. AUTO - auto exposure time, auto iris
-                // 2. APERTURE_PRIORITY - auto exposure time, manual iris
-                return supportedMode & EXPOSURE_MODE_AUTO || supportedMode & EXPOSURE_MODE_APERTURE_PRIORITY;
-            case Vuforia::Driver::ExposureMode::MANUAL:
-                return supportedMode & EXPOSURE_MODE_MANUAL;
-            case Vuforia::Driver::ExposureMode::SHUTTER_PRIORITY:
-                return supportedMode & EXPOSURE_MODE_SHUTTER_PRIORITY;
-            default:
-                LOG_E("Unknown exposure mode: %d", parameter);
-        }
-    }
-
-    return false;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr && camera->supportsExposureMode(parameter);
 }
 
 Vuforia::Driver::ExposureMode
 UVCExternalCamera::getExposureMode()
 {
-    uint8_t mode = 0;
-    uvc_error_t result = uvc_get_ae_mode(mDeviceHandle, &mode, UVC_GET_CUR);
-    if (result != UVC_SUCCESS)
-    {
-        LOG_E("Failed to get exposure mode : error %d", static_cast<int>(result));
-        return Vuforia::Driver::ExposureMode::UNKNOWN;
-    }
-
-    switch (mode)
-    {
-        case EXPOSURE_MODE_MANUAL:
-            return Vuforia::Driver::ExposureMode::MANUAL;
-        case EXPOSURE_MODE_AUTO:
-        case EXPOSURE_MODE_APERTURE_PRIORITY:
-            // Both usb exposure mode AUTO and APERTURE PRIORITY are essentially continuous auto exposure
-            // 1. AUTO - auto exposure time, auto iris
-            // 2. APERTURE_PRIORITY - auto exposure time, manual iris
-            return Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO;
-        case EXPOSURE_MODE_SHUTTER_PRIORITY:
-            return Vuforia::Driver::ExposureMode::SHUTTER_PRIORITY;
-        default:
-            LOG_E("Unknown exposure mode : %d", mode);
-    }
-
-    return Vuforia::Driver::ExposureMode::UNKNOWN;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? camera->getExposureMode() : Vuforia::Driver::ExposureMode::UNKNOWN;
 }
 
 bool
 UVCExternalCamera::setExposureMode(Vuforia::Driver::ExposureMode mode)
 {
-    uvc_error_t result;
-
-    switch (mode)
-    {
-        case Vuforia::Driver::ExposureMode::AUTO:
-            // Unless otherwise stated auto exposure is always continuous, not only for one exposure
-            LOG_E("Auto exposure mode for only one exposure is not supported");
-            return false;
-        case Vuforia::Driver::ExposureMode::CONTINUOUS_AUTO:
-        {
-            // Since both usb exposure mode AUTO and APERTURE PRIORITY are essentially continuous auto exposure
-            // we try both of them and see which one is going through
-
-            // Try to set to AUTO mode
-            result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_AUTO);
-            if (result == UVC_SUCCESS)
-            {
-                LOG_D("Successfully set exposure mode to AUTO");
-                return true;
-            }
-            else
-            {
-                LOG_E("Failed to set exposure mode to AUTO : error %d. Trying to set exposure mode to APERTURE PRIORITY.", static_cast<int>(result));
-            }
-
-            // If AUTO is not successful, try to set to APERTURE PRIORITY mode
-            result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_APERTURE_PRIORITY);
-            if (result == UVC_SUCCESS)
-            {
-                LOG_D("Successfully set exposure mode to APERTURE PRIORITY");
-                return true;
-            }
-            else
-            {
-                LOG_E("Failed to set exposure mode to APERTURE PRIORITY : error %d", static_cast<int>(result));
-            }
-
-            // If we are here, our attempt to set to either AUTO or APERTURE PRIORITY both ends in failure
-            LOG_E("Failed to set exposure mode to AUTO or APERTURE PRIORITY : error %d", static_cast<int>(result));
-            return false;
-        }
-        case Vuforia::Driver::ExposureMode::MANUAL:
-        {
-            result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_MANUAL);
-            if (result != UVC_SUCCESS)
-            {
-                LOG_E("Failed to set exposure mode to MANUAL : error %d", static_cast<int>(result));
-                return false;
-            }
-
-            return true;
-        }
-        case Vuforia::Driver::ExposureMode::SHUTTER_PRIORITY:
-        {
-            result = uvc_set_ae_mode(mDeviceHandle, EXPOSURE_MODE_SHUTTER_PRIORITY);
-            if (result != UVC_SUCCESS)
-            {
-                LOG_E("Failed to set exposure mode to SHUTTER PRIORITY : error %d", static_cast<int>(result));
-                return false;
-            }
-
-            return true;
-        }
-        default:
-            LOG_E("Unknown exposure mode : %d", mode);
-    }
-
-    return false;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr && camera->setExposureMode(mode);
 }
 
 bool
 UVCExternalCamera::supportsExposureValue()
 {
-    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
-    return inputTerminal->bmControls & (1 << BIT_SHIFT_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL);
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr && camera->supportsExposureValue();
 }
 
 uint64_t
 UVCExternalCamera::getExposureValueMin()
 {
-    int minExposureTime = 0;
-
-    uvc_error_t result = uvc_get_exposure_abs(mDeviceHandle, &minExposureTime, UVC_GET_MIN);
-    if (result != UVC_SUCCESS)
-    {
-        LOG_E("Failed to get min exposure time : error %d", static_cast<int>(result));
-    }
-
-    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
-    return static_cast<uint64_t>(minExposureTime) * 100000;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? camera->getExposureValueMin() : 0;
 }
 
 uint64_t
 UVCExternalCamera::getExposureValueMax()
 {
-    int maxExposureTime = 0;
-
-    uvc_error_t result = uvc_get_exposure_abs(mDeviceHandle, &maxExposureTime, UVC_GET_MAX);
-    if (result != UVC_SUCCESS)
-    {
-        LOG_E("Failed to get max exposure time : error %d", static_cast<int>(result));
-    }
-
-    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
-    return static_cast<uint64_t>(maxExposureTime) * 100000;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? camera->getExposureValueMax() : 0;
 }
 
 uint64_t
 UVCExternalCamera::getExposureValue()
 {
-    int exposureTime = 0;
-
-    uvc_error_t result = uvc_get_exposure_abs(mDeviceHandle, &exposureTime, UVC_GET_CUR);
-    if (result != UVC_SUCCESS)
-    {
-        LOG_E("Failed to get exposure time : error %d", static_cast<int>(result));
-    }
-
-    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
-    return static_cast<uint64_t>(exposureTime) * 100000;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? camera->getExposureValue() : 0;
 }
 
 bool
 UVCExternalCamera::setExposureValue(uint64_t exposureTime)
 {
-    uvc_error_t result;
-
-    // UVC exposure time unit is 100us, while Vuforia expected unit is 1ns
-    uint32_t value = static_cast<uint32_t>(exposureTime / 100000);
-    result = uvc_set_exposure_abs(mDeviceHandle, value);
-    if (result != UVC_SUCCESS)
-    {
-        LOG_E("Failed to set exposure time to %d : error %d", value, static_cast<int>(result));
-        return false;
-    }
-
-    return true;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr && camera->setExposureValue(exposureTime);
 }
 
 bool
 UVCExternalCamera::supportsFocusMode(Vuforia::Driver::FocusMode parameter)
 {
-    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
-
-    switch (parameter)
-    {
-        case Vuforia::Driver::FocusMode::AUTO:
-            // Unless otherwise stated auto focus is always continuous, not only for one exposure
-            return false;
-        case Vuforia::Driver::FocusMode::CONTINUOUS_AUTO:
-            return (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_AUTO_CONTROL));
-        case Vuforia::Driver::FocusMode::MACRO:
-        case Vuforia::Driver::FocusMode::INFINITY_FOCUS:
-#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
-            return (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_SIMPLE_CONTROL));
-#else
-            return false;
-#endif
-        case Vuforia::Driver::FocusMode::FIXED:
-            // Fixed focus mode is always supported. But whether we support
-            // getting / setting the absolute focus value is another matter.
-            return true;
-        default:
-            LOG_E("Unknown focus mode: %d", parameter);
-    }
-
-    return false;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr && camera->supportsFocusMode(parameter);
 }
 
 Vuforia::Driver::FocusMode
 UVCExternalCamera::getFocusMode()
 {
-    uvc_error_t result;
-    uint8_t state = 0;
-
-    // Check whether auto focus is on
-    result = uvc_get_focus_auto(mDeviceHandle, &state, UVC_GET_CUR);
-    if (result == UVC_SUCCESS && state == 1)
-    {
-        return Vuforia::Driver::FocusMode::CONTINUOUS_AUTO;
-    }
-
-#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
-    // Check whether simple focus mode is set to macro or scene
-    result = uvc_get_focus_simple_range(mDeviceHandle, &state, UVC_GET_CUR);
-    if (result == UVC_SUCCESS)
-    {
-        switch (state)
-        {
-            case SIMPLE_FOCUS_MODE_MACRO:
-                return Vuforia::Driver::FocusMode::MACRO;
-            case SIMPLE_FOCUS_MODE_SCENE:
-                return Vuforia::Driver::FocusMode::INFINITY_FOCUS;
-            default:
-                break;
-        }
-    }
-#endif
-
-    // If all else failed, then we are essentially on fixed focus mode
-    return Vuforia::Driver::FocusMode::FIXED;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? camera->getFocusMode() : Vuforia::Driver::FocusMode::UNKNOWN;
 }
 
 bool
 UVCExternalCamera::setFocusMode(Vuforia::Driver::FocusMode mode)
 {
-    uvc_error_t result;
-
-    switch (mode)
-    {
-        case Vuforia::Driver::FocusMode::AUTO:
-            // Unless otherwise stated auto focus is always continuous, not only for one exposure
-            LOG_E("Auto focus mode for only one exposure is not supported");
-            return false;
-        case Vuforia::Driver::FocusMode::CONTINUOUS_AUTO:
-        {
-            result = uvc_set_focus_auto(mDeviceHandle, AUTO_FOCUS_MODE_AUTO);
-            if (result != UVC_SUCCESS)
-            {
-                LOG_E("Failed to set auto focus mode to AUTO : error %d", static_cast<int>(result));
-                return false;
-            }
-
-            return true;
-        }
-        case Vuforia::Driver::FocusMode::MACRO:
-        {
-#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
-            result = uvc_set_focus_simple_range(mDeviceHandle, SIMPLE_FOCUS_MODE_MACRO);
-            if (result != UVC_SUCCESS)
-            {
-                LOG_E("Failed to set simple focus mode to MACRO : error %d", static_cast<int>(result));
-                return false;
-            }
-
-            return true;
-#else
-            LOG_D("Implementation to set simple focus mode to MACRO is not found");
-            return false;
-#endif
-        }
-        case Vuforia::Driver::FocusMode::INFINITY_FOCUS:
-        {
-#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
-            result = uvc_set_focus_simple_range(mDeviceHandle, SIMPLE_FOCUS_MODE_SCENE);
-            if (result != UVC_SUCCESS)
-            {
-                LOG_E("Failed to set simple focus mode to SCENE : error %d", static_cast<int>(result));
-                return false;
-            }
-
-            return true;
-#else
-            LOG_D("Implementation to set simple focus mode to SCENE is not found");
-            return false;
-#endif
-        }
-        case Vuforia::Driver::FocusMode::FIXED:
-        {
-            // If we support auto focus, set the auto focus mode to FIXED
-            const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
-            if (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_AUTO_CONTROL))
-            {
-                result = uvc_set_focus_auto(mDeviceHandle, AUTO_FOCUS_MODE_FIXED);
-                if (result != UVC_SUCCESS)
-                {
-                    LOG_E("Failed to set auto focus mode to FIXED : error %d", static_cast<int>(result));
-                    return false;
-                }
-            }
-
-// If we support simple focus, set it to FULL_RANGE mode
-#if SIMPLE_FOCUS_METHODS_IMPLEMENTED
-            if (inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_SIMPLE_CONTROL))
-            {
-                result = uvc_set_focus_simple_range(mDeviceHandle, SIMPLE_FOCUS_MODE_FULL_RANGE);
-                if (result != UVC_SUCCESS)
-                {
-                    LOG_E("Failed to set simple focus mode to FULL_RANGE : error %d", static_cast<int>(result));
-                    return false;
-                }
-            }
-#endif
-
-            return true;
-        }
-        default:
-            LOG_E("Unknown focus mode: %d", mode);
-    }
-
-    return false;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr && camera->setFocusMode(mode);
 }
 
 bool
 UVCExternalCamera::supportsFocusValue()
 {
-    const uvc_input_terminal_t* inputTerminal = uvc_get_input_terminals(mDeviceHandle);
-    return inputTerminal->bmControls & (1 << BIT_SHIFT_CT_FOCUS_ABSOLUTE_CONTROL);
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr && camera->supportsFocusValue();
 }
 
 float
 UVCExternalCamera::getFocusValueMin()
 {
-    short minFocusVal = -1;
-
-    uvc_error_t result = uvc_get_focus_abs(mDeviceHandle, &minFocusVal, UVC_GET_MIN);
-    if (result != UVC_SUCCESS)
-    {
-        LOG_E("Failed to get min focus value : error %d", static_cast<int>(result));
-    }
-
-    return minFocusVal;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? camera->getFocusValueMin() : 0.f;
 }
 
 float
 UVCExternalCamera::getFocusValueMax()
 {
-    short maxFocusVal = -1;
-
-    uvc_error_t result = uvc_get_focus_abs(mDeviceHandle, &maxFocusVal, UVC_GET_MAX);
-    if (result != UVC_SUCCESS)
-    {
-        LOG_E("Failed to get max focus value : error %d", static_cast<int>(result));
-    }
-
-    return maxFocusVal;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? camera->getFocusValueMax() : 0.f;
 }
 
 float
 UVCExternalCamera::getFocusValue()
 {
-    short focusVal = -1;
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr ? camera->getFocusValue() : 0.f;
+}
 
-    uvc_error_t result = uvc_get_focus_abs(mDeviceHandle, &focusVal, UVC_GET_CUR);
-    if (result != UVC_SUCCESS)
-    {
-        LOG_E("Failed to get focus value : error %d", static_cast<int>(result));
-    }
+bool
+UVCExternalCamera::setFocusValue(float value)
+{
+    std::unique_lock<std::mutex> lock(mMutex);
+    UVCCamera* camera = getActiveUVCCamera(lock);
+    return camera != nullptr && camera->setFocusValue(value);
+}
+
+uint32_t
+UVCExternalCamera::getNumCameras()
+{
+    std::lock_guard<std::mutex> lock(mMutex);
+    return mCameras.size();
+}
 
-    return focusVal;
+uint32_t
+UVCExternalCamera::getActiveCamera()
+{
+    return mActiveCamera.load();
 }
 
 bool
-UVCExternalCamera::setFocusValue(float value)
+UVCExternalCamera::getTelemetry(uint32_t index, FrameTelemetry::Snapshot* out)
 {
-    short focusVal = static_cast<short>(value);
+    std::lock_guard<std::mutex> lock(mMutex);
 
-    uvc_error_t result = uvc_set_focus_abs(mDeviceHandle, focusVal);
-    if (result != UVC_SUCCESS)
+    if (index >= mCameras.size() || out == nullptr)
     {
-        LOG_E("Failed to set focus value to %d : error %d", focusVal, static_cast<int>(result));
         return false;
     }
 
+    *out = mCameras[index]->getTelemetry().getSnapshot();
     return true;
 }
 
-
-//=============================================================================
-// PUBLIC METHODS USED BY THE CALLBACK
-//=============================================================================
-
-Vuforia::Driver::CameraCallback*
-UVCExternalCamera::getCallback()
+void
+UVCExternalCamera::setFullFrameCallback(Vuforia::Driver::CameraCallback* cb)
 {
-    return mCallback;
+    mFullFrameCallback = cb;
 }
 
-Vuforia::Driver::CameraIntrinsics
-UVCExternalCamera::getCameraIntrinsics()
+bool
+UVCExternalCamera::setActiveCamera(uint32_t index)
 {
-    return mCameraIntrinsics;
-}
+    std::unique_lock<std::mutex> lock(mMutex);
+    waitForReconnect(lock);
 
-//=============================================================================
-// PRIVATE METHODS
-//=============================================================================
-
-void
-UVCExternalCamera::getSupportedCameraModes()
-{
-    mSupportedCameraModes.clear();
+    if (index >= mCameras.size())
+    {
+        LOG_E("Invalid camera index %u, %u cameras are open", index, static_cast<uint32_t>(mCameras.size()));
+        return false;
+    }
 
-    for (const uvc_format_desc_t* formatDesc = uvc_get_format_descs(mDeviceHandle); formatDesc != nullptr; formatDesc = formatDesc->next)
+    uint32_t previousCamera = mActiveCamera.load();
+    if (index == previousCamera)
     {
-        if (formatDesc->bDescriptorSubtype != UVC_VS_FORMAT_UNCOMPRESSED) {
-            continue;
-        }
+        return true;
+    }
 
-        Vuforia::Driver::PixelFormat pixelFormat = Vuforia::Driver::PixelFormat::UNKNOWN;
-        std::string fourccFormat(formatDesc->fourccFormat, formatDesc->fourccFormat + sizeof(formatDesc->fourccFormat));
+    if (mStarted)
+    {
+        UVCCamera& camera = *mCameras[index];
 
-        if (fourccFormat == "YUY2") {
-            pixelFormat = Vuforia::Driver::PixelFormat::YUYV;
+        // Vuforia keeps expecting frames of the mode it started with
+        if (camera.isStreaming() && !isSameCameraMode(camera.getCameraMode(), mStreamMode))
+        {
+            camera.stop();
         }
 
-        if (pixelFormat == Vuforia::Driver::PixelFormat::UNKNOWN) {
-            LOG_D("Frame format %s is not currently supported by Vuforia. Skipping.", formatDesc->fourccFormat);
-            continue;
+        if (!camera.isStreaming() && !camera.start(mStreamMode, mForwarders[index].get()))
+        {
+            LOG_E("Failed to switch to camera %u, it can't stream %ux%u @ %u fps", index, mStreamMode.width, mStreamMode.height, mStreamMode.fps);
+            return false;
         }
+    }
 
-        for (uvc_frame_desc_t* frameDesc = formatDesc->frame_descs; frameDesc != nullptr; frameDesc = frameDesc->next)
-        {
-            if (frameDesc->bDescriptorSubtype != UVC_VS_FRAME_UNCOMPRESSED) {
-                continue;
-            }
+    mActiveCamera = index;
 
-            for (uint32_t* intervalPtr = frameDesc->intervals; intervalPtr != nullptr; intervalPtr++)
-            {
-                Vuforia::Driver::CameraMode mode;
-                mode.format = pixelFormat;
-                mode.fps = 10000000 / (*intervalPtr); // UVC interval unit is 100ns
-                mode.width = frameDesc->wWidth;
-                mode.height = frameDesc->wHeight;
-
-                mSupportedCameraModes.push_back(mode);
-                break;
-            }
-        }
+    if (mStarted && !mStreamInactiveCameras)
+    {
+        mCameras[previousCamera]->stop();
     }
+
+    LOG_I("Switched active camera from %u to %u", previousCamera, index);
+    return true;
 }
 
 //=============================================================================
-// PRIVATE JNI METHODS
+// PRIVATE METHODS
 //=============================================================================
 
-int
-UVCExternalCamera::getNumDevices()
+UVCCamera*
+UVCExternalCamera::getActiveUVCCamera(std::unique_lock<std::mutex>& lock)
 {
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
+    // The watchdog reconnects without the lock, so the camera is left alone until it is done
+    mReconnectCondition.wait(lock, [this] { return mReconnectingCamera != mActiveCamera.load(); });
 
-    jmethodID mid_getNumDevices = jniEnv->GetMethodID(mUSBControllerClass, "getNumDevices", "()I");
-    if (mid_getNumDevices == nullptr)
+    uint32_t activeCamera = mActiveCamera.load();
+    if (activeCamera >= mCameras.size())
     {
-        LOG_E("Failed to get 'getNumDevices' method");
-        return -1;
+        return nullptr;
     }
 
-    jint numDevices = jniEnv->CallIntMethod(mUSBControllerObj, mid_getNumDevices);
-    LOG_D("Number of USB Devices: %d", numDevices);
-
-    return numDevices;
+    // An unplugged camera has no device to talk to
+    UVCCamera* camera = mCameras[activeCamera].get();
+    return camera->isConnected() ? camera : nullptr;
 }
 
-bool
-UVCExternalCamera::useDevice(int index)
+void
+UVCExternalCamera::waitForReconnect(std::unique_lock<std::mutex>& lock)
 {
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
-
-    jmethodID mid_useDevice = jniEnv->GetMethodID(mUSBControllerClass, "useDevice", "(I)Z");
-    if (mid_useDevice == nullptr)
-    {
-        LOG_E("Failed to get 'useDevice' method");
-        return false;
-    }
-
-    jboolean result = jniEnv->CallBooleanMethod(mUSBControllerObj, mid_useDevice, index);
-    return result;
+    mReconnectCondition.wait(lock, [this] { return mReconnectingCamera == NO_CAMERA; });
 }
 
-int
-UVCExternalCamera::getVendorId()
+void
+UVCExternalCamera::stopCameras()
 {
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
-
-    jmethodID mid_getVendorId = jniEnv->GetMethodID(mUSBControllerClass, "getVendorId", "()I");
-    if (mid_getVendorId == nullptr)
+    for (std::unique_ptr<UVCCamera>& camera : mCameras)
     {
-        LOG_E("Failed to get 'getVendorId' method");
-        return -1;
+        if (camera->isStreaming())
+        {
+            camera->stop();
+        }
     }
-
-    jint vendorId = jniEnv->CallIntMethod(mUSBControllerObj, mid_getVendorId);
-    LOG_D("VendorId: 0x%04x", vendorId);
-
-    return vendorId;
 }
 
-int
-UVCExternalCamera::getProductId()
+std::vector<Vuforia::Driver::CameraMode>
+UVCExternalCamera::getCameraModes(UVCCamera& camera)
 {
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
+    std::vector<Vuforia::Driver::CameraMode> nativeModes;
+    std::vector<Vuforia::Driver::CameraMode> processedModes;
 
-    jmethodID mid_getProductId = jniEnv->GetMethodID(mUSBControllerClass, "getProductId", "()I");
-    if (mid_getProductId == nullptr)
+    for (uint32_t idx = 0; idx < camera.getNumSupportedCameraModes(); idx++)
     {
-        LOG_E("Failed to get 'getProductId' method");
-        return -1;
-    }
+        Vuforia::Driver::CameraMode mode;
+        if (!camera.getSupportedCameraMode(idx, &mode))
+        {
+            continue;
+        }
+        nativeModes.push_back(mode);
 
-    jint productId = jniEnv->CallIntMethod(mUSBControllerObj, mid_getProductId);
-    LOG_D("ProductId: 0x%04x", productId);
+        if (mode.format != Vuforia::Driver::PixelFormat::YUYV)
+        {
+            continue;
+        }
 
-    return productId;
-}
+        for (const ProcessingRule& rule : mProcessingRules)
+        {
+            if (rule.sourceWidth != mode.width || rule.sourceHeight != mode.height)
+            {
+                continue;
+            }
 
-int
-UVCExternalCamera::getFileDescriptor()
-{
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
+            Vuforia::Driver::CameraMode processedMode = mode;
+            processedMode.width = rule.width;
+            processedMode.height = rule.height;
 
-    jmethodID mid_getFileDescriptor = jniEnv->GetMethodID(mUSBControllerClass, "getFileDescriptor", "()I");
-    if (mid_getFileDescriptor == nullptr)
-    {
-        LOG_E("Failed to get 'getFileDescriptor' method");
-        return -1;
+            // Several rules or source frame rates can produce the same mode
+            if (std::none_of(processedModes.begin(), processedModes.end(),
+                             [&processedMode](const Vuforia::Driver::CameraMode& other) { return isSameCameraMode(other, processedMode); }))
+            {
+                processedModes.push_back(processedMode);
+            }
+        }
     }
 
-    jint fileDescriptor = jniEnv->CallIntMethod(mUSBControllerObj, mid_getFileDescriptor);
-    LOG_D("FileDescriptor: %d", fileDescriptor);
+    // A configured processed mode takes the place of the native mode of the same size
+    std::vector<Vuforia::Driver::CameraMode> cameraModes;
+    for (const Vuforia::Driver::CameraMode& mode : nativeModes)
+    {
+        if (std::none_of(processedModes.begin(), processedModes.end(),
+                         [&mode](const Vuforia::Driver::CameraMode& other) { return isSameCameraMode(other, mode); }))
+        {
+            cameraModes.push_back(mode);
+        }
+    }
+    cameraModes.insert(cameraModes.end(), processedModes.begin(), processedModes.end());
 
-    return fileDescriptor;
+    return cameraModes;
 }
 
-char*
-UVCExternalCamera::getUSBFS()
+const UVCExternalCamera::ProcessingRule*
+UVCExternalCamera::findProcessingRule(UVCCamera& camera, const Vuforia::Driver::CameraMode& cameraMode,
+                                      Vuforia::Driver::CameraMode& streamMode)
 {
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
+    streamMode = cameraMode;
 
-    jmethodID mid_getUSBFS = jniEnv->GetMethodID(mUSBControllerClass, "getUSBFS", "()Ljava/lang/String;");
-    if (mid_getUSBFS == nullptr)
+    if (cameraMode.format != Vuforia::Driver::PixelFormat::YUYV)
     {
-        LOG_E("Failed to get 'getUSBFS' method");
         return nullptr;
     }
 
-    jstring jstr_usbfs = (jstring) jniEnv->CallObjectMethod(mUSBControllerObj, mid_getUSBFS);
-    if (jstr_usbfs == nullptr)
+    for (const ProcessingRule& rule : mProcessingRules)
     {
-        LOG_E("Failed to get USBFS");
-        return nullptr;
-    }
+        Vuforia::Driver::CameraMode sourceMode = cameraMode;
+        sourceMode.width = rule.sourceWidth;
+        sourceMode.height = rule.sourceHeight;
 
-    jboolean isCopy;
-    const char* utf_usbfs = jniEnv->GetStringUTFChars(jstr_usbfs, &isCopy);
-    if (utf_usbfs == nullptr)
-    {
-        LOG_E("Failed to convert USBFS to UTF char");
-        return nullptr;
+        if (rule.width == cameraMode.width && rule.height == cameraMode.height && camera.supportsCameraMode(sourceMode))
+        {
+            streamMode = sourceMode;
+            return &rule;
+        }
     }
 
-    char* usbfs = strdup(utf_usbfs);
-    LOG_D("USBFS: %s", usbfs);
-
-    jniEnv->ReleaseStringUTFChars(jstr_usbfs, utf_usbfs);
-    jniEnv->DeleteLocalRef(jstr_usbfs);
-
-    return usbfs;
+    return nullptr;
 }
 
-int
-UVCExternalCamera::getBusNumber()
+void
+UVCExternalCamera::startWatchdog()
 {
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
-
-    jmethodID mid_getBusNumber = jniEnv->GetMethodID(mUSBControllerClass, "getBusNumber", "()I");
-    if (mid_getBusNumber == nullptr)
-    {
-        LOG_E("Failed to get 'getBusNumber' method");
-        return -1;
-    }
-
-    jint busNumber = jniEnv->CallIntMethod(mUSBControllerObj, mid_getBusNumber);
-    LOG_D("BusNumber: %d", busNumber);
-
-    return busNumber;
+    // Called from open() with the lock held
+    mLastReconnectAttempts.assign(mCameras.size(), std::chrono::steady_clock::time_point());
+    mWatchdogRunning = true;
+    mWatchdogThread = std::thread(&UVCExternalCamera::watchdogLoop, this);
 }
 
-int
-UVCExternalCamera::getDeviceNumber()
+void
+UVCExternalCamera::stopWatchdog()
 {
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
-
-    jmethodID mid_getDeviceNumber = jniEnv->GetMethodID(mUSBControllerClass, "getDeviceNumber", "()I");
-    if (mid_getDeviceNumber == nullptr)
     {
-        LOG_E("Failed to get 'getDeviceNumber' method");
-        return -1;
+        std::lock_guard<std::mutex> lock(mMutex);
+        mWatchdogRunning = false;
     }
+    mWatchdogCondition.notify_all();
 
-    jint deviceNumber = jniEnv->CallIntMethod(mUSBControllerObj, mid_getDeviceNumber);
-    LOG_D("DeviceNumber: %d", deviceNumber);
-
-    return deviceNumber;
+    if (mWatchdogThread.joinable())
+    {
+        mWatchdogThread.join();
+    }
 }
 
-Vuforia::Driver::CameraIntrinsics
-UVCExternalCamera::getCalibrationValue(int vid, int pid, int width, int height)
+void
+UVCExternalCamera::watchdogLoop()
 {
-    ScopedJNIEnv jniEnv(mJavaVM, mJniVersion);
+    std::unique_lock<std::mutex> lock(mMutex);
 
-    Vuforia::Driver::CameraIntrinsics intrinsics; // default intrinsics with all zero values
+    int generation = mJavaBridge.getDeviceListGeneration();
 
-    jmethodID mid_getCalibrationValue = jniEnv->GetMethodID(mCalibrationControllerClass, "getCalibrationValue", "(IIII)[F");
-    if (mid_getCalibrationValue == nullptr)
+    while (!mWatchdogCondition.wait_for(lock, WATCHDOG_INTERVAL, [this] { return !mWatchdogRunning; }))
     {
-        LOG_E("Failed to get 'getCalibrationValue' method");
-        return intrinsics;
-    }
+        int currentGeneration = mJavaBridge.getDeviceListGeneration();
+        bool deviceListChanged = currentGeneration != generation;
+        generation = currentGeneration;
 
-    jfloatArray calibrationValue = (jfloatArray) jniEnv->CallObjectMethod(mCalibrationControllerObj, mid_getCalibrationValue, vid, pid, width, height);
-    if (calibrationValue == nullptr)
-    {
-        LOG_E("No calibration value for [VID: %d, PID: %d, Width: %d, Height: %d]", vid, pid, width, height);
-        return intrinsics;
-    }
+        std::chrono::steady_clock::time_point now = std::chrono::steady_clock::now();
 
-    if (jniEnv->GetArrayLength(calibrationValue) != 12)
-    {
-        LOG_E("Calibration value for [VID: %d, PID: %d, Width: %d, Height: %d] is not of a correct length", vid, pid, width, height);
-        return intrinsics;
-    }
+        for (uint32_t idx = 0; idx < mCameras.size() && mWatchdogRunning; idx++)
+        {
+            UVCCamera& camera = *mCameras[idx];
+            bool unplugged = false;
 
-    jfloat* calibrationArr = jniEnv->GetFloatArrayElements(calibrationValue, 0);
+            if (camera.isConnected())
+            {
+                if (deviceListChanged && !mJavaBridge.isDeviceAvailable(camera.getDeviceIndex()))
+                {
+                    LOG_I("Camera %u was unplugged", idx);
+                    unplugged = true;
+                }
+                else if (camera.isStreaming() && mStallTimeout.count() > 0 &&
+                         getCurrentTimestamp() - camera.getLastFrameTime() > static_cast<uint64_t>(mStallTimeout.count()) * 1000000ULL &&
+                         now - mLastReconnectAttempts[idx] > mStallTimeout)
+                {
+                    // Still plugged in, but the stream died, e.g. after a glitch on the cable
+                    LOG_I("Camera %u stopped delivering frames, reconnecting", idx);
+                }
+                else
+                {
+                    continue;
+                }
+            }
+            else if ((deviceListChanged || now - mLastReconnectAttempts[idx] > RECONNECT_RETRY_INTERVAL) &&
+                     mJavaBridge.isDeviceAvailable(camera.getDeviceIndex()))
+            {
+                LOG_I("Camera %u is available again, reconnecting", idx);
+            }
+            else
+            {
+                continue;
+            }
 
-    intrinsics.principalPointX = calibrationArr[0];
-    intrinsics.principalPointY = calibrationArr[1];
-    intrinsics.focalLengthX = calibrationArr[2];
-    intrinsics.focalLengthY = calibrationArr[3];
-    memcpy(intrinsics.distortionCoefficients, &(calibrationArr[4]), 8 * sizeof(float));
+            // Opening the device and resuming the stream takes a while. The lock is released
+            // meanwhile, the calls that need this camera wait for it, the others go ahead.
+            mReconnectingCamera = idx;
+            lock.unlock();
 
-    jniEnv->ReleaseFloatArrayElements(calibrationValue, calibrationArr, 0);
+            bool connected = false;
+            if (unplugged)
+            {
+                camera.disconnect();
+            }
+            else
+            {
+                connected = camera.reconnect();
+            }
+
+            lock.lock();
+            mReconnectingCamera = NO_CAMERA;
+            mReconnectCondition.notify_all();
 
-    return intrinsics;
+            // The state may have changed without the lock, e.g. the watchdog was stopped
+            if (!unplugged && mWatchdogRunning)
+            {
+                // The retry interval counts from the end of the attempt
+                mLastReconnectAttempts[idx] = std::chrono::steady_clock::now();
+                if (connected)
+                {
+                    LOG_I("Camera %u reconnected", idx);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,373 @@
+/*===============================================================================
+Copyright (c) 2018 PTC Inc. All Rights Reserved.
+
+Vuforia is a trademark of PTC Inc., registered in the United States and other
+countries.
+===============================================================================*/
+
+package com.vuforia.SampleApplication;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the steps of the AR startup on a small thread pool.
+ *
+ * Each step names the steps it depends on and is started as soon as those are done,
+ * so steps that don't depend on each other, e.g. decoding textures while Vuforia
+ * initializes, run at the same time. Steps that must happen in order, like the
+ * Vuforia initialization steps, are chained through their dependencies.
+ *
+ * The first step that fails stops the startup. The listener is called on the UI thread
+ * once every step is done or a step failed, but not after the startup was cancelled.
+ */
+class SampleAppStartupExecutor
+{
+    private static final String LOGTAG = "SampleAppStartup";
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+
+    // A unit of work of the startup, called on one of the startup threads
+    interface Step
+    {
+        void run() throws SampleApplicationException;
+    }
+
+
+    interface Listener
+    {
+        // Called on the UI thread with null if every step succeeded,
+        // otherwise with the exception of the step that failed
+        void onStartupDone(SampleApplicationException exception);
+    }
+
+
+    private static class Node
+    {
+        final String mName;
+        final Step mStep;
+        final String[] mDependencies;
+        final List<Node> mDependents = new ArrayList<>();
+
+        // Number of dependencies that are not done yet
+        int mPending;
+
+        Node(String name, Step step, String[] dependencies)
+        {
+            mName = name;
+            mStep = step;
+            mDependencies = dependencies;
+        }
+    }
+
+
+    private final Map<String, Node> mNodes = new LinkedHashMap<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ExecutorService mExecutor;
+    private Listener mListener;
+    private int mRemaining;
+    private long mStartTime;
+
+    // Set once the startup failed or was cancelled, no further steps are started then
+    private volatile boolean mStopped = false;
+    private volatile boolean mCancelled = false;
+
+
+    // Adds a step that runs once all of the named steps are done.
+    // Steps can only be added before the startup is started.
+    synchronized void addStep(String name, Step step, String... dependencies)
+    {
+        if (mExecutor != null)
+        {
+            throw new IllegalStateException("Cannot add step " + name + ", the startup is already running");
+        }
+
+        if (mNodes.containsKey(name))
+        {
+            throw new IllegalArgumentException("Startup step " + name + " was added twice");
+        }
+
+        mNodes.put(name, new Node(name, step, dependencies));
+    }
+
+
+    synchronized boolean isStarted()
+    {
+        return mExecutor != null;
+    }
+
+
+    // True once the startup failed or was cancelled, long running steps
+    // should check this and return early
+    boolean isStopped()
+    {
+        return mStopped;
+    }
+
+
+    // Starts the steps that don't depend on other steps
+    synchronized void start(Listener listener)
+    {
+        if (mExecutor != null)
+        {
+            throw new IllegalStateException("The startup was already started");
+        }
+
+        List<Node> ready = new ArrayList<>();
+        for (Node node : mNodes.values())
+        {
+            for (String dependency : node.mDependencies)
+            {
+                Node dependencyNode = mNodes.get(dependency);
+                if (dependencyNode == null)
+                {
+                    throw new IllegalStateException("Startup step " + node.mName
+                            + " depends on the unknown step " + dependency);
+                }
+
+                dependencyNode.mDependents.add(node);
+                node.mPending++;
+            }
+        }
+
+        for (Node node : mNodes.values())
+        {
+            if (node.mPending == 0)
+            {
+                ready.add(node);
+            }
+        }
+
+        checkForCycles(ready);
+
+        mListener = listener;
+        mRemaining = mNodes.size();
+        mStartTime = SystemClock.elapsedRealtime();
+
+        // The Vuforia steps run one after the other, a few more threads
+        // are enough for the independent steps next to them
+        int threadCount = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                return new Thread(runnable, "SampleAppStartup-" + sThreadCount.incrementAndGet());
+            }
+        });
+
+        if (mNodes.isEmpty())
+        {
+            finish(null);
+            return;
+        }
+
+        for (Node node : ready)
+        {
+            submit(node);
+        }
+    }
+
+
+    // Stops starting new steps and interrupts the running ones, without waiting
+    // for them. The listener is not called after this.
+    void cancel()
+    {
+        final ExecutorService executor;
+        synchronized (this)
+        {
+            mStopped = true;
+            mCancelled = true;
+            executor = mExecutor;
+        }
+
+        if (executor == null)
+        {
+            return;
+        }
+
+        executor.shutdownNow();
+
+        // Steps like loading a data set or a Vuforia.init() step don't react to the
+        // interrupt, they are waited for on another thread so the UI thread doesn't block
+        Thread joinThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long startTime = SystemClock.elapsedRealtime();
+                try
+                {
+                    while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+                    {
+                        Log.d(LOGTAG, "Waiting for the cancelled startup steps to return");
+                    }
+
+                    Log.d(LOGTAG, "Cancelled startup steps returned after "
+                            + (SystemClock.elapsedRealtime() - startTime) + " ms");
+                }
+                catch (InterruptedException e)
+                {
+                    Log.d(LOGTAG, "Stopped waiting for the cancelled startup steps");
+                }
+            }
+        }, "SampleAppStartup-cancel");
+        joinThread.start();
+    }
+
+
+    private void checkForCycles(List<Node> ready)
+    {
+        // Steps in a cycle never become ready, so they are the ones this walk doesn't reach
+        Map<Node, Integer> pending = new LinkedHashMap<>();
+        for (Node node : mNodes.values())
+        {
+            pending.put(node, node.mPending);
+        }
+
+        List<Node> reached = new ArrayList<>(ready);
+        for (int i = 0; i < reached.size(); i++)
+        {
+            for (Node dependent : reached.get(i).mDependents)
+            {
+                int count = pending.get(dependent) - 1;
+                pending.put(dependent, count);
+                if (count == 0)
+                {
+                    reached.add(dependent);
+                }
+            }
+        }
+
+        if (reached.size() != mNodes.size())
+        {
+            throw new IllegalStateException("The startup steps depend on each other in a cycle");
+        }
+    }
+
+
+    private void submit(final Node node)
+    {
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runStep(node);
+            }
+        });
+    }
+
+
+    // Called on a startup thread
+    private void runStep(Node node)
+    {
+        // Steps that were queued before the startup stopped are skipped
+        if (mStopped)
+        {
+            return;
+        }
+
+        SampleApplicationException exception = null;
+        long startTime = SystemClock.elapsedRealtime();
+
+        try
+        {
+            node.mStep.run();
+        }
+        catch (SampleApplicationException e)
+        {
+            exception = e;
+        }
+        catch (RuntimeException e)
+        {
+            // Steps that were interrupted by cancel() may fail on the way out
+            if (mStopped)
+            {
+                return;
+            }
+
+            String logMessage = "Startup step " + node.mName + " failed: " + e;
+            Log.e(LOGTAG, logMessage);
+            exception = new SampleApplicationException(
+                    SampleApplicationException.INITIALIZATION_FAILURE,
+                    logMessage);
+        }
+
+        Log.d(LOGTAG, "Startup step " + node.mName + " took "
+                + (SystemClock.elapsedRealtime() - startTime) + " ms"
+                + (exception != null ? " and failed" : ""));
+
+        onStepDone(node, exception);
+    }
+
+
+    private synchronized void onStepDone(Node node, SampleApplicationException exception)
+    {
+        if (mStopped)
+        {
+            return;
+        }
+
+        if (exception != null)
+        {
+            mStopped = true;
+            finish(exception);
+            return;
+        }
+
+        for (Node dependent : node.mDependents)
+        {
+            if (--dependent.mPending == 0)
+            {
+                submit(dependent);
+            }
+        }
+
+        if (--mRemaining == 0)
+        {
+            finish(null);
+        }
+    }
+
+
+    private void finish(final SampleApplicationException exception)
+    {
+        Log.d(LOGTAG, "Startup " + (exception == null ? "done" : "failed") + " after "
+                + (SystemClock.elapsedRealtime() - mStartTime) + " ms");
+
+        // Running steps still return, the threads end once they did
+        mExecutor.shutdown();
+
+        final Listener listener = mListener;
+        mListener = null;
+
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // cancel() is called on the UI thread as well, so this
+                // can't race with a cancel that happened after the post
+                if (!mCancelled)
+                {
+                    listener.onStartupDone(exception);
+                }
+            }
+        });
+    }
+}
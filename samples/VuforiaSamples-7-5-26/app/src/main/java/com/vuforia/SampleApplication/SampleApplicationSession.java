@@ -12,6 +12,7 @@ package com.vuforia.SampleApplication;
 
 import android.app.Activity;
 import android.content.pm.ActivityInfo;
+import android.content.res.AssetManager;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.view.WindowManager;
@@ -26,6 +27,8 @@ import com.vuforia.Vuforia;
 import com.vuforia.Vuforia.UpdateCallbackInterface;
 import com.vuforia.VuforiaSamples.R;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 
 /**
@@ -36,6 +39,11 @@ public class SampleApplicationSession implements UpdateCallbackInterface
 {
     private static final String LOGTAG = "SampleAppSession";
 
+    // The Vuforia steps of the startup, they run in this order:
+    private static final String STEP_INIT_VUFORIA = "initVuforia";
+    private static final String STEP_INIT_TRACKERS = "initTrackers";
+    private static final String STEP_LOAD_TRACKERS_DATA = "loadTrackersData";
+
     private WeakReference<Activity> mActivityRef;
     private final WeakReference<SampleApplicationControl> mSessionControlRef;
 
@@ -45,9 +53,10 @@ public class SampleApplicationSession implements UpdateCallbackInterface
 
     private int mVideoMode = CameraDevice.MODE.MODE_DEFAULT;
 
-    // The async tasks that initialize the Vuforia SDK and Trackers:
-    private InitVuforiaTask mInitVuforiaTask;
-    private LoadTrackerTask mLoadTrackerTask;
+    // Initializes the Vuforia SDK and Trackers, next to the work the
+    // activity added with addStartupTask() and prefetchDataSet().
+    // Replaced by stopAR(), so that the session can be initialized again:
+    private SampleAppStartupExecutor mStartup = new SampleAppStartupExecutor();
     private ResumeVuforiaTask mResumeVuforiaTask;
 
     // An object used for synchronizing Vuforia initialization, dataset loading
@@ -75,6 +84,31 @@ public class SampleApplicationSession implements UpdateCallbackInterface
     }
 
 
+    // Adds work the activity needs before it can render, e.g. decoding textures or
+    // parsing models. The task runs on a background thread while Vuforia initializes,
+    // onInitARDone() is called once it is done. Must be called before initAR().
+    public void addStartupTask(String name, final Runnable task)
+    {
+        mStartup.addStep(name, new SampleAppStartupExecutor.Step()
+        {
+            @Override
+            public void run()
+            {
+                task.run();
+            }
+        });
+    }
+
+
+    // Reads the data set from the APK while Vuforia initializes, so that
+    // doLoadTrackersData() finds its files in the page cache.
+    // Must be called before initAR().
+    public void prefetchDataSet(String dataSetPath)
+    {
+        mStartup.addStep("prefetch " + dataSetPath, new PrefetchDataSetStep(this, mStartup, dataSetPath));
+    }
+
+
     // Initializes Vuforia and sets up preferences.
     public void initAR(Activity activity, int screenOrientation)
     {
@@ -102,9 +136,9 @@ public class SampleApplicationSession implements UpdateCallbackInterface
         // Initialize Vuforia SDK asynchronously to avoid blocking the
         // main (UI) thread.
         //
-        // NOTE: This task instance must be created and invoked on the
-        // UI thread and it can be executed only once!
-        if (mInitVuforiaTask != null)
+        // NOTE: The startup must be started on the UI thread and it
+        // can be started only once!
+        if (mStartup.isStarted())
         {
             String logMessage = "Cannot initialize SDK twice";
             vuforiaException = new SampleApplicationException(
@@ -117,8 +151,15 @@ public class SampleApplicationSession implements UpdateCallbackInterface
         if (vuforiaException == null)
         {
             try {
-                mInitVuforiaTask = new InitVuforiaTask(this);
-                mInitVuforiaTask.execute();
+                // Vuforia must be initialized before the trackers, and the
+                // trackers before their data is loaded. The steps the activity
+                // added run next to them.
+                mStartup.addStep(STEP_INIT_VUFORIA, new InitVuforiaStep(this, mStartup));
+                mStartup.addStep(STEP_INIT_TRACKERS, new InitTrackerStep(this, mStartup),
+                        STEP_INIT_VUFORIA);
+                mStartup.addStep(STEP_LOAD_TRACKERS_DATA, new LoadTrackerStep(this, mStartup),
+                        STEP_INIT_TRACKERS);
+                mStartup.start(new StartupListener(this));
             }
             catch (Exception e)
             {
@@ -194,23 +235,12 @@ public class SampleApplicationSession implements UpdateCallbackInterface
     // deinitializes Vuforia, the camera, and trackers
     public void stopAR() throws SampleApplicationException
     {
-        // Cancel potentially running tasks
-        if (mInitVuforiaTask != null
-                && mInitVuforiaTask.getStatus() != InitVuforiaTask.Status.FINISHED)
-        {
-            mInitVuforiaTask.cancel(true);
-            mInitVuforiaTask = null;
-        }
-
-        if (mLoadTrackerTask != null
-                && mLoadTrackerTask.getStatus() != LoadTrackerTask.Status.FINISHED)
-        {
-            mLoadTrackerTask.cancel(true);
-            mLoadTrackerTask = null;
-        }
-
-        mInitVuforiaTask = null;
-        mLoadTrackerTask = null;
+        // Cancel a potentially running startup without waiting for it. The
+        // Vuforia steps that are still running hold mLifecycleLock, so the
+        // deinitialization below happens after them, and the steps that
+        // have not taken the lock yet see the cancellation and return.
+        mStartup.cancel();
+        mStartup = new SampleAppStartupExecutor();
 
         mStarted = false;
 
@@ -389,26 +419,35 @@ public class SampleApplicationSession implements UpdateCallbackInterface
     }
 
 
-    // An async task to configure and initialize Vuforia asynchronously.
-    private static class InitVuforiaTask extends AsyncTask<Void, Integer, Boolean>
+    // A startup step to configure and initialize Vuforia.
+    private static class InitVuforiaStep implements SampleAppStartupExecutor.Step
     {
-        // Initialize with invalid value:
-        private int mProgressValue = -1;
-
         private final WeakReference<SampleApplicationSession> appSessionRef;
+        private final SampleAppStartupExecutor mStartup;
 
-        InitVuforiaTask(SampleApplicationSession session)
+        InitVuforiaStep(SampleApplicationSession session, SampleAppStartupExecutor startup)
         {
             appSessionRef = new WeakReference<>(session);
+            mStartup = startup;
         }
 
-        protected Boolean doInBackground(Void... params)
+        @Override
+        public void run() throws SampleApplicationException
         {
             SampleApplicationSession session = appSessionRef.get();
 
+            // Initialize with invalid value:
+            int progressValue = -1;
+
             // Prevent the onDestroy() method to overlap with initialization:
             synchronized (session.mLifecycleLock)
             {
+                // stopAR() may have deinitialized Vuforia while we waited for the lock
+                if (mStartup.isStopped())
+                {
+                    return;
+                }
+
                 // Configure Vuforia
                 // Note: license key goes in the third parameter
                 Vuforia.setInitParameters(session.mActivityRef.get(), session.mVuforiaFlags, "AXQgAfv/////AAAAGbLRQTPihEVXpwyMcPoDb8cxKXX7ZyDrM5tRo70Fwo2FF355N2jKRXmKq3SBw+Qc5wJn3sh3KDvAO1VqnPddlzlBxWH3uQ2FCBr9olktO4b4r3SySomiW8Ms/X24G35vZo/eacRA0FCKpXFNkEakdakJ51BG0aCqc2ifRhxnAywjSNNwiNss2kGlZ/uHI3WrMAPXCh7nrLg7RVCR7XM0xfCYxQ7/9AZf3l8Ad+WyrnsIbcCCUYt/4UEzXxsvrfF7Miw6GLB+7GbDfxxO8+V9L+HohnnbtdxkGTRUZeS1BaHXkhexuFOiQGbQG6gB0pObtJ+jJ4BAw1bO4mNKp1aU8g9yqD0zgSjM752wug2r6fmF");
@@ -420,79 +459,30 @@ public class SampleApplicationSession implements UpdateCallbackInterface
                     // progress in percents (0 ... 100%).
                     // If Vuforia.init() returns -1, it indicates an error.
                     // Initialization is done when progress has reached 100%.
-                    mProgressValue = Vuforia.init();
-
-                    // Publish the progress value:
-                    publishProgress(mProgressValue);
-
-                    // We check whether the task has been canceled in the
-                    // meantime (by calling AsyncTask.cancel(true)).
-                    // and bail out if it has, thus stopping this thread.
-                    // This is necessary as the AsyncTask will run to completion
-                    // regardless of the status of the component that
-                    // started is.
-                } while (!isCancelled() && mProgressValue >= 0
-                        && mProgressValue < 100);
+                    progressValue = Vuforia.init();
 
-                return (mProgressValue > 0);
+                    // We check whether the startup has been cancelled in the
+                    // meantime and bail out if it has, so that stopAR() doesn't
+                    // have to wait for the whole initialization.
+                } while (!mStartup.isStopped() && progressValue >= 0
+                        && progressValue < 100);
             }
-        }
-
-
-        protected void onProgressUpdate(Integer... values)
-        {
-            // Do something with the progress value "values[0]", e.g. update
-            // splash screen, progress bar, etc.
-        }
-
-
-        protected void onPostExecute(Boolean result)
-        {
 
-            Log.d(LOGTAG, "InitVuforiaTask.onPostExecute: execution "
-                    + (result ? "successful" : "failed"));
+            Log.d(LOGTAG, "InitVuforiaStep: execution "
+                    + (progressValue > 0 ? "successful" : "failed"));
 
-            SampleApplicationException vuforiaException = null;
-            SampleApplicationSession session = appSessionRef.get();
-
-            // Done initializing Vuforia, next we will try initializing the tracker
-            if (result)
+            if (progressValue <= 0)
             {
-                try
-                {
-                    InitTrackerTask mInitTrackerTask = new InitTrackerTask(session);
-                    mInitTrackerTask.execute();
-                }
-                catch (Exception e)
-                {
-                    String logMessage = "Failed to initialize tracker.";
-                    vuforiaException = new SampleApplicationException(
-                            SampleApplicationException.TRACKERS_INITIALIZATION_FAILURE,
-                            logMessage);
-                    Log.e(LOGTAG, logMessage);
-                }
-            }
-            else
-            {
-                String logMessage;
-
                 // NOTE: Check if initialization failed because the device is
                 // not supported. At this point the user should be informed
                 // with a message.
-                logMessage = appSessionRef.get().getInitializationErrorString(mProgressValue);
-                Log.e(LOGTAG, "InitVuforiaTask.onPostExecute: " + logMessage + " Exiting.");
+                String logMessage = session.getInitializationErrorString(progressValue);
+                Log.e(LOGTAG, "InitVuforiaStep: " + logMessage + " Exiting.");
 
-                vuforiaException = new SampleApplicationException(
+                throw new SampleApplicationException(
                         SampleApplicationException.INITIALIZATION_FAILURE,
                         logMessage);
             }
-
-            // If an exception was thrown, send it to the application
-            // and call onInitARDone to stop the initialization process
-            if (vuforiaException != null)
-            {
-                session.mSessionControlRef.get().onInitARDone(vuforiaException);
-            }
         }
     }
 
@@ -541,98 +531,79 @@ public class SampleApplicationSession implements UpdateCallbackInterface
         }
     }
 
-    // An async task to initialize trackers asynchronously
-    private static class InitTrackerTask extends AsyncTask<Void, Integer, Boolean>
+    // A startup step to initialize the trackers
+    private static class InitTrackerStep implements SampleAppStartupExecutor.Step
     {
         private final WeakReference<SampleApplicationSession> appSessionRef;
+        private final SampleAppStartupExecutor mStartup;
 
-        InitTrackerTask(SampleApplicationSession session)
+        InitTrackerStep(SampleApplicationSession session, SampleAppStartupExecutor startup)
         {
             appSessionRef = new WeakReference<>(session);
+            mStartup = startup;
         }
 
-        protected  Boolean doInBackground(Void... params)
+        @Override
+        public void run() throws SampleApplicationException
         {
-            synchronized (appSessionRef.get().mLifecycleLock)
-            {
-                // Load the tracker data set:
-                return appSessionRef.get().mSessionControlRef.get().doInitTrackers();
-            }
-        }
+            boolean result;
 
-        protected void onPostExecute(Boolean result)
-        {
-            SampleApplicationException vuforiaException = null;
-            SampleApplicationSession session = appSessionRef.get();
-
-            Log.d(LOGTAG, "InitTrackerTask.onPostExecute: execution "
-                    + (result ? "successful" : "failed"));
-
-
-            // Done initializing the tracker, next we will try loading the tracker
-            if (result)
+            // Prevent the concurrent lifecycle operations:
+            synchronized (appSessionRef.get().mLifecycleLock)
             {
-                try
+                if (mStartup.isStopped())
                 {
-                    session.mLoadTrackerTask = new LoadTrackerTask(session);
-                    session.mLoadTrackerTask.execute();
+                    return;
                 }
-                catch (Exception e)
-                {
-                    String logMessage = "Failed to load tracker data.";
-                    Log.e(LOGTAG, logMessage);
 
-                    vuforiaException = new SampleApplicationException(
-                            SampleApplicationException.LOADING_TRACKERS_FAILURE,
-                            logMessage);
-                }
+                result = appSessionRef.get().mSessionControlRef.get().doInitTrackers();
             }
-            else
+
+            Log.d(LOGTAG, "InitTrackerStep: execution "
+                    + (result ? "successful" : "failed"));
+
+            if (!result)
             {
                 String logMessage = "Failed to initialize trackers.";
                 Log.e(LOGTAG, logMessage);
 
-                // Error initializing trackers
-                vuforiaException = new SampleApplicationException(
+                throw new SampleApplicationException(
                         SampleApplicationException.TRACKERS_INITIALIZATION_FAILURE,
                         logMessage);
             }
-
-            // If an exception was thrown, send it to the application
-            // and call onInitARDone to stop the initialization process
-            if (vuforiaException != null)
-            {
-                session.mSessionControlRef.get().onInitARDone(vuforiaException);
-            }
         }
     }
 
-    // An async task to load the tracker data asynchronously.
-    private static class LoadTrackerTask extends AsyncTask<Void, Void, Boolean>
+    // A startup step to load the tracker data
+    private static class LoadTrackerStep implements SampleAppStartupExecutor.Step
     {
         private final WeakReference<SampleApplicationSession> appSessionRef;
+        private final SampleAppStartupExecutor mStartup;
 
-        LoadTrackerTask(SampleApplicationSession session)
+        LoadTrackerStep(SampleApplicationSession session, SampleAppStartupExecutor startup)
         {
             appSessionRef = new WeakReference<>(session);
+            mStartup = startup;
         }
 
-        protected Boolean doInBackground(Void... params)
+        @Override
+        public void run() throws SampleApplicationException
         {
+            boolean result;
+
             // Prevent the concurrent lifecycle operations:
             synchronized (appSessionRef.get().mLifecycleLock)
             {
+                if (mStartup.isStopped())
+                {
+                    return;
+                }
+
                 // Load the tracker data set:
-                return appSessionRef.get().mSessionControlRef.get().doLoadTrackersData();
+                result = appSessionRef.get().mSessionControlRef.get().doLoadTrackersData();
             }
-        }
 
-        protected void onPostExecute(Boolean result)
-        {
-            SampleApplicationException vuforiaException = null;
-            SampleApplicationSession session = appSessionRef.get();
-
-            Log.d(LOGTAG, "LoadTrackerTask.onPostExecute: execution "
+            Log.d(LOGTAG, "LoadTrackerStep: execution "
                     + (result ? "successful" : "failed"));
 
             if (!result)
@@ -640,11 +611,104 @@ public class SampleApplicationSession implements UpdateCallbackInterface
                 String logMessage = "Failed to load tracker data.";
                 Log.e(LOGTAG, logMessage);
 
-                vuforiaException = new SampleApplicationException(
+                throw new SampleApplicationException(
                         SampleApplicationException.LOADING_TRACKERS_FAILURE,
                         logMessage);
             }
-            else
+        }
+    }
+
+    // A startup step that reads the files of a data set once, so that
+    // they are in the page cache when the data set is loaded
+    private static class PrefetchDataSetStep implements SampleAppStartupExecutor.Step
+    {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final WeakReference<SampleApplicationSession> appSessionRef;
+        private final SampleAppStartupExecutor mStartup;
+        private final String mDataSetPath;
+
+        PrefetchDataSetStep(SampleApplicationSession session, SampleAppStartupExecutor startup,
+                String dataSetPath)
+        {
+            appSessionRef = new WeakReference<>(session);
+            mStartup = startup;
+            mDataSetPath = dataSetPath;
+        }
+
+        @Override
+        public void run()
+        {
+            SampleApplicationSession session = appSessionRef.get();
+            AssetManager assets = session.mActivityRef.get().getAssets();
+
+            // The target data is in the .dat file next to the .xml
+            String[] fileNames = {
+                    mDataSetPath,
+                    mDataSetPath.replaceAll("\\.xml$", ".dat")
+            };
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long bytesRead = 0;
+
+            for (String fileName : fileNames)
+            {
+                InputStream is = null;
+                try
+                {
+                    is = assets.open(fileName, AssetManager.ACCESS_STREAMING);
+
+                    int count;
+                    while (!mStartup.isStopped() && (count = is.read(buffer)) > 0)
+                    {
+                        bytesRead += count;
+                    }
+                }
+                catch (IOException e)
+                {
+                    // This is only a hint, loading the data set reports missing files
+                    Log.d(LOGTAG, "Unable to prefetch " + fileName + ": " + e.getMessage());
+                }
+                finally
+                {
+                    if (is != null)
+                    {
+                        try
+                        {
+                            is.close();
+                        }
+                        catch (IOException e)
+                        {
+                            Log.d(LOGTAG, "Unable to close " + fileName);
+                        }
+                    }
+                }
+            }
+
+            Log.d(LOGTAG, "Prefetched " + bytesRead + " bytes of data set " + mDataSetPath);
+        }
+    }
+
+    // Called on the UI thread once Vuforia is initialized, the tracker data is
+    // loaded and the activity's startup tasks are done, or one of them failed
+    private static class StartupListener implements SampleAppStartupExecutor.Listener
+    {
+        private final WeakReference<SampleApplicationSession> appSessionRef;
+
+        StartupListener(SampleApplicationSession session)
+        {
+            appSessionRef = new WeakReference<>(session);
+        }
+
+        @Override
+        public void onStartupDone(SampleApplicationException exception)
+        {
+            Log.d(LOGTAG, "StartupListener.onStartupDone: execution "
+                    + (exception == null ? "successful" : "failed"));
+
+            SampleApplicationSession session = appSessionRef.get();
+
+            if (exception == null)
             {
                 // Hint to the virtual machine that it would be a good time to
                 // run the garbage collector:
@@ -660,7 +724,7 @@ public class SampleApplicationSession implements UpdateCallbackInterface
 
             // Done loading the tracker. Update the application status
             // and pass the exception to check errors
-            session.mSessionControlRef.get().onInitARDone(vuforiaException);
+            session.mSessionControlRef.get().onInitARDone(exception);
         }
     }
 
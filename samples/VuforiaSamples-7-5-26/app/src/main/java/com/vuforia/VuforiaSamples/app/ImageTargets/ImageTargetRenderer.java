@@ -177,10 +177,15 @@ public class ImageTargetRenderer implements GLSurfaceView.Renderer, SampleAppRen
         if(!mModelIsLoaded) {
             mTeapot = new Teapot();
 
+            // The activity parses the model during the startup,
+            // it is only loaded here if that failed
             try {
-                mBuildingsModel = new SampleApplication3DModel();
-                mBuildingsModel.loadModel(mActivityRef.get().getResources().getAssets(),
-                        "ImageTargets/Buildings.txt");
+                if (mBuildingsModel == null) {
+                    SampleApplication3DModel model = new SampleApplication3DModel();
+                    model.loadModel(mActivityRef.get().getResources().getAssets(),
+                            "ImageTargets/Buildings.txt");
+                    mBuildingsModel = model;
+                }
                 mModelIsLoaded = true;
             } catch (IOException e) {
                 Log.e(LOGTAG, "Unable to load buildings");
@@ -320,4 +325,10 @@ public class ImageTargetRenderer implements GLSurfaceView.Renderer, SampleAppRen
     {
         mTextures = textures;
     }
+
+
+    public void setBuildingsModel(SampleApplication3DModel model)
+    {
+        mBuildingsModel = model;
+    }
 }
@@ -52,6 +52,7 @@ import com.vuforia.SampleApplication.SampleApplicationControl;
 import com.vuforia.SampleApplication.SampleApplicationException;
 import com.vuforia.SampleApplication.SampleApplicationSession;
 import com.vuforia.SampleApplication.utils.LoadingDialogHandler;
+import com.vuforia.SampleApplication.utils.SampleApplication3DModel;
 import com.vuforia.SampleApplication.utils.SampleApplicationGLView;
 import com.vuforia.SampleApplication.utils.Texture;
 import com.vuforia.VuforiaSamples.R;
@@ -60,6 +61,7 @@ import com.vuforia.VuforiaSamples.ui.SampleAppMenu.SampleAppMenuGroup;
 import com.vuforia.VuforiaSamples.ui.SampleAppMenu.SampleAppMenuInterface;
 import com.vuforia.samples.uvcDriver.USBController;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Vector;
@@ -95,8 +97,9 @@ public class ImageTargets extends Activity implements SampleApplicationControl,
 
     private GestureDetector mGestureDetector;
 
-    // The textures we will use for rendering:
+    // The textures and the model we will use for rendering:
     private Vector<Texture> mTextures;
+    private volatile SampleApplication3DModel mBuildingsModel;
 
     // Menu option flags
     private boolean mSwitchDatasetAsap = false;
@@ -153,15 +156,19 @@ public class ImageTargets extends Activity implements SampleApplicationControl,
         mDatasetStrings.add("StonesAndChips.xml");
         mDatasetStrings.add("Tarmac.xml");
 
+        // Load any sample specific textures and models, and read the data set
+        // while Vuforia initializes:
+        mTextures = new Vector<>();
+        loadTextures();
+        loadModels();
+        vuforiaAppSession.prefetchDataSet(
+                mDatasetStrings.get(mCurrentDatasetSelectionIndex));
+
         vuforiaAppSession
                 .initAR(this, ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
 
         mGestureDetector = new GestureDetector(getApplicationContext(), new GestureListener(this));
 
-        // Load any sample specific textures:
-        mTextures = new Vector<>();
-        loadTextures();
-
         mIsDroidDevice = android.os.Build.MODEL.toLowerCase().startsWith(
                 "droid");
     }
@@ -220,16 +227,68 @@ public class ImageTargets extends Activity implements SampleApplicationControl,
 
 
     // Load specific textures from the APK, which we will later use for rendering.
+    // The textures are decoded in parallel while Vuforia initializes.
     private void loadTextures()
     {
-        mTextures.add(Texture.loadTextureFromApk("TextureTeapotBrass.png",
-                getAssets()));
-        mTextures.add(Texture.loadTextureFromApk("TextureTeapotBlue.png",
-                getAssets()));
-        mTextures.add(Texture.loadTextureFromApk("TextureTeapotRed.png",
-                getAssets()));
-        mTextures.add(Texture.loadTextureFromApk("ImageTargets/Buildings.jpeg",
-                getAssets()));
+        final String[] textureFiles = {
+                "TextureTeapotBrass.png",
+                "TextureTeapotBlue.png",
+                "TextureTeapotRed.png",
+                "ImageTargets/Buildings.jpeg"
+        };
+
+        // The renderer picks the textures by index, so each one gets its slot
+        final Vector<Texture> textures = mTextures;
+        textures.setSize(textureFiles.length);
+
+        for (int i = 0; i < textureFiles.length; i++)
+        {
+            final int index = i;
+            vuforiaAppSession.addStartupTask("texture " + textureFiles[i], new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Texture texture = Texture.loadTextureFromApk(textureFiles[index],
+                            getAssets());
+
+                    // onDestroy() doesn't wait for the startup, the textures
+                    // may have been released in the meantime
+                    synchronized (textures)
+                    {
+                        if (index < textures.size())
+                        {
+                            textures.set(index, texture);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+
+    // Parse the buildings model while Vuforia initializes, so the renderer
+    // doesn't have to parse it on the GL thread.
+    private void loadModels()
+    {
+        vuforiaAppSession.addStartupTask("model Buildings.txt", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    SampleApplication3DModel model = new SampleApplication3DModel();
+                    model.loadModel(getAssets(), "ImageTargets/Buildings.txt");
+                    mBuildingsModel = model;
+                }
+                catch (IOException e)
+                {
+                    // The renderer tries again when it initializes
+                    Log.e(LOGTAG, "Unable to load buildings");
+                }
+            }
+        });
     }
 
 
@@ -327,6 +386,7 @@ public class ImageTargets extends Activity implements SampleApplicationControl,
 
         mRenderer = new ImageTargetRenderer(this, vuforiaAppSession);
         mRenderer.setTextures(mTextures);
+        mRenderer.setBuildingsModel(mBuildingsModel);
         mGlView.setRenderer(mRenderer);
     }
 